@@ -0,0 +1,166 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.exoplayer2;
+
+import android.content.ComponentCallbacks2;
+import com.google.android.exoplayer2.testutil.TestUtil;
+import com.google.android.exoplayer2.source.TrackGroup;
+import com.google.android.exoplayer2.source.TrackGroupArray;
+import com.google.android.exoplayer2.trackselection.FixedTrackSelection;
+import com.google.android.exoplayer2.trackselection.TrackSelectionArray;
+import com.google.android.exoplayer2.upstream.Allocation;
+import com.google.android.exoplayer2.upstream.DefaultAllocator;
+import com.google.android.exoplayer2.util.MimeTypes;
+import junit.framework.TestCase;
+
+/**
+ * Unit tests for {@link MemoryAwareLoadControl}.
+ */
+public class MemoryAwareLoadControlTest extends TestCase {
+
+  private static final int ALLOCATION_SIZE = 1024;
+  private static final int MAX_BUFFER_BYTES = 16 * ALLOCATION_SIZE;
+  private static final int MIN_BUFFER_MS = 1000;
+  private static final int MAX_BUFFER_MS = 8000;
+  private static final int BUFFER_FOR_PLAYBACK_MS = 500;
+
+  private static final Format VIDEO_FORMAT = Format.createSampleFormat("video",
+      MimeTypes.VIDEO_H264, null, 8000, null);
+  private static final Format AUDIO_FORMAT = Format.createSampleFormat("audio",
+      MimeTypes.AUDIO_AAC, null, Format.NO_VALUE, null);
+
+  private DefaultAllocator allocator;
+
+  @Override
+  public void setUp() {
+    allocator = new DefaultAllocator(true, ALLOCATION_SIZE);
+  }
+
+  public void testTargetBufferSizeFromBitrate() {
+    MemoryAwareLoadControl loadControl = createLoadControl(Long.MAX_VALUE);
+    selectTracks(loadControl);
+    // 8000 bits per second for 8 seconds, with 25% headroom, rounded up to whole allocations, plus
+    // one allocation.
+    assertEquals(11 * ALLOCATION_SIZE, loadControl.getRendererTargetBufferBytes(0));
+    // The bitrate is unknown, so the default for the track type is used.
+    assertEquals(C.DEFAULT_AUDIO_BUFFER_SIZE, loadControl.getRendererTargetBufferBytes(1));
+    assertEquals(0, loadControl.getRendererTargetBufferBytes(2));
+  }
+
+  public void testRendererBufferedBytes() {
+    MemoryAwareLoadControl loadControl = createLoadControl(Long.MAX_VALUE);
+    selectTracks(loadControl);
+    TestUtil.allocate(allocator, 10);
+    long targetBytes = 11 * ALLOCATION_SIZE + C.DEFAULT_AUDIO_BUFFER_SIZE;
+    assertEquals(10 * ALLOCATION_SIZE, loadControl.getBufferedBytes());
+    assertEquals(10 * ALLOCATION_SIZE * 11 * ALLOCATION_SIZE / targetBytes,
+        loadControl.getRendererBufferedBytes(0));
+    assertEquals(0, loadControl.getRendererBufferedBytes(2));
+  }
+
+  public void testLoadingContinuesBetweenWatermarks() {
+    MemoryAwareLoadControl loadControl = createLoadControl(Long.MAX_VALUE);
+    selectTracks(loadControl);
+    assertTrue(loadControl.shouldContinueLoading(0));
+    TestUtil.allocate(allocator, 11);
+    assertTrue(loadControl.shouldContinueLoading(MIN_BUFFER_MS * 1000L));
+    assertEquals(MIN_BUFFER_MS * 1000L, loadControl.getBufferedDurationUs());
+    assertFalse(loadControl.shouldContinueLoading(MAX_BUFFER_MS * 1000L + 1));
+    assertFalse(loadControl.shouldContinueLoading(MIN_BUFFER_MS * 1000L));
+  }
+
+  public void testMaxBufferBytesStopsLoadingAndStartsPlayback() {
+    MemoryAwareLoadControl loadControl = createLoadControl(Long.MAX_VALUE);
+    selectTracks(loadControl);
+    TestUtil.allocate(allocator, MAX_BUFFER_BYTES / ALLOCATION_SIZE - 1);
+    assertTrue(loadControl.shouldContinueLoading(0));
+    assertFalse(loadControl.shouldStartPlayback(0, false));
+    TestUtil.allocate(allocator, 1);
+    assertFalse(loadControl.shouldContinueLoading(0));
+    assertTrue(loadControl.shouldStartPlayback(0, false));
+  }
+
+  public void testMemoryPressureReducesMaxBufferBytesAndTrims() {
+    MemoryAwareLoadControl loadControl = createLoadControl(Long.MAX_VALUE);
+    selectTracks(loadControl);
+    Allocation[] allocations = TestUtil.allocate(allocator, MAX_BUFFER_BYTES / ALLOCATION_SIZE);
+    allocator.release(allocations);
+    loadControl.onTrimMemory(ComponentCallbacks2.TRIM_MEMORY_UI_HIDDEN);
+    assertEquals(MAX_BUFFER_BYTES, loadControl.getMaxBufferBytes());
+    loadControl.onTrimMemory(ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW);
+    assertEquals(MAX_BUFFER_BYTES / 2, loadControl.getMaxBufferBytes());
+    loadControl.onTrimMemory(ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL);
+    assertEquals(MAX_BUFFER_BYTES / 4, loadControl.getMaxBufferBytes());
+    // A weaker signal doesn't relax the reduction.
+    loadControl.onTrimMemory(ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW);
+    assertEquals(MAX_BUFFER_BYTES / 4, loadControl.getMaxBufferBytes());
+    // Only the allocations within the reduced budget were kept.
+    assertEquals(MAX_BUFFER_BYTES / 4 / ALLOCATION_SIZE,
+        TestUtil.countReused(allocations, TestUtil.allocate(allocator, allocations.length)));
+    assertFalse(loadControl.shouldContinueLoading(0));
+  }
+
+  public void testMemoryPressureRecovery() {
+    MemoryAwareLoadControl loadControl = createLoadControl(0);
+    loadControl.onLowMemory();
+    assertEquals(MAX_BUFFER_BYTES, loadControl.getMaxBufferBytes());
+  }
+
+  private MemoryAwareLoadControl createLoadControl(long memoryPressureRecoveryMs) {
+    return new MemoryAwareLoadControl(allocator, MAX_BUFFER_BYTES, MIN_BUFFER_MS, MAX_BUFFER_MS,
+        BUFFER_FOR_PLAYBACK_MS, BUFFER_FOR_PLAYBACK_MS, memoryPressureRecoveryMs);
+  }
+
+  private static void selectTracks(MemoryAwareLoadControl loadControl) {
+    Renderer[] renderers = new Renderer[] {new FakeRenderer(C.TRACK_TYPE_VIDEO),
+        new FakeRenderer(C.TRACK_TYPE_AUDIO), new FakeRenderer(C.TRACK_TYPE_TEXT)};
+    TrackGroup videoGroup = new TrackGroup(VIDEO_FORMAT);
+    TrackGroup audioGroup = new TrackGroup(AUDIO_FORMAT);
+    loadControl.onPrepared();
+    loadControl.onTracksSelected(renderers, new TrackGroupArray(videoGroup, audioGroup),
+        new TrackSelectionArray(new FixedTrackSelection(videoGroup, 0),
+            new FixedTrackSelection(audioGroup, 0), null));
+  }
+
+  private static final class FakeRenderer extends BaseRenderer {
+
+    public FakeRenderer(int trackType) {
+      super(trackType);
+    }
+
+    @Override
+    public void render(long positionUs, long elapsedRealtimeUs) {
+      // Do nothing.
+    }
+
+    @Override
+    public boolean isReady() {
+      return false;
+    }
+
+    @Override
+    public boolean isEnded() {
+      return false;
+    }
+
+    @Override
+    public int supportsFormat(Format format) {
+      return FORMAT_HANDLED;
+    }
+
+  }
+
+}
@@ -0,0 +1,146 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.exoplayer2.extractor;
+
+import android.util.Log;
+import com.google.android.exoplayer2.C;
+import com.google.android.exoplayer2.Format;
+import com.google.android.exoplayer2.FormatHolder;
+import com.google.android.exoplayer2.decoder.DecoderInputBuffer;
+import com.google.android.exoplayer2.upstream.DefaultAllocator;
+import com.google.android.exoplayer2.util.MimeTypes;
+import com.google.android.exoplayer2.util.ParsableByteArray;
+import java.util.concurrent.atomic.AtomicReference;
+import junit.framework.TestCase;
+
+/**
+ * Benchmark for the throughput of {@link DefaultTrackOutput} when samples are written by a loading
+ * thread whilst they're read by a playback thread, and when they're written and read in batches on
+ * a single thread. Samples are small, so that the throughput is dominated by the handling of sample
+ * metadata rather than by copying sample data.
+ */
+public class DefaultTrackOutputBenchmarkTest extends TestCase {
+
+  private static final String TAG = "DefaultTrackOutputBench";
+
+  private static final Format FORMAT = Format.createSampleFormat("id", MimeTypes.AUDIO_AAC, null,
+      Format.NO_VALUE, null);
+  private static final int SAMPLE_SIZE = 16;
+  private static final int SAMPLE_COUNT = 500000;
+  private static final int BATCH_SIZE = 100;
+  private static final int RUN_COUNT = 5;
+
+  public void testConcurrentThroughput() throws Exception {
+    // Warm up.
+    runWorkload();
+    long totalElapsedNs = 0;
+    for (int i = 0; i < RUN_COUNT; i++) {
+      long elapsedNs = runWorkload();
+      totalElapsedNs += elapsedNs;
+      Log.i(TAG, "Run " + i + ": " + formatThroughput(elapsedNs));
+    }
+    Log.i(TAG, "Average: " + formatThroughput(totalElapsedNs / RUN_COUNT));
+  }
+
+  public void testSingleThreadThroughput() {
+    runSingleThreadWorkload();
+    long totalElapsedNs = 0;
+    for (int i = 0; i < RUN_COUNT; i++) {
+      totalElapsedNs += runSingleThreadWorkload();
+    }
+    Log.i(TAG, "Single thread average: " + formatThroughput(totalElapsedNs / RUN_COUNT));
+  }
+
+  /**
+   * Writes samples on a loading thread whilst reading them on the calling thread.
+   *
+   * @return The elapsed time, in nanoseconds.
+   */
+  private static long runWorkload() throws Exception {
+    final DefaultTrackOutput trackOutput =
+        new DefaultTrackOutput(new DefaultAllocator(true, C.DEFAULT_BUFFER_SEGMENT_SIZE));
+    final AtomicReference<Throwable> failure = new AtomicReference<>();
+    Thread loadingThread = new Thread("DefaultTrackOutputBenchmarkTest.runWorkload()") {
+      @Override
+      public void run() {
+        try {
+          ParsableByteArray sampleData = new ParsableByteArray(SAMPLE_SIZE);
+          trackOutput.format(FORMAT);
+          for (int i = 0; i < SAMPLE_COUNT; i++) {
+            sampleData.setPosition(0);
+            trackOutput.sampleData(sampleData, SAMPLE_SIZE);
+            trackOutput.sampleMetadata(i, C.BUFFER_FLAG_KEY_FRAME, SAMPLE_SIZE, 0, null);
+          }
+        } catch (Throwable e) {
+          failure.set(e);
+        }
+      }
+    };
+    FormatHolder formatHolder = new FormatHolder();
+    DecoderInputBuffer buffer =
+        new DecoderInputBuffer(DecoderInputBuffer.BUFFER_REPLACEMENT_MODE_NORMAL);
+    long startTimeNs = System.nanoTime();
+    loadingThread.start();
+    int readCount = 0;
+    while (readCount < SAMPLE_COUNT && failure.get() == null) {
+      buffer.clear();
+      if (trackOutput.readData(formatHolder, buffer, false, 0) == C.RESULT_BUFFER_READ) {
+        assertEquals(readCount, buffer.timeUs);
+        readCount++;
+      }
+    }
+    long elapsedNs = System.nanoTime() - startTimeNs;
+    loadingThread.join();
+    if (failure.get() != null) {
+      throw new AssertionError(failure.get());
+    }
+    return elapsedNs;
+  }
+
+  /**
+   * Alternately writes and reads batches of samples on the calling thread.
+   *
+   * @return The elapsed time, in nanoseconds.
+   */
+  private static long runSingleThreadWorkload() {
+    DefaultTrackOutput trackOutput =
+        new DefaultTrackOutput(new DefaultAllocator(true, C.DEFAULT_BUFFER_SEGMENT_SIZE));
+    ParsableByteArray sampleData = new ParsableByteArray(SAMPLE_SIZE);
+    FormatHolder formatHolder = new FormatHolder();
+    DecoderInputBuffer buffer =
+        new DecoderInputBuffer(DecoderInputBuffer.BUFFER_REPLACEMENT_MODE_NORMAL);
+    long startTimeNs = System.nanoTime();
+    trackOutput.format(FORMAT);
+    assertEquals(C.RESULT_FORMAT_READ, trackOutput.readData(formatHolder, buffer, false, 0));
+    for (int i = 0; i < SAMPLE_COUNT; i += BATCH_SIZE) {
+      for (int j = 0; j < BATCH_SIZE; j++) {
+        sampleData.setPosition(0);
+        trackOutput.sampleData(sampleData, SAMPLE_SIZE);
+        trackOutput.sampleMetadata(i + j, C.BUFFER_FLAG_KEY_FRAME, SAMPLE_SIZE, 0, null);
+      }
+      for (int j = 0; j < BATCH_SIZE; j++) {
+        buffer.clear();
+        assertEquals(C.RESULT_BUFFER_READ, trackOutput.readData(formatHolder, buffer, false, 0));
+      }
+    }
+    return System.nanoTime() - startTimeNs;
+  }
+
+  private static String formatThroughput(long elapsedNs) {
+    return (SAMPLE_COUNT * 1000000000L / elapsedNs) + " samples/s";
+  }
+
+}
@@ -0,0 +1,293 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.exoplayer2.extractor;
+
+import com.google.android.exoplayer2.C;
+import com.google.android.exoplayer2.Format;
+import com.google.android.exoplayer2.FormatHolder;
+import com.google.android.exoplayer2.decoder.DecoderInputBuffer;
+import com.google.android.exoplayer2.upstream.DefaultAllocator;
+import com.google.android.exoplayer2.util.MimeTypes;
+import com.google.android.exoplayer2.util.ParsableByteArray;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicReference;
+import junit.framework.TestCase;
+
+/**
+ * Unit tests for {@link DefaultTrackOutput}.
+ */
+public class DefaultTrackOutputTest extends TestCase {
+
+  private static final int ALLOCATION_SIZE = 16;
+  private static final int SAMPLE_SIZE = 4;
+  private static final Format FORMAT_1 = Format.createSampleFormat("1", MimeTypes.VIDEO_H264, null,
+      Format.NO_VALUE, null);
+  private static final Format FORMAT_2 = Format.createSampleFormat("2", MimeTypes.VIDEO_H264, null,
+      Format.NO_VALUE, null);
+
+  private DefaultTrackOutput trackOutput;
+  private FormatHolder formatHolder;
+  private DecoderInputBuffer buffer;
+
+  @Override
+  public void setUp() {
+    trackOutput = new DefaultTrackOutput(new DefaultAllocator(true, ALLOCATION_SIZE));
+    formatHolder = new FormatHolder();
+    buffer = new DecoderInputBuffer(DecoderInputBuffer.BUFFER_REPLACEMENT_MODE_NORMAL);
+  }
+
+  public void testReadFormatsAndSamples() {
+    trackOutput.format(FORMAT_1);
+    writeSample(0, true);
+    writeSample(1, false);
+    trackOutput.format(FORMAT_2);
+    writeSample(2, true);
+    assertFalse(trackOutput.isEmpty());
+    assertEquals(3, trackOutput.getWriteIndex());
+    assertEquals(2, trackOutput.getLargestQueuedTimestampUs());
+
+    assertReadFormat(FORMAT_1);
+    assertReadSample(0, true);
+    assertReadSample(1, false);
+    assertReadFormat(FORMAT_2);
+    assertReadSample(2, true);
+    assertEquals(C.RESULT_NOTHING_READ, readData());
+    assertTrue(trackOutput.isEmpty());
+    assertEquals(3, trackOutput.getReadIndex());
+    assertEquals(2, trackOutput.getLargestQueuedTimestampUs());
+  }
+
+  public void testReadSamplesAcrossCapacityIncrease() {
+    trackOutput.format(FORMAT_1);
+    assertReadFormat(FORMAT_1);
+    // Keep some samples queued whilst others are written and read, so that the queue wraps around
+    // before its capacity is increased.
+    for (int i = 0; i < 500; i++) {
+      writeSample(i, true);
+    }
+    for (int i = 0; i < 300; i++) {
+      assertReadSample(i, true);
+    }
+    for (int i = 500; i < 2500; i++) {
+      writeSample(i, true);
+    }
+    for (int i = 300; i < 2500; i++) {
+      assertReadSample(i, true);
+    }
+    assertEquals(C.RESULT_NOTHING_READ, readData());
+  }
+
+  public void testReadSamplesAfterDrainingAndRefilling() {
+    trackOutput.format(FORMAT_1);
+    assertReadFormat(FORMAT_1);
+    // Drain the queue repeatedly, with a partly read page left behind each time, so that pages are
+    // recycled and reused.
+    long timeUs = 0;
+    for (int i = 0; i < 10; i++) {
+      for (int j = 0; j < 700; j++) {
+        writeSample(timeUs + j, true);
+      }
+      for (int j = 0; j < 700; j++) {
+        assertReadSample(timeUs + j, true);
+      }
+      assertEquals(C.RESULT_NOTHING_READ, readData());
+      timeUs += 700;
+    }
+    assertEquals(timeUs - 1, trackOutput.getLargestQueuedTimestampUs());
+  }
+
+  public void testDiscardUpstreamSamplesAcrossPages() {
+    trackOutput.format(FORMAT_1);
+    assertReadFormat(FORMAT_1);
+    for (int i = 0; i < 1000; i++) {
+      writeSample(i, i % 100 == 0);
+    }
+    for (int i = 0; i < 250; i++) {
+      assertReadSample(i, i % 100 == 0);
+    }
+    trackOutput.discardUpstreamSamples(260);
+    assertEquals(260, trackOutput.getWriteIndex());
+    assertEquals(259, trackOutput.getLargestQueuedTimestampUs());
+    for (int i = 260; i < 600; i++) {
+      writeSample(i, true);
+    }
+    for (int i = 250; i < 600; i++) {
+      assertReadSample(i, i % 100 == 0 || i >= 260);
+    }
+    assertEquals(C.RESULT_NOTHING_READ, readData());
+    // The last sample's information is retained after it's read.
+    trackOutput.discardUpstreamSamples(600);
+    writeSample(600, true);
+    assertReadSample(600, true);
+  }
+
+  public void testSkipToKeyframeBefore() {
+    trackOutput.format(FORMAT_1);
+    assertReadFormat(FORMAT_1);
+    for (int i = 0; i < 10; i++) {
+      writeSample(i, i % 4 == 0);
+    }
+    assertFalse(trackOutput.skipToKeyframeBefore(10));
+    assertTrue(trackOutput.skipToKeyframeBefore(6));
+    assertEquals(4, trackOutput.getReadIndex());
+    assertReadSample(4, true);
+    // There's no keyframe before the time in the buffer.
+    assertFalse(trackOutput.skipToKeyframeBefore(7));
+    assertReadSample(5, false);
+  }
+
+  public void testDiscardUpstreamSamples() {
+    trackOutput.format(FORMAT_1);
+    assertReadFormat(FORMAT_1);
+    for (int i = 0; i < 10; i++) {
+      writeSample(i, i % 4 == 0);
+    }
+    assertReadSample(0, true);
+    trackOutput.discardUpstreamSamples(6);
+    assertEquals(6, trackOutput.getWriteIndex());
+    assertEquals(5, trackOutput.getLargestQueuedTimestampUs());
+    writeSample(6, true);
+    for (int i = 1; i < 7; i++) {
+      assertReadSample(i, i % 4 == 0 || i == 6);
+    }
+    assertEquals(C.RESULT_NOTHING_READ, readData());
+  }
+
+  public void testSplice() {
+    trackOutput.format(FORMAT_1);
+    assertReadFormat(FORMAT_1);
+    for (int i = 0; i < 10; i++) {
+      writeSample(i * 10, i % 4 == 0);
+    }
+    assertReadSample(0, true);
+    trackOutput.splice();
+    // The splice must start with a keyframe, so this sample is dropped.
+    writeSample(55, false);
+    assertEquals(10, trackOutput.getWriteIndex());
+    writeSample(55, true);
+    assertEquals(7, trackOutput.getWriteIndex());
+    for (int i = 1; i < 6; i++) {
+      assertReadSample(i * 10, i % 4 == 0);
+    }
+    assertReadSample(55, true);
+  }
+
+  public void testSpliceFailsBeforeDequeuedSample() {
+    trackOutput.format(FORMAT_1);
+    assertReadFormat(FORMAT_1);
+    for (int i = 0; i < 4; i++) {
+      writeSample(i * 10, true);
+    }
+    assertReadSample(0, true);
+    assertReadSample(10, true);
+    trackOutput.splice();
+    writeSample(5, true);
+    writeSample(15, true);
+    assertEquals(3, trackOutput.getWriteIndex());
+    assertReadSample(15, true);
+  }
+
+  public void testBufferedBytes() {
+    trackOutput.format(FORMAT_1);
+    assertReadFormat(FORMAT_1);
+    assertEquals(0, trackOutput.getBufferedBytes());
+    for (int i = 0; i < 10; i++) {
+      writeSample(i, true);
+    }
+    // Ten samples of four bytes fill three allocations of sixteen bytes.
+    assertEquals(3 * ALLOCATION_SIZE, trackOutput.getBufferedBytes());
+    for (int i = 0; i < 8; i++) {
+      assertReadSample(i, true);
+    }
+    assertEquals(ALLOCATION_SIZE, trackOutput.getBufferedBytes());
+    trackOutput.disable();
+    assertEquals(0, trackOutput.getBufferedBytes());
+  }
+
+  public void testConcurrentWriteAndRead() throws Exception {
+    final int sampleCount = 100000;
+    final AtomicReference<Throwable> failure = new AtomicReference<>();
+    Thread loadingThread = new Thread("DefaultTrackOutputTest.testConcurrentWriteAndRead()") {
+      @Override
+      public void run() {
+        try {
+          trackOutput.format(FORMAT_1);
+          for (int i = 0; i < sampleCount; i++) {
+            if (i == sampleCount / 2) {
+              trackOutput.format(FORMAT_2);
+            }
+            writeSample(i, i % 8 == 0);
+          }
+        } catch (Throwable e) {
+          failure.set(e);
+        }
+      }
+    };
+    loadingThread.start();
+    int readCount = 0;
+    while (readCount < sampleCount && failure.get() == null) {
+      buffer.clear();
+      int result = readData();
+      if (result == C.RESULT_FORMAT_READ) {
+        assertSame(readCount < sampleCount / 2 ? FORMAT_1 : FORMAT_2, formatHolder.format);
+      } else if (result == C.RESULT_BUFFER_READ) {
+        assertSampleRead(readCount, readCount % 8 == 0);
+        readCount++;
+      }
+    }
+    loadingThread.join();
+    if (failure.get() != null) {
+      throw new AssertionError(failure.get());
+    }
+  }
+
+  private void writeSample(long timeUs, boolean isKeyframe) {
+    ParsableByteArray data = new ParsableByteArray(getSampleData(timeUs));
+    trackOutput.sampleData(data, SAMPLE_SIZE);
+    trackOutput.sampleMetadata(timeUs, isKeyframe ? C.BUFFER_FLAG_KEY_FRAME : 0, SAMPLE_SIZE, 0,
+        null);
+  }
+
+  private int readData() {
+    return trackOutput.readData(formatHolder, buffer, false, 0);
+  }
+
+  private void assertReadFormat(Format format) {
+    assertEquals(C.RESULT_FORMAT_READ, readData());
+    assertSame(format, formatHolder.format);
+  }
+
+  private void assertReadSample(long timeUs, boolean isKeyframe) {
+    buffer.clear();
+    assertEquals(C.RESULT_BUFFER_READ, readData());
+    assertSampleRead(timeUs, isKeyframe);
+  }
+
+  private void assertSampleRead(long timeUs, boolean isKeyframe) {
+    assertEquals(timeUs, buffer.timeUs);
+    assertEquals(isKeyframe, buffer.isKeyFrame());
+    buffer.flip();
+    byte[] data = new byte[buffer.data.remaining()];
+    buffer.data.get(data);
+    assertTrue(Arrays.equals(getSampleData(timeUs), data));
+  }
+
+  private static byte[] getSampleData(long timeUs) {
+    return new byte[] {(byte) (timeUs >> 24), (byte) (timeUs >> 16), (byte) (timeUs >> 8),
+        (byte) timeUs};
+  }
+
+}
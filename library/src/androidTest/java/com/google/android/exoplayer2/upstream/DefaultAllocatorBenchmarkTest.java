@@ -0,0 +1,302 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.exoplayer2.upstream;
+
+import android.util.Log;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import junit.framework.TestCase;
+
+/**
+ * Tests that {@link DefaultAllocator} accesses its shared pool at most once per magazine of
+ * allocations under contention. The tests also log its throughput, compared with that of a pool
+ * that synchronizes each call. In the first workload each thread allocates and releases its
+ * own allocations. In the second, pairs of threads act as a loading thread that allocates and a
+ * playback thread that releases what the loading thread allocated, as they do for each track of
+ * each player sharing an allocator. A third workload measures the arrays created as a buffer
+ * repeatedly grows and is trimmed, with and without slab allocation.
+ */
+public class DefaultAllocatorBenchmarkTest extends TestCase {
+
+  private static final String TAG = "DefaultAllocatorBench";
+
+  private static final int ALLOCATION_SIZE = 64 * 1024;
+  private static final int BATCH_SIZE = 64;
+  private static final int BATCH_COUNT = 10000;
+  private static final int[] THREAD_COUNTS = new int[] {1, 2, 4, 8};
+  private static final int[] PAIR_COUNTS = new int[] {1, 2, 4};
+  private static final int BUFFER_ALLOCATION_COUNT = 256;
+  private static final int BUFFER_CYCLE_COUNT = 50;
+  private static final int[] SLAB_ALLOCATION_COUNTS = new int[] {1, 4, 16};
+
+  public void testThroughput() throws Exception {
+    // Warm up both allocators.
+    runWorkload(new DefaultAllocator(true, ALLOCATION_SIZE), 2);
+    runWorkload(new SynchronizedAllocator(ALLOCATION_SIZE), 2);
+    for (int threadCount : THREAD_COUNTS) {
+      DefaultAllocator allocator = new DefaultAllocator(true, ALLOCATION_SIZE);
+      long lockFreeNs = runWorkload(allocator, threadCount);
+      assertPoolTransferCount(allocator, threadCount);
+      long synchronizedNs = runWorkload(new SynchronizedAllocator(ALLOCATION_SIZE),
+          threadCount);
+      Log.i(TAG, threadCount + " threads: DefaultAllocator "
+          + formatThroughput(lockFreeNs, threadCount) + ", synchronized pool "
+          + formatThroughput(synchronizedNs, threadCount));
+    }
+  }
+
+  public void testHandoffThroughput() throws Exception {
+    runHandoffWorkload(new DefaultAllocator(true, ALLOCATION_SIZE), 2);
+    runHandoffWorkload(new SynchronizedAllocator(ALLOCATION_SIZE), 2);
+    for (int pairCount : PAIR_COUNTS) {
+      DefaultAllocator allocator = new DefaultAllocator(true, ALLOCATION_SIZE);
+      long lockFreeNs = runHandoffWorkload(allocator, pairCount);
+      // Each allocation is released by a different thread, but the pool is still only accessed
+      // once per magazine by each thread.
+      assertPoolTransferCount(allocator, pairCount);
+      long synchronizedNs = runHandoffWorkload(new SynchronizedAllocator(ALLOCATION_SIZE),
+          pairCount);
+      Log.i(TAG, pairCount + " thread pairs: DefaultAllocator "
+          + formatThroughput(lockFreeNs, pairCount) + ", synchronized pool "
+          + formatThroughput(synchronizedNs, pairCount));
+    }
+  }
+
+  public void testGrowAndTrimCycles() {
+    for (int slabAllocationCount : SLAB_ALLOCATION_COUNTS) {
+      DefaultAllocator allocator = new DefaultAllocator(true, ALLOCATION_SIZE, 0,
+          slabAllocationCount);
+      // Each cycle's arrays are discarded by the reset at its end, so are counted per cycle.
+      IdentityHashMap<byte[], Boolean> cycleArrays = new IdentityHashMap<>();
+      Allocation[] allocations = new Allocation[BUFFER_ALLOCATION_COUNT];
+      int arrayCount = 0;
+      long startTimeNs = System.nanoTime();
+      for (int i = 0; i < BUFFER_CYCLE_COUNT; i++) {
+        for (int j = 0; j < BUFFER_ALLOCATION_COUNT; j++) {
+          allocations[j] = allocator.allocate();
+          cycleArrays.put(allocations[j].data, Boolean.TRUE);
+        }
+        arrayCount += cycleArrays.size();
+        cycleArrays.clear();
+        allocator.release(allocations);
+        allocator.reset();
+      }
+      long elapsedNs = System.nanoTime() - startTimeNs;
+      Log.i(TAG, "Slabs of " + slabAllocationCount + ": " + arrayCount + " arrays created for "
+          + BUFFER_CYCLE_COUNT * BUFFER_ALLOCATION_COUNT + " allocations in "
+          + (elapsedNs / 1000000) + "ms");
+      assertEquals(BUFFER_CYCLE_COUNT * BUFFER_ALLOCATION_COUNT / slabAllocationCount,
+          arrayCount);
+    }
+  }
+
+  /**
+   * Runs threads that each repeatedly allocate a batch of allocations and then release them one
+   * at a time.
+   *
+   * @return The elapsed time, in nanoseconds.
+   */
+  private static long runWorkload(final Allocator allocator, int threadCount) throws Exception {
+    final CountDownLatch startLatch = new CountDownLatch(1);
+    Thread[] threads = new Thread[threadCount];
+    for (int i = 0; i < threadCount; i++) {
+      threads[i] = new Thread() {
+        @Override
+        public void run() {
+          awaitUninterruptibly(startLatch);
+          Allocation[] batch = new Allocation[BATCH_SIZE];
+          for (int j = 0; j < BATCH_COUNT; j++) {
+            for (int k = 0; k < BATCH_SIZE; k++) {
+              batch[k] = allocator.allocate();
+            }
+            for (int k = 0; k < BATCH_SIZE; k++) {
+              allocator.release(batch[k]);
+            }
+          }
+        }
+      };
+    }
+    return runThreads(allocator, threads, startLatch);
+  }
+
+  /**
+   * Runs pairs of allocating and releasing threads to completion.
+   *
+   * @return The elapsed time, in nanoseconds.
+   */
+  private static long runHandoffWorkload(final Allocator allocator, int pairCount)
+      throws Exception {
+    final CountDownLatch startLatch = new CountDownLatch(1);
+    Thread[] threads = new Thread[pairCount * 2];
+    for (int i = 0; i < pairCount; i++) {
+      // The queue is short, so that the releasing thread keeps up with the allocating thread and
+      // allocations are recycled rather than created.
+      final ArrayBlockingQueue<Allocation[]> queue = new ArrayBlockingQueue<>(4);
+      threads[2 * i] = new Thread() {
+        @Override
+        public void run() {
+          awaitUninterruptibly(startLatch);
+          for (int j = 0; j < BATCH_COUNT; j++) {
+            Allocation[] batch = new Allocation[BATCH_SIZE];
+            for (int k = 0; k < BATCH_SIZE; k++) {
+              batch[k] = allocator.allocate();
+            }
+            putUninterruptibly(queue, batch);
+          }
+        }
+      };
+      threads[2 * i + 1] = new Thread() {
+        @Override
+        public void run() {
+          awaitUninterruptibly(startLatch);
+          for (int j = 0; j < BATCH_COUNT; j++) {
+            Allocation[] batch = takeUninterruptibly(queue);
+            // Samples are discarded one allocation at a time as they're read.
+            for (int k = 0; k < BATCH_SIZE; k++) {
+              allocator.release(batch[k]);
+            }
+          }
+        }
+      };
+    }
+    return runThreads(allocator, threads, startLatch);
+  }
+
+  private static long runThreads(Allocator allocator, Thread[] threads, CountDownLatch startLatch)
+      throws InterruptedException {
+    for (Thread thread : threads) {
+      thread.start();
+    }
+    long startTimeNs = System.nanoTime();
+    startLatch.countDown();
+    for (Thread thread : threads) {
+      thread.join();
+    }
+    long elapsedNs = System.nanoTime() - startTimeNs;
+    assertEquals(0, allocator.getTotalBytesAllocated());
+    return elapsedNs;
+  }
+
+  /**
+   * Asserts that the threads of a workload accessed the allocator's pool at most once for every
+   * {@link DefaultAllocator#MAGAZINE_CAPACITY} allocate and release calls, where each thread or
+   * pair of threads makes {@code 2 * BATCH_COUNT * BATCH_SIZE} calls. Each thread may access the
+   * pool once more when it finishes with a partially filled magazine.
+   */
+  private static void assertPoolTransferCount(DefaultAllocator allocator, int count) {
+    long operationCount = 2L * count * BATCH_COUNT * BATCH_SIZE;
+    long maxPoolTransferCount = operationCount / DefaultAllocator.MAGAZINE_CAPACITY + 2 * count;
+    assertTrue(allocator.getPoolTransferCount() + " transfers",
+        allocator.getPoolTransferCount() <= maxPoolTransferCount);
+  }
+
+  /**
+   * Formats the number of allocate and release calls per microsecond, where each thread or pair of
+   * threads makes {@code 2 * BATCH_COUNT * BATCH_SIZE} calls.
+   */
+  private static String formatThroughput(long elapsedNs, int count) {
+    long operationCount = 2L * count * BATCH_COUNT * BATCH_SIZE;
+    return (operationCount * 1000 / elapsedNs) + " ops/us";
+  }
+
+  private static void awaitUninterruptibly(CountDownLatch latch) {
+    while (true) {
+      try {
+        latch.await();
+        return;
+      } catch (InterruptedException e) {
+        // Try again.
+      }
+    }
+  }
+
+  private static void putUninterruptibly(ArrayBlockingQueue<Allocation[]> queue,
+      Allocation[] batch) {
+    while (true) {
+      try {
+        queue.put(batch);
+        return;
+      } catch (InterruptedException e) {
+        // Try again.
+      }
+    }
+  }
+
+  private static Allocation[] takeUninterruptibly(ArrayBlockingQueue<Allocation[]> queue) {
+    while (true) {
+      try {
+        return queue.take();
+      } catch (InterruptedException e) {
+        // Try again.
+      }
+    }
+  }
+
+  /**
+   * A pool that synchronizes each call, as a baseline.
+   */
+  private static final class SynchronizedAllocator implements Allocator {
+
+    private final int individualAllocationSize;
+    private final ArrayList<Allocation> availableAllocations;
+    private int allocatedCount;
+
+    public SynchronizedAllocator(int individualAllocationSize) {
+      this.individualAllocationSize = individualAllocationSize;
+      availableAllocations = new ArrayList<>();
+    }
+
+    @Override
+    public synchronized Allocation allocate() {
+      allocatedCount++;
+      return availableAllocations.isEmpty()
+          ? new Allocation(new byte[individualAllocationSize], 0)
+          : availableAllocations.remove(availableAllocations.size() - 1);
+    }
+
+    @Override
+    public synchronized void release(Allocation allocation) {
+      availableAllocations.add(allocation);
+      allocatedCount--;
+    }
+
+    @Override
+    public synchronized void release(Allocation[] allocations) {
+      for (Allocation allocation : allocations) {
+        release(allocation);
+      }
+    }
+
+    @Override
+    public synchronized void trim() {
+      availableAllocations.clear();
+    }
+
+    @Override
+    public synchronized int getTotalBytesAllocated() {
+      return allocatedCount * individualAllocationSize;
+    }
+
+    @Override
+    public int getIndividualAllocationLength() {
+      return individualAllocationSize;
+    }
+
+  }
+
+}
@@ -0,0 +1,204 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.exoplayer2.upstream;
+
+import com.google.android.exoplayer2.testutil.TestUtil;
+import java.util.ArrayList;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicReference;
+import junit.framework.TestCase;
+
+/**
+ * Unit tests for {@link DefaultAllocator}.
+ */
+public class DefaultAllocatorTest extends TestCase {
+
+  private static final int ALLOCATION_SIZE = 16;
+
+  public void testTotalBytesAllocated() {
+    DefaultAllocator allocator = new DefaultAllocator(true, ALLOCATION_SIZE);
+    Allocation[] allocations = TestUtil.allocate(allocator, 10);
+    assertEquals(10 * ALLOCATION_SIZE, allocator.getTotalBytesAllocated());
+    allocator.release(allocations[0]);
+    assertEquals(9 * ALLOCATION_SIZE, allocator.getTotalBytesAllocated());
+    allocator.release(new Allocation[] {allocations[1], allocations[2]});
+    assertEquals(7 * ALLOCATION_SIZE, allocator.getTotalBytesAllocated());
+    // Released allocations are reused.
+    assertSame(allocations[2], allocator.allocate());
+    assertEquals(8 * ALLOCATION_SIZE, allocator.getTotalBytesAllocated());
+  }
+
+  public void testAllocationsReleasedOnOtherThreadAreReused() throws Exception {
+    final DefaultAllocator allocator = new DefaultAllocator(true, ALLOCATION_SIZE);
+    final Allocation[] allocations =
+        TestUtil.allocate(allocator, 2 * DefaultAllocator.MAGAZINE_CAPACITY);
+    Thread releasingThread = new Thread() {
+      @Override
+      public void run() {
+        for (Allocation allocation : allocations) {
+          allocator.release(allocation);
+        }
+      }
+    };
+    releasingThread.start();
+    releasingThread.join();
+    assertEquals(0, allocator.getTotalBytesAllocated());
+    // At least one magazine was returned to the pool by the releasing thread.
+    assertTrue(TestUtil.countReused(allocations, TestUtil.allocate(allocator, allocations.length))
+        >= DefaultAllocator.MAGAZINE_CAPACITY);
+  }
+
+  public void testTrim() {
+    DefaultAllocator allocator = new DefaultAllocator(true, ALLOCATION_SIZE);
+    Allocation[] allocations = TestUtil.allocate(allocator, 10);
+    allocator.release(allocations);
+    allocator.setTargetBufferSize(4 * ALLOCATION_SIZE);
+    allocator.trim();
+    assertEquals(4, TestUtil.countReused(allocations, TestUtil.allocate(allocator, 10)));
+  }
+
+  public void testResetDiscardsAvailableAllocations() {
+    DefaultAllocator allocator = new DefaultAllocator(true, ALLOCATION_SIZE);
+    allocator.setTargetBufferSize(10 * ALLOCATION_SIZE);
+    Allocation[] allocations = TestUtil.allocate(allocator, 10);
+    allocator.release(allocations);
+    allocator.reset();
+    assertEquals(0, TestUtil.countReused(allocations, TestUtil.allocate(allocator, 10)));
+  }
+
+  public void testInitialAllocationsAreNotTrimmed() {
+    DefaultAllocator allocator = new DefaultAllocator(true, ALLOCATION_SIZE, 3);
+    Allocation[] allocations = TestUtil.allocate(allocator, 10);
+    allocator.release(allocations);
+    allocator.trim();
+    Allocation[] newAllocations = TestUtil.allocate(allocator, 10);
+    int initialAllocationCount = 0;
+    for (Allocation allocation : newAllocations) {
+      if (allocation.data.length != ALLOCATION_SIZE) {
+        initialAllocationCount++;
+      }
+    }
+    assertEquals(3, initialAllocationCount);
+    assertEquals(3, TestUtil.countReused(allocations, newAllocations));
+  }
+
+  public void testSlabAllocations() {
+    DefaultAllocator allocator = new DefaultAllocator(true, ALLOCATION_SIZE, 0, 4);
+    Allocation[] allocations = TestUtil.allocate(allocator, 8);
+    assertEquals(8 * ALLOCATION_SIZE, allocator.getTotalBytesAllocated());
+    // Each group of four allocations shares a slab, without overlapping.
+    for (int i = 0; i < allocations.length; i++) {
+      assertEquals(4 * ALLOCATION_SIZE, allocations[i].data.length);
+      assertSame(allocations[i - i % 4].data, allocations[i].data);
+      for (int j = 0; j < i; j++) {
+        assertFalse(allocations[i].data == allocations[j].data
+            && allocations[i].translateOffset(0) == allocations[j].translateOffset(0));
+      }
+    }
+    assertNotSame(allocations[0].data, allocations[4].data);
+    allocator.release(allocations);
+    assertEquals(0, allocator.getTotalBytesAllocated());
+    assertEquals(8, TestUtil.countReused(allocations, TestUtil.allocate(allocator, 8)));
+  }
+
+  public void testCounters() {
+    DefaultAllocator allocator = new DefaultAllocator(true, ALLOCATION_SIZE);
+    Allocation[] allocations = TestUtil.allocate(allocator, 10);
+    allocator.release(allocations);
+    TestUtil.allocate(allocator, 4);
+    assertEquals(14, allocator.getTotalAllocationCount());
+    assertEquals(10, allocator.getCreatedAllocationCount());
+    assertEquals(10 * ALLOCATION_SIZE, allocator.getPeakBytesAllocated());
+    allocator.resetPeakBytesAllocated();
+    assertEquals(4 * ALLOCATION_SIZE, allocator.getPeakBytesAllocated());
+
+    allocator.setTargetBufferSize(8 * ALLOCATION_SIZE);
+    assertEquals(8 * ALLOCATION_SIZE, allocator.getTargetBufferSize());
+    allocator.trim();
+    assertEquals(1, allocator.getTrimCount());
+    assertEquals(2, allocator.getTrimmedAllocationCount());
+    // Trimming again has nothing to discard.
+    allocator.trim();
+    assertEquals(1, allocator.getTrimCount());
+    assertEquals(2, allocator.getTrimmedAllocationCount());
+  }
+
+  public void testConcurrentAllocateAndRelease() throws Exception {
+    final DefaultAllocator allocator = new DefaultAllocator(true, ALLOCATION_SIZE, 20);
+    final int threadCount = 8;
+    final AtomicReference<Throwable> failure = new AtomicReference<>();
+    Thread[] threads = new Thread[threadCount];
+    for (int i = 0; i < threadCount; i++) {
+      final byte marker = (byte) (i + 1);
+      threads[i] = new Thread() {
+        @Override
+        public void run() {
+          try {
+            exerciseAllocator(allocator, marker, new Random(marker));
+          } catch (Throwable e) {
+            failure.compareAndSet(null, e);
+          }
+        }
+      };
+      threads[i].start();
+    }
+    for (Thread thread : threads) {
+      thread.join();
+    }
+    if (failure.get() != null) {
+      throw new AssertionError(failure.get());
+    }
+    assertEquals(0, allocator.getTotalBytesAllocated());
+  }
+
+  /**
+   * Allocates and releases allocations in random batches, checking that no allocation is handed
+   * to another thread whilst it's held.
+   */
+  private static void exerciseAllocator(DefaultAllocator allocator, byte marker, Random random) {
+    ArrayList<Allocation> held = new ArrayList<>();
+    for (int i = 0; i < 20000; i++) {
+      if (held.isEmpty() || random.nextInt(3) > 0) {
+        int count = 1 + random.nextInt(20);
+        for (int j = 0; j < count; j++) {
+          Allocation allocation = allocator.allocate();
+          allocation.data[allocation.translateOffset(0)] = marker;
+          held.add(allocation);
+        }
+      }
+      int releaseCount = random.nextInt(held.size() + 1);
+      Allocation[] released = new Allocation[releaseCount];
+      for (int j = 0; j < releaseCount; j++) {
+        Allocation allocation = held.remove(held.size() - 1);
+        assertEquals(marker, allocation.data[allocation.translateOffset(0)]);
+        released[j] = allocation;
+      }
+      if (releaseCount == 1) {
+        allocator.release(released[0]);
+      } else {
+        allocator.release(released);
+      }
+      if (random.nextInt(100) == 0) {
+        allocator.trim();
+      }
+    }
+    for (Allocation allocation : held) {
+      assertEquals(marker, allocation.data[allocation.translateOffset(0)]);
+    }
+    allocator.release(held.toArray(new Allocation[held.size()]));
+  }
+
+}
@@ -0,0 +1,102 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.exoplayer2.upstream;
+
+import com.google.android.exoplayer2.C;
+import java.io.IOException;
+import java.util.Arrays;
+import junit.framework.TestCase;
+
+/**
+ * Tests {@link DefaultHttpDataSource} reading from a {@link LoopbackHttpServer}.
+ */
+public class DefaultHttpDataSourceTest extends TestCase {
+
+  private static final int DATA_LENGTH = 4 * 1024 * 1024;
+  private static final int SMALL_SKIP_POSITION = 100 * 1024;
+  private static final int LARGE_SKIP_POSITION = 3 * 1024 * 1024;
+  private static final int READ_LENGTH = 1000;
+
+  private byte[] data;
+  private LoopbackHttpServer server;
+  private DefaultHttpDataSource dataSource;
+
+  @Override
+  public void setUp() throws IOException {
+    data = new byte[DATA_LENGTH];
+    for (int i = 0; i < data.length; i++) {
+      data[i] = (byte) (i * 7);
+    }
+    server = new LoopbackHttpServer(data);
+    dataSource = new DefaultHttpDataSource("DefaultHttpDataSourceTest", null);
+  }
+
+  @Override
+  public void tearDown() throws IOException {
+    server.release();
+  }
+
+  public void testReadRange() throws IOException {
+    assertReadData(LARGE_SKIP_POSITION);
+    assertEquals(1, server.getRequestCount());
+    assertEquals(0, dataSource.getTotalBytesSkippedByReading());
+    assertEquals(0, dataSource.getTotalBytesSkippedByRerequesting());
+  }
+
+  public void testSmallSkipIsRead() throws IOException {
+    server.setIgnoredRangeRequestCount(1);
+    assertReadData(SMALL_SKIP_POSITION);
+    assertEquals(1, server.getRequestCount());
+    assertEquals(SMALL_SKIP_POSITION, dataSource.getTotalBytesSkippedByReading());
+    assertEquals(0, dataSource.getTotalBytesSkippedByRerequesting());
+  }
+
+  public void testLargeSkipIsRerequested() throws IOException {
+    server.setIgnoredRangeRequestCount(1);
+    assertReadData(LARGE_SKIP_POSITION);
+    assertEquals(2, server.getRequestCount());
+    assertEquals(0, dataSource.getTotalBytesSkippedByReading());
+    assertEquals(LARGE_SKIP_POSITION, dataSource.getTotalBytesSkippedByRerequesting());
+  }
+
+  public void testLargeSkipIsReadIfRangesUnsupported() throws IOException {
+    server.setSupportsRanges(false);
+    assertReadData(LARGE_SKIP_POSITION);
+    assertEquals(1, server.getRequestCount());
+    assertEquals(LARGE_SKIP_POSITION, dataSource.getTotalBytesSkippedByReading());
+    assertEquals(0, dataSource.getTotalBytesSkippedByRerequesting());
+  }
+
+  private void assertReadData(int position) throws IOException {
+    try {
+      assertEquals(READ_LENGTH, dataSource.open(
+          new DataSpec(server.getUri("data"), position, READ_LENGTH, null)));
+      byte[] readData = new byte[READ_LENGTH];
+      int readPosition = 0;
+      while (readPosition < READ_LENGTH) {
+        int bytesRead = dataSource.read(readData, readPosition, READ_LENGTH - readPosition);
+        assertTrue(bytesRead != C.RESULT_END_OF_INPUT);
+        readPosition += bytesRead;
+      }
+      assertEquals(C.RESULT_END_OF_INPUT, dataSource.read(readData, 0, READ_LENGTH));
+      assertTrue(Arrays.equals(Arrays.copyOfRange(data, position, position + READ_LENGTH),
+          readData));
+    } finally {
+      dataSource.close();
+    }
+  }
+
+}
@@ -0,0 +1,188 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.exoplayer2.upstream;
+
+import com.google.android.exoplayer2.C;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import junit.framework.TestCase;
+
+/**
+ * Tests {@link HttpConnectionPool} with {@link DefaultHttpDataSource}s reading from a
+ * {@link LoopbackHttpServer}.
+ */
+public class HttpConnectionPoolTest extends TestCase {
+
+  // Large enough that the JDK's HttpURLConnection doesn't drain the remainder of a response in the
+  // background when its input stream is closed, as it does for small remainders.
+  private static final int DATA_LENGTH = 4 * 1024 * 1024;
+  private static final long TIMEOUT_MS = 10000;
+
+  private byte[] data;
+  private LoopbackHttpServer server;
+
+  @Override
+  public void setUp() throws IOException {
+    data = new byte[DATA_LENGTH];
+    for (int i = 0; i < data.length; i++) {
+      data[i] = (byte) i;
+    }
+    server = new LoopbackHttpServer(data);
+  }
+
+  @Override
+  public void tearDown() throws IOException {
+    server.release();
+  }
+
+  public void testReuseConnectionsOfCompleteResponses() throws IOException {
+    HttpConnectionPool connectionPool = new HttpConnectionPool();
+    DefaultHttpDataSource dataSource = createDataSource(connectionPool);
+    for (int i = 0; i < 5; i++) {
+      assertReadData(dataSource, new DataSpec(server.getUri("data" + i)), 0, DATA_LENGTH);
+    }
+    assertEquals(5, server.getRequestCount());
+    assertEquals(1, server.getConnectionCount());
+    assertEquals(1, connectionPool.getNewConnectionCount());
+    assertEquals(4, connectionPool.getReusedConnectionCount());
+    assertEquals(0, connectionPool.getTerminatedConnectionCount());
+  }
+
+  public void testDrainSmallRemainders() throws IOException {
+    HttpConnectionPool connectionPool = new HttpConnectionPool(1, 2048);
+    DefaultHttpDataSource dataSource = createDataSource(connectionPool);
+    for (int i = 0; i < 3; i++) {
+      DataSpec dataSpec = new DataSpec(server.getUri("data"), 1000 * i, 1000, null);
+      assertReadData(dataSource, dataSpec, 1000 * i, 10);
+    }
+    assertEquals(1, server.getConnectionCount());
+    assertEquals(2, connectionPool.getReusedConnectionCount());
+    assertEquals(3 * 990, connectionPool.getDrainedBytes());
+  }
+
+  public void testDrainRemainderBeyondRequestedRange() throws IOException {
+    // The server responds with all of the data, and so the source is closed before the end of the
+    // response even though it's read to the end of the requested range.
+    server.setSupportsRanges(false);
+    HttpConnectionPool connectionPool = new HttpConnectionPool(1, DATA_LENGTH);
+    DefaultHttpDataSource dataSource = createDataSource(connectionPool);
+    for (int i = 0; i < 2; i++) {
+      assertReadData(dataSource, new DataSpec(server.getUri("data"), 0, 1000, null), 0, 1000);
+    }
+    assertEquals(1, server.getConnectionCount());
+    assertEquals(2 * (DATA_LENGTH - 1000), connectionPool.getDrainedBytes());
+  }
+
+  public void testTerminateWithoutDrainingWhenInterrupted() throws IOException {
+    HttpConnectionPool connectionPool = new HttpConnectionPool(1, DATA_LENGTH);
+    DefaultHttpDataSource dataSource = createDataSource(connectionPool);
+    dataSource.open(new DataSpec(server.getUri("data")));
+    dataSource.read(new byte[10], 0, 10);
+    // Interrupting the thread is how a load is canceled.
+    Thread.currentThread().interrupt();
+    try {
+      dataSource.close();
+    } finally {
+      Thread.interrupted();
+    }
+    assertEquals(1, connectionPool.getTerminatedConnectionCount());
+    assertEquals(0, connectionPool.getDrainedBytes());
+  }
+
+  public void testTerminateLargeRemainders() throws IOException {
+    HttpConnectionPool connectionPool = new HttpConnectionPool(1, 0);
+    DefaultHttpDataSource dataSource = createDataSource(connectionPool);
+    for (int i = 0; i < 3; i++) {
+      assertReadData(dataSource, new DataSpec(server.getUri("data")), 0, 10);
+    }
+    assertEquals(3, server.getConnectionCount());
+    assertEquals(3, connectionPool.getNewConnectionCount());
+    assertEquals(3, connectionPool.getTerminatedConnectionCount());
+  }
+
+  public void testCountConnectionTerminatedToRerequestRange() throws IOException {
+    server.setIgnoredRangeRequestCount(1);
+    HttpConnectionPool connectionPool = new HttpConnectionPool(1, 0);
+    DefaultHttpDataSource dataSource = createDataSource(connectionPool);
+    int position = DATA_LENGTH / 2;
+    assertReadData(dataSource, new DataSpec(server.getUri("data"), position, 1000, null), position,
+        1000);
+    assertEquals(2, server.getRequestCount());
+    assertEquals(2, connectionPool.getNewConnectionCount());
+    assertEquals(1, connectionPool.getTerminatedConnectionCount());
+  }
+
+  public void testMaxConnectionsPerHost() throws Exception {
+    HttpConnectionPool connectionPool = new HttpConnectionPool(1, 0);
+    DefaultHttpDataSource dataSource1 = createDataSource(connectionPool);
+    final DefaultHttpDataSource dataSource2 = createDataSource(connectionPool);
+    dataSource1.open(new DataSpec(server.getUri("data1")));
+    final CountDownLatch openedLatch = new CountDownLatch(1);
+    final AtomicReference<IOException> error = new AtomicReference<>();
+    Thread thread = new Thread("HttpConnectionPoolTest.testMaxConnectionsPerHost()") {
+      @Override
+      public void run() {
+        try {
+          dataSource2.open(new DataSpec(server.getUri("data2")));
+          openedLatch.countDown();
+          dataSource2.close();
+        } catch (IOException e) {
+          error.set(e);
+        }
+      }
+    };
+    thread.start();
+    assertFalse(openedLatch.await(200, TimeUnit.MILLISECONDS));
+    dataSource1.close();
+    assertTrue(openedLatch.await(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+    thread.join();
+    assertNull(error.get());
+  }
+
+  private static DefaultHttpDataSource createDataSource(HttpConnectionPool connectionPool) {
+    return new DefaultHttpDataSource("HttpConnectionPoolTest", null, null,
+        DefaultHttpDataSource.DEFAULT_CONNECT_TIMEOUT_MILLIS,
+        DefaultHttpDataSource.DEFAULT_READ_TIMEOUT_MILLIS, false, connectionPool);
+  }
+
+  /**
+   * Opens the source, reads up to {@code readLength} bytes and closes it.
+   */
+  private void assertReadData(DataSource dataSource, DataSpec dataSpec, int expectedPosition,
+      int readLength) throws IOException {
+    try {
+      dataSource.open(dataSpec);
+      byte[] readData = new byte[readLength];
+      int position = 0;
+      while (position < readLength) {
+        int bytesRead = dataSource.read(readData, position, readLength - position);
+        if (bytesRead == C.RESULT_END_OF_INPUT) {
+          break;
+        }
+        position += bytesRead;
+      }
+      assertEquals(readLength, position);
+      assertTrue(Arrays.equals(Arrays.copyOfRange(data, expectedPosition,
+          expectedPosition + readLength), readData));
+    } finally {
+      dataSource.close();
+    }
+  }
+
+}
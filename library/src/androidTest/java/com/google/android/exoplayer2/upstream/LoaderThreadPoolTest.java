@@ -0,0 +1,407 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.exoplayer2.upstream;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.util.Log;
+import com.google.android.exoplayer2.extractor.TimestampAdjuster;
+import com.google.android.exoplayer2.upstream.Loader.Loadable;
+import com.google.android.exoplayer2.util.Util;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import junit.framework.TestCase;
+
+/**
+ * Unit tests for {@link LoaderThreadPool}.
+ */
+public class LoaderThreadPoolTest extends TestCase {
+
+  private static final String TAG = "LoaderThreadPoolTest";
+
+  private static final long TIMEOUT_MS = 10000;
+  // The playlist loaders of an HLS stream with six variants, four audio renditions and two subtitle
+  // renditions: one for the master playlist, and one for each media playlist.
+  private static final int MULTI_RENDITION_LOADER_COUNT = 1 + (6 + 4 + 2);
+  // The chunk loaders of the same stream: one for each sample stream wrapper, of which all but the
+  // main one load renditions.
+  private static final int RENDITION_CHUNK_LOADER_COUNT = 4 + 2;
+  private static final int MULTI_RENDITION_LOADS_PER_LOADER = 10;
+
+  private LoaderThreadPool threadPool;
+
+  @Override
+  public void setUp() {
+    threadPool = new LoaderThreadPool("LoaderThreadPoolTest", 2);
+  }
+
+  @Override
+  public void tearDown() {
+    threadPool.release();
+  }
+
+  public void testTasksRunInOrder() throws Exception {
+    Executor executor = threadPool.newSerialExecutor();
+    List<Integer> order = Collections.synchronizedList(new ArrayList<Integer>());
+    CountDownLatch doneLatch = new CountDownLatch(100);
+    for (int i = 0; i < 100; i++) {
+      executor.execute(new RecordingTask(order, i, doneLatch));
+    }
+    assertTrue(doneLatch.await(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+    for (int i = 0; i < 100; i++) {
+      assertEquals(i, (int) order.get(i));
+    }
+  }
+
+  public void testLoadersTakeTurns() throws Exception {
+    threadPool.release();
+    threadPool = new LoaderThreadPool("LoaderThreadPoolTest", 1);
+    Executor blockingExecutor = threadPool.newSerialExecutor();
+    Executor executor1 = threadPool.newSerialExecutor();
+    Executor executor2 = threadPool.newSerialExecutor();
+    final CountDownLatch blockLatch = new CountDownLatch(1);
+    List<Integer> order = Collections.synchronizedList(new ArrayList<Integer>());
+    CountDownLatch doneLatch = new CountDownLatch(4);
+    // Occupy the only thread whilst the other tasks are queued.
+    blockingExecutor.execute(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          blockLatch.await();
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+      }
+    });
+    executor1.execute(new RecordingTask(order, 10, doneLatch));
+    executor1.execute(new RecordingTask(order, 11, doneLatch));
+    executor1.execute(new RecordingTask(order, 12, doneLatch));
+    executor2.execute(new RecordingTask(order, 20, doneLatch));
+    blockLatch.countDown();
+    assertTrue(doneLatch.await(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+    assertEquals(10, (int) order.get(0));
+    assertEquals(20, (int) order.get(1));
+    assertEquals(11, (int) order.get(2));
+    assertEquals(12, (int) order.get(3));
+  }
+
+  public void testThreadCountForMultiRenditionStream() throws Exception {
+    // Each loader has a thread of its own.
+    Set<Thread> dedicatedThreads =
+        Collections.newSetFromMap(new IdentityHashMap<Thread, Boolean>());
+    List<ExecutorService> executorServices = new ArrayList<>();
+    CountDownLatch dedicatedLatch =
+        new CountDownLatch(MULTI_RENDITION_LOADER_COUNT * MULTI_RENDITION_LOADS_PER_LOADER);
+    for (int i = 0; i < MULTI_RENDITION_LOADER_COUNT; i++) {
+      ExecutorService executorService = Util.newSingleThreadExecutor("LoaderThreadPoolTest");
+      executorServices.add(executorService);
+      runLoads(executorService, dedicatedThreads, dedicatedLatch);
+    }
+    assertTrue(dedicatedLatch.await(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+    for (ExecutorService executorService : executorServices) {
+      executorService.shutdown();
+    }
+
+    // The loaders share the pool.
+    Set<Thread> pooledThreads = Collections.newSetFromMap(new IdentityHashMap<Thread, Boolean>());
+    CountDownLatch pooledLatch =
+        new CountDownLatch(MULTI_RENDITION_LOADER_COUNT * MULTI_RENDITION_LOADS_PER_LOADER);
+    for (int i = 0; i < MULTI_RENDITION_LOADER_COUNT; i++) {
+      runLoads(threadPool.newSerialExecutor(), pooledThreads, pooledLatch);
+    }
+    assertTrue(pooledLatch.await(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+
+    Log.i(TAG, MULTI_RENDITION_LOADER_COUNT + " loaders: " + dedicatedThreads.size()
+        + " threads with a thread per loader, " + pooledThreads.size() + " threads ("
+        + threadPool.getCreatedThreadCount() + " created) with a shared pool of "
+        + threadPool.getThreadCount());
+    assertEquals(MULTI_RENDITION_LOADER_COUNT, dedicatedThreads.size());
+    assertTrue(pooledThreads.size() <= threadPool.getThreadCount());
+    assertTrue(threadPool.getCreatedThreadCount() <= threadPool.getThreadCount());
+    assertTrue(threadPool.getLiveThreadCount() <= threadPool.getThreadCount());
+  }
+
+  public void testCancelDoesNotInterruptLoadOfAnotherLoader() throws Exception {
+    threadPool.release();
+    threadPool = new LoaderThreadPool("LoaderThreadPoolTest", 1);
+    final Loader loader1 = new Loader("LoaderThreadPoolTest", threadPool);
+    final Loader loader2 = new Loader("LoaderThreadPoolTest", threadPool);
+    final CountDownLatch load2StartedLatch = new CountDownLatch(1);
+    final CountDownLatch loader1ReleasedLatch = new CountDownLatch(1);
+    final CountDownLatch load2EndedLatch = new CountDownLatch(1);
+    final AtomicBoolean load2Interrupted = new AtomicBoolean();
+    HandlerThread callbackThread = new HandlerThread("LoaderThreadPoolTest");
+    callbackThread.start();
+    try {
+      new Handler(callbackThread.getLooper()).post(new Runnable() {
+        @Override
+        public void run() {
+          loader1.startLoading(new TestLoadable(null, null, null), new NoOpCallback(), 0);
+          loader2.startLoading(new TestLoadable(load2StartedLatch, loader1ReleasedLatch,
+              load2Interrupted), new NoOpCallback(), 0);
+          // The first load has ended and given the only thread to the second, but the callback
+          // thread is blocked here, so the first loader hasn't been told and still cancels its load
+          // when released.
+          try {
+            assertTrue(load2StartedLatch.await(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+          } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+          }
+          loader1.release();
+          loader1ReleasedLatch.countDown();
+        }
+      });
+      assertTrue(loader1ReleasedLatch.await(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+      threadPool.newSerialExecutor().execute(new Runnable() {
+        @Override
+        public void run() {
+          load2EndedLatch.countDown();
+        }
+      });
+      assertTrue(load2EndedLatch.await(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+      assertFalse(load2Interrupted.get());
+    } finally {
+      loader2.release();
+      callbackThread.quit();
+    }
+  }
+
+  public void testRenditionChunksQueuedAheadOfMasterChunk() throws Exception {
+    // As in an HLS stream, playlists are loaded on the pool, whilst each sample stream wrapper's
+    // chunks are loaded on a thread of its own.
+    final TimestampAdjuster timestampAdjuster = new TimestampAdjuster(0);
+    final List<Loader> loaders = new ArrayList<>();
+    for (int i = 0; i < MULTI_RENDITION_LOADER_COUNT; i++) {
+      loaders.add(new Loader("LoaderThreadPoolTest", threadPool));
+    }
+    for (int i = 0; i < RENDITION_CHUNK_LOADER_COUNT + 1; i++) {
+      loaders.add(new Loader("LoaderThreadPoolTest"));
+    }
+    final CountDownLatch loadsCompletedLatch = new CountDownLatch(loaders.size());
+    HandlerThread callbackThread = new HandlerThread("LoaderThreadPoolTest");
+    callbackThread.start();
+    try {
+      new Handler(callbackThread.getLooper()).post(new Runnable() {
+        @Override
+        public void run() {
+          // The rendition chunks wait for the master variant's chunk to initialize the timestamp
+          // adjuster, and are started ahead of it and of the playlist loads.
+          int renditionChunkLoadersStart = MULTI_RENDITION_LOADER_COUNT;
+          int masterChunkLoaderIndex = MULTI_RENDITION_LOADER_COUNT + RENDITION_CHUNK_LOADER_COUNT;
+          for (int i = renditionChunkLoadersStart; i < masterChunkLoaderIndex; i++) {
+            loaders.get(i).startLoading(new ChunkLoadable(timestampAdjuster, false),
+                new CountingCallback(loadsCompletedLatch), 0);
+          }
+          for (int i = 0; i < MULTI_RENDITION_LOADER_COUNT; i++) {
+            loaders.get(i).startLoading(new TestLoadable(null, null, null),
+                new CountingCallback(loadsCompletedLatch), 0);
+          }
+          loaders.get(masterChunkLoaderIndex).startLoading(
+              new ChunkLoadable(timestampAdjuster, true), new CountingCallback(loadsCompletedLatch),
+              0);
+        }
+      });
+      assertTrue(loadsCompletedLatch.await(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+    } finally {
+      for (Loader loader : loaders) {
+        loader.release();
+      }
+      callbackThread.quit();
+    }
+  }
+
+  private static void runLoads(Executor executor, final Set<Thread> threads,
+      final CountDownLatch latch) {
+    for (int i = 0; i < MULTI_RENDITION_LOADS_PER_LOADER; i++) {
+      executor.execute(new Runnable() {
+        @Override
+        public void run() {
+          synchronized (threads) {
+            threads.add(Thread.currentThread());
+          }
+          latch.countDown();
+        }
+      });
+    }
+  }
+
+  /**
+   * A {@link Loadable} that optionally signals that it's started and then waits for a latch,
+   * recording whether it's interrupted whilst waiting.
+   */
+  private static final class TestLoadable implements Loadable {
+
+    private final CountDownLatch startedLatch;
+    private final CountDownLatch waitLatch;
+    private final AtomicBoolean interrupted;
+
+    private volatile boolean canceled;
+
+    public TestLoadable(CountDownLatch startedLatch, CountDownLatch waitLatch,
+        AtomicBoolean interrupted) {
+      this.startedLatch = startedLatch;
+      this.waitLatch = waitLatch;
+      this.interrupted = interrupted;
+    }
+
+    @Override
+    public void cancelLoad() {
+      canceled = true;
+    }
+
+    @Override
+    public boolean isLoadCanceled() {
+      return canceled;
+    }
+
+    @Override
+    public void load() {
+      if (startedLatch != null) {
+        startedLatch.countDown();
+      }
+      if (waitLatch != null) {
+        try {
+          waitLatch.await(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+          interrupted.set(true);
+        }
+      }
+    }
+
+  }
+
+  /**
+   * A {@link Loadable} that, like an HLS chunk, either initializes a shared timestamp adjuster or
+   * waits for it to be initialized.
+   */
+  private static final class ChunkLoadable implements Loadable {
+
+    private final TimestampAdjuster timestampAdjuster;
+    private final boolean isMasterTimestampSource;
+
+    private volatile boolean canceled;
+
+    public ChunkLoadable(TimestampAdjuster timestampAdjuster, boolean isMasterTimestampSource) {
+      this.timestampAdjuster = timestampAdjuster;
+      this.isMasterTimestampSource = isMasterTimestampSource;
+    }
+
+    @Override
+    public void cancelLoad() {
+      canceled = true;
+    }
+
+    @Override
+    public boolean isLoadCanceled() {
+      return canceled;
+    }
+
+    @Override
+    public void load() throws InterruptedException {
+      if (isMasterTimestampSource) {
+        timestampAdjuster.adjustSampleTimestamp(0);
+      } else {
+        timestampAdjuster.waitUntilInitialized();
+      }
+    }
+
+  }
+
+  /**
+   * A {@link Loader.Callback} that counts down a latch when a load completes.
+   */
+  private static final class CountingCallback implements Loader.Callback<Loadable> {
+
+    private final CountDownLatch completedLatch;
+
+    public CountingCallback(CountDownLatch completedLatch) {
+      this.completedLatch = completedLatch;
+    }
+
+    @Override
+    public void onLoadCompleted(Loadable loadable, long elapsedRealtimeMs, long loadDurationMs) {
+      completedLatch.countDown();
+    }
+
+    @Override
+    public void onLoadCanceled(Loadable loadable, long elapsedRealtimeMs, long loadDurationMs,
+        boolean released) {
+      // Do nothing.
+    }
+
+    @Override
+    public int onLoadError(Loadable loadable, long elapsedRealtimeMs, long loadDurationMs,
+        IOException error) {
+      return Loader.DONT_RETRY;
+    }
+
+  }
+
+  /**
+   * A {@link Loader.Callback} that does nothing.
+   */
+  private static final class NoOpCallback implements Loader.Callback<TestLoadable> {
+
+    @Override
+    public void onLoadCompleted(TestLoadable loadable, long elapsedRealtimeMs,
+        long loadDurationMs) {
+      // Do nothing.
+    }
+
+    @Override
+    public void onLoadCanceled(TestLoadable loadable, long elapsedRealtimeMs, long loadDurationMs,
+        boolean released) {
+      // Do nothing.
+    }
+
+    @Override
+    public int onLoadError(TestLoadable loadable, long elapsedRealtimeMs, long loadDurationMs,
+        IOException error) {
+      return Loader.DONT_RETRY;
+    }
+
+  }
+
+  private static final class RecordingTask implements Runnable {
+
+    private final List<Integer> order;
+    private final int id;
+    private final CountDownLatch latch;
+
+    public RecordingTask(List<Integer> order, int id, CountDownLatch latch) {
+      this.order = order;
+      this.id = id;
+      this.latch = latch;
+    }
+
+    @Override
+    public void run() {
+      order.add(id);
+      latch.countDown();
+    }
+
+  }
+
+}
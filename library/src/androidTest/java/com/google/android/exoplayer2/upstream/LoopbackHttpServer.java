@@ -0,0 +1,227 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.exoplayer2.upstream;
+
+import android.net.Uri;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * A minimal HTTP/1.1 server on the loopback interface that serves the same data for every path,
+ * and keeps connections alive between requests.
+ */
+/* package */ final class LoopbackHttpServer {
+
+  private static final Pattern RANGE_HEADER = Pattern.compile("^range: bytes=(\\d+)-(\\d*)$");
+
+  private final byte[] data;
+  private final ServerSocket serverSocket;
+  private final List<Socket> sockets;
+  private final AtomicInteger connectionCount;
+  private final AtomicInteger requestCount;
+
+  private volatile boolean supportsRanges;
+  private volatile int ignoredRangeRequestCount;
+
+  /**
+   * Starts a server.
+   *
+   * @param data The data to serve.
+   */
+  public LoopbackHttpServer(byte[] data) throws IOException {
+    this.data = data;
+    serverSocket = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+    sockets = new ArrayList<>();
+    connectionCount = new AtomicInteger();
+    requestCount = new AtomicInteger();
+    supportsRanges = true;
+    new Thread("LoopbackHttpServer") {
+      @Override
+      public void run() {
+        acceptConnections();
+      }
+    }.start();
+  }
+
+  /**
+   * Sets whether range requests are honored, and advertised as such with an
+   * {@code Accept-Ranges: bytes} header. If not then the whole of the data is served in response
+   * to every request.
+   */
+  public void setSupportsRanges(boolean supportsRanges) {
+    this.supportsRanges = supportsRanges;
+  }
+
+  /**
+   * Sets a number of range requests to ignore before honoring them again, serving the whole of the
+   * data in response.
+   */
+  public void setIgnoredRangeRequestCount(int ignoredRangeRequestCount) {
+    this.ignoredRangeRequestCount = ignoredRangeRequestCount;
+  }
+
+  /**
+   * Returns a {@link Uri} for data served by the server.
+   */
+  public Uri getUri(String path) {
+    return Uri.parse("http://127.0.0.1:" + serverSocket.getLocalPort() + "/" + path);
+  }
+
+  /**
+   * Returns the number of connections that have been accepted.
+   */
+  public int getConnectionCount() {
+    return connectionCount.get();
+  }
+
+  /**
+   * Returns the number of requests that have been received.
+   */
+  public int getRequestCount() {
+    return requestCount.get();
+  }
+
+  /**
+   * Stops the server, closing its connections.
+   */
+  public void release() throws IOException {
+    serverSocket.close();
+    synchronized (sockets) {
+      for (Socket socket : sockets) {
+        socket.close();
+      }
+    }
+  }
+
+  private void acceptConnections() {
+    while (true) {
+      final Socket socket;
+      try {
+        socket = serverSocket.accept();
+      } catch (IOException e) {
+        // The server has been released.
+        return;
+      }
+      connectionCount.incrementAndGet();
+      try {
+        socket.setTcpNoDelay(true);
+      } catch (IOException e) {
+        // Ignore.
+      }
+      synchronized (sockets) {
+        sockets.add(socket);
+      }
+      new Thread("LoopbackHttpServer:Connection") {
+        @Override
+        public void run() {
+          try {
+            serveRequests(socket);
+          } catch (IOException e) {
+            // The connection has been closed.
+          } finally {
+            try {
+              socket.close();
+            } catch (IOException e) {
+              // Ignore.
+            }
+          }
+        }
+      }.start();
+    }
+  }
+
+  private void serveRequests(Socket socket) throws IOException {
+    InputStream inputStream = socket.getInputStream();
+    OutputStream outputStream = socket.getOutputStream();
+    while (true) {
+      String requestLine = readLine(inputStream);
+      if (requestLine == null) {
+        return;
+      }
+      requestCount.incrementAndGet();
+      long start = 0;
+      long end = data.length - 1;
+      boolean isRangeRequest = false;
+      String headerLine;
+      while ((headerLine = readLine(inputStream)) != null && !headerLine.isEmpty()) {
+        Matcher matcher = RANGE_HEADER.matcher(headerLine.toLowerCase());
+        if (matcher.matches() && supportsRanges) {
+          if (ignoredRangeRequestCount > 0) {
+            ignoredRangeRequestCount--;
+            continue;
+          }
+          isRangeRequest = true;
+          start = Long.parseLong(matcher.group(1));
+          if (!matcher.group(2).isEmpty()) {
+            end = Math.min(end, Long.parseLong(matcher.group(2)));
+          }
+        }
+      }
+      StringBuilder response = new StringBuilder();
+      if (start >= data.length) {
+        response.append("HTTP/1.1 416 Range Not Satisfiable\r\n")
+            .append("Content-Length: 0\r\n\r\n");
+        outputStream.write(response.toString().getBytes("US-ASCII"));
+        outputStream.flush();
+        continue;
+      }
+      long length = end - start + 1;
+      response.append(isRangeRequest ? "HTTP/1.1 206 Partial Content\r\n" : "HTTP/1.1 200 OK\r\n")
+          .append("Content-Type: application/octet-stream\r\n")
+          .append("Content-Length: ").append(length).append("\r\n");
+      if (supportsRanges) {
+        response.append("Accept-Ranges: bytes\r\n");
+      }
+      if (isRangeRequest) {
+        response.append("Content-Range: bytes ").append(start).append('-').append(end)
+            .append('/').append(data.length).append("\r\n");
+      }
+      response.append("\r\n");
+      // Write the headers and data together, to avoid delayed acknowledgements between them.
+      byte[] headers = response.toString().getBytes("US-ASCII");
+      byte[] message = Arrays.copyOf(headers, headers.length + (int) length);
+      System.arraycopy(data, (int) start, message, headers.length, (int) length);
+      outputStream.write(message);
+      outputStream.flush();
+    }
+  }
+
+  private static String readLine(InputStream inputStream) throws IOException {
+    ByteArrayOutputStream line = new ByteArrayOutputStream();
+    int b;
+    while ((b = inputStream.read()) != '\n') {
+      if (b == -1) {
+        return null;
+      }
+      if (b != '\r') {
+        line.write(b);
+      }
+    }
+    return line.toString("US-ASCII");
+  }
+
+}
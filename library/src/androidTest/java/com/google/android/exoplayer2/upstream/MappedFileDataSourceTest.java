@@ -0,0 +1,100 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.exoplayer2.upstream;
+
+import android.net.Uri;
+import android.test.InstrumentationTestCase;
+import android.test.MoreAsserts;
+import com.google.android.exoplayer2.C;
+import com.google.android.exoplayer2.testutil.TestUtil;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Unit tests for {@link MappedFileDataSource}.
+ */
+public class MappedFileDataSourceTest extends InstrumentationTestCase {
+
+  private static final int DATA_LENGTH = 1000;
+
+  private File tempFolder;
+  private File file;
+  private MappedFileDataSource dataSource;
+
+  @Override
+  protected void setUp() throws Exception {
+    tempFolder = TestUtil.createTempFolder(getInstrumentation().getContext());
+    file = new File(tempFolder, "file");
+    dataSource = new MappedFileDataSource();
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    TestUtil.recursiveDelete(tempFolder);
+  }
+
+  public void testReadPosition() throws IOException {
+    byte[] data = TestUtil.buildTestData(DATA_LENGTH);
+    writeFile(data);
+    MoreAsserts.assertEquals(Arrays.copyOfRange(data, 100, 300),
+        readData(new DataSpec(Uri.fromFile(file), 100, 200, null)));
+  }
+
+  public void testReadFileRewrittenAtSamePath() throws IOException {
+    byte[] data = TestUtil.buildTestData(DATA_LENGTH);
+    writeFile(data);
+    long lastModified = file.lastModified();
+    MoreAsserts.assertEquals(data, readData(new DataSpec(Uri.fromFile(file))));
+
+    // Replace the file with one of the same length and modification time, as happens when a cache
+    // span is evicted and written again.
+    byte[] newData = Arrays.copyOf(data, DATA_LENGTH);
+    for (int i = 0; i < newData.length; i++) {
+      newData[i]++;
+    }
+    assertTrue(file.delete());
+    writeFile(newData);
+    assertTrue(file.setLastModified(lastModified));
+    MoreAsserts.assertEquals(newData, readData(new DataSpec(Uri.fromFile(file))));
+  }
+
+  private void writeFile(byte[] data) throws IOException {
+    FileOutputStream outputStream = new FileOutputStream(file);
+    try {
+      outputStream.write(data);
+    } finally {
+      outputStream.close();
+    }
+  }
+
+  private byte[] readData(DataSpec dataSpec) throws IOException {
+    try {
+      int length = (int) dataSource.open(dataSpec);
+      byte[] data = new byte[length];
+      int position = 0;
+      while (position < length) {
+        position += dataSource.read(data, position, length - position);
+      }
+      assertEquals(C.RESULT_END_OF_INPUT, dataSource.read(new byte[1], 0, 1));
+      return data;
+    } finally {
+      dataSource.close();
+    }
+  }
+
+}
@@ -0,0 +1,367 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.exoplayer2.upstream;
+
+import android.net.Uri;
+import android.util.Log;
+import com.google.android.exoplayer2.C;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import junit.framework.TestCase;
+
+/**
+ * Unit tests for {@link ParallelRangeDataSource}.
+ */
+public class ParallelRangeDataSourceTest extends TestCase {
+
+  private static final String TAG = "ParallelRangeDataSourceTest";
+
+  private static final Uri URI = Uri.parse("http://test/media.mp4");
+  private static final int DATA_LENGTH = 1024 * 1024;
+  private static final int RANGE_LENGTH = 64 * 1024;
+  private static final int CONNECTION_COUNT = 3;
+  private static final int MAX_BUFFERED_RANGE_COUNT = 6;
+  private static final int RANGE_COUNT = DATA_LENGTH / RANGE_LENGTH;
+
+  private static final int BENCHMARK_RTT_MS = 20;
+  private static final int BENCHMARK_BYTES_PER_SECOND = 4 * 1024 * 1024;
+  private static final int BENCHMARK_CONNECTION_COUNT = 4;
+  private static final int BENCHMARK_RANGE_LENGTH = 4 * RANGE_LENGTH;
+
+  private byte[] data;
+  private FakeDataSourceFactory upstreamFactory;
+  private ParallelRangeDataSource dataSource;
+
+  @Override
+  public void setUp() {
+    data = new byte[DATA_LENGTH];
+    for (int i = 0; i < data.length; i++) {
+      data[i] = (byte) (i * 3);
+    }
+    upstreamFactory = new FakeDataSourceFactory(data);
+    dataSource = new ParallelRangeDataSource(upstreamFactory, CONNECTION_COUNT, RANGE_LENGTH,
+        MAX_BUFFERED_RANGE_COUNT);
+  }
+
+  public void testReadKnownLength() throws IOException {
+    assertReadData(new DataSpec(URI, 0, DATA_LENGTH, null), 0, DATA_LENGTH);
+    assertEquals(1, dataSource.getParallelOpenCount());
+    assertEquals(RANGE_COUNT, upstreamFactory.openCount.get());
+    assertTrue(upstreamFactory.maxOpenDataSourceCount.get() <= CONNECTION_COUNT);
+  }
+
+  public void testReadResolvedLength() throws IOException {
+    assertReadData(new DataSpec(URI), 0, DATA_LENGTH);
+    assertEquals(1, dataSource.getParallelOpenCount());
+    // The first range is loaded by the data source that resolved the length.
+    assertEquals(RANGE_COUNT, upstreamFactory.openCount.get());
+  }
+
+  public void testReadFromPosition() throws IOException {
+    int position = RANGE_LENGTH / 2 + 1;
+    assertReadData(new DataSpec(URI, position, C.LENGTH_UNSET, null), position,
+        DATA_LENGTH - position);
+    assertEquals(1, dataSource.getParallelOpenCount());
+  }
+
+  public void testUnknownLengthReadFromSingleStream() throws IOException {
+    upstreamFactory.resolveLength = false;
+    assertReadData(new DataSpec(URI), 0, DATA_LENGTH);
+    assertEquals(0, dataSource.getParallelOpenCount());
+    assertEquals(1, dataSource.getSingleStreamOpenCount());
+    assertEquals(1, upstreamFactory.openCount.get());
+  }
+
+  public void testShortDataReadFromSingleStream() throws IOException {
+    assertReadData(new DataSpec(URI, 0, RANGE_LENGTH, null), 0, RANGE_LENGTH);
+    assertEquals(1, dataSource.getSingleStreamOpenCount());
+    assertEquals(1, upstreamFactory.openCount.get());
+  }
+
+  public void testIgnoredRangesReadFromSingleStream() throws IOException {
+    upstreamFactory.honorRanges = false;
+    assertReadData(new DataSpec(URI, 0, DATA_LENGTH, null), 0, DATA_LENGTH);
+    assertEquals(0, dataSource.getParallelOpenCount());
+    assertEquals(1, dataSource.getSingleStreamOpenCount());
+    // Only the first range was requested, and closed unread, before falling back to a single
+    // stream.
+    assertEquals(2, upstreamFactory.openCount.get());
+    assertEquals(DATA_LENGTH, upstreamFactory.bytesServed.get());
+  }
+
+  public void testIgnoredRangesReadFromLengthResolvingStream() throws IOException {
+    upstreamFactory.honorRanges = false;
+    assertReadData(new DataSpec(URI), 0, DATA_LENGTH);
+    assertEquals(0, dataSource.getParallelOpenCount());
+    assertEquals(1, dataSource.getSingleStreamOpenCount());
+    // The second range was requested to check whether ranges are honored, and nothing was read
+    // from it.
+    assertEquals(2, upstreamFactory.openCount.get());
+    assertEquals(DATA_LENGTH, upstreamFactory.bytesServed.get());
+  }
+
+  public void testCloseInterruptsLoadingRanges() throws Exception {
+    upstreamFactory.bytesPerSecond = 8 * 1024;
+    dataSource.open(new DataSpec(URI, 0, DATA_LENGTH, null));
+    try {
+      assertEquals(1, dataSource.read(new byte[1], 0, 1));
+    } finally {
+      dataSource.close();
+    }
+    // Without being interrupted, each range would take seconds to finish loading.
+    long endTimeMs = System.currentTimeMillis() + 1000;
+    while (upstreamFactory.openDataSourceCount.get() > 0
+        && System.currentTimeMillis() < endTimeMs) {
+      Thread.sleep(10);
+    }
+    assertEquals(0, upstreamFactory.openDataSourceCount.get());
+  }
+
+  public void testBufferedRangesAreBounded() throws Exception {
+    try {
+      dataSource.open(new DataSpec(URI, 0, DATA_LENGTH, null));
+      assertEquals(1, dataSource.read(new byte[1], 0, 1));
+      Thread.sleep(200);
+      assertEquals(MAX_BUFFERED_RANGE_COUNT, upstreamFactory.openCount.get());
+    } finally {
+      dataSource.close();
+    }
+  }
+
+  public void testRangeError() throws IOException {
+    upstreamFactory.failingPosition = 3 * RANGE_LENGTH;
+    try {
+      dataSource.open(new DataSpec(URI, 0, DATA_LENGTH, null));
+      byte[] buffer = new byte[RANGE_LENGTH];
+      int bytesRead = 0;
+      while (bytesRead < 3 * RANGE_LENGTH) {
+        bytesRead += dataSource.read(buffer, 0, buffer.length);
+      }
+      dataSource.read(buffer, 0, buffer.length);
+      fail();
+    } catch (IOException e) {
+      // Expected.
+    } finally {
+      dataSource.close();
+    }
+  }
+
+  public void testThroughputBenchmark() throws IOException {
+    upstreamFactory.rttMs = BENCHMARK_RTT_MS;
+    upstreamFactory.bytesPerSecond = BENCHMARK_BYTES_PER_SECOND;
+    long singleStreamTimeMs = readData(upstreamFactory.createDataSource());
+    assertEquals(1, upstreamFactory.maxOpenDataSourceCount.get());
+    long parallelTimeMs = readData(new ParallelRangeDataSource(upstreamFactory,
+        BENCHMARK_CONNECTION_COUNT, BENCHMARK_RANGE_LENGTH, 2 * BENCHMARK_CONNECTION_COUNT));
+    Log.i(TAG, DATA_LENGTH + " bytes at " + BENCHMARK_BYTES_PER_SECOND + " bytes/s per connection: "
+        + singleStreamTimeMs + "ms with a single connection, " + parallelTimeMs + "ms with "
+        + BENCHMARK_CONNECTION_COUNT + " connections");
+    // Timings depend on the device, so only whether ranges were loaded at once is asserted.
+    assertTrue(upstreamFactory.maxOpenDataSourceCount.get() > 1);
+    assertTrue(upstreamFactory.maxOpenDataSourceCount.get() <= BENCHMARK_CONNECTION_COUNT);
+  }
+
+  private long readData(DataSource dataSource) throws IOException {
+    long startTimeNs = System.nanoTime();
+    try {
+      dataSource.open(new DataSpec(URI));
+      byte[] buffer = new byte[16 * 1024];
+      while (dataSource.read(buffer, 0, buffer.length) != C.RESULT_END_OF_INPUT) {
+        // Do nothing.
+      }
+    } finally {
+      dataSource.close();
+    }
+    return (System.nanoTime() - startTimeNs) / 1000000;
+  }
+
+  private void assertReadData(DataSpec dataSpec, int expectedPosition, int expectedLength)
+      throws IOException {
+    try {
+      dataSource.open(dataSpec);
+      byte[] readData = new byte[expectedLength];
+      byte[] buffer = new byte[10000];
+      int position = 0;
+      int bytesRead;
+      while ((bytesRead = dataSource.read(buffer, 0, buffer.length)) != C.RESULT_END_OF_INPUT) {
+        System.arraycopy(buffer, 0, readData, position, bytesRead);
+        position += bytesRead;
+      }
+      assertEquals(expectedLength, position);
+      assertTrue(Arrays.equals(Arrays.copyOfRange(data, expectedPosition,
+          expectedPosition + expectedLength), readData));
+    } finally {
+      dataSource.close();
+    }
+  }
+
+  /**
+   * Produces {@link FakeDataSource}s.
+   */
+  private static final class FakeDataSourceFactory implements DataSource.Factory {
+
+    public final byte[] data;
+    public final AtomicInteger openCount;
+    public final AtomicInteger openDataSourceCount;
+    public final AtomicInteger maxOpenDataSourceCount;
+    public final AtomicLong bytesServed;
+
+    public volatile boolean resolveLength;
+    public volatile boolean honorRanges;
+    public volatile long failingPosition;
+    public volatile long rttMs;
+    public volatile int bytesPerSecond;
+
+    public FakeDataSourceFactory(byte[] data) {
+      this.data = data;
+      openCount = new AtomicInteger();
+      openDataSourceCount = new AtomicInteger();
+      maxOpenDataSourceCount = new AtomicInteger();
+      bytesServed = new AtomicLong();
+      resolveLength = true;
+      honorRanges = true;
+      failingPosition = C.POSITION_UNSET;
+    }
+
+    @Override
+    public DataSource createDataSource() {
+      return new FakeDataSource(this);
+    }
+
+  }
+
+  /**
+   * Serves data after a round trip time, optionally at a limited rate. If ranges aren't honored
+   * then the data before the requested position is served and skipped, as by
+   * {@link DefaultHttpDataSource}.
+   */
+  private static final class FakeDataSource implements HttpDataSource {
+
+    private final FakeDataSourceFactory factory;
+
+    private DataSpec dataSpec;
+    private Uri uri;
+    private int position;
+    private int endPosition;
+    private int bytesToSkip;
+    private boolean rangeResponse;
+
+    public FakeDataSource(FakeDataSourceFactory factory) {
+      this.factory = factory;
+    }
+
+    @Override
+    public long open(DataSpec dataSpec) throws HttpDataSourceException {
+      sleep(factory.rttMs, dataSpec, HttpDataSourceException.TYPE_OPEN);
+      factory.openCount.incrementAndGet();
+      if (dataSpec.position == factory.failingPosition) {
+        throw new HttpDataSourceException(dataSpec, HttpDataSourceException.TYPE_OPEN);
+      }
+      int openDataSourceCount = factory.openDataSourceCount.incrementAndGet();
+      int maxOpenDataSourceCount;
+      do {
+        maxOpenDataSourceCount = factory.maxOpenDataSourceCount.get();
+      } while (openDataSourceCount > maxOpenDataSourceCount
+          && !factory.maxOpenDataSourceCount.compareAndSet(maxOpenDataSourceCount,
+              openDataSourceCount));
+      this.dataSpec = dataSpec;
+      uri = dataSpec.uri;
+      rangeResponse = factory.honorRanges
+          && (dataSpec.position != 0 || dataSpec.length != C.LENGTH_UNSET);
+      bytesToSkip = factory.honorRanges ? 0 : (int) dataSpec.position;
+      position = (int) dataSpec.position;
+      endPosition = dataSpec.length == C.LENGTH_UNSET ? factory.data.length
+          : (int) (dataSpec.position + dataSpec.length);
+      return factory.resolveLength ? endPosition - position : dataSpec.length;
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int readLength) throws HttpDataSourceException {
+      if (bytesToSkip > 0) {
+        factory.bytesServed.addAndGet(bytesToSkip);
+        bytesToSkip = 0;
+      }
+      if (position == endPosition) {
+        return C.RESULT_END_OF_INPUT;
+      }
+      int bytesToRead = Math.min(Math.min(readLength, 16 * 1024), endPosition - position);
+      if (factory.bytesPerSecond != 0) {
+        sleep(bytesToRead * 1000L / factory.bytesPerSecond, dataSpec,
+            HttpDataSourceException.TYPE_READ);
+      }
+      System.arraycopy(factory.data, position, buffer, offset, bytesToRead);
+      position += bytesToRead;
+      factory.bytesServed.addAndGet(bytesToRead);
+      return bytesToRead;
+    }
+
+    @Override
+    public Uri getUri() {
+      return uri;
+    }
+
+    @Override
+    public void close() {
+      if (uri != null) {
+        uri = null;
+        factory.openDataSourceCount.decrementAndGet();
+      }
+    }
+
+    @Override
+    public void setRequestProperty(String name, String value) {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void clearRequestProperty(String name) {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void clearAllRequestProperties() {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public Map<String, List<String>> getResponseHeaders() {
+      if (uri == null) {
+        return null;
+      }
+      return rangeResponse
+          ? Collections.singletonMap("Content-Range", Collections.singletonList("bytes"))
+          : Collections.<String, List<String>>emptyMap();
+    }
+
+    private static void sleep(long timeMs, DataSpec dataSpec, int type)
+        throws HttpDataSourceException {
+      try {
+        Thread.sleep(timeMs);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new HttpDataSourceException(new InterruptedIOException(), dataSpec, type);
+      }
+    }
+
+  }
+
+}
@@ -0,0 +1,325 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.exoplayer2.upstream;
+
+import android.net.Uri;
+import android.util.Log;
+import com.google.android.exoplayer2.C;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import junit.framework.TestCase;
+
+/**
+ * Unit tests for {@link PrefetchingDataSource}.
+ */
+public class PrefetchingDataSourceTest extends TestCase {
+
+  private static final String TAG = "PrefetchingDataSourceTest";
+
+  private static final int SEGMENT_LENGTH = 100 * 1024;
+  private static final int BENCHMARK_SEGMENT_COUNT = 20;
+  private static final int BENCHMARK_RTT_MS = 25;
+  private static final int BENCHMARK_PREFETCH_COUNT = 4;
+  private static final long TIMEOUT_MS = 10000;
+
+  public void testReadPrefetchedData() throws IOException {
+    RttDataSourceFactory upstreamFactory = new RttDataSourceFactory(0);
+    PrefetchingDataSource dataSource = new PrefetchingDataSource(upstreamFactory, 2);
+    dataSource.prefetch(Arrays.asList(getSegmentDataSpec(1), getSegmentDataSpec(2)));
+    assertEquals(2, dataSource.getStartedPrefetchCount());
+    for (int i = 0; i < 4; i++) {
+      assertSegmentData(dataSource, i);
+    }
+    assertEquals(2, dataSource.getUsedPrefetchCount());
+    assertEquals(0, dataSource.getCanceledPrefetchCount());
+    // Each prefetch opens a data source of its own.
+    assertEquals(4, upstreamFactory.openCount.get());
+  }
+
+  public void testMaxPrefetchCount() throws IOException {
+    RttDataSourceFactory upstreamFactory = new RttDataSourceFactory(0);
+    PrefetchingDataSource dataSource = new PrefetchingDataSource(upstreamFactory, 2);
+    dataSource.prefetch(Arrays.asList(getSegmentDataSpec(0), getSegmentDataSpec(1),
+        getSegmentDataSpec(2)));
+    assertEquals(2, dataSource.getStartedPrefetchCount());
+    assertSegmentData(dataSource, 0);
+    // The prefetch of the third segment starts once the first has been opened.
+    dataSource.prefetch(Arrays.asList(getSegmentDataSpec(1), getSegmentDataSpec(2)));
+    assertEquals(3, dataSource.getStartedPrefetchCount());
+    assertSegmentData(dataSource, 1);
+    assertSegmentData(dataSource, 2);
+    assertEquals(3, dataSource.getUsedPrefetchCount());
+  }
+
+  public void testCancelUnexpectedPrefetches() throws IOException {
+    RttDataSourceFactory upstreamFactory = new RttDataSourceFactory(0);
+    PrefetchingDataSource dataSource = new PrefetchingDataSource(upstreamFactory, 2);
+    dataSource.prefetch(Arrays.asList(getSegmentDataSpec(1), getSegmentDataSpec(2)));
+    dataSource.prefetch(Arrays.asList(getSegmentDataSpec(2), getSegmentDataSpec(3)));
+    assertEquals(3, dataSource.getStartedPrefetchCount());
+    assertEquals(1, dataSource.getCanceledPrefetchCount());
+    dataSource.cancelPrefetches();
+    assertEquals(3, dataSource.getCanceledPrefetchCount());
+    assertSegmentData(dataSource, 2);
+    assertEquals(0, dataSource.getUsedPrefetchCount());
+  }
+
+  public void testCancelInterruptsPrefetch() throws Exception {
+    RttDataSourceFactory upstreamFactory = new RttDataSourceFactory(TIMEOUT_MS);
+    upstreamFactory.openStartedLatch = new CountDownLatch(1);
+    upstreamFactory.openInterruptedLatch = new CountDownLatch(1);
+    PrefetchingDataSource dataSource = new PrefetchingDataSource(upstreamFactory, 1);
+    dataSource.prefetch(Collections.singletonList(getSegmentDataSpec(1)));
+    assertTrue(upstreamFactory.openStartedLatch.await(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+    dataSource.cancelPrefetches();
+    assertTrue(upstreamFactory.openInterruptedLatch.await(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+  }
+
+  public void testPrefetchBufferIsBounded() throws Exception {
+    int maxPrefetchBufferSize = 32 * 1024;
+    RttDataSourceFactory upstreamFactory = new RttDataSourceFactory(0);
+    PrefetchingDataSource dataSource = new PrefetchingDataSource(upstreamFactory, 1,
+        maxPrefetchBufferSize);
+    dataSource.prefetch(Collections.singletonList(getSegmentDataSpec(1)));
+    Thread.sleep(200);
+    // The prefetch waits for its data to be read before loading more, without holding a connection.
+    assertTrue(upstreamFactory.bytesRead.get() <= maxPrefetchBufferSize);
+    assertEquals(0, upstreamFactory.openDataSourceCount.get());
+    assertSegmentData(dataSource, 1);
+    assertEquals(1, dataSource.getUsedPrefetchCount());
+    // The prefetch was opened again from where it stopped each time its data had been read.
+    assertEquals(SEGMENT_LENGTH, upstreamFactory.bytesRead.get());
+    assertTrue(upstreamFactory.openCount.get() > 1);
+  }
+
+  public void testFactorySharesExecutor() throws IOException {
+    RttDataSourceFactory upstreamFactory = new RttDataSourceFactory(BENCHMARK_RTT_MS);
+    PrefetchingDataSourceFactory factory = new PrefetchingDataSourceFactory(upstreamFactory, 1);
+    PrefetchingDataSource dataSource1 = factory.createDataSource();
+    PrefetchingDataSource dataSource2 = factory.createDataSource();
+    dataSource1.prefetch(Collections.singletonList(getSegmentDataSpec(1)));
+    dataSource2.prefetch(Collections.singletonList(getSegmentDataSpec(2)));
+    assertSegmentData(dataSource1, 1);
+    assertSegmentData(dataSource2, 2);
+    assertEquals(1, dataSource1.getUsedPrefetchCount());
+    assertEquals(1, dataSource2.getUsedPrefetchCount());
+    // The prefetches of both data sources ran on the factory's single thread, one at a time.
+    assertEquals(1, upstreamFactory.maxOpenDataSourceCount.get());
+  }
+
+  public void testPrefetchError() throws IOException {
+    RttDataSourceFactory upstreamFactory = new RttDataSourceFactory(0);
+    upstreamFactory.failNextOpen = true;
+    PrefetchingDataSource dataSource = new PrefetchingDataSource(upstreamFactory, 1);
+    dataSource.prefetch(Collections.singletonList(getSegmentDataSpec(1)));
+    try {
+      dataSource.open(getSegmentDataSpec(1));
+      fail();
+    } catch (IOException e) {
+      // Expected.
+    } finally {
+      dataSource.close();
+    }
+    // A retry reads the data directly.
+    assertSegmentData(dataSource, 1);
+  }
+
+  public void testPipelinedLoadingBenchmark() throws IOException {
+    RttDataSourceFactory sequentialUpstreamFactory = new RttDataSourceFactory(BENCHMARK_RTT_MS);
+    long sequentialLoadTimeMs = loadSegments(new PrefetchingDataSource(
+        sequentialUpstreamFactory, 1), false);
+    RttDataSourceFactory pipelinedUpstreamFactory = new RttDataSourceFactory(BENCHMARK_RTT_MS);
+    long pipelinedLoadTimeMs = loadSegments(new PrefetchingDataSource(
+        pipelinedUpstreamFactory, BENCHMARK_PREFETCH_COUNT), true);
+    Log.i(TAG, BENCHMARK_SEGMENT_COUNT + " segments with an RTT of " + BENCHMARK_RTT_MS + "ms: "
+        + sequentialLoadTimeMs + "ms sequentially, " + pipelinedLoadTimeMs + "ms with "
+        + BENCHMARK_PREFETCH_COUNT + " segments loading at once");
+    // Timings depend on the device, so only whether the round trips overlapped is asserted.
+    assertEquals(1, sequentialUpstreamFactory.maxOpenDataSourceCount.get());
+    assertTrue(pipelinedUpstreamFactory.maxOpenDataSourceCount.get() > 1);
+    assertTrue(pipelinedUpstreamFactory.maxOpenDataSourceCount.get() <= BENCHMARK_PREFETCH_COUNT);
+  }
+
+  /**
+   * Loads segments one at a time in the way a chunk source does, optionally prefetching each
+   * segment and those that follow it, and returns the time taken in milliseconds.
+   */
+  private static long loadSegments(PrefetchingDataSource dataSource, boolean prefetch)
+      throws IOException {
+    long startTimeNs = System.nanoTime();
+    for (int i = 0; i < BENCHMARK_SEGMENT_COUNT; i++) {
+      if (prefetch) {
+        List<DataSpec> dataSpecs = new ArrayList<>();
+        for (int j = i; j < Math.min(i + BENCHMARK_PREFETCH_COUNT, BENCHMARK_SEGMENT_COUNT);
+            j++) {
+          dataSpecs.add(getSegmentDataSpec(j));
+        }
+        dataSource.prefetch(dataSpecs);
+      }
+      assertSegmentData(dataSource, i);
+    }
+    return (System.nanoTime() - startTimeNs) / 1000000;
+  }
+
+  private static void assertSegmentData(DataSource dataSource, int segmentIndex)
+      throws IOException {
+    DataSpec dataSpec = getSegmentDataSpec(segmentIndex);
+    try {
+      assertEquals(SEGMENT_LENGTH, dataSource.open(dataSpec));
+      assertEquals(dataSpec.uri, dataSource.getUri());
+      byte[] data = new byte[SEGMENT_LENGTH];
+      byte[] buffer = new byte[10000];
+      int position = 0;
+      int bytesRead;
+      while ((bytesRead = dataSource.read(buffer, 0, buffer.length)) != C.RESULT_END_OF_INPUT) {
+        System.arraycopy(buffer, 0, data, position, bytesRead);
+        position += bytesRead;
+      }
+      assertEquals(SEGMENT_LENGTH, position);
+      assertTrue(Arrays.equals(getSegmentData(segmentIndex), data));
+    } finally {
+      dataSource.close();
+    }
+  }
+
+  private static DataSpec getSegmentDataSpec(int segmentIndex) {
+    return new DataSpec(Uri.parse("http://test/segment" + segmentIndex), 0, SEGMENT_LENGTH, null);
+  }
+
+  private static byte[] getSegmentData(int segmentIndex) {
+    byte[] data = new byte[SEGMENT_LENGTH];
+    for (int i = 0; i < data.length; i++) {
+      data[i] = (byte) (segmentIndex + i);
+    }
+    return data;
+  }
+
+  /**
+   * Produces {@link RttDataSource}s.
+   */
+  private static final class RttDataSourceFactory implements DataSource.Factory {
+
+    public final AtomicInteger openCount;
+    public final AtomicInteger openDataSourceCount;
+    public final AtomicInteger maxOpenDataSourceCount;
+    public final AtomicLong bytesRead;
+
+    private final long rttMs;
+
+    public volatile boolean failNextOpen;
+    public volatile CountDownLatch openStartedLatch;
+    public volatile CountDownLatch openInterruptedLatch;
+
+    public RttDataSourceFactory(long rttMs) {
+      this.rttMs = rttMs;
+      openCount = new AtomicInteger();
+      openDataSourceCount = new AtomicInteger();
+      maxOpenDataSourceCount = new AtomicInteger();
+      bytesRead = new AtomicLong();
+    }
+
+    @Override
+    public DataSource createDataSource() {
+      return new RttDataSource(this);
+    }
+
+  }
+
+  /**
+   * A data source for segments, whose {@link #open(DataSpec)} blocks for a round trip time.
+   */
+  private static final class RttDataSource implements DataSource {
+
+    private final RttDataSourceFactory factory;
+
+    private DataSource segmentDataSource;
+    private boolean opened;
+
+    public RttDataSource(RttDataSourceFactory factory) {
+      this.factory = factory;
+    }
+
+    @Override
+    public long open(DataSpec dataSpec) throws IOException {
+      // A source counts as open from the start of its round trip until it's closed.
+      opened = true;
+      int openDataSourceCount = factory.openDataSourceCount.incrementAndGet();
+      int maxOpenDataSourceCount;
+      do {
+        maxOpenDataSourceCount = factory.maxOpenDataSourceCount.get();
+      } while (openDataSourceCount > maxOpenDataSourceCount
+          && !factory.maxOpenDataSourceCount.compareAndSet(maxOpenDataSourceCount,
+              openDataSourceCount));
+      if (factory.openStartedLatch != null) {
+        factory.openStartedLatch.countDown();
+      }
+      try {
+        Thread.sleep(factory.rttMs);
+      } catch (InterruptedException e) {
+        if (factory.openInterruptedLatch != null) {
+          factory.openInterruptedLatch.countDown();
+        }
+        Thread.currentThread().interrupt();
+        throw new InterruptedIOException();
+      }
+      factory.openCount.incrementAndGet();
+      if (factory.failNextOpen) {
+        factory.failNextOpen = false;
+        throw new IOException();
+      }
+      String path = dataSpec.uri.getLastPathSegment();
+      int segmentIndex = Integer.parseInt(path.substring("segment".length()));
+      segmentDataSource = new ByteArrayDataSource(getSegmentData(segmentIndex));
+      return segmentDataSource.open(dataSpec);
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int readLength) throws IOException {
+      int bytesRead = segmentDataSource.read(buffer, offset, readLength);
+      if (bytesRead > 0) {
+        factory.bytesRead.addAndGet(bytesRead);
+      }
+      return bytesRead;
+    }
+
+    @Override
+    public Uri getUri() {
+      return segmentDataSource != null ? segmentDataSource.getUri() : null;
+    }
+
+    @Override
+    public void close() throws IOException {
+      if (opened) {
+        opened = false;
+        factory.openDataSourceCount.decrementAndGet();
+      }
+      if (segmentDataSource != null) {
+        segmentDataSource.close();
+        segmentDataSource = null;
+      }
+    }
+
+  }
+
+}
@@ -0,0 +1,141 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.exoplayer2.upstream;
+
+import com.google.android.exoplayer2.DefaultLoadControl;
+import com.google.android.exoplayer2.testutil.TestUtil;
+import com.google.android.exoplayer2.upstream.SharedAllocator.Participant;
+import com.google.android.exoplayer2.util.PriorityTaskManager;
+import junit.framework.TestCase;
+
+/**
+ * Unit tests for {@link SharedAllocator}.
+ */
+public class SharedAllocatorTest extends TestCase {
+
+  private static final int ALLOCATION_SIZE = 16;
+  private static final int BUDGET_BYTES = 10 * ALLOCATION_SIZE;
+  private static final int FOREGROUND_PRIORITY = 1;
+  private static final int BACKGROUND_PRIORITY = 0;
+
+  private PriorityTaskManager priorityTaskManager;
+  private SharedAllocator sharedAllocator;
+
+  @Override
+  public void setUp() {
+    priorityTaskManager = new PriorityTaskManager();
+    sharedAllocator = new SharedAllocator(ALLOCATION_SIZE, BUDGET_BYTES, priorityTaskManager);
+  }
+
+  public void testParticipantBytesAllocated() {
+    Participant participant1 = sharedAllocator.addParticipant(0, BUDGET_BYTES);
+    Participant participant2 = sharedAllocator.addParticipant(0, BUDGET_BYTES);
+    Allocation[] allocations = TestUtil.allocate(participant1, 3);
+    TestUtil.allocate(participant2, 2);
+    assertEquals(3 * ALLOCATION_SIZE, participant1.getTotalBytesAllocated());
+    assertEquals(2 * ALLOCATION_SIZE, participant2.getTotalBytesAllocated());
+    assertEquals(5 * ALLOCATION_SIZE, sharedAllocator.getTotalBytesAllocated());
+    participant1.release(allocations);
+    assertEquals(0, participant1.getTotalBytesAllocated());
+    assertEquals(3 * ALLOCATION_SIZE, participant1.getPeakBytesAllocated());
+    assertEquals(2 * ALLOCATION_SIZE, sharedAllocator.getTotalBytesAllocated());
+  }
+
+  public void testBudgetLimitedByQuota() {
+    Participant participant = sharedAllocator.addParticipant(0, 4 * ALLOCATION_SIZE);
+    assertEquals(4 * ALLOCATION_SIZE, participant.getBudgetBytes());
+    TestUtil.allocate(participant, 3);
+    assertTrue(participant.continueLoading(true));
+    TestUtil.allocate(participant, 1);
+    assertFalse(participant.continueLoading(true));
+    assertEquals(1, participant.getYieldCount());
+    assertFalse(participant.continueLoading(false));
+    assertEquals(1, participant.getYieldCount());
+  }
+
+  public void testBackgroundYieldsMemoryToForeground() {
+    Participant foreground = sharedAllocator.addParticipant(FOREGROUND_PRIORITY, BUDGET_BYTES);
+    Participant background = sharedAllocator.addParticipant(BACKGROUND_PRIORITY, BUDGET_BYTES);
+    Allocation[] backgroundAllocations = TestUtil.allocate(background, 6);
+    // Memory held by the background participant isn't counted against the foreground budget.
+    assertEquals(BUDGET_BYTES, foreground.getBudgetBytes());
+    TestUtil.allocate(foreground, 8);
+    assertEquals(2 * ALLOCATION_SIZE, background.getBudgetBytes());
+    assertFalse(background.continueLoading(true));
+    // The background participant can load again once its buffer has drained.
+    background.release(backgroundAllocations);
+    assertTrue(background.continueLoading(true));
+  }
+
+  public void testBackgroundYieldsToLoadingForeground() {
+    Participant foreground = sharedAllocator.addParticipant(FOREGROUND_PRIORITY, BUDGET_BYTES);
+    Participant background = sharedAllocator.addParticipant(BACKGROUND_PRIORITY, BUDGET_BYTES);
+    assertTrue(background.continueLoading(true));
+    assertTrue(foreground.continueLoading(true));
+    assertFalse(priorityTaskManager.proceedNonBlocking(BACKGROUND_PRIORITY));
+    assertFalse(background.continueLoading(true));
+    assertEquals(1, background.getYieldCount());
+    assertFalse(foreground.continueLoading(false));
+    assertTrue(background.continueLoading(true));
+    // Releasing the background participant unregisters it.
+    background.release();
+    assertFalse(priorityTaskManager.proceedNonBlocking(BACKGROUND_PRIORITY));
+  }
+
+  public void testTargetBufferSizeIsSumOfParticipants() {
+    Participant participant1 = sharedAllocator.addParticipant(0, BUDGET_BYTES);
+    Participant participant2 = sharedAllocator.addParticipant(0, BUDGET_BYTES);
+    participant1.setTargetBufferSize(3 * ALLOCATION_SIZE);
+    participant2.setTargetBufferSize(4 * ALLOCATION_SIZE);
+    assertEquals(7 * ALLOCATION_SIZE, sharedAllocator.getAllocator().getTargetBufferSize());
+    participant2.setTargetBufferSize(BUDGET_BYTES);
+    assertEquals(BUDGET_BYTES, sharedAllocator.getAllocator().getTargetBufferSize());
+    participant2.release();
+    assertEquals(3 * ALLOCATION_SIZE, sharedAllocator.getAllocator().getTargetBufferSize());
+  }
+
+  public void testLoadControlStartsPlaybackOnceBudgetIsBuffered() {
+    Participant foreground = sharedAllocator.addParticipant(FOREGROUND_PRIORITY, BUDGET_BYTES);
+    Participant background = sharedAllocator.addParticipant(BACKGROUND_PRIORITY,
+        4 * ALLOCATION_SIZE);
+    DefaultLoadControl loadControl = new DefaultLoadControl(background,
+        DefaultLoadControl.DEFAULT_MIN_BUFFER_MS, DefaultLoadControl.DEFAULT_MAX_BUFFER_MS,
+        DefaultLoadControl.DEFAULT_BUFFER_FOR_PLAYBACK_MS,
+        DefaultLoadControl.DEFAULT_BUFFER_FOR_PLAYBACK_AFTER_REBUFFER_MS);
+    // Less media than required to start playback fits in the participant's quota.
+    long bufferedDurationUs = 1000;
+    assertFalse(loadControl.shouldStartPlayback(bufferedDurationUs, false));
+    Allocation[] allocations = TestUtil.allocate(background, 3);
+    assertTrue(loadControl.shouldContinueLoading(bufferedDurationUs));
+    assertFalse(loadControl.shouldStartPlayback(bufferedDurationUs, false));
+    Allocation[] lastAllocations = TestUtil.allocate(background, 1);
+    assertFalse(loadControl.shouldContinueLoading(bufferedDurationUs));
+    assertTrue(loadControl.shouldStartPlayback(bufferedDurationUs, false));
+    assertTrue(loadControl.shouldStartPlayback(bufferedDurationUs, true));
+
+    // The same applies when the participant's budget is reduced by one of higher priority.
+    background.release(allocations);
+    background.release(lastAllocations);
+    TestUtil.allocate(foreground, 8);
+    assertEquals(2 * ALLOCATION_SIZE, background.getBudgetBytes());
+    TestUtil.allocate(background, 1);
+    assertFalse(loadControl.shouldStartPlayback(bufferedDurationUs, false));
+    TestUtil.allocate(background, 1);
+    assertFalse(loadControl.shouldContinueLoading(bufferedDurationUs));
+    assertTrue(loadControl.shouldStartPlayback(bufferedDurationUs, false));
+  }
+
+}
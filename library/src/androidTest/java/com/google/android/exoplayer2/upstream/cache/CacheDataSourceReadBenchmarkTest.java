@@ -0,0 +1,138 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.exoplayer2.upstream.cache;
+
+import android.net.Uri;
+import android.os.Debug;
+import android.test.InstrumentationTestCase;
+import android.util.Log;
+import com.google.android.exoplayer2.C;
+import com.google.android.exoplayer2.testutil.FakeDataSource;
+import com.google.android.exoplayer2.testutil.TestUtil;
+import com.google.android.exoplayer2.upstream.DataSpec;
+import com.google.android.exoplayer2.upstream.FileDataSource;
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Benchmark for reading cached data through {@link CacheDataSource}. Compares the throughput and
+ * CPU time of reading cache files with a {@link FileDataSource} and with
+ * {@link CacheDataSource#FLAG_MEMORY_MAP_CACHE_READS}, and of reading plain and encrypted cache
+ * files.
+ */
+public class CacheDataSourceReadBenchmarkTest extends InstrumentationTestCase {
+
+  private static final String TAG = "CacheDataSourceReadBenchmark";
+
+  private static final String KEY = "key";
+  private static final String ENCRYPTED_KEY = "encrypted key";
+  private static final byte[] SECRET_KEY = "testsecretkey123".getBytes();
+  private static final int SPAN_LENGTH = 256 * 1024;
+  private static final int SPAN_COUNT = 8;
+  private static final int READ_LENGTH = 4 * 1024;
+  private static final int REQUEST_LENGTH = 16 * 1024;
+  private static final int PASS_COUNT = 20;
+
+  private File cacheDir;
+  private SimpleCache simpleCache;
+  private byte[] data;
+
+  @Override
+  protected void setUp() throws Exception {
+    cacheDir = TestUtil.createTempFolder(getInstrumentation().getContext());
+    simpleCache = new SimpleCache(cacheDir, new NoOpCacheEvictor(), null, 1,
+        SimpleCache.FLAG_LAST_ACCESS_TIMESTAMPS_IN_INDEX);
+    data = TestUtil.buildTestData(SPAN_LENGTH * SPAN_COUNT);
+    CacheDataSource cacheDataSource = new CacheDataSource(simpleCache,
+        new FakeDataSource.Builder().appendReadData(data).build(), 0, SPAN_LENGTH);
+    readFully(cacheDataSource, KEY, 0, data.length, new byte[READ_LENGTH]);
+    cacheDataSource = new CacheDataSource(simpleCache,
+        new FakeDataSource.Builder().appendReadData(data).build(), 0, SPAN_LENGTH, SECRET_KEY);
+    readFully(cacheDataSource, ENCRYPTED_KEY, 0, data.length, new byte[READ_LENGTH]);
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    TestUtil.recursiveDelete(cacheDir);
+  }
+
+  public void testReadThroughput() throws Exception {
+    // Warm up both paths, so that the page cache is populated and the code is compiled.
+    runWorkload(0, null);
+    runWorkload(CacheDataSource.FLAG_MEMORY_MAP_CACHE_READS, null);
+    long[] fileResult = runWorkload(0, null);
+    long[] mappedResult = runWorkload(CacheDataSource.FLAG_MEMORY_MAP_CACHE_READS, null);
+    Log.i(TAG, "File reads: " + formatResult(fileResult) + ", memory mapped reads: "
+        + formatResult(mappedResult));
+  }
+
+  public void testEncryptedReadThroughput() throws Exception {
+    runWorkload(0, null);
+    runWorkload(0, SECRET_KEY);
+    long[] plainResult = runWorkload(0, null);
+    long[] encryptedResult = runWorkload(0, SECRET_KEY);
+    Log.i(TAG, "Plain reads: " + formatResult(plainResult) + ", encrypted reads: "
+        + formatResult(encryptedResult));
+  }
+
+  /**
+   * Repeatedly reads all of the cached data using short adjacent requests, as an extractor reading
+   * the cached stream would.
+   *
+   * @param flags The flags of the {@link CacheDataSource}.
+   * @param secretKey The secret key with which the cached data is decrypted, or null to read the
+   *     plain data.
+   * @return The elapsed time and the CPU time of the calling thread, in nanoseconds.
+   */
+  private long[] runWorkload(@CacheDataSource.Flags int flags, byte[] secretKey)
+      throws IOException {
+    CacheDataSource cacheDataSource = new CacheDataSource(simpleCache,
+        new FakeDataSource.Builder().appendReadError(new IOException("Not cached")).build(),
+        flags, CacheDataSource.DEFAULT_MAX_CACHE_FILE_SIZE, secretKey);
+    String key = secretKey != null ? ENCRYPTED_KEY : KEY;
+    byte[] buffer = new byte[READ_LENGTH];
+    long startTimeNs = System.nanoTime();
+    long startCpuTimeNs = Debug.threadCpuTimeNanos();
+    for (int i = 0; i < PASS_COUNT; i++) {
+      for (int position = 0; position < data.length; position += REQUEST_LENGTH) {
+        readFully(cacheDataSource, key, position, REQUEST_LENGTH, buffer);
+      }
+    }
+    long cpuTimeNs = Debug.threadCpuTimeNanos() - startCpuTimeNs;
+    long elapsedNs = System.nanoTime() - startTimeNs;
+    return new long[] {elapsedNs, cpuTimeNs};
+  }
+
+  private void readFully(CacheDataSource cacheDataSource, String key, int position, int length,
+      byte[] buffer) throws IOException {
+    cacheDataSource.open(new DataSpec(Uri.EMPTY, position, length, key));
+    int offset = position;
+    int bytesRead;
+    while ((bytesRead = cacheDataSource.read(buffer, 0, buffer.length)) != C.RESULT_END_OF_INPUT) {
+      assertEquals(data[offset], buffer[0]);
+      offset += bytesRead;
+    }
+    cacheDataSource.close();
+    assertEquals(position + length, offset);
+  }
+
+  private String formatResult(long[] result) {
+    double megabytes = (double) PASS_COUNT * data.length / (1024 * 1024);
+    return (int) (megabytes / (result[0] / 1000000000.0)) + " MB/s, "
+        + (result[1] / 1000000) + " ms CPU";
+  }
+
+}
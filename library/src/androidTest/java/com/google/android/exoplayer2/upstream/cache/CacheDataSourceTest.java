@@ -23,7 +23,9 @@ import com.google.android.exoplayer2.testutil.FakeDataSource;
 import com.google.android.exoplayer2.testutil.FakeDataSource.Builder;
 import com.google.android.exoplayer2.testutil.TestUtil;
 import com.google.android.exoplayer2.upstream.DataSpec;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
 import java.util.Arrays;
 
@@ -34,6 +36,7 @@ public class CacheDataSourceTest extends InstrumentationTestCase {
   private static final int MAX_CACHE_FILE_SIZE = 3;
   private static final String KEY_1 = "key 1";
   private static final String KEY_2 = "key 2";
+  private static final byte[] SECRET_KEY = "testsecretkey123".getBytes();
 
   private File cacheDir;
   private SimpleCache simpleCache;
@@ -77,6 +80,98 @@ public class CacheDataSourceTest extends InstrumentationTestCase {
     assertCacheAndRead(true, true);
   }
 
+  public void testCacheAndReadMemoryMapped() throws Exception {
+    CacheDataSource cacheDataSource = createCacheDataSource(false, false);
+    assertReadDataContentLength(cacheDataSource, false, false);
+
+    // Read from the cache using memory mapped cache files, reusing the source for adjacent reads.
+    cacheDataSource = createCacheDataSource(true, false,
+        CacheDataSource.FLAG_MEMORY_MAP_CACHE_READS);
+    assertReadData(cacheDataSource, false, 0, TEST_DATA.length);
+    assertReadData(cacheDataSource, false, 1, 2);
+    assertReadData(cacheDataSource, false, 2, 5);
+    assertReadData(cacheDataSource, false, 4, 6);
+  }
+
+  public void testCacheAndReadEncrypted() throws Exception {
+    CacheDataSource cacheDataSource = createCacheDataSource(false, false, 0, SECRET_KEY);
+    assertReadDataContentLength(cacheDataSource, false, false);
+
+    // The cache files don't contain the data.
+    for (CacheSpan span : simpleCache.getCachedSpans(KEY_1)) {
+      byte[] expectedData = Arrays.copyOfRange(TEST_DATA, (int) span.position,
+          (int) (span.position + span.length));
+      assertFalse(Arrays.equals(expectedData, readFile(span.file)));
+    }
+
+    // Reads from any position decrypt the data, including memory mapped reads.
+    cacheDataSource = createCacheDataSource(true, false, 0, SECRET_KEY);
+    assertReadData(cacheDataSource, false, 0, TEST_DATA.length);
+    assertReadData(cacheDataSource, false, 1, 2);
+    assertReadData(cacheDataSource, false, 4, 6);
+    cacheDataSource = createCacheDataSource(true, false,
+        CacheDataSource.FLAG_MEMORY_MAP_CACHE_READS, SECRET_KEY);
+    assertReadData(cacheDataSource, false, 2, 5);
+  }
+
+  public void testRewriteEncryptedDoesNotReuseKeystream() throws Exception {
+    byte[] rewrittenData = new byte[TEST_DATA.length];
+    for (int i = 0; i < rewrittenData.length; i++) {
+      rewrittenData[i] = (byte) (TEST_DATA[i] * 31 + 17);
+    }
+    cacheEncrypted(TEST_DATA);
+    byte[] encryptedData = readCachedData(KEY_1);
+    for (CacheSpan span : simpleCache.getCachedSpans(KEY_1)) {
+      simpleCache.removeSpan(span);
+    }
+    cacheEncrypted(rewrittenData);
+    byte[] encryptedRewrittenData = readCachedData(KEY_1);
+
+    // Had the same keystream been used, XORing the encrypted data would yield the XOR of the data.
+    assertEquals(TEST_DATA.length, encryptedData.length);
+    assertEquals(TEST_DATA.length, encryptedRewrittenData.length);
+    assertFalse(Arrays.equals(xor(TEST_DATA, rewrittenData),
+        xor(encryptedData, encryptedRewrittenData)));
+  }
+
+  public void testUnencryptedSpansAreRefetchedWhenEncrypting() throws Exception {
+    // Cache the data without encryption, as an app that starts using a secret key would have.
+    assertReadDataContentLength(createCacheDataSource(false, false), false, false);
+    for (CacheSpan span : simpleCache.getCachedSpans(KEY_1)) {
+      assertNull(simpleCache.getSpanNonce(KEY_1, span.position));
+    }
+
+    // Reading with the key replaces the unencrypted spans with encrypted ones from upstream.
+    assertReadData(createCacheDataSource(false, false, 0, SECRET_KEY), false, 0, TEST_DATA.length);
+    assertEncryptedSpans();
+
+    // The nonces are persisted when the files are committed, so they survive reinitialization.
+    simpleCache.release();
+    simpleCache = new SimpleCache(cacheDir, new NoOpCacheEvictor());
+    assertEncryptedSpans();
+    assertReadData(createCacheDataSource(true, false, 0, SECRET_KEY), false, 0, TEST_DATA.length);
+  }
+
+  public void testStatistics() throws Exception {
+    CacheStatistics statistics = simpleCache.getStatistics();
+    // Read half of the data into the cache, and then all of it.
+    assertReadData(createCacheDataSource(false, false), false, 0, 5);
+    assertReadData(createCacheDataSource(false, false), false, 0, TEST_DATA.length);
+    assertReadData(createCacheDataSource(true, false), false, 0, TEST_DATA.length);
+
+    assertEquals(1, statistics.getRequestMissCount());
+    assertEquals(1, statistics.getRequestPartialHitCount());
+    assertEquals(1, statistics.getRequestHitCount());
+    assertEquals(15, statistics.getBytesReadFromCache());
+    assertEquals(10, statistics.getBytesReadFromUpstream());
+    assertEquals(10, statistics.getBytesWrittenToCache());
+    assertEquals(10, statistics.getBytesAdded());
+    // The first request fills [0, 5) and the second fills [5, 10).
+    assertEquals(2, statistics.getHoleFillCount());
+    assertEquals(3, statistics.getOpenLatency().getCount());
+    assertTrue(statistics.getStartReadWriteLatency().getCount() > 0);
+  }
+
   public void testUnsatisfiableRange() throws Exception {
     // Bounded request but the content length is unknown. This forces all data to be cached but not
     // the length
@@ -169,6 +264,16 @@ public class CacheDataSourceTest extends InstrumentationTestCase {
 
   private CacheDataSource createCacheDataSource(boolean setReadException,
       boolean simulateUnknownLength) {
+    return createCacheDataSource(setReadException, simulateUnknownLength, 0);
+  }
+
+  private CacheDataSource createCacheDataSource(boolean setReadException,
+      boolean simulateUnknownLength, @CacheDataSource.Flags int flags) {
+    return createCacheDataSource(setReadException, simulateUnknownLength, flags, null);
+  }
+
+  private CacheDataSource createCacheDataSource(boolean setReadException,
+      boolean simulateUnknownLength, @CacheDataSource.Flags int flags, byte[] secretKey) {
     Builder builder = new Builder();
     if (setReadException) {
       builder.appendReadError(new IOException("Shouldn't read from upstream"));
@@ -176,8 +281,67 @@ public class CacheDataSourceTest extends InstrumentationTestCase {
     builder.setSimulateUnknownLength(simulateUnknownLength);
     builder.appendReadData(TEST_DATA);
     FakeDataSource upstream = builder.build();
-    return new CacheDataSource(simpleCache, upstream, CacheDataSource.FLAG_BLOCK_ON_CACHE,
-        MAX_CACHE_FILE_SIZE);
+    return new CacheDataSource(simpleCache, upstream, CacheDataSource.FLAG_BLOCK_ON_CACHE | flags,
+        MAX_CACHE_FILE_SIZE, secretKey);
+  }
+
+  private void cacheEncrypted(byte[] data) throws IOException {
+    CacheDataSource cacheDataSource = new CacheDataSource(simpleCache,
+        new Builder().appendReadData(data).build(), CacheDataSource.FLAG_BLOCK_ON_CACHE,
+        MAX_CACHE_FILE_SIZE, SECRET_KEY);
+    try {
+      cacheDataSource.open(new DataSpec(Uri.EMPTY, 0, data.length, KEY_1));
+      byte[] buffer = new byte[100];
+      int index = 0;
+      int read;
+      while ((read = cacheDataSource.read(buffer, index, buffer.length - index))
+          != C.RESULT_END_OF_INPUT) {
+        index += read;
+      }
+      MoreAsserts.assertEquals(data, Arrays.copyOf(buffer, index));
+    } finally {
+      cacheDataSource.close();
+    }
+  }
+
+  private byte[] readCachedData(String key) throws IOException {
+    ByteArrayOutputStream output = new ByteArrayOutputStream();
+    for (CacheSpan span : simpleCache.getCachedSpans(key)) {
+      output.write(readFile(span.file));
+    }
+    return output.toByteArray();
+  }
+
+  private void assertEncryptedSpans() throws IOException {
+    long position = 0;
+    for (CacheSpan span : simpleCache.getCachedSpans(KEY_1)) {
+      assertEquals(position, span.position);
+      assertNotNull(simpleCache.getSpanNonce(KEY_1, span.position));
+      byte[] expectedData = Arrays.copyOfRange(TEST_DATA, (int) span.position,
+          (int) (span.position + span.length));
+      assertFalse(Arrays.equals(expectedData, readFile(span.file)));
+      position += span.length;
+    }
+    assertEquals(TEST_DATA.length, position);
+  }
+
+  private static byte[] xor(byte[] data1, byte[] data2) {
+    byte[] result = new byte[data1.length];
+    for (int i = 0; i < result.length; i++) {
+      result[i] = (byte) (data1[i] ^ data2[i]);
+    }
+    return result;
+  }
+
+  private static byte[] readFile(File file) throws IOException {
+    byte[] data = new byte[(int) file.length()];
+    FileInputStream inputStream = new FileInputStream(file);
+    try {
+      assertEquals(data.length, inputStream.read(data));
+    } finally {
+      inputStream.close();
+    }
+    return data;
   }
 
 }
@@ -9,6 +9,7 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.RandomAccessFile;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Set;
@@ -207,12 +208,206 @@ public class CachedContentIndexTest extends InstrumentationTestCase {
         new CachedContentIndex(cacheDir, key));
   }
 
+  public void testJournaledStoreAndLoad() throws Exception {
+    CachedContentIndex journaledIndex = new CachedContentIndex(cacheDir, null, true);
+    journaledIndex.addNew(new CachedContent(5, "key1", 10));
+    journaledIndex.add("key2");
+    journaledIndex.store();
+    long snapshotLength = getIndexFile().length();
+
+    // Changes are appended to the file.
+    journaledIndex.add("key3");
+    journaledIndex.setContentLength("key2", 20);
+    journaledIndex.removeEmpty("key1");
+    journaledIndex.store();
+    assertTrue(getIndexFile().length() > snapshotLength);
+
+    assertLoadedEqual(journaledIndex, new CachedContentIndex(cacheDir, null, true));
+    // A non-journaled index can read the journaled file.
+    assertLoadedEqual(journaledIndex, new CachedContentIndex(cacheDir));
+  }
+
+  public void testJournaledTornTail() throws Exception {
+    CachedContentIndex journaledIndex = new CachedContentIndex(cacheDir, null, true);
+    journaledIndex.addNew(new CachedContent(5, "key1", 10));
+    journaledIndex.store();
+    journaledIndex.setContentLength("key1", 20);
+    journaledIndex.store();
+    long validLength = getIndexFile().length();
+    journaledIndex.add("key2");
+    journaledIndex.store();
+
+    // Simulate an append interrupted part way through the last record.
+    RandomAccessFile file = new RandomAccessFile(getIndexFile(), "rw");
+    file.setLength(getIndexFile().length() - 3);
+    file.close();
+
+    CachedContentIndex loadedIndex = new CachedContentIndex(cacheDir, null, true);
+    loadedIndex.load();
+    assertEquals(1, loadedIndex.getAll().size());
+    assertEquals(20, loadedIndex.getContentLength("key1"));
+    assertNull(loadedIndex.get("key2"));
+
+    // The torn tail is discarded when the index is next stored.
+    loadedIndex.store();
+    assertTrue(getIndexFile().length() < validLength);
+    loadedIndex.add("key3");
+    loadedIndex.store();
+    CachedContentIndex reloadedIndex = new CachedContentIndex(cacheDir, null, true);
+    assertLoadedEqual(loadedIndex, reloadedIndex);
+  }
+
+  public void testJournaledLoadV1() throws Exception {
+    FileOutputStream fos = new FileOutputStream(getIndexFile());
+    fos.write(testIndexV1File);
+    fos.close();
+
+    CachedContentIndex journaledIndex = new CachedContentIndex(cacheDir, null, true);
+    journaledIndex.load();
+    assertEquals(2, journaledIndex.getAll().size());
+    assertEquals(10, journaledIndex.getContentLength("ABCDE"));
+    // The file is rewritten in the journaled format.
+    journaledIndex.store();
+    FileInputStream fis = new FileInputStream(getIndexFile());
+    assertEquals(0, fis.read());
+    assertEquals(0, fis.read());
+    assertEquals(0, fis.read());
+    assertEquals(2, fis.read());
+    fis.close();
+    assertLoadedEqual(journaledIndex, new CachedContentIndex(cacheDir, null, true));
+  }
+
+  public void testJournaledCompaction() throws Exception {
+    CachedContentIndex journaledIndex = new CachedContentIndex(cacheDir, null, true);
+    journaledIndex.store();
+    for (int i = 0; i < 100; i++) {
+      journaledIndex.add("key" + i);
+      journaledIndex.store();
+    }
+    for (int i = 0; i < 90; i++) {
+      journaledIndex.removeEmpty("key" + i);
+      journaledIndex.store();
+    }
+    long journalLength = getIndexFile().length();
+    journaledIndex.compact();
+    assertTrue(getIndexFile().length() < journalLength);
+    assertLoadedEqual(journaledIndex, new CachedContentIndex(cacheDir, null, true));
+  }
+
+  public void testJournaledEncryption() throws Exception {
+    byte[] key = "Bar12345Bar12345".getBytes(C.UTF8_NAME); // 128 bit key
+    CachedContentIndex journaledIndex = new CachedContentIndex(cacheDir, key, true);
+    journaledIndex.addNew(new CachedContent(5, "key1", 10));
+    journaledIndex.store();
+    journaledIndex.add("key2");
+    journaledIndex.setContentLength("key1", 20);
+    journaledIndex.store();
+
+    assertLoadedEqual(journaledIndex, new CachedContentIndex(cacheDir, key, true));
+    CachedContentIndex unencryptedIndex = new CachedContentIndex(cacheDir, null, true);
+    unencryptedIndex.load();
+    assertEquals(0, unencryptedIndex.getAll().size());
+  }
+
+  public void testLastAccessTimestamps() throws Exception {
+    CachedContentIndex timestampIndex = new CachedContentIndex(cacheDir, null, false, true);
+    int id = timestampIndex.assignIdForKey("key1");
+    timestampIndex.setLastAccessTimestamp(id, 0, 100);
+    timestampIndex.setLastAccessTimestamp(id, 10, 200);
+    timestampIndex.setLastAccessTimestamp(id, 20, 300);
+    timestampIndex.setLastAccessTimestamp(id, 20, C.TIME_UNSET);
+    timestampIndex.store();
+
+    CachedContentIndex loadedIndex = new CachedContentIndex(cacheDir, null, false, true);
+    assertLoadedEqual(timestampIndex, loadedIndex);
+    assertEquals(100, loadedIndex.getLastAccessTimestamp(id, 0));
+    assertEquals(200, loadedIndex.getLastAccessTimestamp(id, 10));
+    assertEquals(C.TIME_UNSET, loadedIndex.getLastAccessTimestamp(id, 20));
+
+    // An index that doesn't store timestamps can read the file, and ignores them.
+    CachedContentIndex plainIndex = new CachedContentIndex(cacheDir);
+    assertLoadedEqual(timestampIndex, plainIndex);
+    assertEquals(C.TIME_UNSET, plainIndex.getLastAccessTimestamp(id, 0));
+  }
+
+  public void testJournaledLastAccessTimestamps() throws Exception {
+    CachedContentIndex timestampIndex = new CachedContentIndex(cacheDir, null, true, true);
+    int id = timestampIndex.assignIdForKey("key1");
+    timestampIndex.setLastAccessTimestamp(id, 0, 100);
+    timestampIndex.store();
+    long snapshotLength = getIndexFile().length();
+
+    // Timestamp changes are appended to the file.
+    timestampIndex.setLastAccessTimestamp(id, 0, 150);
+    timestampIndex.setLastAccessTimestamp(id, 10, 200);
+    timestampIndex.store();
+    assertTrue(getIndexFile().length() > snapshotLength);
+
+    CachedContentIndex loadedIndex = new CachedContentIndex(cacheDir, null, true, true);
+    assertLoadedEqual(timestampIndex, loadedIndex);
+    assertEquals(150, loadedIndex.getLastAccessTimestamp(id, 0));
+    assertEquals(200, loadedIndex.getLastAccessTimestamp(id, 10));
+
+    // The timestamps are kept when the file is compacted.
+    timestampIndex.compact();
+    loadedIndex = new CachedContentIndex(cacheDir, null, true, true);
+    loadedIndex.load();
+    assertEquals(150, loadedIndex.getLastAccessTimestamp(id, 0));
+    assertEquals(200, loadedIndex.getLastAccessTimestamp(id, 10));
+  }
+
+  public void testSpanNonces() throws Exception {
+    CachedContentIndex nonceIndex = new CachedContentIndex(cacheDir);
+    int id = nonceIndex.assignIdForKey("key1");
+    nonceIndex.setSpanNonce(id, 0, 0x0123456789ABCDEFL);
+    nonceIndex.setSpanNonce(id, 10, -1);
+    nonceIndex.setSpanNonce(id, 20, 5);
+    nonceIndex.removeSpanNonce(id, 20);
+    nonceIndex.store();
+
+    CachedContentIndex loadedIndex = new CachedContentIndex(cacheDir);
+    assertLoadedEqual(nonceIndex, loadedIndex);
+    assertEquals(Long.valueOf(0x0123456789ABCDEFL), loadedIndex.getSpanNonce(id, 0));
+    assertEquals(Long.valueOf(-1), loadedIndex.getSpanNonce(id, 10));
+    assertNull(loadedIndex.getSpanNonce(id, 20));
+  }
+
+  public void testJournaledSpanNonces() throws Exception {
+    CachedContentIndex nonceIndex = new CachedContentIndex(cacheDir, null, true, false);
+    int id = nonceIndex.assignIdForKey("key1");
+    nonceIndex.setSpanNonce(id, 0, 100);
+    nonceIndex.store();
+
+    // Nonce changes are appended to the file.
+    nonceIndex.setSpanNonce(id, 10, 200);
+    nonceIndex.removeSpanNonce(id, 0);
+    nonceIndex.store();
+
+    CachedContentIndex loadedIndex = new CachedContentIndex(cacheDir, null, true, false);
+    assertLoadedEqual(nonceIndex, loadedIndex);
+    assertNull(loadedIndex.getSpanNonce(id, 0));
+    assertEquals(Long.valueOf(200), loadedIndex.getSpanNonce(id, 10));
+
+    // The nonces are kept when the file is compacted.
+    nonceIndex.compact();
+    loadedIndex = new CachedContentIndex(cacheDir, null, true, false);
+    loadedIndex.load();
+    assertEquals(Long.valueOf(200), loadedIndex.getSpanNonce(id, 10));
+  }
+
+  private File getIndexFile() {
+    return new File(cacheDir, CachedContentIndex.FILE_NAME);
+  }
+
   private void assertStoredAndLoadedEqual(CachedContentIndex index, CachedContentIndex index2)
       throws IOException {
     index.addNew(new CachedContent(5, "key1", 10));
     index.add("key2");
     index.store();
+    assertLoadedEqual(index, index2);
+  }
 
+  private static void assertLoadedEqual(CachedContentIndex index, CachedContentIndex index2) {
     index2.load();
     Set<String> keys = index.getKeys();
     Set<String> keys2 = index2.getKeys();
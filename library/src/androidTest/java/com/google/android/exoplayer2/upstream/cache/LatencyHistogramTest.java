@@ -0,0 +1,62 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.exoplayer2.upstream.cache;
+
+import junit.framework.TestCase;
+
+/**
+ * Unit tests for {@link LatencyHistogram}.
+ */
+public class LatencyHistogramTest extends TestCase {
+
+  public void testBuckets() {
+    LatencyHistogram histogram = new LatencyHistogram();
+    histogram.record(0);
+    histogram.record(1);
+    histogram.record(3);
+    histogram.record(1000);
+    histogram.record(Long.MAX_VALUE);
+    assertEquals(5, histogram.getCount());
+    assertEquals(1, histogram.getBucketCount(0));
+    assertEquals(1, histogram.getBucketCount(1));
+    assertEquals(1, histogram.getBucketCount(2));
+    // 1000 is in [512, 1024).
+    assertEquals(1, histogram.getBucketCount(10));
+    assertEquals(1, histogram.getBucketCount(LatencyHistogram.BUCKET_COUNT - 1));
+    assertEquals(512, LatencyHistogram.getBucketLowerBoundUs(10));
+    assertEquals(1024, LatencyHistogram.getBucketUpperBoundUs(10));
+  }
+
+  public void testPercentiles() {
+    LatencyHistogram histogram = new LatencyHistogram();
+    assertEquals(0, histogram.getPercentileUs(50));
+    for (int i = 0; i < 90; i++) {
+      histogram.record(10);
+    }
+    for (int i = 0; i < 10; i++) {
+      histogram.record(1000);
+    }
+    assertEquals(16, histogram.getPercentileUs(50));
+    assertEquals(16, histogram.getPercentileUs(90));
+    assertEquals(1024, histogram.getPercentileUs(99));
+    assertEquals(109, histogram.getMeanUs());
+
+    histogram.reset();
+    assertEquals(0, histogram.getCount());
+    assertEquals(0, histogram.getMeanUs());
+  }
+
+}
@@ -0,0 +1,167 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.exoplayer2.upstream.cache;
+
+import android.net.Uri;
+import android.test.InstrumentationTestCase;
+import android.test.MoreAsserts;
+import com.google.android.exoplayer2.C;
+import com.google.android.exoplayer2.testutil.FakeDataSource;
+import com.google.android.exoplayer2.testutil.TestUtil;
+import com.google.android.exoplayer2.upstream.DataSource;
+import com.google.android.exoplayer2.upstream.DataSpec;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Unit tests for {@link MemoryCacheTier} and {@link MemoryCacheDataSource}.
+ */
+public class MemoryCacheTierTest extends InstrumentationTestCase {
+
+  private static final String KEY_1 = "key 1";
+  private static final String KEY_2 = "key 2";
+
+  private File cacheDir;
+  private SimpleCache simpleCache;
+
+  @Override
+  protected void setUp() throws Exception {
+    cacheDir = TestUtil.createTempFolder(getInstrumentation().getContext());
+    simpleCache = new SimpleCache(cacheDir, new NoOpCacheEvictor());
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    TestUtil.recursiveDelete(cacheDir);
+  }
+
+  public void testReadThroughAndServeFromMemory() throws Exception {
+    byte[] data = TestUtil.buildTestData(100);
+    MemoryCacheTier memoryCacheTier = new MemoryCacheTier(simpleCache, 1000, 200);
+
+    // The first read goes through to upstream, writing the disk cache and populating the tier.
+    MoreAsserts.assertEquals(data, readData(createDataSource(memoryCacheTier, data), KEY_1, 0,
+        C.LENGTH_UNSET));
+    assertEquals(100, simpleCache.getCacheSpace());
+    assertEquals(100, memoryCacheTier.getBytes());
+    assertEquals(1, memoryCacheTier.getMissCount());
+    assertEquals(100, memoryCacheTier.getBytesReadFromCache());
+
+    // Subsequent reads are served from memory, including bounded reads.
+    DataSource dataSource = createDataSource(memoryCacheTier, null);
+    MoreAsserts.assertEquals(data, readData(dataSource, KEY_1, 0, C.LENGTH_UNSET));
+    byte[] expectedPart = new byte[10];
+    System.arraycopy(data, 20, expectedPart, 0, 10);
+    MoreAsserts.assertEquals(expectedPart, readData(dataSource, KEY_1, 20, 10));
+    assertEquals(2, memoryCacheTier.getHitCount());
+    assertEquals(110, memoryCacheTier.getBytesReadFromMemory());
+  }
+
+  public void testLargeContentIsNotHeld() throws Exception {
+    byte[] data = TestUtil.buildTestData(300);
+    MemoryCacheTier memoryCacheTier = new MemoryCacheTier(simpleCache, 1000, 200);
+    readData(createDataSource(memoryCacheTier, data), KEY_1, 0, C.LENGTH_UNSET);
+    assertEquals(300, simpleCache.getCacheSpace());
+    assertEquals(0, memoryCacheTier.getBytes());
+    assertNull(memoryCacheTier.get(KEY_1));
+  }
+
+  public void testEviction() throws Exception {
+    MemoryCacheTier memoryCacheTier = new MemoryCacheTier(simpleCache, 150, 100);
+    readData(createDataSource(memoryCacheTier, new byte[100]), KEY_1, 0, C.LENGTH_UNSET);
+    readData(createDataSource(memoryCacheTier, new byte[100]), KEY_2, 0, C.LENGTH_UNSET);
+    assertNull(memoryCacheTier.get(KEY_1));
+    assertNotNull(memoryCacheTier.get(KEY_2));
+    assertEquals(100, memoryCacheTier.getBytes());
+    assertEquals(1, memoryCacheTier.getEvictionCount());
+  }
+
+  public void testContentNotStoredByCacheIsNotHeld() throws Exception {
+    byte[] data = TestUtil.buildTestData(100);
+    MemoryCacheTier memoryCacheTier = new MemoryCacheTier(simpleCache, 1000, 200);
+    // The content is read from upstream without being written to the disk cache.
+    DataSource dataSource = new MemoryCacheDataSource(memoryCacheTier, new CacheDataSource(
+        simpleCache, new FakeDataSource.Builder().appendReadData(data).build(),
+        CacheDataSource.FLAG_IGNORE_CACHE_FOR_UNSET_LENGTH_REQUESTS));
+    MoreAsserts.assertEquals(data, readData(dataSource, KEY_1, 0, C.LENGTH_UNSET));
+    assertEquals(0, simpleCache.getCacheSpace());
+    assertNull(memoryCacheTier.get(KEY_1));
+    assertEquals(0, memoryCacheTier.getBytes());
+
+    // Nor is content of which the disk cache only holds a part.
+    readData(createDataSource(memoryCacheTier, data), KEY_1, 0, 50);
+    memoryCacheTier.put(KEY_1, data);
+    assertNull(memoryCacheTier.get(KEY_1));
+  }
+
+  public void testInvalidatedWhenSpanRemoved() throws Exception {
+    byte[] data = TestUtil.buildTestData(100);
+    MemoryCacheTier memoryCacheTier = new MemoryCacheTier(simpleCache, 1000, 200);
+    readData(createDataSource(memoryCacheTier, data), KEY_1, 0, C.LENGTH_UNSET);
+    assertNotNull(memoryCacheTier.get(KEY_1));
+
+    simpleCache.removeSpan(simpleCache.getCachedSpans(KEY_1).first());
+    assertNull(memoryCacheTier.get(KEY_1));
+    assertEquals(0, memoryCacheTier.getBytes());
+  }
+
+  public void testContentReadFromMemorySurvivesDiskEviction() throws Exception {
+    simpleCache.release();
+    simpleCache = new SimpleCache(cacheDir, new LeastRecentlyUsedCacheEvictor(250));
+    MemoryCacheTier memoryCacheTier = new MemoryCacheTier(simpleCache, 1000, 200);
+    readData(createDataSource(memoryCacheTier, new byte[100]), KEY_1, 0, C.LENGTH_UNSET);
+    Thread.sleep(10);
+    readData(createDataSource(memoryCacheTier, new byte[100]), KEY_2, 0, C.LENGTH_UNSET);
+    Thread.sleep(10);
+    // The first key is read from memory, which makes it the most recently used on disk too.
+    readData(createDataSource(memoryCacheTier, null), KEY_1, 0, C.LENGTH_UNSET);
+    assertEquals(1, memoryCacheTier.getHitCount());
+    Thread.sleep(10);
+
+    // Making room for a third key evicts the second from the disk cache, and so from the tier.
+    readData(createDataSource(memoryCacheTier, new byte[100]), "key 3", 0, C.LENGTH_UNSET);
+    assertNotNull(simpleCache.getCachedSpans(KEY_1));
+    assertNull(simpleCache.getCachedSpans(KEY_2));
+    assertNotNull(memoryCacheTier.get(KEY_1));
+    assertNull(memoryCacheTier.get(KEY_2));
+  }
+
+  private DataSource createDataSource(MemoryCacheTier memoryCacheTier, byte[] upstreamData) {
+    FakeDataSource.Builder builder = new FakeDataSource.Builder();
+    if (upstreamData != null) {
+      builder.appendReadData(upstreamData);
+    } else {
+      builder.appendReadError(new IOException("Shouldn't read from upstream"));
+    }
+    return new MemoryCacheDataSource(memoryCacheTier,
+        new CacheDataSource(simpleCache, builder.build(), CacheDataSource.FLAG_BLOCK_ON_CACHE));
+  }
+
+  private static byte[] readData(DataSource dataSource, String key, int position, int length)
+      throws IOException {
+    dataSource.open(new DataSpec(Uri.EMPTY, position, length, key));
+    ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+    byte[] buffer = new byte[32];
+    int bytesRead;
+    while ((bytesRead = dataSource.read(buffer, 0, buffer.length)) != C.RESULT_END_OF_INPUT) {
+      outputStream.write(buffer, 0, bytesRead);
+    }
+    dataSource.close();
+    return outputStream.toByteArray();
+  }
+
+}
@@ -0,0 +1,161 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.exoplayer2.upstream.cache;
+
+import android.test.InstrumentationTestCase;
+import android.util.Log;
+import com.google.android.exoplayer2.testutil.TestUtil;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Contention tests for {@link SimpleCache}, in which many threads read and write distinct keys.
+ */
+public class SimpleCacheContentionTest extends InstrumentationTestCase {
+
+  private static final String TAG = "SimpleCacheContention";
+
+  private static final int THREAD_COUNT = 8;
+  private static final int KEYS_PER_THREAD = 4;
+  private static final int OPERATIONS_PER_THREAD = 500;
+  private static final int SPAN_LENGTH = 1024;
+  private static final long TIMEOUT_MS = 5000;
+
+  private File cacheDir;
+
+  @Override
+  protected void setUp() throws Exception {
+    cacheDir = TestUtil.createTempFolder(getInstrumentation().getContext());
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    TestUtil.recursiveDelete(cacheDir);
+  }
+
+  public void testDistinctKeysDoNotBlockEachOther() throws Exception {
+    final SimpleCache simpleCache = new SimpleCache(cacheDir, new NoOpCacheEvictor());
+    // Wait for the cache to be initialized, which acquires every stripe lock.
+    assertTrue(simpleCache.getKeys().isEmpty());
+    String blockedKey = "key0";
+    String otherKey = null;
+    for (int i = 1; i < 100 && otherKey == null; i++) {
+      if (simpleCache.getLockStripe("key" + i) != simpleCache.getLockStripe(blockedKey)) {
+        otherKey = "key" + i;
+      }
+    }
+    assertNotNull(otherKey);
+
+    // Hold the stripe lock of one key, as a thread touching or looking up one of its spans does.
+    final String key = otherKey;
+    final CountDownLatch committed = new CountDownLatch(1);
+    final Exception[] exception = new Exception[1];
+    Thread thread = new Thread() {
+      @Override
+      public void run() {
+        try {
+          CacheSpan holeSpan = simpleCache.startReadWrite(key, 0);
+          writeSpan(simpleCache, key, 0);
+          simpleCache.releaseHoleSpan(holeSpan);
+          assertTrue(simpleCache.startReadWrite(key, 0).isCached);
+        } catch (Exception e) {
+          exception[0] = e;
+        }
+        committed.countDown();
+      }
+    };
+    synchronized (simpleCache.getLockStripe(blockedKey)) {
+      thread.start();
+      // The other key can be locked, written, committed and read without the lock being released.
+      assertTrue(committed.await(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+    }
+    thread.join();
+    assertNull(exception[0]);
+  }
+
+  public void testThroughputWithManyConcurrentKeys() throws Exception {
+    double singleStripeOpsPerSecond = runWorkload(1);
+    TestUtil.recursiveDelete(cacheDir);
+    cacheDir.mkdirs();
+    double stripedOpsPerSecond = runWorkload(SimpleCache.DEFAULT_LOCK_STRIPE_COUNT);
+    Log.i(TAG, "Single stripe: " + (int) singleStripeOpsPerSecond + " ops/s, "
+        + SimpleCache.DEFAULT_LOCK_STRIPE_COUNT + " stripes: " + (int) stripedOpsPerSecond
+        + " ops/s");
+  }
+
+  /**
+   * Runs {@link #THREAD_COUNT} threads, each of which repeatedly writes, commits and reads spans of
+   * its own keys.
+   *
+   * @param lockStripeCount The number of lock stripes of the cache.
+   * @return The number of completed operations per second.
+   */
+  private double runWorkload(int lockStripeCount) throws Exception {
+    final SimpleCache simpleCache =
+        new SimpleCache(cacheDir, new NoOpCacheEvictor(), null, lockStripeCount);
+    final Exception[] exceptions = new Exception[THREAD_COUNT];
+    Thread[] threads = new Thread[THREAD_COUNT];
+    for (int i = 0; i < THREAD_COUNT; i++) {
+      final int threadIndex = i;
+      threads[i] = new Thread() {
+        @Override
+        public void run() {
+          try {
+            for (int j = 0; j < OPERATIONS_PER_THREAD; j++) {
+              String key = "key" + threadIndex + "." + (j % KEYS_PER_THREAD);
+              long position = (j / KEYS_PER_THREAD) * SPAN_LENGTH;
+              CacheSpan holeSpan = simpleCache.startReadWrite(key, position);
+              assertFalse(holeSpan.isCached);
+              writeSpan(simpleCache, key, position);
+              simpleCache.releaseHoleSpan(holeSpan);
+              assertTrue(simpleCache.startReadWrite(key, position).isCached);
+            }
+          } catch (Exception e) {
+            exceptions[threadIndex] = e;
+          }
+        }
+      };
+    }
+    long startTimeNs = System.nanoTime();
+    for (Thread thread : threads) {
+      thread.start();
+    }
+    for (int i = 0; i < THREAD_COUNT; i++) {
+      threads[i].join();
+      if (exceptions[i] != null) {
+        throw exceptions[i];
+      }
+    }
+    long elapsedNs = System.nanoTime() - startTimeNs;
+    assertEquals((long) THREAD_COUNT * OPERATIONS_PER_THREAD * SPAN_LENGTH,
+        simpleCache.getCacheSpace());
+    // Each iteration performs a write and a read.
+    return (2.0 * THREAD_COUNT * OPERATIONS_PER_THREAD) / (elapsedNs / 1000000000.0);
+  }
+
+  private static void writeSpan(SimpleCache simpleCache, String key, long position)
+      throws IOException {
+    File file = simpleCache.startFile(key, position, SPAN_LENGTH);
+    FileOutputStream fos = new FileOutputStream(file);
+    fos.write(new byte[SPAN_LENGTH]);
+    fos.close();
+    simpleCache.commitFile(file);
+  }
+
+}
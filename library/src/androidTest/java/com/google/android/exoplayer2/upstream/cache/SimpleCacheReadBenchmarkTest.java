@@ -0,0 +1,119 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.exoplayer2.upstream.cache;
+
+import android.test.InstrumentationTestCase;
+import android.util.Log;
+import com.google.android.exoplayer2.testutil.TestUtil;
+import java.io.File;
+import java.io.FileOutputStream;
+
+/**
+ * Read-heavy benchmark for {@link SimpleCache}. Compares the throughput of repeatedly reading cached
+ * spans when last access timestamps are encoded in the span file names, which renames a file on
+ * each read, and when they're stored in the content index.
+ */
+public class SimpleCacheReadBenchmarkTest extends InstrumentationTestCase {
+
+  private static final String TAG = "SimpleCacheReadBenchmark";
+
+  private static final int THREAD_COUNT = 4;
+  private static final int KEY_COUNT = 16;
+  private static final int SPANS_PER_KEY = 16;
+  private static final int READS_PER_THREAD = 5000;
+  private static final int SPAN_LENGTH = 1024;
+
+  private File cacheDir;
+
+  @Override
+  protected void setUp() throws Exception {
+    cacheDir = TestUtil.createTempFolder(getInstrumentation().getContext());
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    TestUtil.recursiveDelete(cacheDir);
+  }
+
+  public void testReadThroughput() throws Exception {
+    double renamingReadsPerSecond = runWorkload(0);
+    TestUtil.recursiveDelete(cacheDir);
+    cacheDir.mkdirs();
+    double indexReadsPerSecond = runWorkload(SimpleCache.FLAG_LAST_ACCESS_TIMESTAMPS_IN_INDEX
+        | SimpleCache.FLAG_JOURNALED_INDEX);
+    Log.i(TAG, "Timestamps in file names: " + (int) renamingReadsPerSecond
+        + " reads/s, timestamps in index: " + (int) indexReadsPerSecond + " reads/s");
+  }
+
+  /**
+   * Populates the cache, then runs {@link #THREAD_COUNT} threads, each of which repeatedly reads
+   * cached spans.
+   *
+   * @param flags The flags of the cache.
+   * @return The number of completed reads per second.
+   */
+  private double runWorkload(@SimpleCache.Flags int flags) throws Exception {
+    final SimpleCache simpleCache = new SimpleCache(cacheDir, new NoOpCacheEvictor(), null,
+        THREAD_COUNT, flags);
+    for (int i = 0; i < KEY_COUNT; i++) {
+      String key = "key" + i;
+      for (int j = 0; j < SPANS_PER_KEY; j++) {
+        CacheSpan holeSpan = simpleCache.startReadWrite(key, j * SPAN_LENGTH);
+        File file = simpleCache.startFile(key, j * SPAN_LENGTH, SPAN_LENGTH);
+        FileOutputStream fos = new FileOutputStream(file);
+        fos.write(new byte[SPAN_LENGTH]);
+        fos.close();
+        simpleCache.commitFile(file);
+        simpleCache.releaseHoleSpan(holeSpan);
+      }
+    }
+
+    final Exception[] exceptions = new Exception[THREAD_COUNT];
+    Thread[] threads = new Thread[THREAD_COUNT];
+    for (int i = 0; i < THREAD_COUNT; i++) {
+      final int threadIndex = i;
+      threads[i] = new Thread() {
+        @Override
+        public void run() {
+          try {
+            for (int j = 0; j < READS_PER_THREAD; j++) {
+              String key = "key" + ((threadIndex + j) % KEY_COUNT);
+              long position = ((j / KEY_COUNT) % SPANS_PER_KEY) * SPAN_LENGTH;
+              assertTrue(simpleCache.startReadWrite(key, position).isCached);
+            }
+          } catch (Exception e) {
+            exceptions[threadIndex] = e;
+          }
+        }
+      };
+    }
+    long startTimeNs = System.nanoTime();
+    for (Thread thread : threads) {
+      thread.start();
+    }
+    for (int i = 0; i < THREAD_COUNT; i++) {
+      threads[i].join();
+      if (exceptions[i] != null) {
+        throw exceptions[i];
+      }
+    }
+    long elapsedNs = System.nanoTime() - startTimeNs;
+    simpleCache.release();
+    assertEquals((long) KEY_COUNT * SPANS_PER_KEY * SPAN_LENGTH, simpleCache.getCacheSpace());
+    return (double) THREAD_COUNT * READS_PER_THREAD / (elapsedNs / 1000000000.0);
+  }
+
+}
@@ -16,6 +16,7 @@
 package com.google.android.exoplayer2.upstream.cache;
 
 import android.test.InstrumentationTestCase;
+import com.google.android.exoplayer2.C;
 import com.google.android.exoplayer2.testutil.TestUtil;
 import java.io.File;
 import java.io.FileOutputStream;
@@ -121,6 +122,37 @@ public class SimpleCacheSpanTest extends InstrumentationTestCase {
     assertEquals(6, (long) cachedPositions.get((long) 5));
   }
 
+  public void testUpgradeFileNameToV4() throws Exception {
+    CachedContentIndex timestampIndex = new CachedContentIndex(cacheDir, null, false, true);
+    int id = timestampIndex.assignIdForKey("key1");
+    File v3file = createTestFile(id + ".0.1.v3.exo");
+    File unknownIdFile = createTestFile((id + 1) + ".0.1.v3.exo");
+
+    SimpleCacheSpan cacheSpan = SimpleCacheSpan.createCacheEntry(v3file, timestampIndex);
+    assertNotNull(cacheSpan);
+    assertNull(SimpleCacheSpan.createCacheEntry(unknownIdFile, timestampIndex));
+
+    // The file is renamed, and its last access timestamp is moved to the index.
+    assertFalse(v3file.exists());
+    assertEquals(SimpleCacheSpan.getCacheFile(cacheDir, id, 0), cacheSpan.file);
+    assertTrue(cacheSpan.file.exists());
+    assertEquals(1, cacheSpan.lastAccessTimestamp);
+    assertEquals(1, timestampIndex.getLastAccessTimestamp(id, 0));
+    assertTrue(unknownIdFile.exists());
+
+    // The timestamp in the index is used for a file in the new format.
+    timestampIndex.setLastAccessTimestamp(id, 0, 5);
+    cacheSpan = SimpleCacheSpan.createCacheEntry(cacheSpan.file, timestampIndex);
+    assertEquals(5, cacheSpan.lastAccessTimestamp);
+
+    // An index that doesn't store timestamps renames the file back to the v3 format.
+    index.addNew(new CachedContent(id, "key1", C.LENGTH_UNSET));
+    cacheSpan = SimpleCacheSpan.createCacheEntry(cacheSpan.file, index);
+    assertNotNull(cacheSpan);
+    assertTrue(cacheSpan.file.getName().endsWith(".v3.exo"));
+    assertTrue(cacheSpan.file.exists());
+  }
+
   private static void createTestFile(File file, int length) throws IOException {
     FileOutputStream output = new FileOutputStream(file);
     for (int i = 0; i < length; i++) {
@@ -16,13 +16,18 @@
 package com.google.android.exoplayer2.upstream.cache;
 
 import android.test.InstrumentationTestCase;
+import android.test.MoreAsserts;
 import com.google.android.exoplayer2.C;
 import com.google.android.exoplayer2.testutil.TestUtil;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.util.Arrays;
 import java.util.NavigableSet;
 import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Unit tests for {@link SimpleCache}.
@@ -30,6 +35,7 @@ import java.util.Set;
 public class SimpleCacheTest extends InstrumentationTestCase {
 
   private static final String KEY_1 = "key1";
+  private static final String KEY_2 = "key2";
 
   private File cacheDir;
 
@@ -107,16 +113,607 @@ public class SimpleCacheTest extends InstrumentationTestCase {
     assertEquals(150, simpleCache2.getContentLength(KEY_1));
   }
 
+  public void testJournaledIndex() throws Exception {
+    SimpleCache simpleCache = getJournaledSimpleCache();
+    simpleCache.startReadWrite(KEY_1, 0);
+    addCache(simpleCache, 0, 15);
+    simpleCache.setContentLength(KEY_1, 150);
+
+    // Check if values are kept after cache is reloaded.
+    SimpleCache simpleCache2 = getJournaledSimpleCache();
+    assertEquals(simpleCache.getKeys(), simpleCache2.getKeys());
+    assertEquals(150, simpleCache2.getContentLength(KEY_1));
+    assertEquals(simpleCache.getCachedSpans(KEY_1), simpleCache2.getCachedSpans(KEY_1));
+
+    // Removing the last span removes the key.
+    simpleCache2.removeSpan(simpleCache2.startReadWrite(KEY_1, 0));
+    assertEquals(0, getJournaledSimpleCache().getKeys().size());
+  }
+
+  public void testSpanManifest() throws Exception {
+    SimpleCache simpleCache = getManifestSimpleCache(null);
+    CacheSpan holeSpan = simpleCache.startReadWrite(KEY_1, 0);
+    addCache(simpleCache, 0, 15);
+    addCache(simpleCache, 20, 10);
+    simpleCache.releaseHoleSpan(holeSpan);
+    simpleCache.release();
+
+    // The spans are loaded from the manifest.
+    RecordingInitializationListener listener = new RecordingInitializationListener();
+    SimpleCache simpleCache2 = getManifestSimpleCache(listener);
+    assertEquals(simpleCache.getCachedSpans(KEY_1), simpleCache2.getCachedSpans(KEY_1));
+    assertEquals(25, simpleCache2.getCacheSpace());
+    assertTrue(listener.loadedFromManifest);
+    assertEquals(2, listener.spanCount);
+
+    // Spans that are added and removed are journaled, so the manifest stays valid without the
+    // cache being released.
+    holeSpan = simpleCache2.startReadWrite(KEY_1, 40);
+    addCache(simpleCache2, 40, 5);
+    simpleCache2.releaseHoleSpan(holeSpan);
+    simpleCache2.removeSpan(getSpanAt(simpleCache2, 20));
+    listener = new RecordingInitializationListener();
+    SimpleCache simpleCache3 = getManifestSimpleCache(listener);
+    assertEquals(simpleCache2.getCachedSpans(KEY_1), simpleCache3.getCachedSpans(KEY_1));
+    assertEquals(20, simpleCache3.getCacheSpace());
+    assertTrue(listener.loadedFromManifest);
+    assertEquals(2, listener.spanCount);
+  }
+
+  public void testSpanManifestScannedIfFileDeleted() throws Exception {
+    SimpleCache simpleCache = getManifestSimpleCache(null);
+    CacheSpan holeSpan = simpleCache.startReadWrite(KEY_1, 0);
+    addCache(simpleCache, 0, 15);
+    addCache(simpleCache, 20, 10);
+    simpleCache.releaseHoleSpan(holeSpan);
+    simpleCache.release();
+
+    // The number of files doesn't match the manifest, so the directory is scanned.
+    assertTrue(getSpanAt(simpleCache, 20).file.delete());
+    RecordingInitializationListener listener = new RecordingInitializationListener();
+    SimpleCache simpleCache2 = getManifestSimpleCache(listener);
+    assertEquals(15, simpleCache2.getCacheSpace());
+    assertFalse(listener.loadedFromManifest);
+    assertEquals(1, listener.spanCount);
+  }
+
+  public void testSpanManifestRewrittenAfterTouch() throws Exception {
+    SimpleCache simpleCache = getManifestSimpleCache(null);
+    CacheSpan holeSpan = simpleCache.startReadWrite(KEY_1, 0);
+    addCache(simpleCache, 0, 15);
+    simpleCache.releaseHoleSpan(holeSpan);
+
+    // Touching the span renames its file, which invalidates the manifest.
+    assertTrue(simpleCache.startReadWrite(KEY_1, 0).isCached);
+    RecordingInitializationListener listener = new RecordingInitializationListener();
+    getManifestSimpleCache(listener);
+    assertFalse(listener.loadedFromManifest);
+
+    // The manifest is rewritten by the next commit.
+    holeSpan = simpleCache.startReadWrite(KEY_1, 20);
+    addCache(simpleCache, 20, 10);
+    simpleCache.releaseHoleSpan(holeSpan);
+    listener = new RecordingInitializationListener();
+    SimpleCache simpleCache2 = getManifestSimpleCache(listener);
+    assertEquals(simpleCache.getCachedSpans(KEY_1), simpleCache2.getCachedSpans(KEY_1));
+    assertTrue(listener.loadedFromManifest);
+    assertEquals(2, listener.spanCount);
+  }
+
+  public void testSpanManifestWithUncommittedFile() throws Exception {
+    SimpleCache simpleCache = getManifestSimpleCache(null);
+    simpleCache.startReadWrite(KEY_1, 0);
+    addCache(simpleCache, 0, 15);
+    // A file that's started but not yet committed when the cache is released.
+    File file = simpleCache.startFile(KEY_1, 15, 5);
+    FileOutputStream fos = new FileOutputStream(file);
+    fos.write(new byte[5]);
+    fos.close();
+    simpleCache.release();
+
+    // The file isn't listed in the manifest, so the directory is scanned and the file isn't leaked.
+    RecordingInitializationListener listener = new RecordingInitializationListener();
+    SimpleCache simpleCache2 = getManifestSimpleCache(listener);
+    assertTrue(!file.exists() || simpleCache2.getCacheSpace() == 20);
+    assertFalse(listener.loadedFromManifest);
+
+    // The manifest is written after the scan.
+    simpleCache2.release();
+    listener = new RecordingInitializationListener();
+    SimpleCache simpleCache3 = getManifestSimpleCache(listener);
+    assertEquals(simpleCache2.getCachedSpans(KEY_1), simpleCache3.getCachedSpans(KEY_1));
+    assertTrue(listener.loadedFromManifest);
+  }
+
+  public void testSpanManifestCorrupt() throws Exception {
+    SimpleCache simpleCache = getManifestSimpleCache(null);
+    CacheSpan holeSpan = simpleCache.startReadWrite(KEY_1, 0);
+    addCache(simpleCache, 0, 15);
+    simpleCache.releaseHoleSpan(holeSpan);
+    simpleCache.release();
+
+    FileOutputStream fos = new FileOutputStream(new File(cacheDir, CachedSpanManifest.FILE_NAME),
+        true);
+    fos.write(1);
+    fos.close();
+
+    RecordingInitializationListener listener = new RecordingInitializationListener();
+    SimpleCache simpleCache2 = getManifestSimpleCache(listener);
+    assertEquals(simpleCache.getCachedSpans(KEY_1), simpleCache2.getCachedSpans(KEY_1));
+    assertFalse(listener.loadedFromManifest);
+    assertEquals(1, listener.spanCount);
+  }
+
+  public void testLastAccessTimestampsInIndex() throws Exception {
+    SimpleCache simpleCache = getSimpleCache(SimpleCache.FLAG_LAST_ACCESS_TIMESTAMPS_IN_INDEX);
+    simpleCache.startReadWrite(KEY_1, 0);
+    addCache(simpleCache, 0, 15);
+    CacheSpan cacheSpan = simpleCache.getCachedSpans(KEY_1).first();
+
+    // Reading the span updates its timestamp without renaming its file.
+    Thread.sleep(10);
+    CacheSpan touchedSpan = simpleCache.startReadWrite(KEY_1, 0);
+    assertEquals(cacheSpan.file, touchedSpan.file);
+    assertTrue(touchedSpan.file.exists());
+    assertTrue(touchedSpan.lastAccessTimestamp > cacheSpan.lastAccessTimestamp);
+
+    // The timestamp is persisted in the index.
+    simpleCache.release();
+    SimpleCache simpleCache2 = getSimpleCache(SimpleCache.FLAG_LAST_ACCESS_TIMESTAMPS_IN_INDEX);
+    CacheSpan loadedSpan = simpleCache2.getCachedSpans(KEY_1).first();
+    assertEquals(touchedSpan.file, loadedSpan.file);
+    assertEquals(touchedSpan.lastAccessTimestamp, loadedSpan.lastAccessTimestamp);
+  }
+
+  public void testLastAccessTimestampsInIndexMigration() throws Exception {
+    SimpleCache simpleCache = getSimpleCache();
+    simpleCache.startReadWrite(KEY_1, 0);
+    addCache(simpleCache, 0, 15);
+    addCache(simpleCache, 20, 10);
+    NavigableSet<CacheSpan> spans = simpleCache.getCachedSpans(KEY_1);
+
+    // Spans in the v3 file name format are migrated, keeping their timestamps.
+    SimpleCache simpleCache2 = getSimpleCache(SimpleCache.FLAG_LAST_ACCESS_TIMESTAMPS_IN_INDEX);
+    NavigableSet<CacheSpan> migratedSpans = simpleCache2.getCachedSpans(KEY_1);
+    assertEquals(2, migratedSpans.size());
+    for (CacheSpan span : spans) {
+      CacheSpan migratedSpan = migratedSpans.floor(span);
+      assertEquals(span.position, migratedSpan.position);
+      assertEquals(span.lastAccessTimestamp, migratedSpan.lastAccessTimestamp);
+      assertFalse(span.file.exists());
+      assertTrue(migratedSpan.file.exists());
+    }
+
+    // Clearing the flag migrates the spans back.
+    SimpleCache simpleCache3 = getSimpleCache();
+    assertEquals(spans, simpleCache3.getCachedSpans(KEY_1));
+    for (CacheSpan span : simpleCache3.getCachedSpans(KEY_1)) {
+      assertTrue(span.file.exists());
+    }
+    assertEquals(25, simpleCache3.getCacheSpace());
+  }
+
+  public void testConcurrentReadersOfCachedSpan() throws Exception {
+    final SimpleCache simpleCache = getSimpleCache();
+    CacheSpan holeSpan = simpleCache.startReadWrite(KEY_1, 0);
+    addCache(simpleCache, 0, 15);
+    simpleCache.releaseHoleSpan(holeSpan);
+    // Lock the hole that follows the cached span, as if its data were being downloaded.
+    holeSpan = simpleCache.startReadWrite(KEY_1, 15);
+    assertFalse(holeSpan.isCached);
+
+    final int readerCount = 4;
+    final CountDownLatch leasesAcquired = new CountDownLatch(readerCount);
+    final CountDownLatch releaseLeases = new CountDownLatch(1);
+    final Exception[] exceptions = new Exception[readerCount];
+    Thread[] readers = new Thread[readerCount];
+    for (int i = 0; i < readerCount; i++) {
+      final int readerIndex = i;
+      readers[i] = new Thread() {
+        @Override
+        public void run() {
+          try {
+            CacheSpan span = simpleCache.startRead(KEY_1, readerIndex);
+            assertTrue(span.isCached);
+            assertTrue(span.file.exists());
+            leasesAcquired.countDown();
+            releaseLeases.await();
+            simpleCache.releaseReadSpan(span);
+          } catch (Exception e) {
+            exceptions[readerIndex] = e;
+          }
+        }
+      };
+      readers[i].start();
+    }
+    // All readers hold leases at the same time, whilst the hole is locked.
+    assertTrue(leasesAcquired.await(5, TimeUnit.SECONDS));
+    assertTrue(simpleCache.startReadWrite(KEY_1, 0).isCached);
+    assertNull(simpleCache.startRead(KEY_1, 15));
+    releaseLeases.countDown();
+    for (int i = 0; i < readerCount; i++) {
+      readers[i].join();
+      if (exceptions[i] != null) {
+        throw exceptions[i];
+      }
+    }
+    simpleCache.releaseHoleSpan(holeSpan);
+  }
+
+  public void testRemoveLeasedSpan() throws Exception {
+    SimpleCache simpleCache = getSimpleCache();
+    CacheSpan holeSpan = simpleCache.startReadWrite(KEY_1, 0);
+    addCache(simpleCache, 0, 15);
+    simpleCache.releaseHoleSpan(holeSpan);
+
+    CacheSpan span1 = simpleCache.startRead(KEY_1, 0);
+    CacheSpan span2 = simpleCache.startRead(KEY_1, 0);
+    // The file of a leased span isn't renamed when the span is read again.
+    assertEquals(span1.file, span2.file);
+
+    // Removing the span defers deleting its file until the leases are released.
+    simpleCache.removeSpan(span2);
+    assertNull(simpleCache.getCachedSpans(KEY_1));
+    assertEquals(0, simpleCache.getCacheSpace());
+    assertTrue(span1.file.exists());
+    simpleCache.releaseReadSpan(span1);
+    assertTrue(span1.file.exists());
+    simpleCache.releaseReadSpan(span2);
+    assertFalse(span1.file.exists());
+  }
+
+  public void testCompactSpans() throws Exception {
+    assertCompactSpans(0);
+  }
+
+  public void testCompactSpansWithLastAccessTimestampsInIndex() throws Exception {
+    assertCompactSpans(SimpleCache.FLAG_LAST_ACCESS_TIMESTAMPS_IN_INDEX);
+  }
+
+  public void testCompactSpansMaxFileLength() throws Exception {
+    SimpleCache simpleCache = getSimpleCache();
+    CacheSpan holeSpan = simpleCache.startReadWrite(KEY_1, 0);
+    for (int i = 0; i < 5; i++) {
+      addCache(simpleCache, i * 10, 10);
+    }
+    simpleCache.releaseHoleSpan(holeSpan);
+
+    SimpleCache.CompactionResult result = simpleCache.compactSpans(0, 20);
+    assertEquals(2, result.mergedRunCount);
+    assertEquals(2, result.reclaimedFileCount);
+    assertEquals(3, simpleCache.getCachedSpans(KEY_1).size());
+    assertEquals(50, simpleCache.getCacheSpace());
+  }
+
+  public void testCompactSpansSkipsActiveKeys() throws Exception {
+    SimpleCache simpleCache = getSimpleCache();
+    CacheSpan holeSpan = simpleCache.startReadWrite(KEY_1, 0);
+    addCache(simpleCache, 0, 10);
+    addCache(simpleCache, 10, 10);
+
+    // The key is locked for writing.
+    assertEquals(0, simpleCache.compactSpans(0, Long.MAX_VALUE).mergedRunCount);
+    simpleCache.releaseHoleSpan(holeSpan);
+    // A span is being read.
+    CacheSpan readSpan = simpleCache.startRead(KEY_1, 0);
+    assertEquals(0, simpleCache.compactSpans(0, Long.MAX_VALUE).mergedRunCount);
+    simpleCache.releaseReadSpan(readSpan);
+    // The spans were accessed too recently.
+    assertEquals(0, simpleCache.compactSpans(60 * 1000, Long.MAX_VALUE).mergedRunCount);
+
+    assertEquals(1, simpleCache.compactSpans(0, Long.MAX_VALUE).mergedRunCount);
+    assertEquals(1, simpleCache.getCachedSpans(KEY_1).size());
+  }
+
+  public void testStartSpanCompactionRunsCompactionsOnOneThread() throws Exception {
+    SimpleCache simpleCache = getSimpleCache();
+    CacheSpan holeSpan = simpleCache.startReadWrite(KEY_1, 0);
+    addCache(simpleCache, 0, 10);
+    addCache(simpleCache, 10, 10);
+    simpleCache.releaseHoleSpan(holeSpan);
+
+    final CountDownLatch compactedLatch = new CountDownLatch(2);
+    final Thread[] threads = new Thread[2];
+    final int[] mergedRunCounts = new int[2];
+    SimpleCache.CompactionListener listener = new SimpleCache.CompactionListener() {
+      @Override
+      public void onSpansCompacted(SimpleCache.CompactionResult result) {
+        int index = 2 - (int) compactedLatch.getCount();
+        threads[index] = Thread.currentThread();
+        mergedRunCounts[index] = result.mergedRunCount;
+        compactedLatch.countDown();
+      }
+
+      @Override
+      public void onCompactionError(Cache.CacheException e) {
+        fail();
+      }
+    };
+    simpleCache.startSpanCompaction(0, Long.MAX_VALUE, listener);
+    simpleCache.startSpanCompaction(0, Long.MAX_VALUE, listener);
+    assertTrue(compactedLatch.await(5, TimeUnit.SECONDS));
+    // The compactions ran one after the other on the cache's background thread.
+    assertSame(threads[0], threads[1]);
+    assertEquals(1, mergedRunCounts[0]);
+    assertEquals(0, mergedRunCounts[1]);
+    assertEquals(1, simpleCache.getCachedSpans(KEY_1).size());
+  }
+
+  public void testDeduplicateSpans() throws Exception {
+    if (!SpanDeduplicator.isSupported()) {
+      return;
+    }
+    SimpleCache simpleCache = getSimpleCache(SimpleCache.FLAG_DEDUPLICATE_SPANS);
+    byte[] data = TestUtil.buildTestData(20);
+    addCacheWithHoleLock(simpleCache, KEY_1, 0, data);
+    // Content of the same length that differs isn't shared.
+    addCacheWithHoleLock(simpleCache, KEY_2, 0, TestUtil.buildTestData(20, 1));
+    waitForBackgroundTasks(simpleCache);
+    assertEquals(40, simpleCache.getCacheSpace());
+    // Identical content is stored once, under both keys, once it's been deduplicated in the
+    // background.
+    addCacheWithHoleLock(simpleCache, KEY_2, 20, data);
+    waitForBackgroundTasks(simpleCache);
+    assertEquals(40, simpleCache.getCacheSpace());
+    assertEquals(20, simpleCache.getDeduplicatedSpace());
+    MoreAsserts.assertEquals(data, readFile(simpleCache.getCachedSpans(KEY_2).last().file));
+
+    // The shared storage is only freed once the last span using it is removed.
+    simpleCache.removeSpan(simpleCache.getCachedSpans(KEY_1).first());
+    assertEquals(40, simpleCache.getCacheSpace());
+    assertEquals(0, simpleCache.getDeduplicatedSpace());
+    MoreAsserts.assertEquals(data, readFile(simpleCache.getCachedSpans(KEY_2).last().file));
+    simpleCache.removeSpan(simpleCache.getCachedSpans(KEY_2).last());
+    assertEquals(20, simpleCache.getCacheSpace());
+
+    // Sharing is detected when the cache is reinitialized.
+    addCacheWithHoleLock(simpleCache, KEY_1, 0, data);
+    addCacheWithHoleLock(simpleCache, KEY_2, 20, data);
+    waitForBackgroundTasks(simpleCache);
+    assertEquals(40, simpleCache.getCacheSpace());
+    simpleCache.release();
+    simpleCache = getSimpleCache(SimpleCache.FLAG_DEDUPLICATE_SPANS);
+    assertEquals(40, simpleCache.getCacheSpace());
+    assertEquals(20, simpleCache.getDeduplicatedSpace());
+  }
+
+  public void testDeduplicateSpansEviction() throws Exception {
+    if (!SpanDeduplicator.isSupported()) {
+      return;
+    }
+    SimpleCache simpleCache = new SimpleCache(cacheDir, new LeastRecentlyUsedCacheEvictor(50),
+        null, SimpleCache.DEFAULT_LOCK_STRIPE_COUNT, SimpleCache.FLAG_DEDUPLICATE_SPANS);
+    byte[] data = TestUtil.buildTestData(20);
+    addCacheWithHoleLock(simpleCache, KEY_1, 0, data);
+    addCacheWithHoleLock(simpleCache, KEY_2, 0, data);
+    waitForBackgroundTasks(simpleCache);
+    addCacheWithHoleLock(simpleCache, KEY_2, 20, TestUtil.buildTestData(20, 1));
+    waitForBackgroundTasks(simpleCache);
+    // The spans' total length exceeds the maximum size, but the space they use doesn't.
+    assertEquals(40, simpleCache.getCacheSpace());
+    assertEquals(1, simpleCache.getCachedSpans(KEY_1).size());
+    assertEquals(2, simpleCache.getCachedSpans(KEY_2).size());
+
+    // Evicting the least recently used span frees nothing, so eviction continues until the new
+    // span fits.
+    addCacheWithHoleLock(simpleCache, "key3", 0, TestUtil.buildTestData(20, 2));
+    assertEquals(40, simpleCache.getCacheSpace());
+    assertNull(simpleCache.getCachedSpans(KEY_1));
+    assertEquals(1, simpleCache.getCachedSpans(KEY_2).size());
+    assertEquals(20, simpleCache.getCachedSpans(KEY_2).first().position);
+  }
+
+  public void testOnlySpansRemovedByEvictorAreCountedAsEvicted() throws Exception {
+    SimpleCache simpleCache = new SimpleCache(cacheDir, new LeastRecentlyUsedCacheEvictor(30));
+    CacheStatistics statistics = simpleCache.getStatistics();
+    addCacheWithHoleLock(simpleCache, KEY_1, 0, TestUtil.buildTestData(20));
+    // The least recently used span is evicted to make room for the new one.
+    addCacheWithHoleLock(simpleCache, KEY_2, 0, TestUtil.buildTestData(20));
+    assertNull(simpleCache.getCachedSpans(KEY_1));
+    assertEquals(1, statistics.getSpansEvicted());
+    assertEquals(20, statistics.getBytesEvicted());
+
+    // Spans removed by the application, or by a listener whilst events are delivered, aren't.
+    simpleCache.removeSpan(simpleCache.getCachedSpans(KEY_2).first());
+    simpleCache.addListener("key3", new Cache.Listener() {
+      @Override
+      public void onSpanAdded(Cache cache, CacheSpan span) {
+        try {
+          cache.removeSpan(span);
+        } catch (Cache.CacheException e) {
+          throw new IllegalStateException(e);
+        }
+      }
+
+      @Override
+      public void onSpanRemoved(Cache cache, CacheSpan span) {
+        // Do nothing.
+      }
+
+      @Override
+      public void onSpanTouched(Cache cache, CacheSpan oldSpan, CacheSpan newSpan) {
+        // Do nothing.
+      }
+    });
+    addCacheWithHoleLock(simpleCache, "key3", 0, TestUtil.buildTestData(20));
+    assertEquals(0, simpleCache.getCacheSpace());
+    assertEquals(1, statistics.getSpansEvicted());
+    assertEquals(20, statistics.getBytesEvicted());
+  }
+
+  public void testConcurrentWritersWithLockStripes() throws Exception {
+    final SimpleCache simpleCache = new SimpleCache(cacheDir, new NoOpCacheEvictor(), null, 8);
+    final int threadCount = 8;
+    final int keysPerThread = 10;
+    final Exception[] exceptions = new Exception[threadCount];
+    Thread[] threads = new Thread[threadCount];
+    for (int i = 0; i < threadCount; i++) {
+      final int threadIndex = i;
+      threads[i] = new Thread() {
+        @Override
+        public void run() {
+          try {
+            for (int j = 0; j < keysPerThread; j++) {
+              String key = "key" + threadIndex + "." + j;
+              CacheSpan holeSpan = simpleCache.startReadWrite(key, 0);
+              addCache(simpleCache, key, 0, 10);
+              simpleCache.releaseHoleSpan(holeSpan);
+              assertTrue(simpleCache.startReadWrite(key, 0).isCached);
+            }
+          } catch (Exception e) {
+            exceptions[threadIndex] = e;
+          }
+        }
+      };
+      threads[i].start();
+    }
+    for (int i = 0; i < threadCount; i++) {
+      threads[i].join();
+      if (exceptions[i] != null) {
+        throw exceptions[i];
+      }
+    }
+    assertEquals(threadCount * keysPerThread, simpleCache.getKeys().size());
+    assertEquals(threadCount * keysPerThread * 10, simpleCache.getCacheSpace());
+  }
+
+  private void assertCompactSpans(@SimpleCache.Flags int flags) throws Exception {
+    byte[] data = TestUtil.buildTestData(40);
+    SimpleCache simpleCache = getSimpleCache(flags);
+    CacheSpan holeSpan = simpleCache.startReadWrite(KEY_1, 0);
+    addCache(simpleCache, KEY_1, 0, Arrays.copyOfRange(data, 0, 10));
+    addCache(simpleCache, KEY_1, 10, Arrays.copyOfRange(data, 10, 20));
+    addCache(simpleCache, KEY_1, 20, Arrays.copyOfRange(data, 20, 30));
+    addCache(simpleCache, KEY_1, 35, Arrays.copyOfRange(data, 35, 40));
+    simpleCache.releaseHoleSpan(holeSpan);
+
+    SimpleCache.CompactionResult result = simpleCache.compactSpans(0, Long.MAX_VALUE);
+    assertEquals(1, result.mergedRunCount);
+    assertEquals(2, result.reclaimedFileCount);
+    assertEquals(30, result.rewrittenBytes);
+    assertEquals(2.0, result.getOpensSavedPerRead());
+
+    NavigableSet<CacheSpan> cachedSpans = simpleCache.getCachedSpans(KEY_1);
+    assertEquals(2, cachedSpans.size());
+    CacheSpan mergedSpan = cachedSpans.first();
+    assertEquals(0, mergedSpan.position);
+    assertEquals(30, mergedSpan.length);
+    MoreAsserts.assertEquals(Arrays.copyOf(data, 30), readFile(mergedSpan.file));
+    assertEquals(35, simpleCache.getCacheSpace());
+    assertEquals(2, cacheDir.listFiles().length - 1);
+    assertEquals(0, simpleCache.compactSpans(0, Long.MAX_VALUE).mergedRunCount);
+
+    // The merged span is loaded when the cache is reinitialized.
+    simpleCache.release();
+    simpleCache = getSimpleCache(flags);
+    cachedSpans = simpleCache.getCachedSpans(KEY_1);
+    assertEquals(2, cachedSpans.size());
+    assertEquals(30, cachedSpans.first().length);
+    assertEquals(35, simpleCache.getCacheSpace());
+  }
+
   private SimpleCache getSimpleCache() {
     return new SimpleCache(cacheDir, new NoOpCacheEvictor());
   }
 
+  private SimpleCache getSimpleCache(@SimpleCache.Flags int flags) {
+    return new SimpleCache(cacheDir, new NoOpCacheEvictor(), null,
+        SimpleCache.DEFAULT_LOCK_STRIPE_COUNT, flags);
+  }
+
+  private SimpleCache getJournaledSimpleCache() {
+    return new SimpleCache(cacheDir, new NoOpCacheEvictor(), null,
+        SimpleCache.DEFAULT_LOCK_STRIPE_COUNT, SimpleCache.FLAG_JOURNALED_INDEX);
+  }
+
+  private SimpleCache getManifestSimpleCache(SimpleCache.InitializationListener listener) {
+    return new SimpleCache(cacheDir, new NoOpCacheEvictor(), null,
+        SimpleCache.DEFAULT_LOCK_STRIPE_COUNT, SimpleCache.FLAG_SPAN_MANIFEST, listener);
+  }
+
+  /**
+   * Waits for the tasks queued on the cache's background thread, such as deduplication of
+   * committed spans, by running a compaction that merges nothing after them.
+   */
+  private static void waitForBackgroundTasks(SimpleCache simpleCache) throws InterruptedException {
+    final CountDownLatch compactedLatch = new CountDownLatch(1);
+    simpleCache.startSpanCompaction(60 * 60 * 1000, 0, new SimpleCache.CompactionListener() {
+      @Override
+      public void onSpansCompacted(SimpleCache.CompactionResult result) {
+        assertEquals(0, result.mergedRunCount);
+        compactedLatch.countDown();
+      }
+
+      @Override
+      public void onCompactionError(Cache.CacheException e) {
+        compactedLatch.countDown();
+      }
+    });
+    assertTrue(compactedLatch.await(5, TimeUnit.SECONDS));
+  }
+
+  private static CacheSpan getSpanAt(SimpleCache simpleCache, long position) {
+    for (CacheSpan span : simpleCache.getCachedSpans(KEY_1)) {
+      if (span.position == position) {
+        return span;
+      }
+    }
+    throw new IllegalStateException();
+  }
+
   private void addCache(SimpleCache simpleCache, int position, int length) throws IOException {
-    File file = simpleCache.startFile(KEY_1, position, length);
+    addCache(simpleCache, KEY_1, position, length);
+  }
+
+  private static void addCache(SimpleCache simpleCache, String key, int position, int length)
+      throws IOException {
+    File file = simpleCache.startFile(key, position, length);
     FileOutputStream fos = new FileOutputStream(file);
     fos.write(new byte[length]);
     fos.close();
     simpleCache.commitFile(file);
   }
 
+  private static void addCache(SimpleCache simpleCache, String key, int position, byte[] data)
+      throws IOException {
+    File file = simpleCache.startFile(key, position, data.length);
+    FileOutputStream fos = new FileOutputStream(file);
+    fos.write(data);
+    fos.close();
+    simpleCache.commitFile(file);
+  }
+
+  private static void addCacheWithHoleLock(SimpleCache simpleCache, String key, int position,
+      byte[] data) throws Exception {
+    CacheSpan holeSpan = simpleCache.startReadWrite(key, position);
+    addCache(simpleCache, key, position, data);
+    simpleCache.releaseHoleSpan(holeSpan);
+  }
+
+  private static byte[] readFile(File file) throws IOException {
+    byte[] data = new byte[(int) file.length()];
+    FileInputStream inputStream = new FileInputStream(file);
+    try {
+      assertEquals(data.length, inputStream.read(data));
+    } finally {
+      inputStream.close();
+    }
+    return data;
+  }
+
+  private static final class RecordingInitializationListener
+      implements SimpleCache.InitializationListener {
+
+    public int spanCount;
+    public boolean loadedFromManifest;
+
+    @Override
+    public void onInitialized(long initializationTimeMs, int spanCount,
+        boolean loadedFromManifest) {
+      this.spanCount = spanCount;
+      this.loadedFromManifest = loadedFromManifest;
+    }
+
+  }
+
 }
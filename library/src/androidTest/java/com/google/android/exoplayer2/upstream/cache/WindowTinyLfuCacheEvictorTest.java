@@ -0,0 +1,191 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.exoplayer2.upstream.cache;
+
+import android.test.InstrumentationTestCase;
+import android.util.Log;
+import com.google.android.exoplayer2.testutil.TestUtil;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Random;
+
+/**
+ * Tests {@link WindowTinyLfuCacheEvictor}, and compares its hit ratio with that of
+ * {@link LeastRecentlyUsedCacheEvictor} by replaying a synthetic access trace.
+ */
+public class WindowTinyLfuCacheEvictorTest extends InstrumentationTestCase {
+
+  private static final String TAG = "WindowTinyLfuCacheEvictorTest";
+
+  private static final long MAX_BYTES = 2000;
+  private static final long EXPECTED_SPAN_LENGTH = 20;
+
+  private File cacheDir;
+  private SimpleCache simpleCache;
+  private int requestCount;
+  private int hitCount;
+  private long requestedBytes;
+  private long hitBytes;
+
+  @Override
+  protected void setUp() throws Exception {
+    cacheDir = TestUtil.createTempFolder(getInstrumentation().getContext());
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    TestUtil.recursiveDelete(cacheDir);
+  }
+
+  public void testScanResistance() throws Exception {
+    simpleCache = new SimpleCache(cacheDir, createEvictor());
+    for (int i = 0; i < 5; i++) {
+      for (int j = 0; j < 40; j++) {
+        request("hot" + j, 20);
+      }
+    }
+    // A sequential scan over more data than fits in the cache.
+    for (int i = 0; i < 500; i++) {
+      request("scan" + i, 20);
+    }
+    for (int i = 0; i < 40; i++) {
+      assertTrue(simpleCache.isCached("hot" + i, 0, 20));
+    }
+    assertTrue(simpleCache.getCacheSpace() <= MAX_BYTES);
+  }
+
+  public void testLargeSpanDoesNotDisplaceFrequentSpans() throws Exception {
+    simpleCache = new SimpleCache(cacheDir, createEvictor());
+    for (int i = 0; i < 3; i++) {
+      for (int j = 0; j < 90; j++) {
+        request("small" + j, 20);
+      }
+    }
+    request("large", 1000);
+    assertFalse(simpleCache.isCached("large", 0, 1000));
+    int cachedCount = 0;
+    for (int i = 0; i < 90; i++) {
+      if (simpleCache.isCached("small" + i, 0, 20)) {
+        cachedCount++;
+      }
+    }
+    // The small span that was in the window competes for admission along with the large span, but
+    // none of the spans in the main region are displaced.
+    assertTrue(cachedCount >= 89);
+    assertTrue(simpleCache.getCacheSpace() <= MAX_BYTES);
+  }
+
+  public void testTraceReplay() throws Exception {
+    ArrayList<TraceEntry> trace = createTrace(new Random(0));
+
+    replay(new LeastRecentlyUsedCacheEvictor(MAX_BYTES), trace);
+    double lruHitRatio = (double) hitCount / requestCount;
+    double lruByteHitRatio = (double) hitBytes / requestedBytes;
+
+    TestUtil.recursiveDelete(cacheDir);
+    cacheDir.mkdirs();
+    replay(createEvictor(), trace);
+    double tinyLfuHitRatio = (double) hitCount / requestCount;
+    double tinyLfuByteHitRatio = (double) hitBytes / requestedBytes;
+
+    Log.i(TAG, "LRU: hit ratio " + lruHitRatio + ", byte hit ratio " + lruByteHitRatio);
+    Log.i(TAG, "W-TinyLFU: hit ratio " + tinyLfuHitRatio + ", byte hit ratio "
+        + tinyLfuByteHitRatio);
+    assertTrue(tinyLfuHitRatio > lruHitRatio);
+    assertTrue(tinyLfuByteHitRatio > lruByteHitRatio);
+  }
+
+  private static WindowTinyLfuCacheEvictor createEvictor() {
+    return new WindowTinyLfuCacheEvictor(MAX_BYTES,
+        WindowTinyLfuCacheEvictor.DEFAULT_WINDOW_PERCENTAGE,
+        WindowTinyLfuCacheEvictor.DEFAULT_PROTECTED_PERCENTAGE, EXPECTED_SPAN_LENGTH);
+  }
+
+  /**
+   * Creates a trace of requests for small segments with skewed popularity, interleaved with
+   * sequential scans over segments that are requested once and with requests for large files.
+   */
+  private static ArrayList<TraceEntry> createTrace(Random random) {
+    ArrayList<TraceEntry> trace = new ArrayList<>();
+    int scanCount = 0;
+    for (int i = 0; i < 8000; i++) {
+      if (i % 1000 == 500) {
+        for (int j = 0; j < 150; j++) {
+          trace.add(new TraceEntry("scan" + scanCount + "." + j, 20));
+        }
+        trace.add(new TraceEntry("large" + scanCount, 600));
+        scanCount++;
+      }
+      // Segment popularity is skewed towards low indices.
+      double uniform = random.nextDouble();
+      int segment = (int) (300 * uniform * uniform * uniform);
+      trace.add(new TraceEntry("segment" + segment, 8 + (segment % 5) * 6));
+    }
+    return trace;
+  }
+
+  private void replay(CacheEvictor evictor, ArrayList<TraceEntry> trace) throws Exception {
+    simpleCache = new SimpleCache(cacheDir, evictor);
+    requestCount = 0;
+    hitCount = 0;
+    requestedBytes = 0;
+    hitBytes = 0;
+    for (int i = 0; i < trace.size(); i++) {
+      TraceEntry entry = trace.get(i);
+      request(entry.key, entry.length);
+    }
+    assertTrue(simpleCache.getCacheSpace() <= MAX_BYTES);
+  }
+
+  /**
+   * Requests a whole span, writing it to the cache on a miss.
+   */
+  private void request(String key, int length) throws Exception {
+    requestCount++;
+    requestedBytes += length;
+    CacheSpan span = simpleCache.startReadWriteNonBlocking(key, 0);
+    if (span.isCached) {
+      hitCount++;
+      hitBytes += length;
+      return;
+    }
+    writeSpan(key, length);
+    simpleCache.releaseHoleSpan(span);
+  }
+
+  private void writeSpan(String key, int length) throws IOException {
+    File file = simpleCache.startFile(key, 0, length);
+    FileOutputStream fos = new FileOutputStream(file);
+    fos.write(new byte[length]);
+    fos.close();
+    simpleCache.commitFile(file);
+  }
+
+  private static final class TraceEntry {
+
+    public final String key;
+    public final int length;
+
+    public TraceEntry(String key, int length) {
+      this.key = key;
+      this.length = length;
+    }
+
+  }
+
+}
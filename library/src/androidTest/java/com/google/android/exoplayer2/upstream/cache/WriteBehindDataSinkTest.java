@@ -0,0 +1,240 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.exoplayer2.upstream.cache;
+
+import android.net.Uri;
+import android.test.InstrumentationTestCase;
+import android.test.MoreAsserts;
+import com.google.android.exoplayer2.C;
+import com.google.android.exoplayer2.testutil.TestUtil;
+import com.google.android.exoplayer2.upstream.DataSink;
+import com.google.android.exoplayer2.upstream.DataSpec;
+import com.google.android.exoplayer2.upstream.FileDataSource;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Unit tests for {@link WriteBehindDataSink}.
+ */
+public class WriteBehindDataSinkTest extends InstrumentationTestCase {
+
+  private static final String KEY = "key";
+  private static final int WRITE_LENGTH = 1000;
+
+  private File cacheDir;
+  private SimpleCache simpleCache;
+
+  @Override
+  protected void setUp() throws Exception {
+    cacheDir = TestUtil.createTempFolder(getInstrumentation().getContext());
+    simpleCache = new SimpleCache(cacheDir, new NoOpCacheEvictor());
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    TestUtil.recursiveDelete(cacheDir);
+  }
+
+  public void testWriteToCache() throws Exception {
+    byte[] data = TestUtil.buildTestData(100 * WRITE_LENGTH);
+    WriteBehindDataSink sink = new WriteBehindDataSink(new CacheDataSink(simpleCache, 30000),
+        4 * WRITE_LENGTH, WriteBehindDataSink.BACK_PRESSURE_POLICY_BLOCK);
+    CacheSpan holeSpan = simpleCache.startReadWrite(KEY, 0);
+    sink.open(new DataSpec(Uri.EMPTY, 0, data.length, KEY));
+    for (int i = 0; i < data.length; i += WRITE_LENGTH) {
+      sink.write(data, i, WRITE_LENGTH);
+      assertTrue(sink.getQueuedBytes() <= 4 * WRITE_LENGTH);
+    }
+    sink.close();
+    simpleCache.releaseHoleSpan(holeSpan);
+
+    assertEquals(0, sink.getQueuedBytes());
+    assertEquals(0, sink.getDroppedBytes());
+    assertTrue(sink.getPeakQueuedBytes() <= 4 * WRITE_LENGTH);
+    assertEquals(4, simpleCache.getCachedSpans(KEY).size());
+    MoreAsserts.assertEquals(data, readCachedData(data.length));
+  }
+
+  public void testBlockPolicy() throws Exception {
+    BlockingDataSink blockingSink = new BlockingDataSink();
+    WriteBehindDataSink sink = new WriteBehindDataSink(blockingSink, 2 * WRITE_LENGTH,
+        WriteBehindDataSink.BACK_PRESSURE_POLICY_BLOCK);
+    byte[] data = TestUtil.buildTestData(10 * WRITE_LENGTH);
+    sink.open(new DataSpec(Uri.EMPTY, 0, data.length, KEY));
+    sink.write(data, 0, WRITE_LENGTH);
+    blockingSink.awaitFirstWrite();
+    // The write that's blocked in the wrapped sink remains queued until it completes.
+    sink.write(data, WRITE_LENGTH, WRITE_LENGTH);
+    assertEquals(2 * WRITE_LENGTH, sink.getQueuedBytes());
+    blockingSink.unblock();
+    for (int i = 2 * WRITE_LENGTH; i < data.length; i += WRITE_LENGTH) {
+      sink.write(data, i, WRITE_LENGTH);
+    }
+    sink.close();
+
+    assertEquals(0, sink.getDroppedBytes());
+    assertTrue(blockingSink.closed);
+    MoreAsserts.assertEquals(data, blockingSink.output.toByteArray());
+  }
+
+  public void testDropPolicy() throws Exception {
+    BlockingDataSink blockingSink = new BlockingDataSink();
+    WriteBehindDataSink sink = new WriteBehindDataSink(blockingSink, 2 * WRITE_LENGTH,
+        WriteBehindDataSink.BACK_PRESSURE_POLICY_DROP);
+    byte[] data = TestUtil.buildTestData(10 * WRITE_LENGTH);
+    sink.open(new DataSpec(Uri.EMPTY, 0, data.length, KEY));
+    sink.write(data, 0, WRITE_LENGTH);
+    blockingSink.awaitFirstWrite();
+    for (int i = WRITE_LENGTH; i < data.length; i += WRITE_LENGTH) {
+      sink.write(data, i, WRITE_LENGTH);
+    }
+    // The write that didn't fit in the queue and all subsequent writes are dropped.
+    assertEquals(8 * WRITE_LENGTH, sink.getDroppedBytes());
+    blockingSink.unblock();
+    sink.close();
+
+    assertEquals(2 * WRITE_LENGTH, sink.getPeakQueuedBytes());
+    assertTrue(blockingSink.closed);
+    MoreAsserts.assertEquals(Arrays.copyOf(data, 2 * WRITE_LENGTH),
+        blockingSink.output.toByteArray());
+  }
+
+  public void testDropPolicyReleasesSpan() throws Exception {
+    byte[] data = TestUtil.buildTestData(10 * WRITE_LENGTH);
+    WriteBehindDataSink sink = new WriteBehindDataSink(new CacheDataSink(simpleCache, 30000),
+        WRITE_LENGTH, WriteBehindDataSink.BACK_PRESSURE_POLICY_DROP);
+    CacheSpan holeSpan = simpleCache.startReadWrite(KEY, 0);
+    sink.open(new DataSpec(Uri.EMPTY, 0, data.length, KEY));
+    for (int i = 0; i < data.length; i += WRITE_LENGTH) {
+      sink.write(data, i, WRITE_LENGTH);
+    }
+    sink.close();
+    simpleCache.releaseHoleSpan(holeSpan);
+
+    // Whatever was written before the first dropped write is committed as a prefix of the data.
+    long cachedLength = data.length - sink.getDroppedBytes();
+    assertEquals(cachedLength, simpleCache.getCacheSpace());
+    if (cachedLength > 0) {
+      MoreAsserts.assertEquals(Arrays.copyOf(data, (int) cachedLength),
+          readCachedData((int) cachedLength));
+    }
+  }
+
+  public void testWriterExceptionIsPropagated() throws Exception {
+    final IOException exception = new IOException();
+    WriteBehindDataSink sink = new WriteBehindDataSink(new BlockingDataSink() {
+      @Override
+      public void write(byte[] buffer, int offset, int length) throws IOException {
+        throw exception;
+      }
+    });
+    sink.open(new DataSpec(Uri.EMPTY, 0, WRITE_LENGTH, KEY));
+    sink.write(new byte[WRITE_LENGTH], 0, WRITE_LENGTH);
+    try {
+      sink.close();
+      fail();
+    } catch (IOException e) {
+      assertSame(exception, e);
+    }
+  }
+
+  public void testWriterThreadIsReusedAcrossOpens() throws Exception {
+    final Thread[] writerThreads = new Thread[2];
+    WriteBehindDataSink sink = new WriteBehindDataSink(new BlockingDataSink() {
+      private int openCount;
+
+      @Override
+      public void open(DataSpec dataSpec) {
+        writerThreads[openCount++] = Thread.currentThread();
+      }
+
+      @Override
+      public void write(byte[] buffer, int offset, int length) throws IOException {
+        output.write(buffer, offset, length);
+      }
+    });
+    for (int i = 0; i < writerThreads.length; i++) {
+      sink.open(new DataSpec(Uri.EMPTY, 0, WRITE_LENGTH, KEY));
+      sink.write(new byte[WRITE_LENGTH], 0, WRITE_LENGTH);
+      sink.close();
+    }
+
+    assertNotNull(writerThreads[0]);
+    assertNotSame(Thread.currentThread(), writerThreads[0]);
+    assertSame(writerThreads[0], writerThreads[1]);
+  }
+
+  private byte[] readCachedData(int length) throws IOException {
+    CacheDataSource cacheDataSource = new CacheDataSource(simpleCache, new FileDataSource(), 0);
+    cacheDataSource.open(new DataSpec(Uri.EMPTY, 0, length, KEY));
+    byte[] buffer = new byte[length];
+    int position = 0;
+    int bytesRead;
+    while (position < length && (bytesRead = cacheDataSource.read(buffer, position,
+        length - position)) != C.RESULT_END_OF_INPUT) {
+      position += bytesRead;
+    }
+    cacheDataSource.close();
+    return Arrays.copyOf(buffer, position);
+  }
+
+  /**
+   * A {@link DataSink} that records written data, and whose first write blocks until
+   * {@link #unblock()} is called.
+   */
+  private static class BlockingDataSink implements DataSink {
+
+    public final ByteArrayOutputStream output = new ByteArrayOutputStream();
+    public volatile boolean closed;
+
+    private final CountDownLatch firstWriteStarted = new CountDownLatch(1);
+    private final CountDownLatch unblocked = new CountDownLatch(1);
+
+    @Override
+    public void open(DataSpec dataSpec) {
+      // Do nothing.
+    }
+
+    @Override
+    public void write(byte[] buffer, int offset, int length) throws IOException {
+      firstWriteStarted.countDown();
+      try {
+        unblocked.await();
+      } catch (InterruptedException e) {
+        throw new IOException(e);
+      }
+      output.write(buffer, offset, length);
+    }
+
+    @Override
+    public void close() {
+      closed = true;
+    }
+
+    public void awaitFirstWrite() throws InterruptedException {
+      firstWriteStarted.await();
+    }
+
+    public void unblock() {
+      unblocked.countDown();
+    }
+
+  }
+
+}
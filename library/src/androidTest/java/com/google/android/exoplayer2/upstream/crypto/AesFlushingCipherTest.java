@@ -0,0 +1,88 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.exoplayer2.upstream.crypto;
+
+import android.test.MoreAsserts;
+import com.google.android.exoplayer2.testutil.TestUtil;
+import java.util.Arrays;
+import java.util.Random;
+import junit.framework.TestCase;
+
+/**
+ * Unit tests for {@link AesFlushingCipher}.
+ */
+public class AesFlushingCipherTest extends TestCase {
+
+  private static final byte[] SECRET_KEY = "testsecretkey123".getBytes();
+  private static final long NONCE = 0x123456789abcdefL;
+  private static final int DATA_LENGTH = 1000;
+
+  private byte[] data;
+  private byte[] encryptedData;
+
+  @Override
+  protected void setUp() throws Exception {
+    data = TestUtil.buildTestData(DATA_LENGTH);
+    encryptedData = new byte[DATA_LENGTH];
+    AesFlushingCipher cipher = new AesFlushingCipher(SECRET_KEY);
+    cipher.init(NONCE, 0);
+    cipher.update(data, 0, DATA_LENGTH, encryptedData, 0);
+  }
+
+  public void testEncryptionChangesData() {
+    assertFalse(Arrays.equals(data, encryptedData));
+    AesFlushingCipher cipher = new AesFlushingCipher(SECRET_KEY);
+    cipher.init(NONCE + 1, 0);
+    byte[] otherEncryptedData = new byte[DATA_LENGTH];
+    cipher.update(data, 0, DATA_LENGTH, otherEncryptedData, 0);
+    assertFalse(Arrays.equals(encryptedData, otherEncryptedData));
+  }
+
+  public void testUnalignedUpdates() {
+    // Encrypting in updates of any size produces the same output as encrypting in one update.
+    Random random = new Random(0);
+    AesFlushingCipher cipher = new AesFlushingCipher(SECRET_KEY);
+    cipher.init(NONCE, 0);
+    byte[] output = new byte[DATA_LENGTH];
+    int offset = 0;
+    while (offset < DATA_LENGTH) {
+      int length = Math.min(DATA_LENGTH - offset, 1 + random.nextInt(40));
+      cipher.update(data, offset, length, output, offset);
+      offset += length;
+    }
+    MoreAsserts.assertEquals(encryptedData, output);
+  }
+
+  public void testDecryptFromAnyPosition() {
+    // The same instance is reused for each read, as a data source would.
+    Random random = new Random(0);
+    AesFlushingCipher cipher = new AesFlushingCipher(SECRET_KEY);
+    for (int i = 0; i < 100; i++) {
+      int position = random.nextInt(DATA_LENGTH);
+      int length = 1 + random.nextInt(DATA_LENGTH - position);
+      byte[] buffer = Arrays.copyOfRange(encryptedData, position, position + length);
+      cipher.init(NONCE, position);
+      int offset = 0;
+      while (offset < length) {
+        int updateLength = Math.min(length - offset, 1 + random.nextInt(50));
+        cipher.updateInPlace(buffer, offset, updateLength);
+        offset += updateLength;
+      }
+      MoreAsserts.assertEquals(Arrays.copyOfRange(data, position, position + length), buffer);
+    }
+  }
+
+}
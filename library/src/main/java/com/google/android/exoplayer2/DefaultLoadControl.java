@@ -19,6 +19,7 @@ import com.google.android.exoplayer2.source.TrackGroupArray;
 import com.google.android.exoplayer2.trackselection.TrackSelectionArray;
 import com.google.android.exoplayer2.upstream.Allocator;
 import com.google.android.exoplayer2.upstream.DefaultAllocator;
+import com.google.android.exoplayer2.upstream.SharedAllocator;
 import com.google.android.exoplayer2.util.Util;
 
 /**
@@ -55,6 +56,7 @@ public final class DefaultLoadControl implements LoadControl {
   private static final int BELOW_LOW_WATERMARK = 2;
 
   private final DefaultAllocator allocator;
+  private final SharedAllocator.Participant participant;
 
   private final long minBufferUs;
   private final long maxBufferUs;
@@ -97,7 +99,39 @@ public final class DefaultLoadControl implements LoadControl {
    */
   public DefaultLoadControl(DefaultAllocator allocator, int minBufferMs, int maxBufferMs,
       long bufferForPlaybackMs, long bufferForPlaybackAfterRebufferMs) {
+    this(allocator, null, minBufferMs, maxBufferMs, bufferForPlaybackMs,
+        bufferForPlaybackAfterRebufferMs);
+  }
+
+  /**
+   * Constructs a new instance that obtains allocations as a participant in a
+   * {@link SharedAllocator}. Loading is additionally stopped whilst the participant isn't allowed
+   * to load by the shared allocator. Playback starts once the participant has buffered its budget,
+   * even if less than the duration required to start playback is buffered. The participant is
+   * released when the player is released.
+   *
+   * @param participant The {@link SharedAllocator.Participant} used by the loader.
+   * @param minBufferMs The minimum duration of media that the player will attempt to ensure is
+   *     buffered at all times, in milliseconds.
+   * @param maxBufferMs The maximum duration of media that the player will attempt buffer, in
+   *     milliseconds.
+   * @param bufferForPlaybackMs The duration of media that must be buffered for playback to start or
+   *     resume following a user action such as a seek, in milliseconds.
+   * @param bufferForPlaybackAfterRebufferMs The default duration of media that must be buffered for
+   *     playback to resume after a rebuffer, in milliseconds. A rebuffer is defined to be caused by
+   *     buffer depletion rather than a user action.
+   */
+  public DefaultLoadControl(SharedAllocator.Participant participant, int minBufferMs,
+      int maxBufferMs, long bufferForPlaybackMs, long bufferForPlaybackAfterRebufferMs) {
+    this(null, participant, minBufferMs, maxBufferMs, bufferForPlaybackMs,
+        bufferForPlaybackAfterRebufferMs);
+  }
+
+  private DefaultLoadControl(DefaultAllocator allocator, SharedAllocator.Participant participant,
+      int minBufferMs, int maxBufferMs, long bufferForPlaybackMs,
+      long bufferForPlaybackAfterRebufferMs) {
     this.allocator = allocator;
+    this.participant = participant;
     minBufferUs = minBufferMs * 1000L;
     maxBufferUs = maxBufferMs * 1000L;
     bufferForPlaybackUs = bufferForPlaybackMs * 1000L;
@@ -118,7 +152,11 @@ public final class DefaultLoadControl implements LoadControl {
         targetBufferSize += Util.getDefaultBufferSize(renderers[i].getTrackType());
       }
     }
-    allocator.setTargetBufferSize(targetBufferSize);
+    if (participant != null) {
+      participant.setTargetBufferSize(targetBufferSize);
+    } else {
+      allocator.setTargetBufferSize(targetBufferSize);
+    }
   }
 
   @Override
@@ -129,28 +167,48 @@ public final class DefaultLoadControl implements LoadControl {
   @Override
   public void onReleased() {
     reset(true);
+    if (participant != null) {
+      participant.release();
+    }
   }
 
   @Override
   public Allocator getAllocator() {
-    return allocator;
+    return participant != null ? participant : allocator;
   }
 
   @Override
   public boolean shouldStartPlayback(long bufferedDurationUs, boolean rebuffering) {
     long minBufferDurationUs = rebuffering ? bufferForPlaybackAfterRebufferUs : bufferForPlaybackUs;
-    return minBufferDurationUs <= 0 || bufferedDurationUs >= minBufferDurationUs;
+    return minBufferDurationUs <= 0 || bufferedDurationUs >= minBufferDurationUs
+        || isParticipantBudgetReached();
   }
 
   @Override
   public boolean shouldContinueLoading(long bufferedDurationUs) {
     int bufferTimeState = getBufferTimeState(bufferedDurationUs);
-    boolean targetBufferSizeReached = allocator.getTotalBytesAllocated() >= targetBufferSize;
+    boolean targetBufferSizeReached = getAllocator().getTotalBytesAllocated() >= targetBufferSize;
     isBuffering = bufferTimeState == BELOW_LOW_WATERMARK
         || (bufferTimeState == BETWEEN_WATERMARKS && isBuffering && !targetBufferSizeReached);
+    if (participant != null) {
+      isBuffering = participant.continueLoading(isBuffering);
+    }
     return isBuffering;
   }
 
+  /**
+   * Returns whether the participant has buffered as much as the shared allocator allows, in which
+   * case it won't load further until playback frees some of its buffer. Always false if the loader
+   * doesn't obtain allocations as a participant, or if it has nothing buffered.
+   */
+  private boolean isParticipantBudgetReached() {
+    if (participant == null) {
+      return false;
+    }
+    int bytesAllocated = participant.getTotalBytesAllocated();
+    return bytesAllocated > 0 && bytesAllocated >= participant.getBudgetBytes();
+  }
+
   private int getBufferTimeState(long bufferedDurationUs) {
     return bufferedDurationUs > maxBufferUs ? ABOVE_HIGH_WATERMARK
         : (bufferedDurationUs < minBufferUs ? BELOW_LOW_WATERMARK : BETWEEN_WATERMARKS);
@@ -159,7 +217,9 @@ public final class DefaultLoadControl implements LoadControl {
   private void reset(boolean resetAllocator) {
     targetBufferSize = 0;
     isBuffering = false;
-    if (resetAllocator) {
+    if (participant != null) {
+      participant.reset();
+    } else if (resetAllocator) {
       allocator.reset();
     }
   }
@@ -0,0 +1,338 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.exoplayer2;
+
+import android.content.ComponentCallbacks2;
+import android.os.SystemClock;
+import com.google.android.exoplayer2.source.TrackGroupArray;
+import com.google.android.exoplayer2.trackselection.TrackSelection;
+import com.google.android.exoplayer2.trackselection.TrackSelectionArray;
+import com.google.android.exoplayer2.upstream.Allocator;
+import com.google.android.exoplayer2.upstream.DefaultAllocator;
+import com.google.android.exoplayer2.util.Util;
+
+/**
+ * A {@link LoadControl} that budgets the buffer by both duration and size.
+ * <p>
+ * The target buffer size of each enabled renderer is the number of bytes needed to buffer the
+ * maximum buffer duration at the highest bitrate of its selected formats, or the default for its
+ * track type if the bitrate is unknown. As for {@link DefaultLoadControl}, loading continues until
+ * the minimum buffer duration is buffered, and then until either the maximum duration or the
+ * target size is reached. In addition, the total buffer size is capped by a memory budget, which
+ * stops loading and allows playback to start once it's reached, whatever the buffered duration.
+ * <p>
+ * The budget is reduced when the application forwards memory pressure signals to
+ * {@link #onTrimMemory(int)} or {@link #onLowMemory()}, which also trims the allocator. Since the
+ * platform doesn't signal when memory pressure ends, the budget is restored once no signal has been
+ * received for a recovery period.
+ * <p>
+ * The buffer occupancy reported to the player is exposed through getters that may be called from
+ * any thread.
+ */
+public final class MemoryAwareLoadControl implements LoadControl {
+
+  /**
+   * The default maximum number of bytes that the player will buffer, in the absence of memory
+   * pressure.
+   */
+  public static final int DEFAULT_MAX_BUFFER_BYTES = C.DEFAULT_MUXED_BUFFER_SIZE;
+
+  /**
+   * The default period after the last memory pressure signal for which the budget remains reduced,
+   * in milliseconds.
+   */
+  public static final int DEFAULT_MEMORY_PRESSURE_RECOVERY_MS = 30000;
+
+  private static final int ABOVE_HIGH_WATERMARK = 0;
+  private static final int BETWEEN_WATERMARKS = 1;
+  private static final int BELOW_LOW_WATERMARK = 2;
+
+  /**
+   * Factor applied to selected bitrates to allow for variable bitrate media and container overhead.
+   */
+  private static final float BITRATE_HEADROOM = 1.25f;
+
+  private final DefaultAllocator allocator;
+  private final int maxBufferBytes;
+  private final long minBufferUs;
+  private final long maxBufferUs;
+  private final long bufferForPlaybackUs;
+  private final long bufferForPlaybackAfterRebufferUs;
+  private final long memoryPressureRecoveryMs;
+
+  private volatile int[] rendererTargetBufferBytes;
+  private volatile int targetBufferBytes;
+  private volatile int memoryPressureDivisor;
+  private volatile long lastMemoryPressureTimeMs;
+  private volatile long bufferedDurationUs;
+  private boolean isBuffering;
+
+  /**
+   * Constructs a new instance, using the {@code DEFAULT_*} constants defined in this class and in
+   * {@link DefaultLoadControl}.
+   */
+  public MemoryAwareLoadControl() {
+    this(new DefaultAllocator(true, C.DEFAULT_BUFFER_SEGMENT_SIZE));
+  }
+
+  /**
+   * Constructs a new instance, using the {@code DEFAULT_*} constants defined in this class and in
+   * {@link DefaultLoadControl}.
+   *
+   * @param allocator The {@link DefaultAllocator} used by the loader.
+   */
+  public MemoryAwareLoadControl(DefaultAllocator allocator) {
+    this(allocator, DEFAULT_MAX_BUFFER_BYTES, DefaultLoadControl.DEFAULT_MIN_BUFFER_MS,
+        DefaultLoadControl.DEFAULT_MAX_BUFFER_MS, DefaultLoadControl.DEFAULT_BUFFER_FOR_PLAYBACK_MS,
+        DefaultLoadControl.DEFAULT_BUFFER_FOR_PLAYBACK_AFTER_REBUFFER_MS,
+        DEFAULT_MEMORY_PRESSURE_RECOVERY_MS);
+  }
+
+  /**
+   * Constructs a new instance.
+   *
+   * @param allocator The {@link DefaultAllocator} used by the loader.
+   * @param maxBufferBytes The maximum number of bytes that the player will buffer, in the absence
+   *     of memory pressure.
+   * @param minBufferMs The minimum duration of media that the player will attempt to ensure is
+   *     buffered at all times, in milliseconds.
+   * @param maxBufferMs The maximum duration of media that the player will attempt buffer, in
+   *     milliseconds.
+   * @param bufferForPlaybackMs The duration of media that must be buffered for playback to start or
+   *     resume following a user action such as a seek, in milliseconds.
+   * @param bufferForPlaybackAfterRebufferMs The default duration of media that must be buffered for
+   *     playback to resume after a rebuffer, in milliseconds. A rebuffer is defined to be caused by
+   *     buffer depletion rather than a user action.
+   * @param memoryPressureRecoveryMs The period after the last memory pressure signal for which the
+   *     maximum number of bytes buffered remains reduced, in milliseconds.
+   */
+  public MemoryAwareLoadControl(DefaultAllocator allocator, int maxBufferBytes, int minBufferMs,
+      int maxBufferMs, long bufferForPlaybackMs, long bufferForPlaybackAfterRebufferMs,
+      long memoryPressureRecoveryMs) {
+    this.allocator = allocator;
+    this.maxBufferBytes = maxBufferBytes;
+    this.memoryPressureRecoveryMs = memoryPressureRecoveryMs;
+    minBufferUs = minBufferMs * 1000L;
+    maxBufferUs = maxBufferMs * 1000L;
+    bufferForPlaybackUs = bufferForPlaybackMs * 1000L;
+    bufferForPlaybackAfterRebufferUs = bufferForPlaybackAfterRebufferMs * 1000L;
+    rendererTargetBufferBytes = new int[0];
+    memoryPressureDivisor = 1;
+  }
+
+  /**
+   * Reduces the maximum number of bytes buffered in response to a memory pressure signal, and
+   * trims the allocator accordingly. May be called from any thread, and is typically forwarded
+   * from {@link ComponentCallbacks2#onTrimMemory(int)}.
+   *
+   * @param level The trim memory level, as defined by {@link ComponentCallbacks2}.
+   */
+  public void onTrimMemory(int level) {
+    int divisor;
+    if (level >= ComponentCallbacks2.TRIM_MEMORY_MODERATE) {
+      // The process is likely to be killed. Keep only a small buffer.
+      divisor = 4;
+    } else if (level >= ComponentCallbacks2.TRIM_MEMORY_BACKGROUND) {
+      divisor = 2;
+    } else if (level >= ComponentCallbacks2.TRIM_MEMORY_UI_HIDDEN) {
+      // Hiding the UI doesn't indicate memory pressure.
+      return;
+    } else if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL) {
+      divisor = 4;
+    } else if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW) {
+      divisor = 2;
+    } else {
+      divisor = 1;
+    }
+    onMemoryPressure(divisor);
+  }
+
+  /**
+   * Reduces the maximum number of bytes buffered to a minimum, and trims the allocator
+   * accordingly. May be called from any thread, and is typically forwarded from
+   * {@link android.content.ComponentCallbacks#onLowMemory()}.
+   */
+  public void onLowMemory() {
+    onMemoryPressure(4);
+  }
+
+  /**
+   * Returns the duration of media that was buffered when the player last determined whether to
+   * continue loading, in microseconds.
+   */
+  public long getBufferedDurationUs() {
+    return bufferedDurationUs;
+  }
+
+  /**
+   * Returns the number of bytes currently buffered.
+   */
+  public int getBufferedBytes() {
+    return allocator.getTotalBytesAllocated();
+  }
+
+  /**
+   * Returns an estimate of the number of bytes currently buffered for a renderer, by apportioning
+   * the bytes buffered in proportion to the target buffer sizes of the enabled renderers.
+   *
+   * @param rendererIndex The index of the renderer.
+   * @return The estimated number of bytes buffered for the renderer, or 0 if it isn't enabled.
+   */
+  public int getRendererBufferedBytes(int rendererIndex) {
+    int[] rendererTargetBufferBytes = this.rendererTargetBufferBytes;
+    long targetBufferBytes = 0;
+    for (int bytes : rendererTargetBufferBytes) {
+      targetBufferBytes += bytes;
+    }
+    if (rendererIndex >= rendererTargetBufferBytes.length || targetBufferBytes == 0) {
+      return 0;
+    }
+    return (int) (getBufferedBytes() * (long) rendererTargetBufferBytes[rendererIndex]
+        / targetBufferBytes);
+  }
+
+  /**
+   * Returns the target buffer size for a renderer, in bytes, or 0 if it isn't enabled.
+   *
+   * @param rendererIndex The index of the renderer.
+   */
+  public int getRendererTargetBufferBytes(int rendererIndex) {
+    int[] rendererTargetBufferBytes = this.rendererTargetBufferBytes;
+    return rendererIndex < rendererTargetBufferBytes.length
+        ? rendererTargetBufferBytes[rendererIndex] : 0;
+  }
+
+  /**
+   * Returns the current maximum number of bytes that the player will buffer, taking into account
+   * any reduction due to memory pressure.
+   */
+  public int getMaxBufferBytes() {
+    if (memoryPressureDivisor > 1
+        && SystemClock.elapsedRealtime() - lastMemoryPressureTimeMs >= memoryPressureRecoveryMs) {
+      memoryPressureDivisor = 1;
+    }
+    return maxBufferBytes / memoryPressureDivisor;
+  }
+
+  // LoadControl implementation.
+
+  @Override
+  public void onPrepared() {
+    reset(false);
+  }
+
+  @Override
+  public void onTracksSelected(Renderer[] renderers, TrackGroupArray trackGroups,
+      TrackSelectionArray trackSelections) {
+    int[] rendererTargetBufferBytes = new int[renderers.length];
+    int targetBufferBytes = 0;
+    for (int i = 0; i < renderers.length; i++) {
+      TrackSelection trackSelection = trackSelections.get(i);
+      if (trackSelection != null) {
+        rendererTargetBufferBytes[i] = getTargetBufferBytes(renderers[i].getTrackType(),
+            trackSelection);
+        targetBufferBytes += rendererTargetBufferBytes[i];
+      }
+    }
+    this.rendererTargetBufferBytes = rendererTargetBufferBytes;
+    this.targetBufferBytes = targetBufferBytes;
+    updateAllocatorTargetBufferSize();
+  }
+
+  @Override
+  public void onStopped() {
+    reset(true);
+  }
+
+  @Override
+  public void onReleased() {
+    reset(true);
+  }
+
+  @Override
+  public Allocator getAllocator() {
+    return allocator;
+  }
+
+  @Override
+  public boolean shouldStartPlayback(long bufferedDurationUs, boolean rebuffering) {
+    long minBufferDurationUs = rebuffering ? bufferForPlaybackAfterRebufferUs : bufferForPlaybackUs;
+    return minBufferDurationUs <= 0 || bufferedDurationUs >= minBufferDurationUs
+        || getBufferedBytes() >= getMaxBufferBytes();
+  }
+
+  @Override
+  public boolean shouldContinueLoading(long bufferedDurationUs) {
+    this.bufferedDurationUs = bufferedDurationUs;
+    int bufferedBytes = getBufferedBytes();
+    int maxBufferBytes = getMaxBufferBytes();
+    if (bufferedBytes >= maxBufferBytes) {
+      isBuffering = false;
+      return false;
+    }
+    int bufferTimeState = getBufferTimeState(bufferedDurationUs);
+    boolean targetBufferSizeReached = bufferedBytes >= Math.min(targetBufferBytes, maxBufferBytes);
+    isBuffering = bufferTimeState == BELOW_LOW_WATERMARK
+        || (bufferTimeState == BETWEEN_WATERMARKS && isBuffering && !targetBufferSizeReached);
+    return isBuffering;
+  }
+
+  // Internal methods.
+
+  private int getTargetBufferBytes(int trackType, TrackSelection trackSelection) {
+    int maxBitrate = Format.NO_VALUE;
+    for (int i = 0; i < trackSelection.length(); i++) {
+      maxBitrate = Math.max(maxBitrate, trackSelection.getFormat(i).bitrate);
+    }
+    if (maxBitrate == Format.NO_VALUE) {
+      return Util.getDefaultBufferSize(trackType);
+    }
+    long bytes = (long) (maxBitrate * BITRATE_HEADROOM * maxBufferUs / (8 * C.MICROS_PER_SECOND));
+    // Allow for the last allocation of the track's sample queue being partially filled.
+    int allocationLength = allocator.getIndividualAllocationLength();
+    bytes = Util.ceilDivide(bytes, allocationLength) * allocationLength + allocationLength;
+    return (int) Math.min(bytes, Integer.MAX_VALUE);
+  }
+
+  private void onMemoryPressure(int divisor) {
+    lastMemoryPressureTimeMs = SystemClock.elapsedRealtime();
+    if (divisor > memoryPressureDivisor) {
+      memoryPressureDivisor = divisor;
+    }
+    updateAllocatorTargetBufferSize();
+  }
+
+  private synchronized void updateAllocatorTargetBufferSize() {
+    // The allocator trims any available allocations beyond the reduced target.
+    allocator.setTargetBufferSize(Math.min(targetBufferBytes, getMaxBufferBytes()));
+  }
+
+  private int getBufferTimeState(long bufferedDurationUs) {
+    return bufferedDurationUs > maxBufferUs ? ABOVE_HIGH_WATERMARK
+        : (bufferedDurationUs < minBufferUs ? BELOW_LOW_WATERMARK : BETWEEN_WATERMARKS);
+  }
+
+  private void reset(boolean resetAllocator) {
+    rendererTargetBufferBytes = new int[0];
+    targetBufferBytes = 0;
+    bufferedDurationUs = 0;
+    isBuffering = false;
+    if (resetAllocator) {
+      allocator.reset();
+    }
+  }
+
+}
@@ -27,6 +27,7 @@ import com.google.android.exoplayer2.util.Util;
 import java.io.EOFException;
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.util.ArrayList;
 import java.util.concurrent.LinkedBlockingDeque;
 import java.util.concurrent.atomic.AtomicInteger;
 
@@ -225,6 +226,14 @@ public final class DefaultTrackOutput implements TrackOutput {
     return infoQueue.getLargestQueuedTimestampUs();
   }
 
+  /**
+   * Returns the number of bytes of allocations currently held by the buffer for sample data. May
+   * be called from any thread.
+   */
+  public long getBufferedBytes() {
+    return (long) dataQueue.size() * allocationLength;
+  }
+
   /**
    * Attempts to skip to the keyframe before the specified time, if it's present in the buffer.
    *
@@ -579,51 +588,66 @@ public final class DefaultTrackOutput implements TrackOutput {
 
   /**
    * Holds information about the samples in the rolling buffer.
+   * <p>
+   * The queue is a single-producer single-consumer queue. Samples are published by the loading
+   * thread advancing the write index after writing their information, and are released by the
+   * consuming thread advancing the read index after reading it. Both indices are advanced with
+   * ordered writes, so neither thread takes a lock to queue or read a sample. Splicing discards
+   * queued samples, so it's excluded from the consuming thread's operations by a handshake on two
+   * volatile flags, in which the loading thread waits for the short operation in progress on the
+   * consuming thread to finish.
+   * <p>
+   * Sample information is held in fixed size {@link Page}s, so that the capacity of the queue is
+   * increased by adding a page rather than by copying the information of every queued sample. The
+   * loading thread recycles pages that have been fully read as it adds new ones, and only the
+   * loading thread modifies the table of pages.
    */
   private static final class InfoQueue {
 
-    private static final int SAMPLE_CAPACITY_INCREMENT = 1000;
+    private static final int PAGE_SIZE_SHIFT = 8;
+    private static final int PAGE_SIZE = 1 << PAGE_SIZE_SHIFT;
+    private static final int PAGE_SLOT_MASK = PAGE_SIZE - 1;
+    private static final int INITIAL_PAGE_TABLE_SIZE = 4;
+    private static final int MAX_SPARE_PAGE_COUNT = 4;
 
-    private int capacity;
+    private final AtomicInteger readIndex;
+    private final AtomicInteger writeIndex;
+    private final ArrayList<Page> sparePages;
 
-    private int[] sourceIds;
-    private long[] offsets;
-    private int[] sizes;
-    private int[] flags;
-    private long[] timesUs;
-    private byte[][] encryptionKeys;
-    private Format[] formats;
+    // The page holding the sample with absolute index i is at (i / PAGE_SIZE) modulo the length of
+    // the table, which is a power of two.
+    private volatile Page[] pages;
+    // Accessed by the loading thread only, except when there is no loading thread.
+    private int firstPageIndex;
+    private int lastPageIndex;
 
-    private int queueSize;
-    private int absoluteReadIndex;
-    private int relativeReadIndex;
-    private int relativeWriteIndex;
+    private volatile boolean reading;
+    private volatile boolean splicing;
 
+    // Accessed by the consuming thread, and by the loading thread whilst splicing.
     private long largestDequeuedTimestampUs;
-    private long largestQueuedTimestampUs;
-    private boolean upstreamFormatRequired;
-    private Format upstreamFormat;
-    private int upstreamSourceId;
+    private volatile long largestQueuedTimestampUs;
+    private volatile boolean upstreamFormatRequired;
+    private volatile Format upstreamFormat;
+    private volatile int upstreamSourceId;
 
     public InfoQueue() {
-      capacity = SAMPLE_CAPACITY_INCREMENT;
-      sourceIds = new int[capacity];
-      offsets = new long[capacity];
-      timesUs = new long[capacity];
-      flags = new int[capacity];
-      sizes = new int[capacity];
-      encryptionKeys = new byte[capacity][];
-      formats = new Format[capacity];
+      readIndex = new AtomicInteger();
+      writeIndex = new AtomicInteger();
+      sparePages = new ArrayList<>();
+      pages = new Page[INITIAL_PAGE_TABLE_SIZE];
+      lastPageIndex = -1;
       largestDequeuedTimestampUs = Long.MIN_VALUE;
       largestQueuedTimestampUs = Long.MIN_VALUE;
       upstreamFormatRequired = true;
     }
 
     public void clearSampleData() {
-      absoluteReadIndex = 0;
-      relativeReadIndex = 0;
-      relativeWriteIndex = 0;
-      queueSize = 0;
+      readIndex.set(0);
+      writeIndex.set(0);
+      recyclePages(lastPageIndex + 1);
+      firstPageIndex = 0;
+      lastPageIndex = -1;
     }
 
     // Called by the consuming thread, but only when there is no loading thread.
@@ -637,7 +661,7 @@ public final class DefaultTrackOutput implements TrackOutput {
      * Returns the current absolute write index.
      */
     public int getWriteIndex() {
-      return absoluteReadIndex + queueSize;
+      return writeIndex.get();
     }
 
     /**
@@ -647,31 +671,39 @@ public final class DefaultTrackOutput implements TrackOutput {
      * @return The reduced total number of bytes written, after the samples have been discarded.
      */
     public long discardUpstreamSamples(int discardFromIndex) {
-      int discardCount = getWriteIndex() - discardFromIndex;
-      Assertions.checkArgument(0 <= discardCount && discardCount <= queueSize);
+      int readIndex = this.readIndex.get();
+      int writeIndex = this.writeIndex.get();
+      int discardCount = writeIndex - discardFromIndex;
+      Assertions.checkArgument(0 <= discardCount && discardCount <= writeIndex - readIndex);
 
+      Page[] pages = this.pages;
       if (discardCount == 0) {
-        if (absoluteReadIndex == 0) {
-          // queueSize == absoluteReadIndex == 0, so nothing has been written to the queue.
+        if (writeIndex == 0) {
+          // Nothing has been written to the queue.
           return 0;
         }
-        int lastWriteIndex = (relativeWriteIndex == 0 ? capacity : relativeWriteIndex) - 1;
-        return offsets[lastWriteIndex] + sizes[lastWriteIndex];
+        // The last sample written may have been read, but its page is retained until the sample
+        // before the read index has moved on from it.
+        int lastWriteIndex = writeIndex - 1;
+        Page page = getPage(pages, lastWriteIndex);
+        int slot = lastWriteIndex & PAGE_SLOT_MASK;
+        return page.offsets[slot] + page.sizes[slot];
       }
 
-      queueSize -= discardCount;
-      relativeWriteIndex = (relativeWriteIndex + capacity - discardCount) % capacity;
+      this.writeIndex.set(discardFromIndex);
       // Update the largest queued timestamp, assuming that the timestamps prior to a keyframe are
       // always less than the timestamp of the keyframe itself, and of subsequent frames.
-      largestQueuedTimestampUs = Long.MIN_VALUE;
-      for (int i = queueSize - 1; i >= 0; i--) {
-        int sampleIndex = (relativeReadIndex + i) % capacity;
-        largestQueuedTimestampUs = Math.max(largestQueuedTimestampUs, timesUs[sampleIndex]);
-        if ((flags[sampleIndex] & C.BUFFER_FLAG_KEY_FRAME) != 0) {
+      long largestQueuedTimestampUs = Long.MIN_VALUE;
+      for (int i = discardFromIndex - 1; i >= readIndex; i--) {
+        Page page = getPage(pages, i);
+        int slot = i & PAGE_SLOT_MASK;
+        largestQueuedTimestampUs = Math.max(largestQueuedTimestampUs, page.timesUs[slot]);
+        if ((page.flags[slot] & C.BUFFER_FLAG_KEY_FRAME) != 0) {
           break;
         }
       }
-      return offsets[relativeWriteIndex];
+      this.largestQueuedTimestampUs = largestQueuedTimestampUs;
+      return getPage(pages, discardFromIndex).offsets[discardFromIndex & PAGE_SLOT_MASK];
     }
 
     public void sourceId(int sourceId) {
@@ -684,7 +716,7 @@ public final class DefaultTrackOutput implements TrackOutput {
      * Returns the current absolute read index.
      */
     public int getReadIndex() {
-      return absoluteReadIndex;
+      return readIndex.get();
     }
 
     /**
@@ -692,20 +724,29 @@ public final class DefaultTrackOutput implements TrackOutput {
      * empty.
      */
     public int peekSourceId() {
-      return queueSize == 0 ? upstreamSourceId : sourceIds[relativeReadIndex];
+      beginRead();
+      try {
+        int readIndex = this.readIndex.get();
+        if (readIndex == writeIndex.get()) {
+          return upstreamSourceId;
+        }
+        return getPage(pages, readIndex).sourceIds[readIndex & PAGE_SLOT_MASK];
+      } finally {
+        endRead();
+      }
     }
 
     /**
      * Returns whether the queue is empty.
      */
-    public synchronized boolean isEmpty() {
-      return queueSize == 0;
+    public boolean isEmpty() {
+      return readIndex.get() == writeIndex.get();
     }
 
     /**
      * Returns the upstream {@link Format} in which samples are being queued.
      */
-    public synchronized Format getUpstreamFormat() {
+    public Format getUpstreamFormat() {
       return upstreamFormatRequired ? null : upstreamFormat;
     }
 
@@ -719,7 +760,7 @@ public final class DefaultTrackOutput implements TrackOutput {
      * @return The largest sample timestamp that has been queued, or {@link Long#MIN_VALUE} if no
      *     samples have been queued.
      */
-    public synchronized long getLargestQueuedTimestampUs() {
+    public long getLargestQueuedTimestampUs() {
       return Math.max(largestDequeuedTimestampUs, largestQueuedTimestampUs);
     }
 
@@ -739,39 +780,47 @@ public final class DefaultTrackOutput implements TrackOutput {
      * @return The result, which can be {@link C#RESULT_NOTHING_READ}, {@link C#RESULT_FORMAT_READ}
      *     or {@link C#RESULT_BUFFER_READ}.
      */
-    public synchronized int readData(FormatHolder formatHolder, DecoderInputBuffer buffer,
+    public int readData(FormatHolder formatHolder, DecoderInputBuffer buffer,
         Format downstreamFormat, BufferExtrasHolder extrasHolder) {
-      if (queueSize == 0) {
-        if (upstreamFormat != null && upstreamFormat != downstreamFormat) {
-          formatHolder.format = upstreamFormat;
-          return C.RESULT_FORMAT_READ;
+      beginRead();
+      try {
+        int readIndex = this.readIndex.get();
+        int writeIndex = this.writeIndex.get();
+        if (readIndex == writeIndex) {
+          Format upstreamFormat = this.upstreamFormat;
+          if (upstreamFormat != null && upstreamFormat != downstreamFormat) {
+            formatHolder.format = upstreamFormat;
+            return C.RESULT_FORMAT_READ;
+          }
+          return C.RESULT_NOTHING_READ;
         }
-        return C.RESULT_NOTHING_READ;
-      }
 
-      if (formats[relativeReadIndex] != downstreamFormat) {
-        formatHolder.format = formats[relativeReadIndex];
-        return C.RESULT_FORMAT_READ;
-      }
+        // The page table is read after the write index, so it holds the samples that were
+        // published.
+        Page[] pages = this.pages;
+        Page page = getPage(pages, readIndex);
+        int slot = readIndex & PAGE_SLOT_MASK;
+        if (page.formats[slot] != downstreamFormat) {
+          formatHolder.format = page.formats[slot];
+          return C.RESULT_FORMAT_READ;
+        }
 
-      buffer.timeUs = timesUs[relativeReadIndex];
-      buffer.setFlags(flags[relativeReadIndex]);
-      extrasHolder.size = sizes[relativeReadIndex];
-      extrasHolder.offset = offsets[relativeReadIndex];
-      extrasHolder.encryptionKeyId = encryptionKeys[relativeReadIndex];
-
-      largestDequeuedTimestampUs = Math.max(largestDequeuedTimestampUs, buffer.timeUs);
-      queueSize--;
-      relativeReadIndex++;
-      absoluteReadIndex++;
-      if (relativeReadIndex == capacity) {
-        // Wrap around.
-        relativeReadIndex = 0;
+        buffer.timeUs = page.timesUs[slot];
+        buffer.setFlags(page.flags[slot]);
+        extrasHolder.size = page.sizes[slot];
+        extrasHolder.offset = page.offsets[slot];
+        extrasHolder.encryptionKeyId = page.encryptionKeys[slot];
+        extrasHolder.nextOffset = readIndex + 1 < writeIndex
+            ? getPage(pages, readIndex + 1).offsets[(readIndex + 1) & PAGE_SLOT_MASK]
+            : extrasHolder.offset + extrasHolder.size;
+
+        largestDequeuedTimestampUs = Math.max(largestDequeuedTimestampUs, buffer.timeUs);
+        // Release the sample's slot to the loading thread.
+        this.readIndex.lazySet(readIndex + 1);
+        return C.RESULT_BUFFER_READ;
+      } finally {
+        endRead();
       }
-
-      extrasHolder.nextOffset = queueSize > 0 ? offsets[relativeReadIndex]
-          : extrasHolder.offset + extrasHolder.size;
-      return C.RESULT_BUFFER_READ;
     }
 
     /**
@@ -781,48 +830,73 @@ public final class DefaultTrackOutput implements TrackOutput {
      * @return The offset of the keyframe's data if the keyframe was present.
      *     {@link C#POSITION_UNSET} otherwise.
      */
-    public synchronized long skipToKeyframeBefore(long timeUs) {
-      if (queueSize == 0 || timeUs < timesUs[relativeReadIndex]) {
-        return C.POSITION_UNSET;
-      }
+    public long skipToKeyframeBefore(long timeUs) {
+      beginRead();
+      try {
+        int readIndex = this.readIndex.get();
+        int writeIndex = this.writeIndex.get();
+        Page[] pages = this.pages;
+        if (readIndex == writeIndex
+            || timeUs < getPage(pages, readIndex).timesUs[readIndex & PAGE_SLOT_MASK]) {
+          return C.POSITION_UNSET;
+        }
 
-      int lastWriteIndex = (relativeWriteIndex == 0 ? capacity : relativeWriteIndex) - 1;
-      long lastTimeUs = timesUs[lastWriteIndex];
-      if (timeUs > lastTimeUs) {
-        return C.POSITION_UNSET;
-      }
+        int lastWriteIndex = writeIndex - 1;
+        long lastTimeUs = getPage(pages, lastWriteIndex).timesUs[lastWriteIndex & PAGE_SLOT_MASK];
+        if (timeUs > lastTimeUs) {
+          return C.POSITION_UNSET;
+        }
 
-      // This could be optimized to use a binary search, however in practice callers to this method
-      // often pass times near to the start of the buffer. Hence it's unclear whether switching to
-      // a binary search would yield any real benefit.
-      int sampleCount = 0;
-      int sampleCountToKeyframe = -1;
-      int searchIndex = relativeReadIndex;
-      while (searchIndex != relativeWriteIndex) {
-        if (timesUs[searchIndex] > timeUs) {
-          // We've gone too far.
-          break;
-        } else if ((flags[searchIndex] & C.BUFFER_FLAG_KEY_FRAME) != 0) {
-          // We've found a keyframe, and we're still before the seek position.
-          sampleCountToKeyframe = sampleCount;
+        // This could be optimized to use a binary search, however in practice callers to this
+        // method often pass times near to the start of the buffer. Hence it's unclear whether
+        // switching to a binary search would yield any real benefit.
+        int keyframeIndex = -1;
+        for (int searchIndex = readIndex; searchIndex < writeIndex; searchIndex++) {
+          Page page = getPage(pages, searchIndex);
+          int slot = searchIndex & PAGE_SLOT_MASK;
+          if (page.timesUs[slot] > timeUs) {
+            // We've gone too far.
+            break;
+          } else if ((page.flags[slot] & C.BUFFER_FLAG_KEY_FRAME) != 0) {
+            // We've found a keyframe, and we're still before the seek position.
+            keyframeIndex = searchIndex;
+          }
         }
-        searchIndex = (searchIndex + 1) % capacity;
-        sampleCount++;
+
+        if (keyframeIndex == -1) {
+          return C.POSITION_UNSET;
+        }
+
+        long keyframeOffset =
+            getPage(pages, keyframeIndex).offsets[keyframeIndex & PAGE_SLOT_MASK];
+        this.readIndex.lazySet(keyframeIndex);
+        return keyframeOffset;
+      } finally {
+        endRead();
       }
+    }
 
-      if (sampleCountToKeyframe == -1) {
-        return C.POSITION_UNSET;
+    /**
+     * Excludes splicing by the loading thread until {@link #endRead()} is called, waiting for any
+     * splice in progress to finish.
+     */
+    private void beginRead() {
+      reading = true;
+      while (splicing) {
+        // Back off, so that the loading thread can complete the splice.
+        reading = false;
+        Thread.yield();
+        reading = true;
       }
+    }
 
-      queueSize -= sampleCountToKeyframe;
-      relativeReadIndex = (relativeReadIndex + sampleCountToKeyframe) % capacity;
-      absoluteReadIndex += sampleCountToKeyframe;
-      return offsets[relativeReadIndex];
+    private void endRead() {
+      reading = false;
     }
 
     // Called by the loading thread.
 
-    public synchronized boolean format(Format format) {
+    public boolean format(Format format) {
       if (format == null) {
         upstreamFormatRequired = true;
         return false;
@@ -837,67 +911,32 @@ public final class DefaultTrackOutput implements TrackOutput {
       }
     }
 
-    public synchronized void commitSample(long timeUs, @C.BufferFlags int sampleFlags, long offset,
-        int size, byte[] encryptionKey) {
+    public void commitSample(long timeUs, @C.BufferFlags int sampleFlags, long offset, int size,
+        byte[] encryptionKey) {
       Assertions.checkState(!upstreamFormatRequired);
       commitSampleTimestamp(timeUs);
-      timesUs[relativeWriteIndex] = timeUs;
-      offsets[relativeWriteIndex] = offset;
-      sizes[relativeWriteIndex] = size;
-      flags[relativeWriteIndex] = sampleFlags;
-      encryptionKeys[relativeWriteIndex] = encryptionKey;
-      formats[relativeWriteIndex] = upstreamFormat;
-      sourceIds[relativeWriteIndex] = upstreamSourceId;
-      // Increment the write index.
-      queueSize++;
-      if (queueSize == capacity) {
-        // Increase the capacity.
-        int newCapacity = capacity + SAMPLE_CAPACITY_INCREMENT;
-        int[] newSourceIds = new int[newCapacity];
-        long[] newOffsets = new long[newCapacity];
-        long[] newTimesUs = new long[newCapacity];
-        int[] newFlags = new int[newCapacity];
-        int[] newSizes = new int[newCapacity];
-        byte[][] newEncryptionKeys = new byte[newCapacity][];
-        Format[] newFormats = new Format[newCapacity];
-        int beforeWrap = capacity - relativeReadIndex;
-        System.arraycopy(offsets, relativeReadIndex, newOffsets, 0, beforeWrap);
-        System.arraycopy(timesUs, relativeReadIndex, newTimesUs, 0, beforeWrap);
-        System.arraycopy(flags, relativeReadIndex, newFlags, 0, beforeWrap);
-        System.arraycopy(sizes, relativeReadIndex, newSizes, 0, beforeWrap);
-        System.arraycopy(encryptionKeys, relativeReadIndex, newEncryptionKeys, 0, beforeWrap);
-        System.arraycopy(formats, relativeReadIndex, newFormats, 0, beforeWrap);
-        System.arraycopy(sourceIds, relativeReadIndex, newSourceIds, 0, beforeWrap);
-        int afterWrap = relativeReadIndex;
-        System.arraycopy(offsets, 0, newOffsets, beforeWrap, afterWrap);
-        System.arraycopy(timesUs, 0, newTimesUs, beforeWrap, afterWrap);
-        System.arraycopy(flags, 0, newFlags, beforeWrap, afterWrap);
-        System.arraycopy(sizes, 0, newSizes, beforeWrap, afterWrap);
-        System.arraycopy(encryptionKeys, 0, newEncryptionKeys, beforeWrap, afterWrap);
-        System.arraycopy(formats, 0, newFormats, beforeWrap, afterWrap);
-        System.arraycopy(sourceIds, 0, newSourceIds, beforeWrap, afterWrap);
-        offsets = newOffsets;
-        timesUs = newTimesUs;
-        flags = newFlags;
-        sizes = newSizes;
-        encryptionKeys = newEncryptionKeys;
-        formats = newFormats;
-        sourceIds = newSourceIds;
-        relativeReadIndex = 0;
-        relativeWriteIndex = capacity;
-        queueSize = capacity;
-        capacity = newCapacity;
-      } else {
-        relativeWriteIndex++;
-        if (relativeWriteIndex == capacity) {
-          // Wrap around.
-          relativeWriteIndex = 0;
-        }
+      int writeIndex = this.writeIndex.get();
+      int pageIndex = writeIndex >>> PAGE_SIZE_SHIFT;
+      if (pageIndex > lastPageIndex) {
+        addPage(pageIndex);
       }
+      Page page = getPage(pages, writeIndex);
+      int slot = writeIndex & PAGE_SLOT_MASK;
+      page.timesUs[slot] = timeUs;
+      page.offsets[slot] = offset;
+      page.sizes[slot] = size;
+      page.flags[slot] = sampleFlags;
+      page.encryptionKeys[slot] = encryptionKey;
+      page.formats[slot] = upstreamFormat;
+      page.sourceIds[slot] = upstreamSourceId;
+      // Publish the sample to the consuming thread.
+      this.writeIndex.lazySet(writeIndex + 1);
     }
 
-    public synchronized void commitSampleTimestamp(long timeUs) {
-      largestQueuedTimestampUs = Math.max(largestQueuedTimestampUs, timeUs);
+    public void commitSampleTimestamp(long timeUs) {
+      if (timeUs > largestQueuedTimestampUs) {
+        largestQueuedTimestampUs = timeUs;
+      }
     }
 
     /**
@@ -907,17 +946,112 @@ public final class DefaultTrackOutput implements TrackOutput {
      * @param timeUs The timestamp at which the splice occurs.
      * @return Whether the splice was successful.
      */
-    public synchronized boolean attemptSplice(long timeUs) {
-      if (largestDequeuedTimestampUs >= timeUs) {
-        return false;
+    public boolean attemptSplice(long timeUs) {
+      // Wait for the consuming thread to finish any operation in progress, and exclude further
+      // operations until the splice is complete.
+      splicing = true;
+      try {
+        while (reading) {
+          Thread.yield();
+        }
+        if (largestDequeuedTimestampUs >= timeUs) {
+          return false;
+        }
+        int readIndex = this.readIndex.get();
+        Page[] pages = this.pages;
+        int retainIndex = writeIndex.get();
+        while (retainIndex > readIndex) {
+          int index = retainIndex - 1;
+          if (getPage(pages, index).timesUs[index & PAGE_SLOT_MASK] < timeUs) {
+            break;
+          }
+          retainIndex--;
+        }
+        discardUpstreamSamples(retainIndex);
+        return true;
+      } finally {
+        splicing = false;
       }
-      int retainCount = queueSize;
-      while (retainCount > 0
-          && timesUs[(relativeReadIndex + retainCount - 1) % capacity] >= timeUs) {
-        retainCount--;
+    }
+
+    /**
+     * Adds the page with the specified index to the table, after recycling the pages that are no
+     * longer required.
+     */
+    private void addPage(int pageIndex) {
+      // The consuming thread may still read the sample at the read index, and the information of
+      // the sample before it is required if samples are discarded, so only pages before the one
+      // holding that sample are recycled. The read index can only have advanced since it was read.
+      int retainIndex = Math.max(readIndex.get() - 1, 0);
+      recyclePages(retainIndex >>> PAGE_SIZE_SHIFT);
+      Page[] pages = this.pages;
+      if (pageIndex - firstPageIndex >= pages.length) {
+        // Increase the size of the table. The consuming thread reads the pages from the new table
+        // once it's published, but they're also held by the current one until then.
+        Page[] newPages = new Page[pages.length * 2];
+        for (int i = firstPageIndex; i <= lastPageIndex; i++) {
+          newPages[i & (newPages.length - 1)] = pages[i & (pages.length - 1)];
+        }
+        this.pages = newPages;
+        pages = newPages;
       }
-      discardUpstreamSamples(absoluteReadIndex + retainCount);
-      return true;
+      int spareCount = sparePages.size();
+      pages[pageIndex & (pages.length - 1)] =
+          spareCount > 0 ? sparePages.remove(spareCount - 1) : new Page();
+      lastPageIndex = pageIndex;
+    }
+
+    /**
+     * Removes pages from the start of the table, keeping up to {@link #MAX_SPARE_PAGE_COUNT} of
+     * them for reuse.
+     *
+     * @param retainPageIndex The index of the first page to retain.
+     */
+    private void recyclePages(int retainPageIndex) {
+      Page[] pages = this.pages;
+      for (; firstPageIndex < retainPageIndex && firstPageIndex <= lastPageIndex;
+          firstPageIndex++) {
+        int tableIndex = firstPageIndex & (pages.length - 1);
+        if (sparePages.size() < MAX_SPARE_PAGE_COUNT) {
+          sparePages.add(pages[tableIndex]);
+        }
+        pages[tableIndex] = null;
+      }
+      if (firstPageIndex > lastPageIndex) {
+        // The table is empty, so the next page can be added at any index.
+        firstPageIndex = retainPageIndex;
+      }
+    }
+
+    private static Page getPage(Page[] pages, int index) {
+      return pages[(index >>> PAGE_SIZE_SHIFT) & (pages.length - 1)];
+    }
+
+  }
+
+  /**
+   * A fixed size page of the arrays in which {@link InfoQueue} holds sample information. The
+   * information of the sample with a given absolute index is held at the index modulo the page
+   * size.
+   */
+  private static final class Page {
+
+    public final int[] sourceIds;
+    public final long[] offsets;
+    public final int[] sizes;
+    public final int[] flags;
+    public final long[] timesUs;
+    public final byte[][] encryptionKeys;
+    public final Format[] formats;
+
+    public Page() {
+      sourceIds = new int[InfoQueue.PAGE_SIZE];
+      offsets = new long[InfoQueue.PAGE_SIZE];
+      sizes = new int[InfoQueue.PAGE_SIZE];
+      flags = new int[InfoQueue.PAGE_SIZE];
+      timesUs = new long[InfoQueue.PAGE_SIZE];
+      encryptionKeys = new byte[InfoQueue.PAGE_SIZE][];
+      formats = new Format[InfoQueue.PAGE_SIZE];
     }
 
   }
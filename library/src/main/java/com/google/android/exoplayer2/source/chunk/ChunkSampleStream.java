@@ -150,6 +150,7 @@ public class ChunkSampleStream<T extends ChunkSource> implements SampleStream, S
   public void release() {
     sampleQueue.disable();
     loader.release();
+    chunkSource.release();
   }
 
   // SampleStream implementation.
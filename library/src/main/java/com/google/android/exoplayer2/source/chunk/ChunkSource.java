@@ -84,4 +84,10 @@ public interface ChunkSource {
    */
   boolean onChunkLoadError(Chunk chunk, boolean cancelable, Exception e);
 
+  /**
+   * Releases any resources held by the source. Called by the {@link ChunkSampleStream} when it's
+   * released, after which the source is no longer used.
+   */
+  void release();
+
 }
@@ -42,9 +42,11 @@ import com.google.android.exoplayer2.upstream.DataSource;
 import com.google.android.exoplayer2.upstream.DataSpec;
 import com.google.android.exoplayer2.upstream.HttpDataSource.InvalidResponseCodeException;
 import com.google.android.exoplayer2.upstream.LoaderErrorThrower;
+import com.google.android.exoplayer2.upstream.PrefetchingDataSource;
 import com.google.android.exoplayer2.util.MimeTypes;
 import com.google.android.exoplayer2.util.Util;
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.List;
 
 /**
@@ -83,6 +85,7 @@ public class DefaultDashChunkSource implements DashChunkSource {
   private final TrackSelection trackSelection;
   private final RepresentationHolder[] representationHolders;
   private final DataSource dataSource;
+  private final PrefetchingDataSource prefetchingDataSource;
   private final long elapsedRealtimeOffsetMs;
   private final int maxSegmentsPerLoad;
 
@@ -98,7 +101,9 @@ public class DefaultDashChunkSource implements DashChunkSource {
    * @param periodIndex The index of the period in the manifest.
    * @param adaptationSetIndex The index of the adaptation set in the period.
    * @param trackSelection The track selection.
-   * @param dataSource A {@link DataSource} suitable for loading the media data.
+   * @param dataSource A {@link DataSource} suitable for loading the media data. If it's a
+   *     {@link PrefetchingDataSource} then the segments that follow each loaded segment are
+   *     prefetched.
    * @param elapsedRealtimeOffsetMs If known, an estimate of the instantaneous difference between
    *     server-side unix time and {@link SystemClock#elapsedRealtime()} in milliseconds, specified
    *     as the server's unix time minus the local elapsed time. If unknown, set to 0.
@@ -114,6 +119,8 @@ public class DefaultDashChunkSource implements DashChunkSource {
     this.adaptationSetIndex = adaptationSetIndex;
     this.trackSelection = trackSelection;
     this.dataSource = dataSource;
+    prefetchingDataSource = dataSource instanceof PrefetchingDataSource
+        ? (PrefetchingDataSource) dataSource : null;
     this.periodIndex = periodIndex;
     this.elapsedRealtimeOffsetMs = elapsedRealtimeOffsetMs;
     this.maxSegmentsPerLoad = maxSegmentsPerLoad;
@@ -237,6 +244,27 @@ public class DefaultDashChunkSource implements DashChunkSource {
         trackSelection.getSelectedFormat(), trackSelection.getSelectionReason(),
         trackSelection.getSelectionData(), sampleFormat, segmentNum, maxSegmentCount);
     out.chunk = nextMediaChunk;
+
+    if (prefetchingDataSource != null) {
+      // Prefetch the chunk and those that are expected to follow it, assuming the selected track is
+      // unchanged.
+      List<DataSpec> prefetchDataSpecs = new ArrayList<>();
+      prefetchDataSpecs.add(nextMediaChunk.dataSpec);
+      int prefetchSegmentNum = ((MediaChunk) nextMediaChunk).getNextChunkIndex();
+      while (prefetchDataSpecs.size() < prefetchingDataSource.getMaxPrefetchCount()
+          && prefetchSegmentNum <= lastAvailableSegmentNum
+          && !(missingLastSegment && prefetchSegmentNum >= lastAvailableSegmentNum)) {
+        int maxPrefetchSegmentCount = Math.min(maxSegmentsPerLoad,
+            lastAvailableSegmentNum - prefetchSegmentNum + 1);
+        MediaChunk prefetchChunk = (MediaChunk) newMediaChunk(representationHolder, dataSource,
+            trackSelection.getSelectedFormat(), trackSelection.getSelectionReason(),
+            trackSelection.getSelectionData(), sampleFormat, prefetchSegmentNum,
+            maxPrefetchSegmentCount);
+        prefetchDataSpecs.add(prefetchChunk.dataSpec);
+        prefetchSegmentNum = prefetchChunk.getNextChunkIndex();
+      }
+      prefetchingDataSource.prefetch(prefetchDataSpecs);
+    }
   }
 
   @Override
@@ -284,6 +312,13 @@ public class DefaultDashChunkSource implements DashChunkSource {
         trackSelection.indexOf(chunk.trackFormat), e);
   }
 
+  @Override
+  public void release() {
+    if (prefetchingDataSource != null) {
+      prefetchingDataSource.cancelPrefetches();
+    }
+  }
+
   // Private methods.
 
   private List<Representation> getRepresentations() {
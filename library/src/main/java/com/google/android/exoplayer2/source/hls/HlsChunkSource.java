@@ -33,11 +33,14 @@ import com.google.android.exoplayer2.trackselection.BaseTrackSelection;
 import com.google.android.exoplayer2.trackselection.TrackSelection;
 import com.google.android.exoplayer2.upstream.DataSource;
 import com.google.android.exoplayer2.upstream.DataSpec;
+import com.google.android.exoplayer2.upstream.PrefetchingDataSource;
 import com.google.android.exoplayer2.util.UriUtil;
 import com.google.android.exoplayer2.util.Util;
 import java.io.IOException;
 import java.math.BigInteger;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
 import java.util.Locale;
 
 /**
@@ -81,6 +84,7 @@ import java.util.Locale;
   }
 
   private final DataSource dataSource;
+  private final PrefetchingDataSource prefetchingDataSource;
   private final TimestampAdjusterProvider timestampAdjusterProvider;
   private final HlsUrl[] variants;
   private final HlsPlaylistTracker playlistTracker;
@@ -103,7 +107,9 @@ import java.util.Locale;
   /**
    * @param playlistTracker The {@link HlsPlaylistTracker} from which to obtain media playlists.
    * @param variants The available variants.
-   * @param dataSource A {@link DataSource} suitable for loading the media data.
+   * @param dataSource A {@link DataSource} suitable for loading the media data. If it's a
+   *     {@link PrefetchingDataSource} then the segments that follow each loaded segment are
+   *     prefetched.
    * @param timestampAdjusterProvider A provider of {@link TimestampAdjuster} instances. If
    *     multiple {@link HlsChunkSource}s are used for a single playback, they should all share the
    *     same provider.
@@ -113,6 +119,8 @@ import java.util.Locale;
     this.playlistTracker = playlistTracker;
     this.variants = variants;
     this.dataSource = dataSource;
+    prefetchingDataSource = dataSource instanceof PrefetchingDataSource
+        ? (PrefetchingDataSource) dataSource : null;
     this.timestampAdjusterProvider = timestampAdjusterProvider;
 
     Format[] variantFormats = new Format[variants.length];
@@ -282,6 +290,21 @@ import java.util.Locale;
         startTimeUs, startTimeUs + segment.durationUs, chunkMediaSequence,
         segment.discontinuitySequenceNumber, isTimestampMaster, timestampAdjuster, previous,
         encryptionKey, encryptionIv);
+
+    if (prefetchingDataSource != null) {
+      // Prefetch the segment and those that are expected to follow it, assuming the variant is
+      // unchanged.
+      List<DataSpec> prefetchDataSpecs = new ArrayList<>();
+      prefetchDataSpecs.add(dataSpec);
+      for (int i = chunkIndex + 1; i < mediaPlaylist.segments.size()
+          && prefetchDataSpecs.size() < prefetchingDataSource.getMaxPrefetchCount(); i++) {
+        Segment prefetchSegment = mediaPlaylist.segments.get(i);
+        prefetchDataSpecs.add(new DataSpec(UriUtil.resolveToUri(mediaPlaylist.baseUri,
+            prefetchSegment.url), prefetchSegment.byterangeOffset, prefetchSegment.byterangeLength,
+            null));
+      }
+      prefetchingDataSource.prefetch(prefetchDataSpecs);
+    }
   }
 
   /**
@@ -329,6 +352,15 @@ import java.util.Locale;
     }
   }
 
+  /**
+   * Releases any resources held by the source, after which it's no longer used.
+   */
+  public void release() {
+    if (prefetchingDataSource != null) {
+      prefetchingDataSource.cancelPrefetches();
+    }
+  }
+
   // Private methods.
 
   private EncryptionKeyChunk newEncryptionKeyChunk(Uri keyUri, String iv, int variantIndex,
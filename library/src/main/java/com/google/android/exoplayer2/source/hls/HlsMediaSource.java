@@ -28,6 +28,7 @@ import com.google.android.exoplayer2.source.hls.playlist.HlsMediaPlaylist;
 import com.google.android.exoplayer2.source.hls.playlist.HlsPlaylistTracker;
 import com.google.android.exoplayer2.upstream.Allocator;
 import com.google.android.exoplayer2.upstream.DataSource;
+import com.google.android.exoplayer2.upstream.LoaderThreadPool;
 import com.google.android.exoplayer2.util.Assertions;
 import java.io.IOException;
 import java.util.List;
@@ -46,6 +47,7 @@ public final class HlsMediaSource implements MediaSource,
   private final Uri manifestUri;
   private final DataSource.Factory dataSourceFactory;
   private final int minLoadableRetryCount;
+  private final LoaderThreadPool loaderThreadPool;
   private final EventDispatcher eventDispatcher;
 
   private HlsPlaylistTracker playlistTracker;
@@ -60,9 +62,27 @@ public final class HlsMediaSource implements MediaSource,
   public HlsMediaSource(Uri manifestUri, DataSource.Factory dataSourceFactory,
       int minLoadableRetryCount, Handler eventHandler,
       AdaptiveMediaSourceEventListener eventListener) {
+    this(manifestUri, dataSourceFactory, minLoadableRetryCount, null, eventHandler, eventListener);
+  }
+
+  /**
+   * @param manifestUri The {@link Uri} of the master or media playlist.
+   * @param dataSourceFactory A factory for {@link DataSource} instances.
+   * @param minLoadableRetryCount The minimum number of times to retry loading data prior to
+   *     failing.
+   * @param loaderThreadPool A {@link LoaderThreadPool} whose threads are shared by the playlist
+   *     loads of the source, or null if each playlist loader should have a thread of its own.
+   *     Chunks are always loaded on a thread for each track.
+   * @param eventHandler A handler for events. May be null if delivery of events is not required.
+   * @param eventListener A listener of events. May be null if delivery of events is not required.
+   */
+  public HlsMediaSource(Uri manifestUri, DataSource.Factory dataSourceFactory,
+      int minLoadableRetryCount, LoaderThreadPool loaderThreadPool, Handler eventHandler,
+      AdaptiveMediaSourceEventListener eventListener) {
     this.manifestUri = manifestUri;
     this.dataSourceFactory = dataSourceFactory;
     this.minLoadableRetryCount = minLoadableRetryCount;
+    this.loaderThreadPool = loaderThreadPool;
     eventDispatcher = new EventDispatcher(eventHandler, eventListener);
   }
 
@@ -70,7 +90,7 @@ public final class HlsMediaSource implements MediaSource,
   public void prepareSource(ExoPlayer player, boolean isTopLevelSource, Listener listener) {
     Assertions.checkState(playlistTracker == null);
     playlistTracker = new HlsPlaylistTracker(manifestUri, dataSourceFactory, eventDispatcher,
-        minLoadableRetryCount, this);
+        minLoadableRetryCount, loaderThreadPool, this);
     sourceListener = listener;
     playlistTracker.start();
   }
@@ -131,6 +131,8 @@ import java.util.LinkedList;
     this.muxedCaptionFormat = muxedCaptionFormat;
     this.minLoadableRetryCount = minLoadableRetryCount;
     this.eventDispatcher = eventDispatcher;
+    // Chunk loads aren't run on a shared LoaderThreadPool, since those of renditions that aren't
+    // the master timestamp source block until the master variant's chunk has been loaded.
     loader = new Loader("Loader:HlsSampleStreamWrapper");
     nextChunkHolder = new HlsChunkSource.HlsChunkHolder();
     sampleQueues = new SparseArray<>();
@@ -262,6 +264,7 @@ import java.util.LinkedList;
       sampleQueues.valueAt(i).disable();
     }
     loader.release();
+    chunkSource.release();
     handler.removeCallbacksAndMessages(null);
     released = true;
   }
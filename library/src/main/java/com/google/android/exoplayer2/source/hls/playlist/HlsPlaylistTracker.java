@@ -26,6 +26,7 @@ import com.google.android.exoplayer2.source.hls.playlist.HlsMasterPlaylist.HlsUr
 import com.google.android.exoplayer2.source.hls.playlist.HlsMediaPlaylist.Segment;
 import com.google.android.exoplayer2.upstream.DataSource;
 import com.google.android.exoplayer2.upstream.Loader;
+import com.google.android.exoplayer2.upstream.LoaderThreadPool;
 import com.google.android.exoplayer2.upstream.ParsingLoadable;
 import com.google.android.exoplayer2.util.UriUtil;
 import java.io.IOException;
@@ -84,6 +85,7 @@ public final class HlsPlaylistTracker implements Loader.Callback<ParsingLoadable
   private final DataSource.Factory dataSourceFactory;
   private final HlsPlaylistParser playlistParser;
   private final int minRetryCount;
+  private final LoaderThreadPool loaderThreadPool;
   private final IdentityHashMap<HlsUrl, MediaPlaylistBundle> playlistBundles;
   private final Handler playlistRefreshHandler;
   private final PrimaryPlaylistListener primaryPlaylistListener;
@@ -108,13 +110,32 @@ public final class HlsPlaylistTracker implements Loader.Callback<ParsingLoadable
   public HlsPlaylistTracker(Uri initialPlaylistUri, DataSource.Factory dataSourceFactory,
       EventDispatcher eventDispatcher, int minRetryCount,
       PrimaryPlaylistListener primaryPlaylistListener) {
+    this(initialPlaylistUri, dataSourceFactory, eventDispatcher, minRetryCount, null,
+        primaryPlaylistListener);
+  }
+
+  /**
+   * @param initialPlaylistUri Uri for the initial playlist of the stream. Can refer a media
+   *     playlist or a master playlist.
+   * @param dataSourceFactory A factory for {@link DataSource} instances.
+   * @param eventDispatcher A dispatcher to notify of events.
+   * @param minRetryCount The minimum number of times the load must be retried before blacklisting a
+   *     playlist.
+   * @param loaderThreadPool A {@link LoaderThreadPool} whose threads are shared by the playlist
+   *     loaders, or null if each loader should have a thread of its own.
+   * @param primaryPlaylistListener A callback for the primary playlist change events.
+   */
+  public HlsPlaylistTracker(Uri initialPlaylistUri, DataSource.Factory dataSourceFactory,
+      EventDispatcher eventDispatcher, int minRetryCount, LoaderThreadPool loaderThreadPool,
+      PrimaryPlaylistListener primaryPlaylistListener) {
     this.initialPlaylistUri = initialPlaylistUri;
     this.dataSourceFactory = dataSourceFactory;
     this.eventDispatcher = eventDispatcher;
     this.minRetryCount = minRetryCount;
+    this.loaderThreadPool = loaderThreadPool;
     this.primaryPlaylistListener = primaryPlaylistListener;
     listeners = new ArrayList<>();
-    initialPlaylistLoader = new Loader("HlsPlaylistTracker:MasterPlaylist");
+    initialPlaylistLoader = new Loader("HlsPlaylistTracker:MasterPlaylist", loaderThreadPool);
     playlistParser = new HlsPlaylistParser();
     playlistBundles = new IdentityHashMap<>();
     playlistRefreshHandler = new Handler();
@@ -392,7 +413,7 @@ public final class HlsPlaylistTracker implements Loader.Callback<ParsingLoadable
     public MediaPlaylistBundle(HlsUrl playlistUrl, long initialLastSnapshotAccessTimeMs) {
       this.playlistUrl = playlistUrl;
       lastSnapshotAccessTimeMs = initialLastSnapshotAccessTimeMs;
-      mediaPlaylistLoader = new Loader("HlsPlaylistTracker:MediaPlaylist");
+      mediaPlaylistLoader = new Loader("HlsPlaylistTracker:MediaPlaylist", loaderThreadPool);
       mediaPlaylistLoadable = new ParsingLoadable<>(dataSourceFactory.createDataSource(),
           UriUtil.resolveToUri(masterPlaylist.baseUri, playlistUrl.url), C.DATA_TYPE_MANIFEST,
           playlistParser);
@@ -208,6 +208,11 @@ public class DefaultSsChunkSource implements SsChunkSource {
         trackSelection.indexOf(chunk.trackFormat), e);
   }
 
+  @Override
+  public void release() {
+    // Do nothing.
+  }
+
   // Private methods.
 
   private static MediaChunk newMediaChunk(Format format, DataSource dataSource, Uri uri,
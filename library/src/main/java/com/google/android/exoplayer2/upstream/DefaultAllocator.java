@@ -17,24 +17,60 @@ package com.google.android.exoplayer2.upstream;
 
 import com.google.android.exoplayer2.util.Assertions;
 import com.google.android.exoplayer2.util.Util;
-import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 
 /**
  * Default implementation of {@link Allocator}.
+ * <p>
+ * The allocator doesn't lock. Each thread allocates from and releases to its own magazine of up to
+ * {@link #MAGAZINE_CAPACITY} available allocations. A thread whose magazine is empty takes a
+ * magazine from a global pool, and a thread whose magazine is full returns it to the pool, so a
+ * loading thread that allocates and a playback thread that releases exchange whole magazines
+ * rather than individual allocations. The pool is a lock-free stack.
+ * <p>
+ * Allocations held in the magazines of threads other than the one calling {@link #trim()} aren't
+ * discarded by it, and are released to the garbage collector when their thread terminates.
+ * <p>
+ * The allocator can optionally create new allocations in slabs, each backed by a single array. This
+ * reduces the number of large arrays that are created and collected as a buffer grows and is
+ * trimmed. The memory of a slab is only freed once all of its allocations have been discarded.
+ * <p>
+ * The allocator maintains counters of its memory usage, which may be read from any thread. They're
+ * updated using the same atomic operations as the allocator's own state, so they're cheap enough to
+ * be left enabled. Rates, such as the allocation rate, can be derived by sampling the cumulative
+ * counters periodically.
  */
 public final class DefaultAllocator implements Allocator {
 
-  private static final int AVAILABLE_EXTRA_CAPACITY = 100;
+  /**
+   * The maximum number of available allocations held by each thread.
+   */
+  public static final int MAGAZINE_CAPACITY = 8;
+
+  /**
+   * The number of allocations counted by each thread before they're added to the cumulative count
+   * returned by {@link #getTotalAllocationCount()}.
+   */
+  private static final int ALLOCATION_COUNT_FLUSH_INTERVAL = 64;
 
   private final boolean trimOnReset;
   private final int individualAllocationSize;
+  private final int slabAllocationCount;
   private final byte[] initialAllocationBlock;
-  private final Allocation[] singleAllocationReleaseHolder;
+  private final ThreadLocal<Magazine> magazines;
+  private final AtomicReference<PoolNode> pool;
+  private final AtomicInteger pooledCount;
+  private final AtomicInteger allocatedCount;
+  private final AtomicInteger peakAllocatedCount;
+  private final AtomicLong totalAllocationCount;
+  private final AtomicInteger createdAllocationCount;
+  private final AtomicInteger trimCount;
+  private final AtomicInteger trimmedAllocationCount;
+  private final AtomicInteger poolTransferCount;
 
-  private int targetBufferSize;
-  private int allocatedCount;
-  private int availableCount;
-  private Allocation[] availableAllocations;
+  private volatile int targetBufferSize;
 
   /**
    * Constructs an instance without creating any {@link Allocation}s up front.
@@ -59,31 +95,70 @@ public final class DefaultAllocator implements Allocator {
    */
   public DefaultAllocator(boolean trimOnReset, int individualAllocationSize,
       int initialAllocationCount) {
+    this(trimOnReset, individualAllocationSize, initialAllocationCount, 1);
+  }
+
+  /**
+   * Constructs an instance with some {@link Allocation}s created up front, which creates further
+   * {@link Allocation}s in slabs.
+   * <p>
+   * Note: {@link Allocation}s created up front will never be discarded by {@link #trim()}.
+   *
+   * @param trimOnReset Whether memory is freed when the allocator is reset. Should be true unless
+   *     the allocator will be re-used by multiple player instances.
+   * @param individualAllocationSize The length of each individual {@link Allocation}.
+   * @param initialAllocationCount The number of allocations to create up front.
+   * @param slabAllocationCount The number of allocations backed by each array created when no
+   *     allocation is available, or 1 to create each allocation with its own array.
+   */
+  public DefaultAllocator(boolean trimOnReset, int individualAllocationSize,
+      int initialAllocationCount, int slabAllocationCount) {
     Assertions.checkArgument(individualAllocationSize > 0);
     Assertions.checkArgument(initialAllocationCount >= 0);
+    Assertions.checkArgument(slabAllocationCount > 0);
     this.trimOnReset = trimOnReset;
     this.individualAllocationSize = individualAllocationSize;
-    this.availableCount = initialAllocationCount;
-    this.availableAllocations = new Allocation[initialAllocationCount + AVAILABLE_EXTRA_CAPACITY];
+    this.slabAllocationCount = slabAllocationCount;
+    magazines = new ThreadLocal<Magazine>() {
+      @Override
+      protected Magazine initialValue() {
+        return new Magazine();
+      }
+    };
+    pool = new AtomicReference<>();
+    pooledCount = new AtomicInteger();
+    allocatedCount = new AtomicInteger();
+    peakAllocatedCount = new AtomicInteger();
+    totalAllocationCount = new AtomicLong();
+    createdAllocationCount = new AtomicInteger();
+    trimCount = new AtomicInteger();
+    trimmedAllocationCount = new AtomicInteger();
+    poolTransferCount = new AtomicInteger();
     if (initialAllocationCount > 0) {
       initialAllocationBlock = new byte[initialAllocationCount * individualAllocationSize];
+      Allocation[] allocations = new Allocation[MAGAZINE_CAPACITY];
+      int count = 0;
       for (int i = 0; i < initialAllocationCount; i++) {
         int allocationOffset = i * individualAllocationSize;
-        availableAllocations[i] = new Allocation(initialAllocationBlock, allocationOffset);
+        allocations[count++] = new Allocation(initialAllocationBlock, allocationOffset);
+        if (count == MAGAZINE_CAPACITY || i == initialAllocationCount - 1) {
+          push(new PoolNode(allocations, count));
+          allocations = new Allocation[MAGAZINE_CAPACITY];
+          count = 0;
+        }
       }
     } else {
       initialAllocationBlock = null;
     }
-    singleAllocationReleaseHolder = new Allocation[1];
   }
 
-  public synchronized void reset() {
+  public void reset() {
     if (trimOnReset) {
       setTargetBufferSize(0);
     }
   }
 
-  public synchronized void setTargetBufferSize(int targetBufferSize) {
+  public void setTargetBufferSize(int targetBufferSize) {
     boolean targetBufferSizeReduced = targetBufferSize < this.targetBufferSize;
     this.targetBufferSize = targetBufferSize;
     if (targetBufferSizeReduced) {
@@ -92,86 +167,100 @@ public final class DefaultAllocator implements Allocator {
   }
 
   @Override
-  public synchronized Allocation allocate() {
-    allocatedCount++;
-    Allocation allocation;
-    if (availableCount > 0) {
-      allocation = availableAllocations[--availableCount];
-      availableAllocations[availableCount] = null;
-    } else {
-      allocation = new Allocation(new byte[individualAllocationSize], 0);
+  public Allocation allocate() {
+    updatePeakAllocatedCount(allocatedCount.incrementAndGet());
+    Magazine magazine = magazines.get();
+    if (++magazine.unflushedAllocationCount == ALLOCATION_COUNT_FLUSH_INTERVAL) {
+      totalAllocationCount.addAndGet(ALLOCATION_COUNT_FLUSH_INTERVAL);
+      magazine.unflushedAllocationCount = 0;
     }
+    if (magazine.count == 0) {
+      PoolNode node = pop();
+      if (node == null) {
+        return createAllocations(magazine);
+      }
+      magazine.load(node);
+    }
+    Allocation allocation = magazine.allocations[--magazine.count];
+    magazine.allocations[magazine.count] = null;
     return allocation;
   }
 
   @Override
-  public synchronized void release(Allocation allocation) {
-    singleAllocationReleaseHolder[0] = allocation;
-    release(singleAllocationReleaseHolder);
+  public void release(Allocation allocation) {
+    releaseToMagazine(magazines.get(), allocation);
+    allocatedCount.decrementAndGet();
   }
 
   @Override
-  public synchronized void release(Allocation[] allocations) {
-    if (availableCount + allocations.length >= availableAllocations.length) {
-      availableAllocations = Arrays.copyOf(availableAllocations,
-          Math.max(availableAllocations.length * 2, availableCount + allocations.length));
-    }
+  public void release(Allocation[] allocations) {
+    Magazine magazine = magazines.get();
     for (Allocation allocation : allocations) {
-      // Weak sanity check that the allocation probably originated from this pool.
-      Assertions.checkArgument(allocation.data == initialAllocationBlock
-          || allocation.data.length == individualAllocationSize);
-      availableAllocations[availableCount++] = allocation;
+      releaseToMagazine(magazine, allocation);
     }
-    allocatedCount -= allocations.length;
-    // Wake up threads waiting for the allocated size to drop.
-    notifyAll();
+    allocatedCount.addAndGet(-allocations.length);
   }
 
   @Override
-  public synchronized void trim() {
+  public void trim() {
+    // The calling thread's magazine is returned to the pool, so that its allocations can be
+    // discarded.
+    Magazine magazine = magazines.get();
+    if (magazine.count > 0) {
+      push(magazine.unload());
+    }
+
     int targetAllocationCount = Util.ceilDivide(targetBufferSize, individualAllocationSize);
-    int targetAvailableCount = Math.max(0, targetAllocationCount - allocatedCount);
-    if (targetAvailableCount >= availableCount) {
+    int targetAvailableCount = Math.max(0, targetAllocationCount - allocatedCount.get());
+    if (targetAvailableCount >= pooledCount.get()) {
       // We're already at or below the target.
       return;
     }
 
-    if (initialAllocationBlock != null) {
-      // Some allocations are backed by an initial block. We need to make sure that we hold onto all
-      // such allocations. Re-order the available allocations so that the ones backed by the initial
-      // block come first.
-      int lowIndex = 0;
-      int highIndex = availableCount - 1;
-      while (lowIndex <= highIndex) {
-        Allocation lowAllocation = availableAllocations[lowIndex];
-        if (lowAllocation.data == initialAllocationBlock) {
-          lowIndex++;
-        } else {
-          Allocation highAllocation = availableAllocations[highIndex];
-          if (highAllocation.data != initialAllocationBlock) {
-            highIndex--;
-          } else {
-            availableAllocations[lowIndex++] = highAllocation;
-            availableAllocations[highIndex--] = lowAllocation;
-          }
+    // Take the whole pool, and return the allocations to be kept. Threads that find the pool empty
+    // in the meantime create new allocations.
+    PoolNode nodes = pool.getAndSet(null);
+    int initialAllocationCount = 0;
+    for (PoolNode node = nodes; node != null; node = node.next) {
+      pooledCount.addAndGet(-node.count);
+      for (int i = 0; initialAllocationBlock != null && i < node.count; i++) {
+        if (node.allocations[i].data == initialAllocationBlock) {
+          initialAllocationCount++;
         }
       }
-      // lowIndex is the index of the first allocation not backed by an initial block.
-      targetAvailableCount = Math.max(targetAvailableCount, lowIndex);
-      if (targetAvailableCount >= availableCount) {
-        // We're already at or below the target.
-        return;
+    }
+    // Allocations backed by the initial block are always kept, and count towards the target.
+    int keptCount = Math.max(0, targetAvailableCount - initialAllocationCount);
+    Allocation[] keptAllocations = new Allocation[MAGAZINE_CAPACITY];
+    int count = 0;
+    int discardedCount = 0;
+    for (PoolNode node = nodes; node != null; node = node.next) {
+      for (int i = 0; i < node.count; i++) {
+        Allocation allocation = node.allocations[i];
+        if (allocation.data == initialAllocationBlock || keptCount-- > 0) {
+          keptAllocations[count++] = allocation;
+          if (count == MAGAZINE_CAPACITY) {
+            push(new PoolNode(keptAllocations, count));
+            keptAllocations = new Allocation[MAGAZINE_CAPACITY];
+            count = 0;
+          }
+        } else {
+          discardedCount++;
+        }
       }
     }
-
-    // Discard allocations beyond the target.
-    Arrays.fill(availableAllocations, targetAvailableCount, availableCount, null);
-    availableCount = targetAvailableCount;
+    if (count > 0) {
+      push(new PoolNode(keptAllocations, count));
+    }
+    if (discardedCount > 0) {
+      trimCount.incrementAndGet();
+      trimmedAllocationCount.addAndGet(discardedCount);
+    }
   }
 
   @Override
-  public synchronized int getTotalBytesAllocated() {
-    return allocatedCount * individualAllocationSize;
+  public int getTotalBytesAllocated() {
+    return allocatedCount.get() * individualAllocationSize;
   }
 
   @Override
@@ -179,4 +268,190 @@ public final class DefaultAllocator implements Allocator {
     return individualAllocationSize;
   }
 
+  /**
+   * Returns the target buffer size, in bytes, beyond which available allocations are discarded by
+   * {@link #trim()}.
+   */
+  public int getTargetBufferSize() {
+    return targetBufferSize;
+  }
+
+  /**
+   * Returns the largest number of bytes that have been allocated at once, since the allocator was
+   * constructed or since the last call to {@link #resetPeakBytesAllocated()}.
+   */
+  public int getPeakBytesAllocated() {
+    return peakAllocatedCount.get() * individualAllocationSize;
+  }
+
+  /**
+   * Resets the peak returned by {@link #getPeakBytesAllocated()} to the number of bytes currently
+   * allocated.
+   */
+  public void resetPeakBytesAllocated() {
+    peakAllocatedCount.set(allocatedCount.get());
+  }
+
+  /**
+   * Returns the cumulative number of {@link Allocation}s obtained by calling {@link #allocate()}.
+   * <p>
+   * Each thread counts its own allocations, and adds them to the cumulative count in batches, so
+   * the count may not include up to 63 of the most recent allocations made by each thread other
+   * than the calling thread.
+   */
+  public long getTotalAllocationCount() {
+    Magazine magazine = magazines.get();
+    totalAllocationCount.addAndGet(magazine.unflushedAllocationCount);
+    magazine.unflushedAllocationCount = 0;
+    return totalAllocationCount.get();
+  }
+
+  /**
+   * Returns the cumulative number of {@link Allocation}s that have been created because no
+   * available allocation could be reused, excluding any created up front.
+   */
+  public int getCreatedAllocationCount() {
+    return createdAllocationCount.get();
+  }
+
+  /**
+   * Returns the number of calls to {@link #trim()} that discarded available allocations.
+   */
+  public int getTrimCount() {
+    return trimCount.get();
+  }
+
+  /**
+   * Returns the cumulative number of available {@link Allocation}s discarded by {@link #trim()}.
+   */
+  public int getTrimmedAllocationCount() {
+    return trimmedAllocationCount.get();
+  }
+
+  /**
+   * Returns the cumulative number of magazines of available {@link Allocation}s that threads have
+   * added to or taken from the shared pool. A thread only accesses the pool when its own magazine
+   * is full or empty, so this is at most one for every {@link #MAGAZINE_CAPACITY} calls to
+   * {@link #allocate()} or {@link #release(Allocation)}, plus those made by {@link #trim()}.
+   */
+  public int getPoolTransferCount() {
+    return poolTransferCount.get();
+  }
+
+  /**
+   * Creates a slab of allocations, returning the first and adding the others to the calling
+   * thread's empty magazine.
+   */
+  private Allocation createAllocations(Magazine magazine) {
+    createdAllocationCount.addAndGet(slabAllocationCount);
+    if (slabAllocationCount == 1) {
+      return new Allocation(new byte[individualAllocationSize], 0);
+    }
+    byte[] slab = new byte[slabAllocationCount * individualAllocationSize];
+    for (int i = slabAllocationCount - 1; i > 0; i--) {
+      if (magazine.count == MAGAZINE_CAPACITY) {
+        push(magazine.unload());
+      }
+      magazine.allocations[magazine.count++] = new Allocation(slab, i * individualAllocationSize);
+    }
+    return new Allocation(slab, 0);
+  }
+
+  private void updatePeakAllocatedCount(int allocatedCount) {
+    int peakAllocatedCount;
+    do {
+      peakAllocatedCount = this.peakAllocatedCount.get();
+      if (allocatedCount <= peakAllocatedCount) {
+        return;
+      }
+    } while (!this.peakAllocatedCount.compareAndSet(peakAllocatedCount, allocatedCount));
+  }
+
+  private void releaseToMagazine(Magazine magazine, Allocation allocation) {
+    // Weak sanity check that the allocation probably originated from this pool.
+    Assertions.checkArgument(allocation.data == initialAllocationBlock
+        || allocation.data.length == individualAllocationSize * slabAllocationCount);
+    if (magazine.count == MAGAZINE_CAPACITY) {
+      push(magazine.unload());
+    }
+    magazine.allocations[magazine.count++] = allocation;
+  }
+
+  private void push(PoolNode node) {
+    poolTransferCount.incrementAndGet();
+    pooledCount.addAndGet(node.count);
+    PoolNode head;
+    do {
+      head = pool.get();
+      node.next = head;
+    } while (!pool.compareAndSet(head, node));
+  }
+
+  private PoolNode pop() {
+    PoolNode head;
+    do {
+      head = pool.get();
+      if (head == null) {
+        return null;
+      }
+    } while (!pool.compareAndSet(head, head.next));
+    poolTransferCount.incrementAndGet();
+    pooledCount.addAndGet(-head.count);
+    return head;
+  }
+
+  /**
+   * The available allocations held by a thread.
+   */
+  private static final class Magazine {
+
+    public Allocation[] allocations;
+    public int count;
+    public int unflushedAllocationCount;
+    private Allocation[] spareAllocations;
+
+    public Magazine() {
+      allocations = new Allocation[MAGAZINE_CAPACITY];
+    }
+
+    /**
+     * Replaces the allocations of the empty magazine with those of a node taken from the pool.
+     */
+    public void load(PoolNode node) {
+      spareAllocations = allocations;
+      allocations = node.allocations;
+      count = node.count;
+    }
+
+    /**
+     * Empties the magazine, returning a node holding its allocations to be added to the pool.
+     */
+    public PoolNode unload() {
+      PoolNode node = new PoolNode(allocations, count);
+      allocations = spareAllocations != null ? spareAllocations
+          : new Allocation[MAGAZINE_CAPACITY];
+      spareAllocations = null;
+      count = 0;
+      return node;
+    }
+
+  }
+
+  /**
+   * A magazine of allocations in the pool. A node is never added to the pool more than once, which
+   * avoids the ABA problem when it's removed.
+   */
+  private static final class PoolNode {
+
+    public final Allocation[] allocations;
+    public final int count;
+    public PoolNode next;
+
+    public PoolNode(Allocation[] allocations, int count) {
+      this.allocations = allocations;
+      this.count = count;
+    }
+
+  }
+
 }
@@ -16,6 +16,7 @@
 package com.google.android.exoplayer2.upstream;
 
 import android.net.Uri;
+import android.os.SystemClock;
 import android.text.TextUtils;
 import android.util.Log;
 import com.google.android.exoplayer2.C;
@@ -46,6 +47,11 @@ import java.util.regex.Pattern;
  * HTTP to HTTPS or vice versa). Cross-protocol redirects can be enabled by using the
  * {@link #DefaultHttpDataSource(String, Predicate, TransferListener, int, int, boolean)}
  * constructor and passing {@code true} as the final argument.
+ * <p>
+ * By default the connection is terminated when the source is closed. Connections can instead be
+ * reused for later requests to the same host by passing a {@link HttpConnectionPool} to the
+ * {@link #DefaultHttpDataSource(String, Predicate, TransferListener, int, int, boolean,
+ * HttpConnectionPool)} constructor.
  */
 public class DefaultHttpDataSource implements HttpDataSource {
 
@@ -61,6 +67,8 @@ public class DefaultHttpDataSource implements HttpDataSource {
   private static final String TAG = "DefaultHttpDataSource";
   private static final int MAX_REDIRECTS = 20; // Same limit as okhttp.
   private static final long MAX_BYTES_TO_DRAIN = 2048;
+  private static final long MAX_DRAIN_TIME_MS = 500;
+  private static final long MAX_BYTES_TO_SKIP_BY_READING = 512 * 1024;
   private static final Pattern CONTENT_RANGE_HEADER =
       Pattern.compile("^bytes (\\d+)-(\\d+)/(\\d+)$");
   private static final AtomicReference<byte[]> skipBufferReference = new AtomicReference<>();
@@ -72,11 +80,14 @@ public class DefaultHttpDataSource implements HttpDataSource {
   private final Predicate<String> contentTypePredicate;
   private final HashMap<String, String> requestProperties;
   private final TransferListener<? super DefaultHttpDataSource> listener;
+  private final HttpConnectionPool connectionPool;
 
   private DataSpec dataSpec;
+  private String connectionPoolHostKey;
   private HttpURLConnection connection;
   private InputStream inputStream;
   private boolean opened;
+  private boolean readFailed;
 
   private long bytesToSkip;
   private long bytesToRead;
@@ -84,6 +95,9 @@ public class DefaultHttpDataSource implements HttpDataSource {
   private long bytesSkipped;
   private long bytesRead;
 
+  private volatile long totalBytesSkippedByReading;
+  private volatile long totalBytesSkippedByRerequesting;
+
   /**
    * @param userAgent The User-Agent string that should be used.
    * @param contentTypePredicate An optional {@link Predicate}. If a content type is rejected by the
@@ -141,6 +155,30 @@ public class DefaultHttpDataSource implements HttpDataSource {
   public DefaultHttpDataSource(String userAgent, Predicate<String> contentTypePredicate,
       TransferListener<? super DefaultHttpDataSource> listener, int connectTimeoutMillis,
       int readTimeoutMillis, boolean allowCrossProtocolRedirects) {
+    this(userAgent, contentTypePredicate, listener, connectTimeoutMillis, readTimeoutMillis,
+        allowCrossProtocolRedirects, null);
+  }
+
+  /**
+   * @param userAgent The User-Agent string that should be used.
+   * @param contentTypePredicate An optional {@link Predicate}. If a content type is rejected by the
+   *     predicate then a {@link HttpDataSource.InvalidContentTypeException} is thrown from
+   *     {@link #open(DataSpec)}.
+   * @param listener An optional listener.
+   * @param connectTimeoutMillis The connection timeout, in milliseconds. A timeout of zero is
+   *     interpreted as an infinite timeout. Pass {@link #DEFAULT_CONNECT_TIMEOUT_MILLIS} to use
+   *     the default value.
+   * @param readTimeoutMillis The read timeout, in milliseconds. A timeout of zero is interpreted
+   *     as an infinite timeout. Pass {@link #DEFAULT_READ_TIMEOUT_MILLIS} to use the default value.
+   * @param allowCrossProtocolRedirects Whether cross-protocol redirects (i.e. redirects from HTTP
+   *     to HTTPS and vice versa) are enabled.
+   * @param connectionPool An optional {@link HttpConnectionPool} that controls the reuse of
+   *     connections. If null then connections are terminated when the source is closed.
+   */
+  public DefaultHttpDataSource(String userAgent, Predicate<String> contentTypePredicate,
+      TransferListener<? super DefaultHttpDataSource> listener, int connectTimeoutMillis,
+      int readTimeoutMillis, boolean allowCrossProtocolRedirects,
+      HttpConnectionPool connectionPool) {
     this.userAgent = Assertions.checkNotEmpty(userAgent);
     this.contentTypePredicate = contentTypePredicate;
     this.listener = listener;
@@ -148,6 +186,7 @@ public class DefaultHttpDataSource implements HttpDataSource {
     this.connectTimeoutMillis = connectTimeoutMillis;
     this.readTimeoutMillis = readTimeoutMillis;
     this.allowCrossProtocolRedirects = allowCrossProtocolRedirects;
+    this.connectionPool = connectionPool;
   }
 
   @Override
@@ -189,6 +228,16 @@ public class DefaultHttpDataSource implements HttpDataSource {
     this.dataSpec = dataSpec;
     this.bytesRead = 0;
     this.bytesSkipped = 0;
+    this.readFailed = false;
+    if (connectionPool != null) {
+      String hostKey = HttpConnectionPool.getHostKey(dataSpec.uri);
+      try {
+        connectionPool.acquire(hostKey);
+      } catch (InterruptedIOException e) {
+        throw new HttpDataSourceException(e, dataSpec, HttpDataSourceException.TYPE_OPEN);
+      }
+      connectionPoolHostKey = hostKey;
+    }
     try {
       connection = makeConnection(dataSpec);
     } catch (IOException e) {
@@ -199,6 +248,30 @@ public class DefaultHttpDataSource implements HttpDataSource {
     int responseCode;
     try {
       responseCode = connection.getResponseCode();
+      Uri responseUri = Uri.parse(connection.getURL().toString());
+      if (responseCode == 200 && dataSpec.position > MAX_BYTES_TO_SKIP_BY_READING
+          && dataSpec.postBody == null && (acceptsByteRanges(connection)
+          || !Util.areEqual(responseUri.getHost(), dataSpec.uri.getHost()))) {
+        // The server ignored the range, and skipping to the requested position by reading would
+        // download a lot of data that isn't needed. The server either advertises support for
+        // ranges or is a different one to that requested, to which redirects were followed, and so
+        // may honor the range if it's requested again from the URL that responded.
+        closeConnectionQuietly();
+        if (connectionPoolHostKey != null) {
+          // The first connection was terminated.
+          connectionPool.release(connectionPoolHostKey, false, 0);
+          connectionPoolHostKey = null;
+          String hostKey = HttpConnectionPool.getHostKey(responseUri);
+          connectionPool.acquire(hostKey);
+          connectionPoolHostKey = hostKey;
+        }
+        connection = makeConnection(new DataSpec(responseUri, dataSpec.absoluteStreamPosition,
+            dataSpec.position, dataSpec.length, dataSpec.key, dataSpec.flags));
+        responseCode = connection.getResponseCode();
+        if (responseCode == 206) {
+          totalBytesSkippedByRerequesting += dataSpec.position;
+        }
+      }
     } catch (IOException e) {
       closeConnectionQuietly();
       throw new HttpDataSourceException("Unable to connect to " + dataSpec.uri.toString(), e,
@@ -267,24 +340,46 @@ public class DefaultHttpDataSource implements HttpDataSource {
       skipInternal();
       return readInternal(buffer, offset, readLength);
     } catch (IOException e) {
+      readFailed = true;
       throw new HttpDataSourceException(e, dataSpec, HttpDataSourceException.TYPE_READ);
     }
   }
 
   @Override
   public void close() throws HttpDataSourceException {
+    boolean connectionReusable = false;
+    long drainedBytes = 0;
     try {
       if (inputStream != null) {
-        maybeTerminateInputStream(connection, bytesRemaining());
+        // Draining after a read error or whilst the load is being canceled would delay the close,
+        // probably without reaching the end of the response.
+        if (connectionPool != null && !readFailed && !Thread.currentThread().isInterrupted()) {
+          drainedBytes = drainInputStream(connectionPool.getMaxBytesToDrain());
+          connectionReusable = drainedBytes != C.LENGTH_UNSET;
+        }
+        if (!connectionReusable) {
+          maybeTerminateInputStream(connection, bytesRemaining());
+        }
         try {
           inputStream.close();
         } catch (IOException e) {
+          connectionReusable = false;
           throw new HttpDataSourceException(e, dataSpec, HttpDataSourceException.TYPE_CLOSE);
         }
       }
     } finally {
       inputStream = null;
-      closeConnectionQuietly();
+      if (connectionReusable) {
+        // Leave the connection to be reused by HttpURLConnection, rather than disconnecting it.
+        connection = null;
+      } else {
+        closeConnectionQuietly();
+      }
+      if (connectionPoolHostKey != null) {
+        connectionPool.release(connectionPoolHostKey, connectionReusable,
+            Math.max(drainedBytes, 0));
+        connectionPoolHostKey = null;
+      }
       if (opened) {
         opened = false;
         if (listener != null) {
@@ -294,6 +389,25 @@ public class DefaultHttpDataSource implements HttpDataSource {
     }
   }
 
+  /**
+   * Returns the total number of bytes that have been read and discarded to skip to the requested
+   * positions of servers that ignored the requested ranges.
+   */
+  public long getTotalBytesSkippedByReading() {
+    return totalBytesSkippedByReading;
+  }
+
+  /**
+   * Returns the total number of bytes whose reading was avoided by requesting ranges again from
+   * servers that ignored them. Ranges are requested again if more than 512 kilobytes would
+   * otherwise need to be skipped and the response advertises {@code Accept-Ranges: bytes}, or
+   * redirects to a different host were followed. They're requested again at most once for each
+   * call to {@link #open(DataSpec)}.
+   */
+  public long getTotalBytesSkippedByRerequesting() {
+    return totalBytesSkippedByRerequesting;
+  }
+
   /**
    * Returns the current connection, or null if the source is not currently opened.
    *
@@ -531,6 +645,7 @@ public class DefaultHttpDataSource implements HttpDataSource {
         throw new EOFException();
       }
       bytesSkipped += read;
+      totalBytesSkippedByReading += read;
       if (listener != null) {
         listener.onBytesTransferred(this, read);
       }
@@ -582,6 +697,51 @@ public class DefaultHttpDataSource implements HttpDataSource {
     return read;
   }
 
+  /**
+   * Reads and discards the remainder of the response, so that its connection can be reused, if no
+   * more than {@code maxBytesToDrain} bytes remain. Draining is abandoned if the end of the
+   * response isn't reached within {@link #MAX_DRAIN_TIME_MS}, which is checked between reads.
+   *
+   * @param maxBytesToDrain The maximum number of bytes to drain.
+   * @return The number of bytes drained, or {@link C#LENGTH_UNSET} if the end of the response
+   *     wasn't reached.
+   */
+  private long drainInputStream(long maxBytesToDrain) {
+    long bytesRemaining = bytesRemaining();
+    if (bytesRemaining != C.LENGTH_UNSET
+        && bytesRemaining + bytesToSkip - bytesSkipped > maxBytesToDrain) {
+      return C.LENGTH_UNSET;
+    }
+
+    // Acquire the shared skip buffer.
+    byte[] skipBuffer = skipBufferReference.getAndSet(null);
+    if (skipBuffer == null) {
+      skipBuffer = new byte[4096];
+    }
+
+    // Read until the end of the response, which may be beyond the end of the requested range if
+    // the server didn't honor it.
+    long drainedBytes = 0;
+    long drainEndTimeMs = SystemClock.elapsedRealtime() + MAX_DRAIN_TIME_MS;
+    try {
+      int read;
+      while ((read = inputStream.read(skipBuffer, 0,
+          (int) Math.min(maxBytesToDrain - drainedBytes + 1, skipBuffer.length))) != -1) {
+        drainedBytes += read;
+        if (drainedBytes > maxBytesToDrain || SystemClock.elapsedRealtime() > drainEndTimeMs) {
+          drainedBytes = C.LENGTH_UNSET;
+          break;
+        }
+      }
+    } catch (IOException e) {
+      drainedBytes = C.LENGTH_UNSET;
+    }
+
+    // Release the shared skip buffer.
+    skipBufferReference.set(skipBuffer);
+    return drainedBytes;
+  }
+
   /**
    * On platform API levels 19 and 20, okhttp's implementation of {@link InputStream#close} can
    * block for a long time if the stream has a lot of data remaining. Call this method before
@@ -627,6 +787,17 @@ public class DefaultHttpDataSource implements HttpDataSource {
   }
 
 
+  /**
+   * Returns whether the response of a connection advertises support for byte ranges.
+   *
+   * @param connection The connection.
+   * @return Whether the response has an {@code Accept-Ranges: bytes} header.
+   */
+  private static boolean acceptsByteRanges(HttpURLConnection connection) {
+    String acceptRanges = connection.getHeaderField("Accept-Ranges");
+    return acceptRanges != null && acceptRanges.trim().equalsIgnoreCase("bytes");
+  }
+
   /**
    * Closes the current connection quietly, if there is one.
    */
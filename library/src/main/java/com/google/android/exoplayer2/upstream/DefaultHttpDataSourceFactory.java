@@ -25,6 +25,7 @@ public final class DefaultHttpDataSourceFactory implements Factory {
   private final int connectTimeoutMillis;
   private final int readTimeoutMillis;
   private final boolean allowCrossProtocolRedirects;
+  private final HttpConnectionPool connectionPool;
 
   /**
    * Constructs a DefaultHttpDataSourceFactory. Sets {@link
@@ -67,16 +68,37 @@ public final class DefaultHttpDataSourceFactory implements Factory {
   public DefaultHttpDataSourceFactory(String userAgent,
       TransferListener<? super DataSource> listener, int connectTimeoutMillis,
       int readTimeoutMillis, boolean allowCrossProtocolRedirects) {
+    this(userAgent, listener, connectTimeoutMillis, readTimeoutMillis, allowCrossProtocolRedirects,
+        null);
+  }
+
+  /**
+   * @param userAgent The User-Agent string that should be used.
+   * @param listener An optional listener.
+   * @param connectTimeoutMillis The connection timeout that should be used when requesting remote
+   *     data, in milliseconds. A timeout of zero is interpreted as an infinite timeout.
+   * @param readTimeoutMillis The read timeout that should be used when requesting remote data, in
+   *     milliseconds. A timeout of zero is interpreted as an infinite timeout.
+   * @param allowCrossProtocolRedirects Whether cross-protocol redirects (i.e. redirects from HTTP
+   *     to HTTPS and vice versa) are enabled.
+   * @param connectionPool An optional {@link HttpConnectionPool} shared by the produced data
+   *     sources, which controls the reuse of their connections.
+   */
+  public DefaultHttpDataSourceFactory(String userAgent,
+      TransferListener<? super DataSource> listener, int connectTimeoutMillis,
+      int readTimeoutMillis, boolean allowCrossProtocolRedirects,
+      HttpConnectionPool connectionPool) {
     this.userAgent = userAgent;
     this.listener = listener;
     this.connectTimeoutMillis = connectTimeoutMillis;
     this.readTimeoutMillis = readTimeoutMillis;
     this.allowCrossProtocolRedirects = allowCrossProtocolRedirects;
+    this.connectionPool = connectionPool;
   }
 
   @Override
   public DefaultHttpDataSource createDataSource() {
     return new DefaultHttpDataSource(userAgent, null, listener, connectTimeoutMillis,
-        readTimeoutMillis, allowCrossProtocolRedirects);
+        readTimeoutMillis, allowCrossProtocolRedirects, connectionPool);
   }
 }
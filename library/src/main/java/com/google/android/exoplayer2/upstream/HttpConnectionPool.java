@@ -0,0 +1,190 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.exoplayer2.upstream;
+
+import android.net.Uri;
+import com.google.android.exoplayer2.util.Assertions;
+import java.io.InterruptedIOException;
+import java.util.HashMap;
+
+/**
+ * Controls the reuse of connections by {@link DefaultHttpDataSource}s that share it.
+ * <p>
+ * {@link java.net.HttpURLConnection} keeps the connections of responses that have been read to the
+ * end alive, and reuses them for later requests to the same host. A data source that's closed
+ * before the end of its response is reached drains the rest of the response if no more than
+ * {@link #getMaxBytesToDrain()} bytes remain, so that its connection can be reused, and otherwise
+ * terminates the connection. The response isn't drained if reading it failed or the loading
+ * thread was interrupted, for example because the load was canceled, or for longer than a short
+ * time. A data source waits to open a connection whilst {@link #getMaxConnectionsPerHost()}
+ * connections to the same host are open.
+ * <p>
+ * The pool can't observe which connections {@link java.net.HttpURLConnection} reuses, so the
+ * number of reused connections is an estimate. A connection is counted as reused if it's opened
+ * whilst a connection to the same host that was left to be reused is idle. Idle connections aren't
+ * forgotten when {@link java.net.HttpURLConnection} closes them, for example after a keep-alive
+ * timeout, in which case the estimate is too high.
+ */
+public final class HttpConnectionPool {
+
+  /**
+   * The default maximum number of connections to each host.
+   */
+  public static final int DEFAULT_MAX_CONNECTIONS_PER_HOST = 4;
+  /**
+   * The default maximum number of bytes to drain from a response so that its connection can be
+   * reused.
+   */
+  public static final long DEFAULT_MAX_BYTES_TO_DRAIN = 64 * 1024;
+
+  private final int maxConnectionsPerHost;
+  private final long maxBytesToDrain;
+
+  // Guarded by this.
+  private final HashMap<String, Host> hosts;
+  private int newConnectionCount;
+  private int reusedConnectionCount;
+  private int terminatedConnectionCount;
+  private long drainedBytes;
+
+  public HttpConnectionPool() {
+    this(DEFAULT_MAX_CONNECTIONS_PER_HOST, DEFAULT_MAX_BYTES_TO_DRAIN);
+  }
+
+  /**
+   * @param maxConnectionsPerHost The maximum number of connections to each host.
+   * @param maxBytesToDrain The maximum number of bytes to drain from a response when its data
+   *     source is closed, so that its connection can be reused. If more bytes remain then the
+   *     connection is terminated. Zero to terminate connections whenever bytes remain.
+   */
+  public HttpConnectionPool(int maxConnectionsPerHost, long maxBytesToDrain) {
+    Assertions.checkArgument(maxConnectionsPerHost > 0 && maxBytesToDrain >= 0);
+    this.maxConnectionsPerHost = maxConnectionsPerHost;
+    this.maxBytesToDrain = maxBytesToDrain;
+    hosts = new HashMap<>();
+  }
+
+  /**
+   * Returns the maximum number of connections to each host.
+   */
+  public int getMaxConnectionsPerHost() {
+    return maxConnectionsPerHost;
+  }
+
+  /**
+   * Returns the maximum number of bytes to drain from a response so that its connection can be
+   * reused.
+   */
+  public long getMaxBytesToDrain() {
+    return maxBytesToDrain;
+  }
+
+  /**
+   * Returns the number of connections that have been opened when no connection to the same host
+   * was idle.
+   */
+  public synchronized int getNewConnectionCount() {
+    return newConnectionCount;
+  }
+
+  /**
+   * Returns an estimate of the number of connections that reused an idle connection. This is the
+   * number of connections that have been opened whilst a connection to the same host was idle, and
+   * overestimates if idle connections were closed by {@link java.net.HttpURLConnection}.
+   */
+  public synchronized int getReusedConnectionCount() {
+    return reusedConnectionCount;
+  }
+
+  /**
+   * Returns the number of connections that have been terminated rather than left to be reused,
+   * either because too many bytes remained to be drained or because an error occurred.
+   */
+  public synchronized int getTerminatedConnectionCount() {
+    return terminatedConnectionCount;
+  }
+
+  /**
+   * Returns the total number of bytes drained from responses so that their connections could be
+   * reused.
+   */
+  public synchronized long getDrainedBytes() {
+    return drainedBytes;
+  }
+
+  /**
+   * Returns the key of the host to which a connection for the given {@link Uri} is made.
+   */
+  /* package */ static String getHostKey(Uri uri) {
+    return uri.getScheme() + "://" + uri.getAuthority();
+  }
+
+  /**
+   * Blocks until a connection to a host may be opened, and accounts for it being opened.
+   *
+   * @param hostKey The key of the host, as returned by {@link #getHostKey(Uri)}.
+   * @throws InterruptedIOException If the thread is interrupted whilst waiting.
+   */
+  /* package */ synchronized void acquire(String hostKey) throws InterruptedIOException {
+    Host host = hosts.get(hostKey);
+    if (host == null) {
+      host = new Host();
+      hosts.put(hostKey, host);
+    }
+    while (host.openCount >= maxConnectionsPerHost) {
+      try {
+        wait();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new InterruptedIOException();
+      }
+    }
+    host.openCount++;
+    if (host.idleCount > 0) {
+      host.idleCount--;
+      reusedConnectionCount++;
+    } else {
+      newConnectionCount++;
+    }
+  }
+
+  /**
+   * Accounts for a connection acquired with {@link #acquire(String)} being closed.
+   *
+   * @param hostKey The key of the host.
+   * @param reusable Whether the connection was left to be reused, rather than terminated.
+   * @param drainedBytes The number of bytes drained from the response.
+   */
+  /* package */ synchronized void release(String hostKey, boolean reusable, long drainedBytes) {
+    Host host = hosts.get(hostKey);
+    host.openCount--;
+    if (reusable) {
+      host.idleCount = Math.min(host.idleCount + 1, maxConnectionsPerHost);
+    } else {
+      terminatedConnectionCount++;
+    }
+    this.drainedBytes += drainedBytes;
+    notifyAll();
+  }
+
+  private static final class Host {
+
+    public int openCount;
+    public int idleCount;
+
+  }
+
+}
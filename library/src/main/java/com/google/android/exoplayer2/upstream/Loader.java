@@ -25,10 +25,14 @@ import com.google.android.exoplayer2.util.Assertions;
 import com.google.android.exoplayer2.util.TraceUtil;
 import com.google.android.exoplayer2.util.Util;
 import java.io.IOException;
+import java.util.concurrent.Executor;
 import java.util.concurrent.ExecutorService;
 
 /**
  * Manages the background loading of {@link Loadable}s.
+ * <p>
+ * By default each loader has a thread of its own. Loaders can instead share the threads of a
+ * {@link LoaderThreadPool}.
  */
 public final class Loader implements LoaderErrorThrower {
 
@@ -130,6 +134,7 @@ public final class Loader implements LoaderErrorThrower {
   private static final int MSG_IO_EXCEPTION = 3;
   private static final int MSG_FATAL_ERROR = 4;
 
+  private final Executor downloadExecutor;
   private final ExecutorService downloadExecutorService;
 
   private LoadTask<? extends Loadable> currentTask;
@@ -139,7 +144,22 @@ public final class Loader implements LoaderErrorThrower {
    * @param threadName A name for the loader's thread.
    */
   public Loader(String threadName) {
-    this.downloadExecutorService = Util.newSingleThreadExecutor(threadName);
+    this(threadName, null);
+  }
+
+  /**
+   * @param threadName A name for the loader's thread, if it has a thread of its own.
+   * @param threadPool The {@link LoaderThreadPool} on whose threads loads should run, or null if
+   *     the loader should have a thread of its own.
+   */
+  public Loader(String threadName, LoaderThreadPool threadPool) {
+    if (threadPool != null) {
+      downloadExecutorService = null;
+      downloadExecutor = threadPool.newSerialExecutor();
+    } else {
+      downloadExecutorService = Util.newSingleThreadExecutor(threadName);
+      downloadExecutor = downloadExecutorService;
+    }
   }
 
   /**
@@ -199,9 +219,11 @@ public final class Loader implements LoaderErrorThrower {
       currentTask.cancel(true);
     }
     if (postLoadAction != null) {
-      downloadExecutorService.submit(postLoadAction);
+      downloadExecutor.execute(postLoadAction);
+    }
+    if (downloadExecutorService != null) {
+      downloadExecutorService.shutdown();
     }
-    downloadExecutorService.shutdown();
   }
 
   // LoaderErrorThrower implementation.
@@ -236,7 +258,10 @@ public final class Loader implements LoaderErrorThrower {
     private IOException currentError;
     private int errorCount;
 
-    private volatile Thread executorThread;
+    // The thread on which the load is running, if it's running. Guarded by this, so that the thread
+    // is only interrupted whilst it's running this task, and not a task of another loader that's
+    // since been given the thread by a shared pool.
+    private Thread executorThread;
     private volatile boolean released;
 
     public LoadTask(Looper looper, T loadable, Loader.Callback<T> callback,
@@ -274,8 +299,10 @@ public final class Loader implements LoaderErrorThrower {
         }
       } else {
         loadable.cancelLoad();
-        if (executorThread != null) {
-          executorThread.interrupt();
+        synchronized (this) {
+          if (executorThread != null) {
+            executorThread.interrupt();
+          }
         }
       }
       if (released) {
@@ -288,7 +315,9 @@ public final class Loader implements LoaderErrorThrower {
     @Override
     public void run() {
       try {
-        executorThread = Thread.currentThread();
+        synchronized (this) {
+          executorThread = Thread.currentThread();
+        }
         if (!loadable.isLoadCanceled()) {
           TraceUtil.beginSection("load:" + loadable.getClass().getSimpleName());
           try {
@@ -325,6 +354,13 @@ public final class Loader implements LoaderErrorThrower {
           obtainMessage(MSG_FATAL_ERROR, e).sendToTarget();
         }
         throw e;
+      } finally {
+        synchronized (this) {
+          executorThread = null;
+          // Clear an interrupt that arrived after the load returned, so that it isn't seen by the
+          // next task to run on the thread.
+          Thread.interrupted();
+        }
       }
     }
 
@@ -369,7 +405,7 @@ public final class Loader implements LoaderErrorThrower {
 
     private void submitToExecutor() {
       currentError = null;
-      downloadExecutorService.submit(currentTask);
+      downloadExecutor.execute(currentTask);
     }
 
     private void finish() {
@@ -0,0 +1,158 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.exoplayer2.upstream;
+
+import com.google.android.exoplayer2.util.Assertions;
+import java.util.ArrayDeque;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A bounded pool of threads shared by {@link Loader}s, as an alternative to each loader having a
+ * thread of its own.
+ * <p>
+ * The loads of each loader run one at a time, in the order in which they were started. Loaders take
+ * turns to run a load on the pool's threads, so a loader that starts loads in quick succession
+ * doesn't delay those of other loaders. A load occupies a thread for as long as it runs, so a pool
+ * should only be shared by loaders whose loads are short, such as those of playlists, or have at
+ * least as many threads as there are loaders whose loads may block. Loads that wait for a load of
+ * another loader sharing the pool, such as HLS chunks of renditions that wait for the timestamps
+ * of the master variant's chunk, may otherwise occupy every thread and wait forever.
+ * <p>
+ * Idle threads are terminated after {@link #KEEP_ALIVE_MS}, and created again when required.
+ */
+public final class LoaderThreadPool {
+
+  /**
+   * The time for which an idle thread is kept alive, in milliseconds.
+   */
+  public static final long KEEP_ALIVE_MS = 10000;
+
+  private final ThreadPoolExecutor executor;
+  private final AtomicInteger createdThreadCount;
+
+  /**
+   * @param threadName A name for the pool's threads.
+   * @param threadCount The maximum number of threads.
+   */
+  public LoaderThreadPool(final String threadName, int threadCount) {
+    Assertions.checkArgument(threadCount > 0);
+    createdThreadCount = new AtomicInteger();
+    executor = new ThreadPoolExecutor(threadCount, threadCount, KEEP_ALIVE_MS,
+        TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+          @Override
+          public Thread newThread(Runnable r) {
+            createdThreadCount.incrementAndGet();
+            return new Thread(r, threadName);
+          }
+        });
+    executor.allowCoreThreadTimeOut(true);
+  }
+
+  /**
+   * Returns the maximum number of threads.
+   */
+  public int getThreadCount() {
+    return executor.getMaximumPoolSize();
+  }
+
+  /**
+   * Returns the number of threads that are currently alive.
+   */
+  public int getLiveThreadCount() {
+    return executor.getPoolSize();
+  }
+
+  /**
+   * Returns the number of threads that are currently running a load.
+   */
+  public int getActiveThreadCount() {
+    return executor.getActiveCount();
+  }
+
+  /**
+   * Returns the cumulative number of threads that have been created.
+   */
+  public int getCreatedThreadCount() {
+    return createdThreadCount.get();
+  }
+
+  /**
+   * Releases the pool once the loads that have been started have finished. This method should be
+   * called when none of the loaders sharing the pool will start further loads.
+   */
+  public void release() {
+    executor.shutdown();
+  }
+
+  /**
+   * Returns an {@link Executor} that runs tasks one at a time on the pool's threads, in the order
+   * in which they were submitted.
+   */
+  /* package */ Executor newSerialExecutor() {
+    return new SerialExecutor();
+  }
+
+  /**
+   * Runs tasks one at a time. Whilst it has tasks, the executor occupies a single place in the
+   * pool's queue, and gives up its place after running each task so that other executors can run
+   * theirs.
+   */
+  private final class SerialExecutor implements Executor, Runnable {
+
+    // Guarded by this.
+    private final ArrayDeque<Runnable> tasks;
+    private boolean queued;
+
+    public SerialExecutor() {
+      tasks = new ArrayDeque<>();
+    }
+
+    @Override
+    public synchronized void execute(Runnable task) {
+      tasks.add(task);
+      if (!queued) {
+        queued = true;
+        executor.execute(this);
+      }
+    }
+
+    @Override
+    public void run() {
+      Runnable task;
+      synchronized (this) {
+        task = tasks.poll();
+      }
+      try {
+        task.run();
+      } finally {
+        synchronized (this) {
+          if (tasks.isEmpty()) {
+            queued = false;
+          } else {
+            executor.execute(this);
+          }
+        }
+      }
+    }
+
+  }
+
+}
@@ -0,0 +1,137 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.exoplayer2.upstream;
+
+import android.net.Uri;
+import com.google.android.exoplayer2.C;
+import com.google.android.exoplayer2.upstream.FileDataSource.FileDataSourceException;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * A {@link DataSource} for reading local files by mapping them into memory. Reads are served from
+ * the mapping, which avoids a system call per read.
+ * <p>
+ * The file is mapped each time the source is opened, and the mapping is dropped when it's closed so
+ * that it can be released. A file that's replaced at the same path is therefore never read from a
+ * stale mapping, and a deleted file isn't kept mapped by a closed source. Files must not be
+ * truncated whilst they're being read. Files larger than {@link Integer#MAX_VALUE} bytes cannot be
+ * read.
+ */
+public final class MappedFileDataSource implements DataSource {
+
+  private final TransferListener<? super MappedFileDataSource> listener;
+
+  private ByteBuffer buffer;
+  private Uri uri;
+  private long bytesRemaining;
+  private boolean opened;
+
+  public MappedFileDataSource() {
+    this(null);
+  }
+
+  /**
+   * @param listener An optional listener.
+   */
+  public MappedFileDataSource(TransferListener<? super MappedFileDataSource> listener) {
+    this.listener = listener;
+  }
+
+  @Override
+  public long open(DataSpec dataSpec) throws FileDataSourceException {
+    try {
+      uri = dataSpec.uri;
+      ByteBuffer mapping = map(dataSpec.uri.getPath());
+      if (dataSpec.position > mapping.capacity()) {
+        throw new EOFException();
+      }
+      bytesRemaining = dataSpec.length == C.LENGTH_UNSET
+          ? mapping.capacity() - dataSpec.position : dataSpec.length;
+      if (bytesRemaining < 0 || dataSpec.position + bytesRemaining > mapping.capacity()) {
+        throw new EOFException();
+      }
+      buffer = mapping.duplicate();
+      buffer.position((int) dataSpec.position);
+      buffer.limit((int) (dataSpec.position + bytesRemaining));
+    } catch (IOException e) {
+      throw new FileDataSourceException(e);
+    }
+
+    opened = true;
+    if (listener != null) {
+      listener.onTransferStart(this, dataSpec);
+    }
+
+    return bytesRemaining;
+  }
+
+  @Override
+  public int read(byte[] buffer, int offset, int readLength) {
+    if (readLength == 0) {
+      return 0;
+    } else if (bytesRemaining == 0) {
+      return C.RESULT_END_OF_INPUT;
+    } else {
+      int bytesRead = (int) Math.min(bytesRemaining, readLength);
+      this.buffer.get(buffer, offset, bytesRead);
+      bytesRemaining -= bytesRead;
+      if (listener != null) {
+        listener.onBytesTransferred(this, bytesRead);
+      }
+      return bytesRead;
+    }
+  }
+
+  @Override
+  public Uri getUri() {
+    return uri;
+  }
+
+  @Override
+  public void close() {
+    uri = null;
+    // The mapping is released once the buffer is garbage collected.
+    buffer = null;
+    if (opened) {
+      opened = false;
+      if (listener != null) {
+        listener.onTransferEnd(this);
+      }
+    }
+  }
+
+  /**
+   * Returns a mapping of the whole file at the specified path.
+   */
+  private static ByteBuffer map(String path) throws IOException {
+    RandomAccessFile randomAccessFile = new RandomAccessFile(path, "r");
+    try {
+      long length = randomAccessFile.length();
+      if (length > Integer.MAX_VALUE) {
+        throw new IOException("File too large to map: " + length);
+      }
+      // The mapping remains valid after the file is closed.
+      return randomAccessFile.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, length);
+    } finally {
+      randomAccessFile.close();
+    }
+  }
+
+}
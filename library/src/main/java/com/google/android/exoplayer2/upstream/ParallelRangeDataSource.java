@@ -0,0 +1,415 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.exoplayer2.upstream;
+
+import android.net.Uri;
+import com.google.android.exoplayer2.C;
+import com.google.android.exoplayer2.util.Assertions;
+import com.google.android.exoplayer2.util.Util;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayDeque;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A {@link DataSource} that reads data of known length by splitting it into ranges, which are
+ * loaded over several connections at once and read in order. This can make better use of the
+ * available bandwidth than a single connection, for example when loading progressive media over a
+ * lossy link.
+ * <p>
+ * Each range is loaded into memory by a {@link DataSource} of its own, on a background thread.
+ * Ranges are loaded up to a maximum number ahead of the range being read, which bounds the memory
+ * used to hold them.
+ * <p>
+ * If the length of the data isn't known, or isn't longer than a single range, then the data is
+ * read from a single upstream {@link DataSource}. So is data for which gzip is allowed, since the
+ * length of compressed data can't be split into ranges, and data of POST requests. Data is also
+ * read from a single {@link DataSource} if the server doesn't honor range requests, since loading
+ * each range would then read all of the data before it. For an {@link HttpDataSource}, the server
+ * is taken to honor range requests if it responds to one with a Content-Range header.
+ */
+public final class ParallelRangeDataSource implements DataSource {
+
+  /**
+   * The default number of connections over which ranges are loaded at once.
+   */
+  public static final int DEFAULT_CONNECTION_COUNT = 3;
+  /**
+   * The default length of each range, in bytes.
+   */
+  public static final int DEFAULT_RANGE_LENGTH = 512 * 1024;
+  /**
+   * The time for which an idle loading thread is kept alive, in milliseconds.
+   */
+  public static final long KEEP_ALIVE_MS = 10000;
+
+  private final DataSource.Factory upstreamFactory;
+  private final int rangeLength;
+  private final int maxBufferedRangeCount;
+  private final ThreadPoolExecutor executor;
+  private final ArrayDeque<Range> ranges;
+  private final ArrayDeque<byte[]> spareRangeBuffers;
+
+  private DataSource upstream;
+  private DataSpec dataSpec;
+  private Uri uri;
+  private long length;
+  private long nextRangeOffset;
+  private long bytesRead;
+  private int rangeBytesRead;
+
+  private volatile int parallelOpenCount;
+  private volatile int singleStreamOpenCount;
+
+  /**
+   * @param upstreamFactory A {@link DataSource.Factory} for the {@link DataSource}s from which
+   *     ranges are loaded.
+   */
+  public ParallelRangeDataSource(DataSource.Factory upstreamFactory) {
+    this(upstreamFactory, DEFAULT_CONNECTION_COUNT, DEFAULT_RANGE_LENGTH,
+        2 * DEFAULT_CONNECTION_COUNT);
+  }
+
+  /**
+   * @param upstreamFactory A {@link DataSource.Factory} for the {@link DataSource}s from which
+   *     ranges are loaded.
+   * @param connectionCount The maximum number of ranges to load at once.
+   * @param rangeLength The length of each range, in bytes.
+   * @param maxBufferedRangeCount The maximum number of ranges that are loaded or held in memory at
+   *     once, including the range being read. Should be at least {@code connectionCount}.
+   */
+  public ParallelRangeDataSource(DataSource.Factory upstreamFactory, int connectionCount,
+      int rangeLength, int maxBufferedRangeCount) {
+    Assertions.checkArgument(connectionCount > 0 && rangeLength > 0 && maxBufferedRangeCount > 0);
+    this.upstreamFactory = upstreamFactory;
+    this.rangeLength = rangeLength;
+    this.maxBufferedRangeCount = maxBufferedRangeCount;
+    ranges = new ArrayDeque<>();
+    spareRangeBuffers = new ArrayDeque<>();
+    executor = new ThreadPoolExecutor(connectionCount, connectionCount, KEEP_ALIVE_MS,
+        TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+          @Override
+          public Thread newThread(Runnable r) {
+            return new Thread(r, "ParallelRangeDataSource");
+          }
+        });
+    executor.allowCoreThreadTimeOut(true);
+  }
+
+  /**
+   * Returns the number of times data has been opened for reading in ranges.
+   */
+  public int getParallelOpenCount() {
+    return parallelOpenCount;
+  }
+
+  /**
+   * Returns the number of times data has been opened for reading from a single upstream
+   * {@link DataSource}.
+   */
+  public int getSingleStreamOpenCount() {
+    return singleStreamOpenCount;
+  }
+
+  @Override
+  public long open(DataSpec dataSpec) throws IOException {
+    this.dataSpec = dataSpec;
+    bytesRead = 0;
+    rangeBytesRead = 0;
+    nextRangeOffset = 0;
+    if (dataSpec.postBody != null || (dataSpec.flags & DataSpec.FLAG_ALLOW_GZIP) != 0) {
+      return openSingleStream(dataSpec);
+    }
+
+    length = dataSpec.length;
+    if (length != C.LENGTH_UNSET && length <= rangeLength) {
+      return openSingleStream(dataSpec);
+    }
+    // The first range is opened on this thread, so that whether the server honors ranges is known
+    // before the data is split into them.
+    DataSource firstRangeUpstream = upstreamFactory.createDataSource();
+    upstream = firstRangeUpstream;
+    Range secondRange = null;
+    if (length == C.LENGTH_UNSET) {
+      // Open a connection to resolve the length. If it's resolved then the connection is used to
+      // load the first range.
+      length = firstRangeUpstream.open(dataSpec);
+      if (length == C.LENGTH_UNSET || length <= rangeLength) {
+        singleStreamOpenCount++;
+        uri = firstRangeUpstream.getUri();
+        return length;
+      }
+      if (!isRangeResponse(firstRangeUpstream)) {
+        // No range was requested, so check that the server honors ranges by requesting the second
+        // one. If it doesn't then the connection that resolved the length is read from instead.
+        DataSpec secondRangeDataSpec = getRangeDataSpec(rangeLength);
+        DataSource secondRangeUpstream = upstreamFactory.createDataSource();
+        try {
+          secondRangeUpstream.open(secondRangeDataSpec);
+        } catch (IOException e) {
+          Util.closeQuietly(secondRangeUpstream);
+          throw e;
+        }
+        if (!isRangeResponse(secondRangeUpstream)) {
+          Util.closeQuietly(secondRangeUpstream);
+          singleStreamOpenCount++;
+          uri = firstRangeUpstream.getUri();
+          return length;
+        }
+        secondRange = new Range(secondRangeDataSpec, secondRangeUpstream, obtainRangeBuffer(),
+            true);
+      }
+    } else {
+      firstRangeUpstream.open(getRangeDataSpec(0));
+      if (!isRangeResponse(firstRangeUpstream)) {
+        // The server ignored the range. Loading each range would read all of the data before it.
+        upstream = null;
+        Util.closeQuietly(firstRangeUpstream);
+        return openSingleStream(dataSpec);
+      }
+    }
+
+    parallelOpenCount++;
+    upstream = null;
+    uri = firstRangeUpstream.getUri();
+    Range firstRange = new Range(getRangeDataSpec(0), firstRangeUpstream, obtainRangeBuffer(),
+        true);
+    ranges.add(firstRange);
+    nextRangeOffset = firstRange.dataSpec.length;
+    executor.execute(firstRange);
+    if (secondRange != null) {
+      ranges.add(secondRange);
+      nextRangeOffset += secondRange.dataSpec.length;
+      executor.execute(secondRange);
+    }
+    maybeLoadRanges();
+    return length;
+  }
+
+  @Override
+  public int read(byte[] buffer, int offset, int readLength) throws IOException {
+    if (upstream != null) {
+      return upstream.read(buffer, offset, readLength);
+    }
+    if (readLength == 0) {
+      return 0;
+    }
+    if (bytesRead == length) {
+      return C.RESULT_END_OF_INPUT;
+    }
+    Range range = ranges.peek();
+    int bytesReadFromRange = range.read(rangeBytesRead, buffer, offset, readLength);
+    bytesRead += bytesReadFromRange;
+    rangeBytesRead += bytesReadFromRange;
+    if (rangeBytesRead == range.dataSpec.length) {
+      // The range has been read, so its buffer can be reused and the next range loaded.
+      ranges.remove();
+      spareRangeBuffers.add(range.buffer);
+      rangeBytesRead = 0;
+      maybeLoadRanges();
+    }
+    return bytesReadFromRange;
+  }
+
+  @Override
+  public Uri getUri() {
+    return uri;
+  }
+
+  @Override
+  public void close() throws IOException {
+    uri = null;
+    // Buffers of ranges that are still loading aren't reused, since they may still be written to.
+    for (Range range : ranges) {
+      range.cancel();
+    }
+    ranges.clear();
+    if (upstream != null) {
+      try {
+        upstream.close();
+      } finally {
+        upstream = null;
+      }
+    }
+  }
+
+  private long openSingleStream(DataSpec dataSpec) throws IOException {
+    singleStreamOpenCount++;
+    upstream = upstreamFactory.createDataSource();
+    long length = upstream.open(dataSpec);
+    uri = upstream.getUri();
+    return length;
+  }
+
+  private void maybeLoadRanges() {
+    while (ranges.size() < maxBufferedRangeCount && nextRangeOffset < length) {
+      Range range = new Range(getRangeDataSpec(nextRangeOffset), upstreamFactory.createDataSource(),
+          obtainRangeBuffer(), false);
+      ranges.add(range);
+      nextRangeOffset += range.dataSpec.length;
+      executor.execute(range);
+    }
+  }
+
+  private DataSpec getRangeDataSpec(long offset) {
+    return new DataSpec(dataSpec.uri, dataSpec.absoluteStreamPosition + offset,
+        dataSpec.position + offset, Math.min(rangeLength, length - offset), dataSpec.key,
+        dataSpec.flags);
+  }
+
+  /**
+   * Returns whether the response from which an opened {@link DataSource} reads is of the requested
+   * range. The responses of an {@link HttpDataSource} are of a range only if they have a
+   * Content-Range header. Other {@link DataSource}s are assumed to read from the requested range.
+   */
+  private static boolean isRangeResponse(DataSource dataSource) {
+    if (!(dataSource instanceof HttpDataSource)) {
+      return true;
+    }
+    Map<String, List<String>> headers = ((HttpDataSource) dataSource).getResponseHeaders();
+    if (headers == null) {
+      return false;
+    }
+    for (String name : headers.keySet()) {
+      if ("Content-Range".equalsIgnoreCase(name)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private byte[] obtainRangeBuffer() {
+    return spareRangeBuffers.isEmpty() ? new byte[rangeLength] : spareRangeBuffers.remove();
+  }
+
+  /**
+   * Loads a range into memory on a loading thread, from where it's read by the reading thread.
+   */
+  private static final class Range implements Runnable {
+
+    public final DataSpec dataSpec;
+    public final byte[] buffer;
+
+    private final DataSource dataSource;
+    private final boolean dataSourceOpened;
+
+    // Guarded by this.
+    private Thread loadingThread;
+    private int bytesLoaded;
+    private boolean canceled;
+    private IOException error;
+
+    /**
+     * @param dataSpec The range to load.
+     * @param dataSource The {@link DataSource} from which to load the range.
+     * @param buffer A buffer into which to load the range.
+     * @param dataSourceOpened Whether {@code dataSource} has already been opened at the start of
+     *     the range, in which case only the range is read from it.
+     */
+    public Range(DataSpec dataSpec, DataSource dataSource, byte[] buffer,
+        boolean dataSourceOpened) {
+      this.dataSpec = dataSpec;
+      this.dataSource = dataSource;
+      this.buffer = buffer;
+      this.dataSourceOpened = dataSourceOpened;
+    }
+
+    /**
+     * Cancels the range, interrupting its load if it's running.
+     */
+    public synchronized void cancel() {
+      canceled = true;
+      // The thread is only set whilst it's running this range, and not another that's since been
+      // given the thread by the executor.
+      if (loadingThread != null) {
+        loadingThread.interrupt();
+      }
+    }
+
+    /**
+     * Reads loaded data, blocking until data at {@code position} has been loaded.
+     */
+    public synchronized int read(int position, byte[] target, int offset, int readLength)
+        throws IOException {
+      while (position == bytesLoaded && error == null) {
+        try {
+          wait();
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          throw new InterruptedIOException();
+        }
+      }
+      if (position == bytesLoaded) {
+        throw error;
+      }
+      int bytesToRead = Math.min(readLength, bytesLoaded - position);
+      System.arraycopy(buffer, position, target, offset, bytesToRead);
+      return bytesToRead;
+    }
+
+    @Override
+    public void run() {
+      int length = (int) dataSpec.length;
+      try {
+        synchronized (this) {
+          if (canceled) {
+            return;
+          }
+          loadingThread = Thread.currentThread();
+        }
+        if (!dataSourceOpened) {
+          dataSource.open(dataSpec);
+        }
+        int position = 0;
+        while (position < length) {
+          int bytesRead = dataSource.read(buffer, position, length - position);
+          if (bytesRead == C.RESULT_END_OF_INPUT) {
+            throw new EOFException();
+          }
+          position += bytesRead;
+          synchronized (this) {
+            if (canceled) {
+              return;
+            }
+            bytesLoaded = position;
+            notifyAll();
+          }
+        }
+      } catch (IOException e) {
+        synchronized (this) {
+          error = e;
+          notifyAll();
+        }
+      } finally {
+        Util.closeQuietly(dataSource);
+        synchronized (this) {
+          loadingThread = null;
+          // Clear an interrupt that arrived after the load was canceled, so that it isn't seen by
+          // the next range to run on the thread.
+          Thread.interrupted();
+        }
+      }
+    }
+
+  }
+
+}
@@ -0,0 +1,62 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.exoplayer2.upstream;
+
+import com.google.android.exoplayer2.upstream.DataSource.Factory;
+
+/**
+ * A {@link Factory} that produces {@link ParallelRangeDataSource} instances.
+ */
+public final class ParallelRangeDataSourceFactory implements Factory {
+
+  private final DataSource.Factory upstreamFactory;
+  private final int connectionCount;
+  private final int rangeLength;
+  private final int maxBufferedRangeCount;
+
+  /**
+   * @param upstreamFactory A {@link Factory} for the {@link DataSource}s from which ranges are
+   *     loaded.
+   */
+  public ParallelRangeDataSourceFactory(DataSource.Factory upstreamFactory) {
+    this(upstreamFactory, ParallelRangeDataSource.DEFAULT_CONNECTION_COUNT,
+        ParallelRangeDataSource.DEFAULT_RANGE_LENGTH,
+        2 * ParallelRangeDataSource.DEFAULT_CONNECTION_COUNT);
+  }
+
+  /**
+   * @param upstreamFactory A {@link Factory} for the {@link DataSource}s from which ranges are
+   *     loaded.
+   * @param connectionCount The maximum number of ranges to load at once.
+   * @param rangeLength The length of each range, in bytes.
+   * @param maxBufferedRangeCount The maximum number of ranges that are loaded or held in memory at
+   *     once, including the range being read.
+   */
+  public ParallelRangeDataSourceFactory(DataSource.Factory upstreamFactory, int connectionCount,
+      int rangeLength, int maxBufferedRangeCount) {
+    this.upstreamFactory = upstreamFactory;
+    this.connectionCount = connectionCount;
+    this.rangeLength = rangeLength;
+    this.maxBufferedRangeCount = maxBufferedRangeCount;
+  }
+
+  @Override
+  public ParallelRangeDataSource createDataSource() {
+    return new ParallelRangeDataSource(upstreamFactory, connectionCount, rangeLength,
+        maxBufferedRangeCount);
+  }
+
+}
@@ -0,0 +1,501 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.exoplayer2.upstream;
+
+import android.net.Uri;
+import com.google.android.exoplayer2.C;
+import com.google.android.exoplayer2.util.Assertions;
+import com.google.android.exoplayer2.util.Util;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A {@link DataSource} that loads data that's expected to be opened next, such as the segments
+ * that follow the one being loaded by a chunk source, in parallel with the data that's being read.
+ * Loading consecutive segments this way avoids paying a request round trip between each of them.
+ * <p>
+ * Each prefetch loads its data into memory using a {@link DataSource} of its own, on a background
+ * thread. When {@link #open(DataSpec)} is called for data that's being prefetched, the data is read
+ * from the prefetch. Other data is read directly from an upstream {@link DataSource}. Since the
+ * data that's read is unchanged, a chunk source that reads its chunks one at a time still outputs
+ * their samples in order.
+ * <p>
+ * Prefetched data is held in memory until it's read, and so only a small number of segments should
+ * be prefetched at once. The memory held by each prefetch is also bounded: once it's loaded a
+ * maximum number of bytes ahead of the data that's been read, it closes its {@link DataSource} and
+ * releases its thread. It's opened again from where it stopped once half of that data has been
+ * read, so that a prefetch whose data isn't being read holds neither a connection nor a thread.
+ * <p>
+ * Prefetches run on an {@link Executor}, which may be shared by several instances, as it is by the
+ * instances created by a {@link PrefetchingDataSourceFactory}.
+ */
+public final class PrefetchingDataSource implements DataSource {
+
+  /**
+   * The time for which an idle prefetch thread of an executor created by
+   * {@link #createExecutor(int)} is kept alive, in milliseconds.
+   */
+  public static final long KEEP_ALIVE_MS = 10000;
+  /**
+   * The default maximum number of bytes that each prefetch holds in memory.
+   */
+  public static final int DEFAULT_MAX_PREFETCH_BUFFER_SIZE = 4 * 1024 * 1024;
+
+  private static final int BLOCK_SIZE = 32 * 1024;
+
+  private final DataSource.Factory upstreamFactory;
+  private final DataSource upstream;
+  private final int maxPrefetchCount;
+  private final int maxPrefetchBlockCount;
+  private final Executor executor;
+
+  // Guarded by this.
+  private final ArrayList<Prefetch> prefetches;
+  private int startedPrefetchCount;
+  private int usedPrefetchCount;
+  private int canceledPrefetchCount;
+
+  private Prefetch openedPrefetch;
+  private long readPosition;
+
+  /**
+   * Constructs an instance whose prefetches each hold up to
+   * {@link #DEFAULT_MAX_PREFETCH_BUFFER_SIZE} bytes in memory.
+   *
+   * @param upstreamFactory A {@link DataSource.Factory} for the {@link DataSource}s from which
+   *     data is read and prefetched.
+   * @param maxPrefetchCount The maximum number of prefetches at once.
+   */
+  public PrefetchingDataSource(DataSource.Factory upstreamFactory, int maxPrefetchCount) {
+    this(upstreamFactory, maxPrefetchCount, DEFAULT_MAX_PREFETCH_BUFFER_SIZE);
+  }
+
+  /**
+   * @param upstreamFactory A {@link DataSource.Factory} for the {@link DataSource}s from which
+   *     data is read and prefetched.
+   * @param maxPrefetchCount The maximum number of prefetches at once.
+   * @param maxPrefetchBufferSize The maximum number of bytes that each prefetch holds in memory,
+   *     rounded up to a multiple of an internal block size. The memory held by prefetches is
+   *     therefore bounded by {@code maxPrefetchCount * maxPrefetchBufferSize}.
+   */
+  public PrefetchingDataSource(DataSource.Factory upstreamFactory, int maxPrefetchCount,
+      int maxPrefetchBufferSize) {
+    this(upstreamFactory, maxPrefetchCount, maxPrefetchBufferSize,
+        createExecutor(maxPrefetchCount));
+  }
+
+  /**
+   * @param upstreamFactory A {@link DataSource.Factory} for the {@link DataSource}s from which
+   *     data is read and prefetched.
+   * @param maxPrefetchCount The maximum number of prefetches at once.
+   * @param maxPrefetchBufferSize The maximum number of bytes that each prefetch holds in memory,
+   *     rounded up to a multiple of an internal block size. The memory held by prefetches is
+   *     therefore bounded by {@code maxPrefetchCount * maxPrefetchBufferSize}.
+   * @param executor The {@link Executor} on which prefetches are loaded, which may be shared with
+   *     other instances. A prefetch only occupies a thread whilst it's loading.
+   */
+  public PrefetchingDataSource(DataSource.Factory upstreamFactory, int maxPrefetchCount,
+      int maxPrefetchBufferSize, Executor executor) {
+    Assertions.checkArgument(maxPrefetchCount > 0 && maxPrefetchBufferSize > 0);
+    this.upstreamFactory = upstreamFactory;
+    this.maxPrefetchCount = maxPrefetchCount;
+    this.executor = executor;
+    maxPrefetchBlockCount = (maxPrefetchBufferSize + BLOCK_SIZE - 1) / BLOCK_SIZE;
+    upstream = upstreamFactory.createDataSource();
+    prefetches = new ArrayList<>();
+  }
+
+  /**
+   * Creates an {@link Executor} for prefetches, whose idle threads are terminated after
+   * {@link #KEEP_ALIVE_MS}.
+   *
+   * @param threadCount The maximum number of prefetches that load at once.
+   * @return The {@link Executor}.
+   */
+  public static Executor createExecutor(int threadCount) {
+    ThreadPoolExecutor executor = new ThreadPoolExecutor(threadCount, threadCount, KEEP_ALIVE_MS,
+        TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+          @Override
+          public Thread newThread(Runnable r) {
+            return new Thread(r, "PrefetchingDataSource");
+          }
+        });
+    executor.allowCoreThreadTimeOut(true);
+    return executor;
+  }
+
+  /**
+   * Returns the maximum number of prefetches at once.
+   */
+  public int getMaxPrefetchCount() {
+    return maxPrefetchCount;
+  }
+
+  /**
+   * Sets the data that's expected to be opened next, in the order in which it's expected to be
+   * opened. A chunk source should include the data of the chunk it's about to load, followed by
+   * that of the chunks it expects to load after it. Prefetches are started for up to
+   * {@link #getMaxPrefetchCount()} of the data specs, and prefetches of data that's no longer
+   * expected are canceled.
+   * <p>
+   * May be called on any thread.
+   *
+   * @param dataSpecs The data that's expected to be opened next.
+   */
+  public synchronized void prefetch(List<DataSpec> dataSpecs) {
+    Iterator<Prefetch> iterator = prefetches.iterator();
+    while (iterator.hasNext()) {
+      Prefetch prefetch = iterator.next();
+      if (indexOf(dataSpecs, prefetch.dataSpec) == -1) {
+        prefetch.cancel();
+        iterator.remove();
+        canceledPrefetchCount++;
+      }
+    }
+    for (int i = 0; i < dataSpecs.size() && prefetches.size() < maxPrefetchCount; i++) {
+      DataSpec dataSpec = dataSpecs.get(i);
+      if (indexOf(prefetches, dataSpec) == -1) {
+        Prefetch prefetch = new Prefetch(dataSpec, upstreamFactory.createDataSource(),
+            maxPrefetchBlockCount, executor);
+        prefetches.add(prefetch);
+        startedPrefetchCount++;
+        executor.execute(prefetch);
+      }
+    }
+  }
+
+  /**
+   * Cancels all prefetches. Should be called when the data source is no longer required, since
+   * prefetches otherwise continue to load and hold their data until it's read.
+   * <p>
+   * May be called on any thread.
+   */
+  public synchronized void cancelPrefetches() {
+    for (int i = 0; i < prefetches.size(); i++) {
+      prefetches.get(i).cancel();
+    }
+    canceledPrefetchCount += prefetches.size();
+    prefetches.clear();
+  }
+
+  /**
+   * Returns the number of prefetches that have been started.
+   */
+  public synchronized int getStartedPrefetchCount() {
+    return startedPrefetchCount;
+  }
+
+  /**
+   * Returns the number of prefetches from which data has been read.
+   */
+  public synchronized int getUsedPrefetchCount() {
+    return usedPrefetchCount;
+  }
+
+  /**
+   * Returns the number of prefetches that have been canceled because their data was no longer
+   * expected to be opened.
+   */
+  public synchronized int getCanceledPrefetchCount() {
+    return canceledPrefetchCount;
+  }
+
+  @Override
+  public long open(DataSpec dataSpec) throws IOException {
+    synchronized (this) {
+      int index = indexOf(prefetches, dataSpec);
+      if (index != -1) {
+        openedPrefetch = prefetches.remove(index);
+        usedPrefetchCount++;
+      }
+    }
+    if (openedPrefetch == null) {
+      return upstream.open(dataSpec);
+    }
+    readPosition = 0;
+    return openedPrefetch.blockUntilOpened();
+  }
+
+  @Override
+  public int read(byte[] buffer, int offset, int readLength) throws IOException {
+    if (openedPrefetch == null) {
+      return upstream.read(buffer, offset, readLength);
+    }
+    if (readLength == 0) {
+      return 0;
+    }
+    int bytesRead = openedPrefetch.read(readPosition, buffer, offset, readLength);
+    if (bytesRead != C.RESULT_END_OF_INPUT) {
+      readPosition += bytesRead;
+    }
+    return bytesRead;
+  }
+
+  @Override
+  public Uri getUri() {
+    return openedPrefetch != null ? openedPrefetch.getUri() : upstream.getUri();
+  }
+
+  @Override
+  public void close() throws IOException {
+    if (openedPrefetch != null) {
+      openedPrefetch.cancel();
+      openedPrefetch = null;
+    } else {
+      upstream.close();
+    }
+  }
+
+  private static int indexOf(List<DataSpec> dataSpecs, DataSpec dataSpec) {
+    for (int i = 0; i < dataSpecs.size(); i++) {
+      if (isSameData(dataSpecs.get(i), dataSpec)) {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  private static int indexOf(ArrayList<Prefetch> prefetches, DataSpec dataSpec) {
+    for (int i = 0; i < prefetches.size(); i++) {
+      if (isSameData(prefetches.get(i).dataSpec, dataSpec)) {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  private static boolean isSameData(DataSpec dataSpec, DataSpec other) {
+    return dataSpec.postBody == null && other.postBody == null
+        && dataSpec.absoluteStreamPosition == other.absoluteStreamPosition
+        && dataSpec.position == other.position && dataSpec.length == other.length
+        && dataSpec.flags == other.flags && dataSpec.uri.equals(other.uri)
+        && Util.areEqual(dataSpec.key, other.key);
+  }
+
+  /**
+   * Loads data into memory on a prefetch thread, from where it's read by the loading thread. The
+   * prefetch is suspended when its blocks are full, and runs again once half of them have been
+   * read.
+   */
+  private static final class Prefetch implements Runnable {
+
+    public final DataSpec dataSpec;
+
+    private final DataSource dataSource;
+    private final int maxBlockCount;
+    private final Executor executor;
+
+    // Guarded by this.
+    private final ArrayList<byte[]> blocks;
+    private int heldBlockCount;
+    private Thread loadingThread;
+    private long bytesLoaded;
+    private long length;
+    private Uri uri;
+    private boolean opened;
+    private boolean suspended;
+    private boolean finished;
+    private boolean canceled;
+    private IOException error;
+
+    public Prefetch(DataSpec dataSpec, DataSource dataSource, int maxBlockCount,
+        Executor executor) {
+      this.dataSpec = dataSpec;
+      this.dataSource = dataSource;
+      this.maxBlockCount = maxBlockCount;
+      this.executor = executor;
+      blocks = new ArrayList<>();
+    }
+
+    /**
+     * Cancels the prefetch, releasing its data and interrupting its load if it's running.
+     */
+    public synchronized void cancel() {
+      canceled = true;
+      blocks.clear();
+      // The thread is only set whilst it's running this prefetch, and not another that's since been
+      // given the thread by the executor.
+      if (loadingThread != null) {
+        loadingThread.interrupt();
+      }
+      notifyAll();
+    }
+
+    public synchronized Uri getUri() {
+      return uri;
+    }
+
+    /**
+     * Blocks until the prefetch's {@link DataSource} has been opened, returning the value returned
+     * by its {@link DataSource#open(DataSpec)}.
+     */
+    public synchronized long blockUntilOpened() throws IOException {
+      while (!opened && error == null) {
+        waitInterruptibly();
+      }
+      if (error != null) {
+        throw error;
+      }
+      return length;
+    }
+
+    /**
+     * Reads loaded data, blocking until data at {@code position} has been loaded or the end of the
+     * data has been reached.
+     */
+    public synchronized int read(long position, byte[] buffer, int offset, int readLength)
+        throws IOException {
+      while (position == bytesLoaded && !finished) {
+        waitInterruptibly();
+      }
+      if (position == bytesLoaded) {
+        if (error != null) {
+          throw error;
+        }
+        return C.RESULT_END_OF_INPUT;
+      }
+      int blockIndex = (int) (position / BLOCK_SIZE);
+      int blockOffset = (int) (position % BLOCK_SIZE);
+      int bytesToRead = (int) Math.min(Math.min(readLength, BLOCK_SIZE - blockOffset),
+          bytesLoaded - position);
+      System.arraycopy(blocks.get(blockIndex), blockOffset, buffer, offset, bytesToRead);
+      if (blockOffset + bytesToRead == BLOCK_SIZE) {
+        // The block has been read, and so can be released and another one loaded.
+        blocks.set(blockIndex, null);
+        heldBlockCount--;
+        maybeResume();
+      }
+      return bytesToRead;
+    }
+
+    @Override
+    public void run() {
+      boolean suspending = false;
+      try {
+        DataSpec resumeDataSpec = null;
+        synchronized (this) {
+          if (canceled) {
+            return;
+          }
+          loadingThread = Thread.currentThread();
+          if (opened) {
+            // The prefetch was suspended. Blocks are only added whilst whole, so the load resumes
+            // at the start of a block.
+            long resumeLength = length == C.LENGTH_UNSET ? C.LENGTH_UNSET : length - bytesLoaded;
+            resumeDataSpec = new DataSpec(dataSpec.uri,
+                dataSpec.absoluteStreamPosition + bytesLoaded, dataSpec.position + bytesLoaded,
+                resumeLength, dataSpec.key, dataSpec.flags);
+          }
+        }
+        if (resumeDataSpec != null) {
+          dataSource.open(resumeDataSpec);
+        } else {
+          long length = dataSource.open(dataSpec);
+          Uri uri = dataSource.getUri();
+          synchronized (this) {
+            this.length = length;
+            this.uri = uri;
+            opened = true;
+            notifyAll();
+          }
+        }
+        byte[] block = null;
+        int blockPosition = BLOCK_SIZE;
+        while (true) {
+          if (blockPosition == BLOCK_SIZE) {
+            block = new byte[BLOCK_SIZE];
+            blockPosition = 0;
+            synchronized (this) {
+              if (canceled || bytesLoaded == length) {
+                return;
+              }
+              if (heldBlockCount == maxBlockCount) {
+                // Rather than holding the connection and the thread whilst the loaded data is
+                // read, close the data source and run again once it's been read.
+                suspending = true;
+                suspended = true;
+                return;
+              }
+              blocks.add(block);
+              heldBlockCount++;
+            }
+          }
+          int bytesRead = dataSource.read(block, blockPosition, BLOCK_SIZE - blockPosition);
+          if (bytesRead == C.RESULT_END_OF_INPUT) {
+            return;
+          }
+          blockPosition += bytesRead;
+          synchronized (this) {
+            if (canceled) {
+              return;
+            }
+            bytesLoaded += bytesRead;
+            notifyAll();
+          }
+        }
+      } catch (IOException e) {
+        synchronized (this) {
+          error = e;
+        }
+      } finally {
+        Util.closeQuietly(dataSource);
+        synchronized (this) {
+          loadingThread = null;
+          // Clear an interrupt that arrived after the load was canceled, so that it isn't seen by
+          // the next prefetch to run on the thread.
+          Thread.interrupted();
+          if (suspending) {
+            // Half of the data may have been read whilst the data source was being closed.
+            maybeResume();
+          } else {
+            finished = true;
+          }
+          notifyAll();
+        }
+      }
+    }
+
+    /**
+     * Runs a suspended prefetch again if half of its blocks have been read and its data source has
+     * been closed. Must be called whilst holding the prefetch's monitor.
+     */
+    private void maybeResume() {
+      if (suspended && loadingThread == null && heldBlockCount <= maxBlockCount / 2 && !canceled) {
+        suspended = false;
+        executor.execute(this);
+      }
+    }
+
+    private void waitInterruptibly() throws InterruptedIOException {
+      try {
+        wait();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new InterruptedIOException();
+      }
+    }
+
+  }
+
+}
@@ -0,0 +1,83 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.exoplayer2.upstream;
+
+import com.google.android.exoplayer2.upstream.DataSource.Factory;
+import java.util.concurrent.Executor;
+
+/**
+ * A {@link Factory} that produces {@link PrefetchingDataSource} instances. Chunk sources that are
+ * given a {@link PrefetchingDataSource} load the segments that follow the one being loaded in
+ * parallel with it.
+ * <p>
+ * The prefetches of all of the instances run on a single {@link Executor}. A prefetch only
+ * occupies a thread whilst it's loading, and not whilst it waits for its data to be read.
+ */
+public final class PrefetchingDataSourceFactory implements Factory {
+
+  private final DataSource.Factory upstreamFactory;
+  private final int maxPrefetchCount;
+  private final int maxPrefetchBufferSize;
+  private final Executor executor;
+
+  /**
+   * @param upstreamFactory A {@link Factory} for the {@link DataSource}s from which data is read
+   *     and prefetched.
+   * @param maxPrefetchCount The maximum number of prefetches at once for each data source.
+   */
+  public PrefetchingDataSourceFactory(DataSource.Factory upstreamFactory, int maxPrefetchCount) {
+    this(upstreamFactory, maxPrefetchCount,
+        PrefetchingDataSource.DEFAULT_MAX_PREFETCH_BUFFER_SIZE);
+  }
+
+  /**
+   * Constructs an instance whose data sources share an {@link Executor} with
+   * {@code maxPrefetchCount} threads.
+   *
+   * @param upstreamFactory A {@link Factory} for the {@link DataSource}s from which data is read
+   *     and prefetched.
+   * @param maxPrefetchCount The maximum number of prefetches at once for each data source.
+   * @param maxPrefetchBufferSize The maximum number of bytes that each prefetch holds in memory.
+   */
+  public PrefetchingDataSourceFactory(DataSource.Factory upstreamFactory, int maxPrefetchCount,
+      int maxPrefetchBufferSize) {
+    this(upstreamFactory, maxPrefetchCount, maxPrefetchBufferSize,
+        PrefetchingDataSource.createExecutor(maxPrefetchCount));
+  }
+
+  /**
+   * @param upstreamFactory A {@link Factory} for the {@link DataSource}s from which data is read
+   *     and prefetched.
+   * @param maxPrefetchCount The maximum number of prefetches at once for each data source.
+   * @param maxPrefetchBufferSize The maximum number of bytes that each prefetch holds in memory.
+   * @param executor The {@link Executor} on which the prefetches of all of the data sources are
+   *     loaded.
+   */
+  public PrefetchingDataSourceFactory(DataSource.Factory upstreamFactory, int maxPrefetchCount,
+      int maxPrefetchBufferSize, Executor executor) {
+    this.upstreamFactory = upstreamFactory;
+    this.maxPrefetchCount = maxPrefetchCount;
+    this.maxPrefetchBufferSize = maxPrefetchBufferSize;
+    this.executor = executor;
+  }
+
+  @Override
+  public PrefetchingDataSource createDataSource() {
+    return new PrefetchingDataSource(upstreamFactory, maxPrefetchCount, maxPrefetchBufferSize,
+        executor);
+  }
+
+}
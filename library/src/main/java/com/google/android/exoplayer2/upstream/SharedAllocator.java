@@ -0,0 +1,272 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.exoplayer2.upstream;
+
+import com.google.android.exoplayer2.util.Assertions;
+import com.google.android.exoplayer2.util.PriorityTaskManager;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A pool of allocations shared by multiple participants, such as the players of a foreground video
+ * and of background previews, within a total memory budget.
+ * <p>
+ * Each participant is an {@link Allocator} with a priority and a quota. A participant's budget is
+ * its quota, limited by the part of the total budget that isn't held by other participants of the
+ * same or higher priority. Memory held by participants of lower priority isn't counted, so a
+ * participant of lower priority yields memory to one of higher priority by not loading until its
+ * own buffer has drained below its reduced budget.
+ * <p>
+ * If a {@link PriorityTaskManager} is provided then participants register their priority with it
+ * whilst they wish to load, and are only allowed to load when no participant of higher priority is
+ * registered. Loads for the same participants can use a {@link PriorityDataSource} to yield network
+ * bandwidth in the same way.
+ */
+public final class SharedAllocator {
+
+  private final DefaultAllocator allocator;
+  private final int totalBufferBytes;
+  private final PriorityTaskManager priorityTaskManager;
+  private final CopyOnWriteArrayList<Participant> participants;
+
+  /**
+   * @param individualAllocationSize The length of each individual {@link Allocation}.
+   * @param totalBufferBytes The total number of bytes that may be allocated by all participants.
+   * @param priorityTaskManager A {@link PriorityTaskManager} with which participants register their
+   *     priority whilst they wish to load, or null.
+   */
+  public SharedAllocator(int individualAllocationSize, int totalBufferBytes,
+      PriorityTaskManager priorityTaskManager) {
+    Assertions.checkArgument(totalBufferBytes > 0);
+    this.totalBufferBytes = totalBufferBytes;
+    this.priorityTaskManager = priorityTaskManager;
+    allocator = new DefaultAllocator(false, individualAllocationSize);
+    participants = new CopyOnWriteArrayList<>();
+  }
+
+  /**
+   * Adds a participant. The participant must be released by calling
+   * {@link Participant#release()} when it's no longer used.
+   *
+   * @param priority The priority of the participant. Larger values indicate higher priorities.
+   * @param quotaBytes The maximum number of bytes that may be allocated by the participant.
+   * @return The participant.
+   */
+  public Participant addParticipant(int priority, int quotaBytes) {
+    Participant participant = new Participant(priority, quotaBytes);
+    participants.add(participant);
+    return participant;
+  }
+
+  /**
+   * Returns the total number of bytes that may be allocated by all participants.
+   */
+  public int getTotalBufferBytes() {
+    return totalBufferBytes;
+  }
+
+  /**
+   * Returns the total number of bytes currently allocated by all participants.
+   */
+  public int getTotalBytesAllocated() {
+    return allocator.getTotalBytesAllocated();
+  }
+
+  /**
+   * Returns the {@link DefaultAllocator} from which participants obtain allocations, for example to
+   * read its counters.
+   */
+  public DefaultAllocator getAllocator() {
+    return allocator;
+  }
+
+  private synchronized void updateTargetBufferSize() {
+    int targetBufferSize = 0;
+    for (Participant participant : participants) {
+      targetBufferSize += participant.targetBufferSize;
+    }
+    allocator.setTargetBufferSize(Math.min(targetBufferSize, totalBufferBytes));
+  }
+
+  /**
+   * A participant in a {@link SharedAllocator}.
+   * <p>
+   * Allocations are obtained and released on any thread. The remaining methods should be called
+   * by the participant's playback thread.
+   */
+  public final class Participant implements Allocator {
+
+    private final int priority;
+    private final int quotaBytes;
+    private final AtomicInteger allocatedCount;
+    private final AtomicInteger peakAllocatedCount;
+
+    private volatile int targetBufferSize;
+    private volatile int yieldCount;
+    private boolean registered;
+
+    private Participant(int priority, int quotaBytes) {
+      this.priority = priority;
+      this.quotaBytes = quotaBytes;
+      allocatedCount = new AtomicInteger();
+      peakAllocatedCount = new AtomicInteger();
+    }
+
+    @Override
+    public Allocation allocate() {
+      int allocatedCount = this.allocatedCount.incrementAndGet();
+      int peakAllocatedCount;
+      do {
+        peakAllocatedCount = this.peakAllocatedCount.get();
+      } while (allocatedCount > peakAllocatedCount
+          && !this.peakAllocatedCount.compareAndSet(peakAllocatedCount, allocatedCount));
+      return allocator.allocate();
+    }
+
+    @Override
+    public void release(Allocation allocation) {
+      allocator.release(allocation);
+      allocatedCount.decrementAndGet();
+    }
+
+    @Override
+    public void release(Allocation[] allocations) {
+      allocator.release(allocations);
+      allocatedCount.addAndGet(-allocations.length);
+    }
+
+    @Override
+    public void trim() {
+      allocator.trim();
+    }
+
+    /**
+     * Returns the total number of bytes currently allocated by the participant.
+     */
+    @Override
+    public int getTotalBytesAllocated() {
+      return allocatedCount.get() * allocator.getIndividualAllocationLength();
+    }
+
+    @Override
+    public int getIndividualAllocationLength() {
+      return allocator.getIndividualAllocationLength();
+    }
+
+    /**
+     * Sets the number of bytes the participant expects to buffer, which is kept available in the
+     * shared pool when it's trimmed.
+     *
+     * @param targetBufferSize The target buffer size, in bytes.
+     */
+    public void setTargetBufferSize(int targetBufferSize) {
+      this.targetBufferSize = targetBufferSize;
+      updateTargetBufferSize();
+    }
+
+    /**
+     * Returns whether the participant is allowed to load, given whether it wishes to. Should be
+     * called each time the participant's player decides whether to continue loading.
+     *
+     * @param wishesToLoad Whether the participant wishes to load.
+     * @return Whether the participant is allowed to load. Always false if {@code wishesToLoad} is
+     *     false.
+     */
+    public boolean continueLoading(boolean wishesToLoad) {
+      if (priorityTaskManager != null && wishesToLoad != registered) {
+        if (wishesToLoad) {
+          priorityTaskManager.add(priority);
+        } else {
+          priorityTaskManager.remove(priority);
+        }
+        registered = wishesToLoad;
+      }
+      if (!wishesToLoad) {
+        return false;
+      }
+      boolean allowed = getTotalBytesAllocated() < getBudgetBytes()
+          && (priorityTaskManager == null || priorityTaskManager.proceedNonBlocking(priority));
+      if (!allowed) {
+        yieldCount++;
+      }
+      return allowed;
+    }
+
+    /**
+     * Resets the participant's target buffer size, and stops it from loading.
+     */
+    public void reset() {
+      continueLoading(false);
+      setTargetBufferSize(0);
+    }
+
+    /**
+     * Resets the participant and removes it from the shared pool. Any allocations still held by the
+     * participant should have been released.
+     */
+    public void release() {
+      reset();
+      participants.remove(this);
+      updateTargetBufferSize();
+    }
+
+    /**
+     * Returns the priority of the participant.
+     */
+    public int getPriority() {
+      return priority;
+    }
+
+    /**
+     * Returns the maximum number of bytes that may be allocated by the participant.
+     */
+    public int getQuotaBytes() {
+      return quotaBytes;
+    }
+
+    /**
+     * Returns the number of bytes the participant may currently allocate. This is its quota,
+     * limited by the part of the total budget that isn't held by other participants of the same or
+     * higher priority.
+     */
+    public int getBudgetBytes() {
+      int availableBytes = totalBufferBytes;
+      for (Participant participant : participants) {
+        if (participant != this && participant.priority >= priority) {
+          availableBytes -= participant.getTotalBytesAllocated();
+        }
+      }
+      return Math.max(0, Math.min(quotaBytes, availableBytes));
+    }
+
+    /**
+     * Returns the largest number of bytes that have been allocated at once by the participant.
+     */
+    public int getPeakBytesAllocated() {
+      return peakAllocatedCount.get() * allocator.getIndividualAllocationLength();
+    }
+
+    /**
+     * Returns the number of times the participant wished to load but wasn't allowed to, because it
+     * had reached its budget or because a participant of higher priority was loading.
+     */
+    public int getYieldCount() {
+      return yieldCount;
+    }
+
+  }
+
+}
@@ -153,6 +153,30 @@ public interface Cache {
    */
   CacheSpan startReadWriteNonBlocking(String key, long position) throws CacheException;
 
+  /**
+   * Obtains a shared read lease on the cached data at a given position, if the position is cached.
+   * Unlike {@link #startReadWrite(String, long)}, this method never waits for or acquires the lock
+   * used to write into holes of the key, so any number of callers can read the same cached data
+   * concurrently, including whilst another caller is writing into a hole of the same key.
+   * <p>
+   * Whilst the lease is held, the span's file isn't renamed or deleted, even if the span is
+   * removed from the cache. The caller must release the lease by calling
+   * {@link #releaseReadSpan(CacheSpan)} when it has finished reading.
+   *
+   * @param key The key of the data being requested.
+   * @param position The position of the data being requested.
+   * @return The cached {@link CacheSpan} containing the position, or null if the position isn't
+   *     cached.
+   */
+  CacheSpan startRead(String key, long position) throws CacheException;
+
+  /**
+   * Releases a read lease on a {@link CacheSpan} obtained from {@link #startRead(String, long)}.
+   *
+   * @param span The {@link CacheSpan} being released.
+   */
+  void releaseReadSpan(CacheSpan span);
+
   /**
    * Obtains a cache file into which data can be written. Must only be called when holding a
    * corresponding hole {@link CacheSpan} obtained from {@link #startReadWrite(String, long)}.
@@ -214,4 +238,11 @@ public interface Cache {
    */
   long getContentLength(String key);
 
+  /**
+   * Returns the statistics of the cache, or null if the cache doesn't record statistics.
+   * {@link CacheDataSource} instances reading from the cache record their requests into the
+   * returned instance.
+   */
+  CacheStatistics getStatistics();
+
 }
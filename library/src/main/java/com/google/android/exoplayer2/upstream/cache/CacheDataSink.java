@@ -19,6 +19,7 @@ import com.google.android.exoplayer2.C;
 import com.google.android.exoplayer2.upstream.DataSink;
 import com.google.android.exoplayer2.upstream.DataSpec;
 import com.google.android.exoplayer2.upstream.cache.Cache.CacheException;
+import com.google.android.exoplayer2.upstream.crypto.AesFlushingCipher;
 import com.google.android.exoplayer2.util.Assertions;
 import com.google.android.exoplayer2.util.ReusableBufferedOutputStream;
 import com.google.android.exoplayer2.util.Util;
@@ -32,9 +33,13 @@ import java.io.OutputStream;
  */
 public final class CacheDataSink implements DataSink {
 
+  private static final int ENCRYPTION_SCRATCH_SIZE = 16 * 1024;
+
   private final Cache cache;
   private final long maxCacheFileSize;
   private final int bufferSize;
+  private final AesFlushingCipher cipher;
+  private final byte[] scratch;
 
   private DataSpec dataSpec;
   private File file;
@@ -74,9 +79,34 @@ public final class CacheDataSink implements DataSink {
    *    value disables buffering.
    */
   public CacheDataSink(Cache cache, long maxCacheFileSize, int bufferSize) {
+    this(cache, maxCacheFileSize, bufferSize, null);
+  }
+
+  /**
+   * @param cache The cache into which data should be written. Must be an {@link EncryptableCache}
+   *    if {@code secretKey} is not null.
+   * @param maxCacheFileSize The maximum size of a cache file, in bytes. If the sink is opened for
+   *    a {@link DataSpec} whose size exceeds this value, then the data will be fragmented into
+   *    multiple cache files.
+   * @param bufferSize The buffer size in bytes for writing to a cache file. A zero or negative
+   *    value disables buffering.
+   * @param secretKey If not null, data is encrypted with this key, which must be 16, 24 or 32 bytes
+   *    long. Each cache file is encrypted with AES in CTR mode, using the nonce that the cache
+   *    generates for the file (see {@link EncryptableCache#getSpanNonce(String, long)}) and a
+   *    counter that starts at the beginning of the file.
+   */
+  public CacheDataSink(Cache cache, long maxCacheFileSize, int bufferSize, byte[] secretKey) {
+    Assertions.checkArgument(secretKey == null || cache instanceof EncryptableCache);
     this.cache = Assertions.checkNotNull(cache);
     this.maxCacheFileSize = maxCacheFileSize;
     this.bufferSize = bufferSize;
+    if (secretKey != null) {
+      cipher = new AesFlushingCipher(secretKey);
+      scratch = new byte[ENCRYPTION_SCRATCH_SIZE];
+    } else {
+      cipher = null;
+      scratch = null;
+    }
   }
 
   @Override
@@ -107,7 +137,13 @@ public final class CacheDataSink implements DataSink {
         }
         int bytesToWrite = (int) Math.min(length - bytesWritten,
             maxCacheFileSize - outputStreamBytesWritten);
-        outputStream.write(buffer, offset + bytesWritten, bytesToWrite);
+        if (cipher != null) {
+          bytesToWrite = Math.min(bytesToWrite, scratch.length);
+          cipher.update(buffer, offset + bytesWritten, bytesToWrite, scratch, 0);
+          outputStream.write(scratch, 0, bytesToWrite);
+        } else {
+          outputStream.write(buffer, offset + bytesWritten, bytesToWrite);
+        }
         bytesWritten += bytesToWrite;
         outputStreamBytesWritten += bytesToWrite;
         dataSpecBytesWritten += bytesToWrite;
@@ -130,8 +166,16 @@ public final class CacheDataSink implements DataSink {
   }
 
   private void openNextOutputStream() throws IOException {
-    file = cache.startFile(dataSpec.key, dataSpec.absoluteStreamPosition + dataSpecBytesWritten,
+    long position = dataSpec.absoluteStreamPosition + dataSpecBytesWritten;
+    file = cache.startFile(dataSpec.key, position,
         Math.min(dataSpec.length - dataSpecBytesWritten, maxCacheFileSize));
+    if (cipher != null) {
+      Long nonce = ((EncryptableCache) cache).getSpanNonce(dataSpec.key, position);
+      if (nonce == null) {
+        throw new CacheException("No nonce for started file: " + file);
+      }
+      cipher.init(nonce, 0);
+    }
     underlyingFileOutputStream = new FileOutputStream(file);
     if (bufferSize > 0) {
       if (bufferedOutputStream == null) {
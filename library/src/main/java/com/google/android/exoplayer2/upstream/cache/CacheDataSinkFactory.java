@@ -24,18 +24,27 @@ public final class CacheDataSinkFactory implements DataSink.Factory {
 
   private final Cache cache;
   private final long maxCacheFileSize;
+  private final byte[] secretKey;
 
   /**
    * @see CacheDataSink#CacheDataSink(Cache, long)
    */
   public CacheDataSinkFactory(Cache cache, long maxCacheFileSize) {
+    this(cache, maxCacheFileSize, null);
+  }
+
+  /**
+   * @see CacheDataSink#CacheDataSink(Cache, long, int, byte[])
+   */
+  public CacheDataSinkFactory(Cache cache, long maxCacheFileSize, byte[] secretKey) {
     this.cache = cache;
     this.maxCacheFileSize = maxCacheFileSize;
+    this.secretKey = secretKey;
   }
 
   @Override
   public DataSink createDataSink() {
-    return new CacheDataSink(cache, maxCacheFileSize);
+    return new CacheDataSink(cache, maxCacheFileSize, 0, secretKey);
   }
 
 }
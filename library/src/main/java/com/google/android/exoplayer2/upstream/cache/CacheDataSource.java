@@ -23,8 +23,11 @@ import com.google.android.exoplayer2.upstream.DataSource;
 import com.google.android.exoplayer2.upstream.DataSourceException;
 import com.google.android.exoplayer2.upstream.DataSpec;
 import com.google.android.exoplayer2.upstream.FileDataSource;
+import com.google.android.exoplayer2.upstream.MappedFileDataSource;
 import com.google.android.exoplayer2.upstream.TeeDataSource;
 import com.google.android.exoplayer2.upstream.cache.Cache.CacheException;
+import com.google.android.exoplayer2.upstream.crypto.AesFlushingCipher;
+import com.google.android.exoplayer2.util.Assertions;
 import java.io.IOException;
 import java.io.InterruptedIOException;
 import java.lang.annotation.Retention;
@@ -50,7 +53,7 @@ public final class CacheDataSource implements DataSource {
    */
   @Retention(RetentionPolicy.SOURCE)
   @IntDef(flag = true, value = {FLAG_BLOCK_ON_CACHE, FLAG_IGNORE_CACHE_ON_ERROR,
-      FLAG_IGNORE_CACHE_FOR_UNSET_LENGTH_REQUESTS})
+      FLAG_IGNORE_CACHE_FOR_UNSET_LENGTH_REQUESTS, FLAG_MEMORY_MAP_CACHE_READS})
   public @interface Flags {}
   /**
    * A flag indicating whether we will block reads if the cache key is locked. If this flag is
@@ -70,6 +73,13 @@ public final class CacheDataSource implements DataSource {
    */
   public static final int FLAG_IGNORE_CACHE_FOR_UNSET_LENGTH_REQUESTS = 1 << 2;
 
+  /**
+   * A flag indicating that cached data should be read by memory mapping cache files, using a
+   * {@link MappedFileDataSource}. Only applies to constructors that create the {@link DataSource}
+   * for reading the cache.
+   */
+  public static final int FLAG_MEMORY_MAP_CACHE_READS = 1 << 3;
+
   /**
    * Listener of {@link CacheDataSource} events.
    */
@@ -90,6 +100,8 @@ public final class CacheDataSource implements DataSource {
   private final DataSource cacheWriteDataSource;
   private final DataSource upstreamDataSource;
   private final EventListener eventListener;
+  private final CacheStatistics statistics;
+  private final AesFlushingCipher cipher;
 
   private final boolean blockOnCache;
   private final boolean ignoreCacheOnError;
@@ -103,9 +115,13 @@ public final class CacheDataSource implements DataSource {
   private long readPosition;
   private long bytesRemaining;
   private CacheSpan lockedSpan;
+  private CacheSpan leasedSpan;
   private boolean seenCacheError;
   private boolean currentRequestIgnoresCache;
   private long totalCachedBytesRead;
+  private long requestCachedBytesRead;
+  private long requestUpstreamBytesRead;
+  private long holeFillBytesRead;
 
   /**
    * Constructs an instance with default {@link DataSource} and {@link DataSink} instances for
@@ -130,8 +146,30 @@ public final class CacheDataSource implements DataSource {
    */
   public CacheDataSource(Cache cache, DataSource upstream, @Flags int flags,
       long maxCacheFileSize) {
-    this(cache, upstream, new FileDataSource(), new CacheDataSink(cache, maxCacheFileSize),
-        flags, null);
+    this(cache, upstream, flags, maxCacheFileSize, null);
+  }
+
+  /**
+   * Constructs an instance with default {@link DataSource} and {@link DataSink} instances for
+   * reading and writing the cache, which optionally encrypt the cached data. Each cache file is
+   * encrypted with AES in CTR mode, using a random nonce that the cache generates for the file (see
+   * {@link EncryptableCache#getSpanNonce(String, long)}) and a counter that starts at the beginning
+   * of the file. Reads from any position in a file therefore only decrypt the bytes that are read.
+   * Spans that aren't encrypted, such as those cached before a secret key was used, are removed
+   * and their data is read from upstream again.
+   *
+   * @param cache The cache. Must be an {@link EncryptableCache} if {@code secretKey} is not null.
+   * @param upstream A {@link DataSource} for reading data not in the cache.
+   * @param flags A combination of {@link #FLAG_BLOCK_ON_CACHE} and {@link
+   *     #FLAG_IGNORE_CACHE_ON_ERROR} or 0.
+   * @param maxCacheFileSize The maximum size of a cache file, in bytes.
+   * @param secretKey If not null, cached data is stored encrypted with this key, which must be 16,
+   *     24 or 32 bytes long. All sources reading and writing the cache must use the same key.
+   */
+  public CacheDataSource(Cache cache, DataSource upstream, @Flags int flags,
+      long maxCacheFileSize, byte[] secretKey) {
+    this(cache, upstream, createCacheReadDataSource(flags),
+        new CacheDataSink(cache, maxCacheFileSize, 0, secretKey), flags, null, secretKey);
   }
 
   /**
@@ -149,6 +187,20 @@ public final class CacheDataSource implements DataSource {
    */
   public CacheDataSource(Cache cache, DataSource upstream, DataSource cacheReadDataSource,
       DataSink cacheWriteDataSink, @Flags int flags, EventListener eventListener) {
+    this(cache, upstream, cacheReadDataSource, cacheWriteDataSink, flags, eventListener, null);
+  }
+
+  /**
+   * Constructs an instance that decrypts the data read from the cache, which must have been written
+   * by a {@link CacheDataSink} with the same secret key.
+   *
+   * @see #CacheDataSource(Cache, DataSource, DataSource, DataSink, int, EventListener)
+   * @param secretKey If not null, the secret key with which cached data is decrypted.
+   */
+  /* package */ CacheDataSource(Cache cache, DataSource upstream, DataSource cacheReadDataSource,
+      DataSink cacheWriteDataSink, @Flags int flags, EventListener eventListener,
+      byte[] secretKey) {
+    Assertions.checkArgument(secretKey == null || cache instanceof EncryptableCache);
     this.cache = cache;
     this.cacheReadDataSource = cacheReadDataSource;
     this.blockOnCache = (flags & FLAG_BLOCK_ON_CACHE) != 0;
@@ -162,10 +214,15 @@ public final class CacheDataSource implements DataSource {
       this.cacheWriteDataSource = null;
     }
     this.eventListener = eventListener;
+    this.statistics = cache.getStatistics();
+    this.cipher = secretKey != null ? new AesFlushingCipher(secretKey) : null;
   }
 
   @Override
   public long open(DataSpec dataSpec) throws IOException {
+    long startTimeNs = System.nanoTime();
+    requestCachedBytesRead = 0;
+    requestUpstreamBytesRead = 0;
     try {
       uri = dataSpec.uri;
       flags = dataSpec.flags;
@@ -182,6 +239,9 @@ public final class CacheDataSource implements DataSource {
         }
       }
       openNextSource(true);
+      if (statistics != null) {
+        statistics.getOpenLatency().record((System.nanoTime() - startTimeNs) / 1000);
+      }
       return bytesRemaining;
     } catch (IOException e) {
       handleBeforeThrow(e);
@@ -201,7 +261,16 @@ public final class CacheDataSource implements DataSource {
       int bytesRead = currentDataSource.read(buffer, offset, readLength);
       if (bytesRead >= 0) {
         if (currentDataSource == cacheReadDataSource) {
+          if (cipher != null) {
+            cipher.updateInPlace(buffer, offset, bytesRead);
+          }
           totalCachedBytesRead += bytesRead;
+          requestCachedBytesRead += bytesRead;
+        } else {
+          requestUpstreamBytesRead += bytesRead;
+          if (lockedSpan != null && currentDataSource == cacheWriteDataSource) {
+            holeFillBytesRead += bytesRead;
+          }
         }
         readPosition += bytesRead;
         if (bytesRemaining != C.LENGTH_UNSET) {
@@ -237,6 +306,11 @@ public final class CacheDataSource implements DataSource {
   public void close() throws IOException {
     uri = null;
     notifyBytesRead();
+    if (statistics != null) {
+      statistics.onRequestCompleted(requestCachedBytesRead, requestUpstreamBytesRead);
+    }
+    requestCachedBytesRead = 0;
+    requestUpstreamBytesRead = 0;
     try {
       closeCurrentSource();
     } catch (IOException e) {
@@ -256,6 +330,9 @@ public final class CacheDataSource implements DataSource {
     CacheSpan span;
     if (currentRequestIgnoresCache) {
       span = null;
+    } else if ((span = cache.startRead(key, readPosition)) != null) {
+      // Data is cached. Reading it doesn't require the key's lock.
+      leasedSpan = span;
     } else if (blockOnCache) {
       try {
         span = cache.startReadWrite(key, readPosition);
@@ -281,6 +358,27 @@ public final class CacheDataSource implements DataSource {
       }
       dataSpec = new DataSpec(fileUri, readPosition, filePosition, length, key, flags);
       currentDataSource = cacheReadDataSource;
+      if (cipher != null) {
+        Long nonce = null;
+        try {
+          nonce = ((EncryptableCache) cache).getSpanNonce(key, span.position);
+        } finally {
+          if (nonce == null) {
+            currentDataSource = null;
+            if (leasedSpan != null) {
+              cache.releaseReadSpan(leasedSpan);
+              leasedSpan = null;
+            }
+          }
+        }
+        if (nonce == null) {
+          // The span was cached without encryption. Remove it, so that its data is read from
+          // upstream and written to the cache encrypted.
+          cache.removeSpan(span);
+          return openNextSource(initial);
+        }
+        cipher.init(nonce, filePosition);
+      }
     } else {
       // Data is not cached, and data is not locked, read from upstream with cache backing.
       lockedSpan = span;
@@ -352,9 +450,17 @@ public final class CacheDataSource implements DataSource {
       currentRequestUnbounded = false;
     } finally {
       if (lockedSpan != null) {
+        if (statistics != null && holeFillBytesRead > 0) {
+          statistics.onHoleFilled(holeFillBytesRead);
+        }
+        holeFillBytesRead = 0;
         cache.releaseHoleSpan(lockedSpan);
         lockedSpan = null;
       }
+      if (leasedSpan != null) {
+        cache.releaseReadSpan(leasedSpan);
+        leasedSpan = null;
+      }
     }
   }
 
@@ -371,4 +477,9 @@ public final class CacheDataSource implements DataSource {
     }
   }
 
+  private static DataSource createCacheReadDataSource(@Flags int flags) {
+    return (flags & FLAG_MEMORY_MAP_CACHE_READS) != 0 ? new MappedFileDataSource()
+        : new FileDataSource();
+  }
+
 }
@@ -19,7 +19,9 @@ import com.google.android.exoplayer2.upstream.DataSink;
 import com.google.android.exoplayer2.upstream.DataSource;
 import com.google.android.exoplayer2.upstream.DataSource.Factory;
 import com.google.android.exoplayer2.upstream.FileDataSourceFactory;
+import com.google.android.exoplayer2.upstream.MappedFileDataSourceFactory;
 import com.google.android.exoplayer2.upstream.cache.CacheDataSource.EventListener;
+import com.google.android.exoplayer2.util.Assertions;
 
 /**
  * A {@link DataSource.Factory} that produces {@link CacheDataSource}.
@@ -32,6 +34,8 @@ public final class CacheDataSourceFactory implements DataSource.Factory {
   private final DataSink.Factory cacheWriteDataSinkFactory;
   private final int flags;
   private final EventListener eventListener;
+  private final MemoryCacheTier memoryCacheTier;
+  private final byte[] secretKey;
 
   /**
    * @see CacheDataSource#CacheDataSource(Cache, DataSource, int)
@@ -45,8 +49,18 @@ public final class CacheDataSourceFactory implements DataSource.Factory {
    */
   public CacheDataSourceFactory(Cache cache, DataSource.Factory upstreamFactory, int flags,
       long maxCacheFileSize) {
-    this(cache, upstreamFactory, new FileDataSourceFactory(),
-        new CacheDataSinkFactory(cache, maxCacheFileSize), flags, null);
+    this(cache, upstreamFactory, flags, maxCacheFileSize, null);
+  }
+
+  /**
+   * @see CacheDataSource#CacheDataSource(Cache, DataSource, int, long, byte[])
+   */
+  public CacheDataSourceFactory(Cache cache, DataSource.Factory upstreamFactory, int flags,
+      long maxCacheFileSize, byte[] secretKey) {
+    this(cache, upstreamFactory, (flags & CacheDataSource.FLAG_MEMORY_MAP_CACHE_READS) != 0
+        ? new MappedFileDataSourceFactory() : new FileDataSourceFactory(),
+        new CacheDataSinkFactory(cache, maxCacheFileSize, secretKey), flags, null, null,
+        secretKey);
   }
 
   /**
@@ -56,19 +70,46 @@ public final class CacheDataSourceFactory implements DataSource.Factory {
   public CacheDataSourceFactory(Cache cache, Factory upstreamFactory,
       Factory cacheReadDataSourceFactory,
       DataSink.Factory cacheWriteDataSinkFactory, int flags, EventListener eventListener) {
+    this(cache, upstreamFactory, cacheReadDataSourceFactory, cacheWriteDataSinkFactory, flags,
+        eventListener, null);
+  }
+
+  /**
+   * Constructs a factory whose data sources are optionally fronted by a {@link MemoryCacheTier}.
+   *
+   * @see CacheDataSource#CacheDataSource(Cache, DataSource, DataSource, DataSink, int,
+   *     EventListener)
+   * @see MemoryCacheDataSource
+   * @param memoryCacheTier A memory tier wrapping {@code cache}, or null.
+   */
+  public CacheDataSourceFactory(Cache cache, Factory upstreamFactory,
+      Factory cacheReadDataSourceFactory, DataSink.Factory cacheWriteDataSinkFactory, int flags,
+      EventListener eventListener, MemoryCacheTier memoryCacheTier) {
+    this(cache, upstreamFactory, cacheReadDataSourceFactory, cacheWriteDataSinkFactory, flags,
+        eventListener, memoryCacheTier, null);
+  }
+
+  private CacheDataSourceFactory(Cache cache, Factory upstreamFactory,
+      Factory cacheReadDataSourceFactory, DataSink.Factory cacheWriteDataSinkFactory, int flags,
+      EventListener eventListener, MemoryCacheTier memoryCacheTier, byte[] secretKey) {
+    Assertions.checkArgument(memoryCacheTier == null || memoryCacheTier.getCache() == cache);
     this.cache = cache;
     this.upstreamFactory = upstreamFactory;
     this.cacheReadDataSourceFactory = cacheReadDataSourceFactory;
     this.cacheWriteDataSinkFactory = cacheWriteDataSinkFactory;
     this.flags = flags;
     this.eventListener = eventListener;
+    this.memoryCacheTier = memoryCacheTier;
+    this.secretKey = secretKey;
   }
 
   @Override
   public DataSource createDataSource() {
-    return new CacheDataSource(cache, upstreamFactory.createDataSource(),
-        cacheReadDataSourceFactory.createDataSource(),
-        cacheWriteDataSinkFactory.createDataSink(), flags, eventListener);
+    CacheDataSource cacheDataSource = new CacheDataSource(cache, upstreamFactory.createDataSource(),
+        cacheReadDataSourceFactory.createDataSource(), cacheWriteDataSinkFactory.createDataSink(),
+        flags, eventListener, secretKey);
+    return memoryCacheTier != null ? new MemoryCacheDataSource(memoryCacheTier, cacheDataSource)
+        : cacheDataSource;
   }
 
 }
@@ -0,0 +1,203 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.exoplayer2.upstream.cache;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Statistics describing the use of a {@link Cache}. The cache records its own operations, and
+ * each {@link CacheDataSource} reading from the cache records its requests. All values are updated
+ * with atomic operations, so recording doesn't require any of the cache's locks and values can be
+ * read from any thread. Values read individually aren't necessarily consistent with one another.
+ */
+public final class CacheStatistics {
+
+  private final AtomicLong requestHitCount;
+  private final AtomicLong requestPartialHitCount;
+  private final AtomicLong requestMissCount;
+  private final AtomicLong holeFillCount;
+  private final AtomicLong bytesReadFromCache;
+  private final AtomicLong bytesReadFromUpstream;
+  private final AtomicLong bytesWrittenToCache;
+  private final AtomicLong spansAdded;
+  private final AtomicLong bytesAdded;
+  private final AtomicLong spansEvicted;
+  private final AtomicLong bytesEvicted;
+  private final LatencyHistogram startReadWriteLatency;
+  private final LatencyHistogram openLatency;
+
+  public CacheStatistics() {
+    requestHitCount = new AtomicLong();
+    requestPartialHitCount = new AtomicLong();
+    requestMissCount = new AtomicLong();
+    holeFillCount = new AtomicLong();
+    bytesReadFromCache = new AtomicLong();
+    bytesReadFromUpstream = new AtomicLong();
+    bytesWrittenToCache = new AtomicLong();
+    spansAdded = new AtomicLong();
+    bytesAdded = new AtomicLong();
+    spansEvicted = new AtomicLong();
+    bytesEvicted = new AtomicLong();
+    startReadWriteLatency = new LatencyHistogram();
+    openLatency = new LatencyHistogram();
+  }
+
+  /**
+   * Returns the number of {@link CacheDataSource} requests whose data was read entirely from the
+   * cache.
+   */
+  public long getRequestHitCount() {
+    return requestHitCount.get();
+  }
+
+  /**
+   * Returns the number of {@link CacheDataSource} requests whose data was read partly from the
+   * cache and partly from upstream.
+   */
+  public long getRequestPartialHitCount() {
+    return requestPartialHitCount.get();
+  }
+
+  /**
+   * Returns the number of {@link CacheDataSource} requests whose data was read entirely from
+   * upstream.
+   */
+  public long getRequestMissCount() {
+    return requestMissCount.get();
+  }
+
+  /**
+   * Returns the number of times a {@link CacheDataSource} read from upstream whilst holding the
+   * lock of a hole in the cache, in order to write the data into the hole.
+   */
+  public long getHoleFillCount() {
+    return holeFillCount.get();
+  }
+
+  /**
+   * Returns the number of bytes read from the cache by {@link CacheDataSource} instances.
+   */
+  public long getBytesReadFromCache() {
+    return bytesReadFromCache.get();
+  }
+
+  /**
+   * Returns the number of bytes read from upstream by {@link CacheDataSource} instances, including
+   * bytes that were written into the cache.
+   */
+  public long getBytesReadFromUpstream() {
+    return bytesReadFromUpstream.get();
+  }
+
+  /**
+   * Returns the number of bytes read from upstream by {@link CacheDataSource} instances whilst
+   * filling holes in the cache.
+   */
+  public long getBytesWrittenToCache() {
+    return bytesWrittenToCache.get();
+  }
+
+  /**
+   * Returns the number of spans that have been committed to the cache.
+   */
+  public long getSpansAdded() {
+    return spansAdded.get();
+  }
+
+  /**
+   * Returns the number of bytes that have been committed to the cache.
+   */
+  public long getBytesAdded() {
+    return bytesAdded.get();
+  }
+
+  /**
+   * Returns the number of spans that have been evicted from the cache by its evictor.
+   */
+  public long getSpansEvicted() {
+    return spansEvicted.get();
+  }
+
+  /**
+   * Returns the number of bytes that have been evicted from the cache by its evictor.
+   */
+  public long getBytesEvicted() {
+    return bytesEvicted.get();
+  }
+
+  /**
+   * Returns the histogram of the time taken by {@link Cache#startReadWrite(String, long)} and
+   * {@link Cache#startRead(String, long)} to start reading or writing, including the time spent
+   * blocking until a locked hole becomes available.
+   */
+  public LatencyHistogram getStartReadWriteLatency() {
+    return startReadWriteLatency;
+  }
+
+  /**
+   * Returns the histogram of the time taken by {@link CacheDataSource#open}.
+   */
+  public LatencyHistogram getOpenLatency() {
+    return openLatency;
+  }
+
+  /**
+   * Clears all values.
+   */
+  public void reset() {
+    requestHitCount.set(0);
+    requestPartialHitCount.set(0);
+    requestMissCount.set(0);
+    holeFillCount.set(0);
+    bytesReadFromCache.set(0);
+    bytesReadFromUpstream.set(0);
+    bytesWrittenToCache.set(0);
+    spansAdded.set(0);
+    bytesAdded.set(0);
+    spansEvicted.set(0);
+    bytesEvicted.set(0);
+    startReadWriteLatency.reset();
+    openLatency.reset();
+  }
+
+  /*package*/ void onRequestCompleted(long cachedBytesRead, long upstreamBytesRead) {
+    if (cachedBytesRead > 0) {
+      bytesReadFromCache.addAndGet(cachedBytesRead);
+      (upstreamBytesRead > 0 ? requestPartialHitCount : requestHitCount).incrementAndGet();
+    } else if (upstreamBytesRead > 0) {
+      requestMissCount.incrementAndGet();
+    }
+    if (upstreamBytesRead > 0) {
+      bytesReadFromUpstream.addAndGet(upstreamBytesRead);
+    }
+  }
+
+  /*package*/ void onHoleFilled(long bytesWritten) {
+    holeFillCount.incrementAndGet();
+    bytesWrittenToCache.addAndGet(bytesWritten);
+  }
+
+  /*package*/ void onSpanAdded(long length) {
+    spansAdded.incrementAndGet();
+    bytesAdded.addAndGet(length);
+  }
+
+  /*package*/ void onSpanEvicted(long length) {
+    spansEvicted.incrementAndGet();
+    bytesEvicted.addAndGet(length);
+  }
+
+}
@@ -21,6 +21,8 @@ import com.google.android.exoplayer2.util.Assertions;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
 import java.util.TreeSet;
 
 /**
@@ -43,7 +45,18 @@ import java.util.TreeSet;
   /**
    * The length of the original stream, or {@link C#LENGTH_UNSET} if the length is unknown.
    */
-  private long length;
+  private volatile long length;
+  /**
+   * The last access timestamps of the spans, keyed by span position, if they're stored in the
+   * index rather than being encoded in the span file names. Guarded by the
+   * {@link CachedContentIndex} that contains this instance.
+   */
+  private final HashMap<Long, Long> lastAccessTimestamps;
+  /**
+   * The nonces of the keystreams with which the spans are encrypted, keyed by span position.
+   * Guarded by the {@link CachedContentIndex} that contains this instance.
+   */
+  private final HashMap<Long, Long> spanNonces;
 
   /**
    * Reads an instance from a {@link DataInputStream}.
@@ -67,6 +80,8 @@ import java.util.TreeSet;
     this.key = key;
     this.length = length;
     this.cachedSpans = new TreeSet<>();
+    this.lastAccessTimestamps = new HashMap<>();
+    this.spanNonces = new HashMap<>();
   }
 
   /**
@@ -91,6 +106,48 @@ import java.util.TreeSet;
     this.length = length;
   }
 
+  /**
+   * Returns the last access timestamp stored for the span at the given position, or
+   * {@link C#TIME_UNSET} if there isn't one. Must be called whilst holding the index lock.
+   */
+  public long getLastAccessTimestamp(long position) {
+    Long lastAccessTimestamp = lastAccessTimestamps.get(position);
+    return lastAccessTimestamp == null ? C.TIME_UNSET : lastAccessTimestamp;
+  }
+
+  /**
+   * Stores the last access timestamp of the span at the given position. Must be called whilst
+   * holding the index lock.
+   *
+   * @param position The position of the span.
+   * @param lastAccessTimestamp The last access timestamp, or {@link C#TIME_UNSET} to remove the
+   *     stored timestamp.
+   * @return Whether the stored timestamp was changed.
+   */
+  public boolean setLastAccessTimestamp(long position, long lastAccessTimestamp) {
+    Long previousTimestamp = lastAccessTimestamp == C.TIME_UNSET
+        ? lastAccessTimestamps.remove(position)
+        : lastAccessTimestamps.put(position, lastAccessTimestamp);
+    return previousTimestamp == null ? lastAccessTimestamp != C.TIME_UNSET
+        : previousTimestamp != lastAccessTimestamp;
+  }
+
+  /**
+   * Returns the stored last access timestamps, keyed by span position. Must be called whilst
+   * holding the index lock.
+   */
+  public Map<Long, Long> getLastAccessTimestamps() {
+    return lastAccessTimestamps;
+  }
+
+  /**
+   * Returns the nonces of the keystreams with which spans are encrypted, keyed by span position.
+   * Must be called whilst holding the index lock.
+   */
+  public Map<Long, Long> getSpanNonces() {
+    return spanNonces;
+  }
+
   /** Adds the given {@link SimpleCacheSpan} which contains a part of the content. */
   public void addSpan(SimpleCacheSpan span) {
     cachedSpans.add(span);
@@ -154,8 +211,28 @@ import java.util.TreeSet;
    * @throws CacheException If renaming of the underlying span file failed.
    */
   public SimpleCacheSpan touch(SimpleCacheSpan cacheSpan) throws CacheException {
+    return touch(cacheSpan, true);
+  }
+
+  /**
+   * Copies the given span with an updated last access time. Passed span becomes invalid after this
+   * call.
+   *
+   * @param cacheSpan Span to be copied and updated.
+   * @param renameFile Whether the underlying span file is renamed to encode the updated last
+   *     access time. If false, the returned span refers to the same file as the passed span.
+   * @return a span with the updated last access time.
+   * @throws CacheException If renaming of the underlying span file failed.
+   */
+  public SimpleCacheSpan touch(SimpleCacheSpan cacheSpan, boolean renameFile)
+      throws CacheException {
     // Remove the old span from the in-memory representation.
     Assertions.checkState(cachedSpans.remove(cacheSpan));
+    if (!renameFile) {
+      SimpleCacheSpan newCacheSpan = cacheSpan.copyWithLastAccessTime(System.currentTimeMillis());
+      cachedSpans.add(newCacheSpan);
+      return newCacheSpan;
+    }
     // Obtain a new span with updated last access timestamp.
     SimpleCacheSpan newCacheSpan = cacheSpan.copyWithUpdatedLastAccessTime(id);
     // Rename the cache file
@@ -173,13 +250,37 @@ import java.util.TreeSet;
     return cachedSpans.isEmpty();
   }
 
-  /** Removes the given span from cache. */
+  /**
+   * Removes the given span from cache. Has no effect if the span has already been removed, or if
+   * it has been replaced by a span with an updated last access time.
+   */
   public boolean removeSpan(CacheSpan span) {
-    if (cachedSpans.remove(span)) {
+    return removeSpan(span, true);
+  }
+
+  /**
+   * Removes the given span from cache. Has no effect if the span has already been removed, or if
+   * it has been replaced by a span with an updated last access time.
+   *
+   * @param span The span to be removed.
+   * @param deleteFile Whether the underlying file is deleted.
+   * @return Whether the span was removed.
+   */
+  public boolean removeSpan(CacheSpan span, boolean deleteFile) {
+    SimpleCacheSpan existingSpan =
+        cachedSpans.floor(SimpleCacheSpan.createLookup(span.key, span.position));
+    // Spans whose last access time isn't encoded in the file name keep their file when touched, so
+    // the timestamp is compared as well.
+    if (existingSpan == null || existingSpan.position != span.position
+        || !existingSpan.file.equals(span.file)
+        || existingSpan.lastAccessTimestamp != span.lastAccessTimestamp) {
+      return false;
+    }
+    cachedSpans.remove(existingSpan);
+    if (deleteFile) {
       span.file.delete();
-      return true;
     }
-    return false;
+    return true;
   }
 
   /** Calculates a hash code for the header of this {@code CachedContent}. */
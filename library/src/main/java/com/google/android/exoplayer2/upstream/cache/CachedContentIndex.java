@@ -24,21 +24,34 @@ import com.google.android.exoplayer2.util.AtomicFile;
 import com.google.android.exoplayer2.util.ReusableBufferedOutputStream;
 import com.google.android.exoplayer2.util.Util;
 import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
+import java.io.EOFException;
 import java.io.File;
 import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.security.GeneralSecurityException;
 import java.security.InvalidAlgorithmParameterException;
 import java.security.InvalidKeyException;
 import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
-import java.util.HashMap;
 import java.util.LinkedList;
+import java.util.Map;
 import java.util.Random;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
 import javax.crypto.Cipher;
 import javax.crypto.CipherInputStream;
 import javax.crypto.CipherOutputStream;
@@ -48,24 +61,81 @@ import javax.crypto.spec.SecretKeySpec;
 
 /**
  * This class maintains the index of cached content.
+ * <p>
+ * Lookups by key don't acquire a lock. Mutations are synchronized on the instance. The index file
+ * is written from a snapshot, so that writing it doesn't block lookups or mutations.
+ * <p>
+ * If the index is journaled, the index file consists of a snapshot followed by a journal of
+ * records, each of which adds a content, removes a content or sets a content length. Storing the
+ * index appends the records for the changes made since it was last stored, rather than rewriting
+ * the whole file. Once the journal grows past a threshold the file is compacted into a new snapshot
+ * on the index's background thread, which is terminated when it's been idle for a while. Records
+ * are checksummed, so a torn tail left by an interrupted append is discarded on load.
+ * <p>
+ * The index can also store the last access timestamps of the cached spans, in which case they're
+ * written after the cached contents, and are persisted whenever the index is next stored. The
+ * nonces of the keystreams with which encrypted spans are written are stored in the same way.
  */
 /*package*/ final class CachedContentIndex {
 
   public static final String FILE_NAME = "cached_content_index.exi";
 
   private static final int VERSION = 1;
+  private static final int VERSION_JOURNALED = 2;
 
   private static final int FLAG_ENCRYPTED_INDEX = 1;
+  private static final int FLAG_LAST_ACCESS_TIMESTAMPS = 1 << 1;
+  private static final int FLAG_SPAN_NONCES = 1 << 2;
+
+  private static final int RECORD_TYPE_ADD = 0;
+  private static final int RECORD_TYPE_REMOVE = 1;
+  private static final int RECORD_TYPE_SET_LENGTH = 2;
+  private static final int RECORD_TYPE_SET_LAST_ACCESS_TIMESTAMP = 3;
+  private static final int RECORD_TYPE_SET_SPAN_NONCE = 4;
+  private static final int RECORD_TYPE_REMOVE_SPAN_NONCE = 5;
+
+  /**
+   * The length of the version, flags and snapshot length fields of a journaled index file.
+   */
+  private static final int JOURNALED_HEADER_LENGTH = 12;
+  /**
+   * The length of the length and checksum fields that surround the payload of a journal record.
+   */
+  private static final int RECORD_OVERHEAD_LENGTH = 8;
+  /**
+   * The maximum length of a journal record payload. A larger length indicates a corrupt record.
+   */
+  private static final int MAX_RECORD_PAYLOAD_LENGTH = 1024 * 1024;
+  /**
+   * The minimum length of the journal, excluding the snapshot, before the index file is compacted.
+   * The file is compacted once the journal is both longer than this and longer than the snapshot,
+   * so that compaction cost is amortized over the appended records.
+   */
+  private static final int MIN_COMPACTION_JOURNAL_LENGTH = 64 * 1024;
+  /**
+   * The time for which an idle compaction thread is kept alive, in milliseconds.
+   */
+  private static final long KEEP_ALIVE_MS = 10000;
 
   private static final String TAG = "CachedContentIndex";
 
-  private final HashMap<String, CachedContent> keyToContent;
+  private final ConcurrentHashMap<String, CachedContent> keyToContent;
   private final SparseArray<String> idToKey;
   private final AtomicFile atomicFile;
+  private final File indexFile;
   private final Cipher cipher;
   private final SecretKeySpec secretKeySpec;
+  private final boolean journaled;
+  private final boolean storesLastAccessTimestamps;
+  private final Object storeLock;
+  private final ThreadPoolExecutor compactionExecutor;
+  private final ArrayList<JournalRecord> pendingRecords;
   private boolean changed;
+  // Guarded by storeLock.
   private ReusableBufferedOutputStream bufferedOutputStream;
+  private long snapshotLength;
+  private long journalLength;
+  private boolean compactionPending;
 
   /** Creates a CachedContentIndex which works on the index file in the given cacheDir. */
   public CachedContentIndex(File cacheDir) {
@@ -74,6 +144,35 @@ import javax.crypto.spec.SecretKeySpec;
 
   /** Creates a CachedContentIndex which works on the index file in the given cacheDir. */
   public CachedContentIndex(File cacheDir, byte[] secretKey) {
+    this(cacheDir, secretKey, false);
+  }
+
+  /**
+   * Creates a CachedContentIndex which works on the index file in the given cacheDir.
+   *
+   * @param cacheDir Directory where the index file is kept.
+   * @param secretKey If not null, the index is stored encrypted on filesystem using AES/CBC. The
+   *     key must be 16 bytes long.
+   * @param journaled Whether changes are appended to the index file as journal records, rather
+   *     than rewriting the whole file each time the index is stored.
+   */
+  public CachedContentIndex(File cacheDir, byte[] secretKey, boolean journaled) {
+    this(cacheDir, secretKey, journaled, false);
+  }
+
+  /**
+   * Creates a CachedContentIndex which works on the index file in the given cacheDir.
+   *
+   * @param cacheDir Directory where the index file is kept.
+   * @param secretKey If not null, the index is stored encrypted on filesystem using AES/CBC. The
+   *     key must be 16 bytes long.
+   * @param journaled Whether changes are appended to the index file as journal records, rather
+   *     than rewriting the whole file each time the index is stored.
+   * @param storesLastAccessTimestamps Whether the index stores the last access timestamps of the
+   *     cached spans, in which case they aren't encoded in the names of the span files.
+   */
+  public CachedContentIndex(File cacheDir, byte[] secretKey, boolean journaled,
+      boolean storesLastAccessTimestamps) {
     if (secretKey != null) {
       try {
         cipher = Cipher.getInstance("AES/CBC/PKCS5PADDING");
@@ -85,28 +184,108 @@ import javax.crypto.spec.SecretKeySpec;
       cipher = null;
       secretKeySpec = null;
     }
-    keyToContent = new HashMap<>();
+    this.journaled = journaled;
+    this.storesLastAccessTimestamps = storesLastAccessTimestamps;
+    keyToContent = new ConcurrentHashMap<>();
     idToKey = new SparseArray<>();
-    atomicFile = new AtomicFile(new File(cacheDir, FILE_NAME));
+    storeLock = new Object();
+    compactionExecutor = new ThreadPoolExecutor(1, 1, KEEP_ALIVE_MS, TimeUnit.MILLISECONDS,
+        new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+          @Override
+          public Thread newThread(Runnable r) {
+            return new Thread(r, "CachedContentIndex.compact()");
+          }
+        });
+    compactionExecutor.allowCoreThreadTimeOut(true);
+    pendingRecords = new ArrayList<>();
+    indexFile = new File(cacheDir, FILE_NAME);
+    atomicFile = new AtomicFile(indexFile);
+    journalLength = C.LENGTH_UNSET;
   }
 
   /** Loads the index file. */
   public void load() {
-    Assertions.checkState(!changed);
-    if (!readFile()) {
-      atomicFile.delete();
-      keyToContent.clear();
-      idToKey.clear();
+    synchronized (storeLock) {
+      synchronized (this) {
+        Assertions.checkState(!changed);
+        if (!readFile()) {
+          atomicFile.delete();
+          keyToContent.clear();
+          idToKey.clear();
+          journalLength = C.LENGTH_UNSET;
+        }
+      }
     }
   }
 
   /** Stores the index data to index file if there is a change. */
   public void store() throws CacheException {
-    if (!changed) {
-      return;
+    synchronized (storeLock) {
+      synchronized (this) {
+        if (!changed) {
+          return;
+        }
+      }
+      // Records are only appended to a file whose length matches the journal's, which guards
+      // against the file having been deleted or modified from under us. The length is checked
+      // without holding the instance's monitor, so that mutations aren't blocked on file system
+      // access. Changes are only cleared whilst holding storeLock, so the index is still changed.
+      boolean appendable = journaled && journalLength != C.LENGTH_UNSET
+          && indexFile.length() == journalLength;
+      ArrayList<CachedContent> snapshot = null;
+      ArrayList<JournalRecord> records = null;
+      synchronized (this) {
+        if (appendable) {
+          records = new ArrayList<>(pendingRecords);
+        } else {
+          snapshot = createSnapshot();
+        }
+        pendingRecords.clear();
+        changed = false;
+      }
+      try {
+        if (records != null) {
+          appendRecords(records);
+        } else if (journaled) {
+          writeJournaledFile(snapshot);
+        } else {
+          writeFile(snapshot);
+        }
+      } catch (CacheException e) {
+        synchronized (this) {
+          changed = true;
+        }
+        // The file may have been partially written, so the next store must rewrite it.
+        journalLength = C.LENGTH_UNSET;
+        throw e;
+      }
+      maybeStartCompaction();
+    }
+  }
+
+  /**
+   * Compacts a journaled index file by replacing its snapshot and journal with a new snapshot.
+   */
+  /*package*/ void compact() throws CacheException {
+    synchronized (storeLock) {
+      compactionPending = false;
+      ArrayList<CachedContent> snapshot;
+      synchronized (this) {
+        snapshot = createSnapshot();
+        // The snapshot reflects all changes, so there's nothing left to append.
+        pendingRecords.clear();
+        changed = false;
+      }
+      try {
+        writeJournaledFile(snapshot);
+      } catch (CacheException e) {
+        synchronized (this) {
+          changed = true;
+        }
+        journalLength = C.LENGTH_UNSET;
+        throw e;
+      }
     }
-    writeFile();
-    changed = false;
   }
 
   /**
@@ -115,7 +294,7 @@ import javax.crypto.spec.SecretKeySpec;
    * @param key The cache key that uniquely identifies the original stream.
    * @return A new or existing CachedContent instance with the given key.
    */
-  public CachedContent add(String key) {
+  public synchronized CachedContent add(String key) {
     CachedContent cachedContent = keyToContent.get(key);
     if (cachedContent == null) {
       cachedContent = addNew(key, C.LENGTH_UNSET);
@@ -131,9 +310,9 @@ import javax.crypto.spec.SecretKeySpec;
   /**
    * Returns a Collection of all CachedContent instances in the index. The collection is backed by
    * the {@code keyToContent} map, so changes to the map are reflected in the collection, and
-   * vice-versa. If the map is modified while an iteration over the collection is in progress
-   * (except through the iterator's own remove operation), the results of the iteration are
-   * undefined.
+   * vice-versa. Iteration is weakly consistent: it never throws {@link
+   * java.util.ConcurrentModificationException}, but may or may not reflect modifications made
+   * after the iterator was created.
    */
   public Collection<CachedContent> getAll() {
     return keyToContent.values();
@@ -144,8 +323,102 @@ import javax.crypto.spec.SecretKeySpec;
     return add(key).id;
   }
 
+  /** Returns whether the index stores the last access timestamps of the cached spans. */
+  public boolean storesLastAccessTimestamps() {
+    return storesLastAccessTimestamps;
+  }
+
+  /**
+   * Returns the last access timestamp stored for a span, or {@link C#TIME_UNSET} if there isn't
+   * one.
+   *
+   * @param id The cache file id of the span's content.
+   * @param position The position of the span.
+   */
+  public synchronized long getLastAccessTimestamp(int id, long position) {
+    String key = idToKey.get(id);
+    return key == null ? C.TIME_UNSET : keyToContent.get(key).getLastAccessTimestamp(position);
+  }
+
+  /**
+   * Stores the last access timestamp of a span. The timestamp is persisted when the index is next
+   * stored. Has no effect if the index doesn't store last access timestamps.
+   *
+   * @param id The cache file id of the span's content.
+   * @param position The position of the span.
+   * @param lastAccessTimestamp The last access timestamp, or {@link C#TIME_UNSET} to remove the
+   *     stored timestamp.
+   */
+  public synchronized void setLastAccessTimestamp(int id, long position,
+      long lastAccessTimestamp) {
+    String key = idToKey.get(id);
+    if (!storesLastAccessTimestamps || key == null) {
+      return;
+    }
+    CachedContent cachedContent = keyToContent.get(key);
+    if (cachedContent.setLastAccessTimestamp(position, lastAccessTimestamp)) {
+      changed = true;
+      if (journaled) {
+        pendingRecords.add(new JournalRecord(RECORD_TYPE_SET_LAST_ACCESS_TIMESTAMP, id, null, 0,
+            position, lastAccessTimestamp));
+      }
+    }
+  }
+
+  /**
+   * Returns the nonce of the keystream with which a span is encrypted, or null if the span isn't
+   * encrypted.
+   *
+   * @param id The cache file id of the span's content.
+   * @param position The position of the span.
+   */
+  public synchronized Long getSpanNonce(int id, long position) {
+    String key = idToKey.get(id);
+    return key == null ? null : keyToContent.get(key).getSpanNonces().get(position);
+  }
+
+  /**
+   * Stores the nonce of the keystream with which a span is encrypted. The nonce is persisted when
+   * the index is next stored.
+   *
+   * @param id The cache file id of the span's content.
+   * @param position The position of the span.
+   * @param nonce The nonce.
+   */
+  public synchronized void setSpanNonce(int id, long position, long nonce) {
+    String key = idToKey.get(id);
+    if (key == null) {
+      return;
+    }
+    Long previousNonce = keyToContent.get(key).getSpanNonces().put(position, nonce);
+    if (previousNonce == null || previousNonce != nonce) {
+      changed = true;
+      if (journaled) {
+        pendingRecords.add(new JournalRecord(RECORD_TYPE_SET_SPAN_NONCE, id, null, 0, position,
+            nonce));
+      }
+    }
+  }
+
+  /**
+   * Removes the stored nonce of a span, if there is one.
+   *
+   * @param id The cache file id of the span's content.
+   * @param position The position of the span.
+   */
+  public synchronized void removeSpanNonce(int id, long position) {
+    String key = idToKey.get(id);
+    if (key != null && keyToContent.get(key).getSpanNonces().remove(position) != null) {
+      changed = true;
+      if (journaled) {
+        pendingRecords.add(new JournalRecord(RECORD_TYPE_REMOVE_SPAN_NONCE, id, null, 0, position,
+            0));
+      }
+    }
+  }
+
   /** Returns the key which has the given id assigned. */
-  public String getKeyForId(int id) {
+  public synchronized String getKeyForId(int id) {
     return idToKey.get(id);
   }
 
@@ -154,17 +427,17 @@ import javax.crypto.spec.SecretKeySpec;
    *
    * @throws IllegalStateException If {@link CachedContent} isn't empty.
    */
-  public void removeEmpty(String key) {
+  public synchronized void removeEmpty(String key) {
     CachedContent cachedContent = keyToContent.remove(key);
     if (cachedContent != null) {
       Assertions.checkState(cachedContent.isEmpty());
       idToKey.remove(cachedContent.id);
-      changed = true;
+      onChanged(RECORD_TYPE_REMOVE, cachedContent);
     }
   }
 
   /** Removes empty {@link CachedContent} instances from index. */
-  public void removeEmpty() {
+  public synchronized void removeEmpty() {
     LinkedList<String> cachedContentToBeRemoved = new LinkedList<>();
     for (CachedContent cachedContent : keyToContent.values()) {
       if (cachedContent.isEmpty()) {
@@ -178,9 +451,8 @@ import javax.crypto.spec.SecretKeySpec;
 
   /**
    * Returns a set of all content keys. The set is backed by the {@code keyToContent} map, so
-   * changes to the map are reflected in the set, and vice-versa. If the map is modified while an
-   * iteration over the set is in progress (except through the iterator's own remove operation), the
-   * results of the iteration are undefined.
+   * changes to the map are reflected in the set, and vice-versa. Iteration is weakly consistent, as
+   * for {@link #getAll()}.
    */
   public Set<String> getKeys() {
     return keyToContent.keySet();
@@ -190,12 +462,12 @@ import javax.crypto.spec.SecretKeySpec;
    * Sets the content length for the given key. A new {@link CachedContent} is added if there isn't
    * one already with the given key.
    */
-  public void setContentLength(String key, long length) {
+  public synchronized void setContentLength(String key, long length) {
     CachedContent cachedContent = get(key);
     if (cachedContent != null) {
       if (cachedContent.getLength() != length) {
         cachedContent.setLength(length);
-        changed = true;
+        onChanged(RECORD_TYPE_SET_LENGTH, cachedContent);
       }
     } else {
       addNew(key, length);
@@ -217,10 +489,14 @@ import javax.crypto.spec.SecretKeySpec;
       InputStream inputStream = new BufferedInputStream(atomicFile.openRead());
       input = new DataInputStream(inputStream);
       int version = input.readInt();
-      if (version != VERSION) {
-        // Currently there is no other version
+      if (version == VERSION_JOURNALED) {
+        return readJournaledFile(input);
+      } else if (version != VERSION) {
         return false;
       }
+      if (journaled) {
+        changed = true; // Force index to be rewritten journaled after read.
+      }
 
       int flags = input.readInt();
       if ((flags & FLAG_ENCRYPTED_INDEX) != 0) {
@@ -252,6 +528,16 @@ import javax.crypto.spec.SecretKeySpec;
       if (input.readInt() != hashCode) {
         return false;
       }
+      boolean hasLastAccessTimestamps = (flags & FLAG_LAST_ACCESS_TIMESTAMPS) != 0;
+      if (hasLastAccessTimestamps && !readSpanValues(input, false)) {
+        return false;
+      }
+      if ((flags & FLAG_SPAN_NONCES) != 0 && !readSpanValues(input, true)) {
+        return false;
+      }
+      if (hasLastAccessTimestamps != storesLastAccessTimestamps) {
+        changed = true; // Force index to be rewritten with or without last access timestamps.
+      }
     } catch (FileNotFoundException e) {
       return false;
     } catch (IOException e) {
@@ -265,7 +551,7 @@ import javax.crypto.spec.SecretKeySpec;
     return true;
   }
 
-  private void writeFile() throws CacheException {
+  private void writeFile(Collection<CachedContent> cachedContents) throws CacheException {
     DataOutputStream output = null;
     try {
       OutputStream outputStream = atomicFile.startWrite();
@@ -277,7 +563,10 @@ import javax.crypto.spec.SecretKeySpec;
       output = new DataOutputStream(bufferedOutputStream);
       output.writeInt(VERSION);
 
-      int flags = cipher != null ? FLAG_ENCRYPTED_INDEX : 0;
+      boolean hasSpanNonces = hasSpanNonces(cachedContents);
+      int flags = (cipher != null ? FLAG_ENCRYPTED_INDEX : 0)
+          | (storesLastAccessTimestamps ? FLAG_LAST_ACCESS_TIMESTAMPS : 0)
+          | (hasSpanNonces ? FLAG_SPAN_NONCES : 0);
       output.writeInt(flags);
 
       if (cipher != null) {
@@ -294,13 +583,19 @@ import javax.crypto.spec.SecretKeySpec;
         output = new DataOutputStream(new CipherOutputStream(bufferedOutputStream, cipher));
       }
 
-      output.writeInt(keyToContent.size());
+      output.writeInt(cachedContents.size());
       int hashCode = 0;
-      for (CachedContent cachedContent : keyToContent.values()) {
+      for (CachedContent cachedContent : cachedContents) {
         cachedContent.writeToStream(output);
         hashCode += cachedContent.headerHashCode();
       }
       output.writeInt(hashCode);
+      if (storesLastAccessTimestamps) {
+        writeSpanValues(output, cachedContents, false);
+      }
+      if (hasSpanNonces) {
+        writeSpanValues(output, cachedContents, true);
+      }
       atomicFile.endWrite(output);
     } catch (IOException e) {
       throw new CacheException(e);
@@ -309,15 +604,376 @@ import javax.crypto.spec.SecretKeySpec;
     }
   }
 
+  /**
+   * Reads the remainder of a journaled index file, after its version field. Records are replayed
+   * until the end of the file or until a torn or corrupt record is found, in which case the file
+   * is rewritten on the next store.
+   */
+  private boolean readJournaledFile(DataInputStream input) throws IOException {
+    int flags = input.readInt();
+    boolean encrypted = (flags & FLAG_ENCRYPTED_INDEX) != 0;
+    if (encrypted && cipher == null) {
+      return false;
+    }
+    int snapshotSize = input.readInt();
+    if (snapshotSize < 0) {
+      return false;
+    }
+    byte[] snapshot = new byte[snapshotSize];
+    input.readFully(snapshot);
+    try {
+      snapshot = encrypted ? decrypt(snapshot) : snapshot;
+    } catch (GeneralSecurityException e) {
+      Log.e(TAG, "Error decrypting cache content index file.", e);
+      return false;
+    }
+    DataInputStream snapshotInput = new DataInputStream(new ByteArrayInputStream(snapshot));
+    int count = snapshotInput.readInt();
+    int hashCode = 0;
+    for (int i = 0; i < count; i++) {
+      CachedContent cachedContent = new CachedContent(snapshotInput);
+      add(cachedContent);
+      hashCode += cachedContent.headerHashCode();
+    }
+    if (snapshotInput.readInt() != hashCode) {
+      return false;
+    }
+    boolean hasLastAccessTimestamps = (flags & FLAG_LAST_ACCESS_TIMESTAMPS) != 0;
+    if (hasLastAccessTimestamps && !readSpanValues(snapshotInput, false)) {
+      return false;
+    }
+    if ((flags & FLAG_SPAN_NONCES) != 0 && !readSpanValues(snapshotInput, true)) {
+      return false;
+    }
+
+    long validLength = JOURNALED_HEADER_LENGTH + snapshotSize;
+    snapshotLength = validLength;
+    boolean tornTail = false;
+    CRC32 crc32 = new CRC32();
+    while (true) {
+      int payloadLength;
+      try {
+        payloadLength = input.readInt();
+      } catch (EOFException e) {
+        // The end of the journal.
+        break;
+      }
+      if (payloadLength <= 0 || payloadLength > MAX_RECORD_PAYLOAD_LENGTH) {
+        tornTail = true;
+        break;
+      }
+      byte[] payload = new byte[payloadLength];
+      try {
+        input.readFully(payload);
+        crc32.reset();
+        crc32.update(payload, 0, payloadLength);
+        if (input.readInt() != (int) crc32.getValue()) {
+          tornTail = true;
+          break;
+        }
+        applyRecord(new DataInputStream(
+            new ByteArrayInputStream(encrypted ? decrypt(payload) : payload)));
+      } catch (EOFException | GeneralSecurityException e) {
+        tornTail = true;
+        break;
+      }
+      validLength += RECORD_OVERHEAD_LENGTH + payloadLength;
+    }
+
+    if (tornTail) {
+      Log.w(TAG, "Discarding torn journal tail at offset " + validLength + ".");
+    }
+    if (!encrypted && cipher != null) {
+      changed = true; // Force index to be rewritten encrypted after read.
+    }
+    if (hasLastAccessTimestamps != storesLastAccessTimestamps) {
+      changed = true; // Force index to be rewritten with or without last access timestamps.
+    }
+    if (!journaled || tornTail) {
+      changed = true; // Force index to be rewritten after read.
+    }
+    journalLength = changed ? C.LENGTH_UNSET : validLength;
+    return true;
+  }
+
+  private void applyRecord(DataInputStream input) throws IOException {
+    int type = input.readByte();
+    int id = input.readInt();
+    switch (type) {
+      case RECORD_TYPE_ADD:
+        String key = input.readUTF();
+        long length = input.readLong();
+        add(new CachedContent(id, key, length));
+        break;
+      case RECORD_TYPE_REMOVE:
+        key = idToKey.get(id);
+        if (key != null) {
+          keyToContent.remove(key);
+          idToKey.remove(id);
+        }
+        break;
+      case RECORD_TYPE_SET_LENGTH:
+        key = idToKey.get(id);
+        if (key != null) {
+          keyToContent.get(key).setLength(input.readLong());
+        }
+        break;
+      case RECORD_TYPE_SET_LAST_ACCESS_TIMESTAMP:
+        key = idToKey.get(id);
+        long position = input.readLong();
+        long lastAccessTimestamp = input.readLong();
+        if (key != null && storesLastAccessTimestamps) {
+          keyToContent.get(key).setLastAccessTimestamp(position, lastAccessTimestamp);
+        }
+        break;
+      case RECORD_TYPE_SET_SPAN_NONCE:
+        key = idToKey.get(id);
+        position = input.readLong();
+        long nonce = input.readLong();
+        if (key != null) {
+          keyToContent.get(key).getSpanNonces().put(position, nonce);
+        }
+        break;
+      case RECORD_TYPE_REMOVE_SPAN_NONCE:
+        key = idToKey.get(id);
+        position = input.readLong();
+        if (key != null) {
+          keyToContent.get(key).getSpanNonces().remove(position);
+        }
+        break;
+      default:
+        throw new IOException("Unexpected journal record type: " + type);
+    }
+  }
+
+  private void writeJournaledFile(Collection<CachedContent> cachedContents)
+      throws CacheException {
+    DataOutputStream output = null;
+    try {
+      ByteArrayOutputStream snapshotOutputStream = new ByteArrayOutputStream();
+      DataOutputStream snapshotOutput = new DataOutputStream(snapshotOutputStream);
+      snapshotOutput.writeInt(cachedContents.size());
+      int hashCode = 0;
+      for (CachedContent cachedContent : cachedContents) {
+        cachedContent.writeToStream(snapshotOutput);
+        hashCode += cachedContent.headerHashCode();
+      }
+      snapshotOutput.writeInt(hashCode);
+      if (storesLastAccessTimestamps) {
+        writeSpanValues(snapshotOutput, cachedContents, false);
+      }
+      boolean hasSpanNonces = hasSpanNonces(cachedContents);
+      if (hasSpanNonces) {
+        writeSpanValues(snapshotOutput, cachedContents, true);
+      }
+      byte[] snapshot = snapshotOutputStream.toByteArray();
+      if (cipher != null) {
+        snapshot = encrypt(snapshot);
+      }
+
+      OutputStream outputStream = atomicFile.startWrite();
+      if (bufferedOutputStream == null) {
+        bufferedOutputStream = new ReusableBufferedOutputStream(outputStream);
+      } else {
+        bufferedOutputStream.reset(outputStream);
+      }
+      output = new DataOutputStream(bufferedOutputStream);
+      output.writeInt(VERSION_JOURNALED);
+      output.writeInt((cipher != null ? FLAG_ENCRYPTED_INDEX : 0)
+          | (storesLastAccessTimestamps ? FLAG_LAST_ACCESS_TIMESTAMPS : 0)
+          | (hasSpanNonces ? FLAG_SPAN_NONCES : 0));
+      output.writeInt(snapshot.length);
+      output.write(snapshot);
+      atomicFile.endWrite(output);
+      snapshotLength = JOURNALED_HEADER_LENGTH + snapshot.length;
+      journalLength = snapshotLength;
+    } catch (IOException e) {
+      throw new CacheException(e);
+    } finally {
+      Util.closeQuietly(output);
+    }
+  }
+
+  /**
+   * Reads the last access timestamps or the span nonces that follow the cached contents. Last
+   * access timestamps are only stored if the index stores them.
+   *
+   * @param input The input from which the values are read.
+   * @param nonces Whether span nonces are read, as opposed to last access timestamps.
+   * @return Whether the values were read successfully.
+   */
+  private boolean readSpanValues(DataInputStream input, boolean nonces) throws IOException {
+    int count = input.readInt();
+    int hashCode = 0;
+    for (int i = 0; i < count; i++) {
+      int id = input.readInt();
+      long position = input.readLong();
+      long value = input.readLong();
+      hashCode = 31 * hashCode + spanValueHashCode(id, position, value);
+      String key = idToKey.get(id);
+      if (key == null) {
+        continue;
+      }
+      if (nonces) {
+        keyToContent.get(key).getSpanNonces().put(position, value);
+      } else if (storesLastAccessTimestamps) {
+        keyToContent.get(key).setLastAccessTimestamp(position, value);
+      }
+    }
+    return input.readInt() == hashCode;
+  }
+
+  private static void writeSpanValues(DataOutputStream output,
+      Collection<CachedContent> cachedContents, boolean nonces) throws IOException {
+    int count = 0;
+    for (CachedContent cachedContent : cachedContents) {
+      count += getSpanValues(cachedContent, nonces).size();
+    }
+    output.writeInt(count);
+    int hashCode = 0;
+    for (CachedContent cachedContent : cachedContents) {
+      for (Map.Entry<Long, Long> entry : getSpanValues(cachedContent, nonces).entrySet()) {
+        long position = entry.getKey();
+        long value = entry.getValue();
+        output.writeInt(cachedContent.id);
+        output.writeLong(position);
+        output.writeLong(value);
+        hashCode = 31 * hashCode + spanValueHashCode(cachedContent.id, position, value);
+      }
+    }
+    output.writeInt(hashCode);
+  }
+
+  private static Map<Long, Long> getSpanValues(CachedContent cachedContent, boolean nonces) {
+    return nonces ? cachedContent.getSpanNonces() : cachedContent.getLastAccessTimestamps();
+  }
+
+  private static boolean hasSpanNonces(Collection<CachedContent> cachedContents) {
+    for (CachedContent cachedContent : cachedContents) {
+      if (!cachedContent.getSpanNonces().isEmpty()) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private static int spanValueHashCode(int id, long position, long value) {
+    int result = id;
+    result = 31 * result + (int) (position ^ (position >>> 32));
+    result = 31 * result + (int) (value ^ (value >>> 32));
+    return result;
+  }
+
+  private void appendRecords(ArrayList<JournalRecord> records) throws CacheException {
+    FileOutputStream outputStream = null;
+    try {
+      ByteArrayOutputStream journalOutputStream = new ByteArrayOutputStream();
+      DataOutputStream journalOutput = new DataOutputStream(journalOutputStream);
+      CRC32 crc32 = new CRC32();
+      for (int i = 0; i < records.size(); i++) {
+        byte[] payload = records.get(i).toByteArray();
+        if (cipher != null) {
+          payload = encrypt(payload);
+        }
+        crc32.reset();
+        crc32.update(payload, 0, payload.length);
+        journalOutput.writeInt(payload.length);
+        journalOutput.write(payload);
+        journalOutput.writeInt((int) crc32.getValue());
+      }
+      outputStream = new FileOutputStream(indexFile, true);
+      journalOutputStream.writeTo(outputStream);
+      outputStream.flush();
+      outputStream.getFD().sync();
+      journalLength += journalOutputStream.size();
+    } catch (IOException e) {
+      throw new CacheException(e);
+    } finally {
+      Util.closeQuietly(outputStream);
+    }
+  }
+
+  /**
+   * Starts compacting the index file on the compaction thread if the journal has grown past the
+   * compaction threshold. Must be called whilst holding {@link #storeLock}.
+   */
+  private void maybeStartCompaction() {
+    if (!journaled || journalLength == C.LENGTH_UNSET || compactionPending) {
+      return;
+    }
+    long recordsLength = journalLength - snapshotLength;
+    if (recordsLength < MIN_COMPACTION_JOURNAL_LENGTH || recordsLength < snapshotLength) {
+      return;
+    }
+    compactionPending = true;
+    compactionExecutor.execute(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          compact();
+        } catch (CacheException e) {
+          Log.e(TAG, "Error compacting cache content index file.", e);
+        }
+      }
+    });
+  }
+
+  private byte[] encrypt(byte[] data) {
+    byte[] initializationVector = new byte[16];
+    new Random().nextBytes(initializationVector);
+    try {
+      cipher.init(Cipher.ENCRYPT_MODE, secretKeySpec, new IvParameterSpec(initializationVector));
+      byte[] encryptedData = new byte[16 + cipher.getOutputSize(data.length)];
+      System.arraycopy(initializationVector, 0, encryptedData, 0, 16);
+      int encryptedLength = cipher.doFinal(data, 0, data.length, encryptedData, 16);
+      return encryptedLength + 16 == encryptedData.length ? encryptedData
+          : Arrays.copyOf(encryptedData, encryptedLength + 16);
+    } catch (GeneralSecurityException e) {
+      throw new IllegalStateException(e); // Should never happen.
+    }
+  }
+
+  private byte[] decrypt(byte[] data) throws GeneralSecurityException {
+    if (data.length < 16) {
+      throw new GeneralSecurityException("Missing initialization vector.");
+    }
+    cipher.init(Cipher.DECRYPT_MODE, secretKeySpec, new IvParameterSpec(data, 0, 16));
+    return cipher.doFinal(data, 16, data.length - 16);
+  }
+
+  private ArrayList<CachedContent> createSnapshot() {
+    ArrayList<CachedContent> snapshot = new ArrayList<>(keyToContent.size());
+    for (CachedContent cachedContent : keyToContent.values()) {
+      CachedContent copy = new CachedContent(cachedContent.id, cachedContent.key,
+          cachedContent.getLength());
+      copy.getLastAccessTimestamps().putAll(cachedContent.getLastAccessTimestamps());
+      copy.getSpanNonces().putAll(cachedContent.getSpanNonces());
+      snapshot.add(copy);
+    }
+    return snapshot;
+  }
+
+  /**
+   * Marks the index as changed, queuing a journal record for the change if the index is
+   * journaled. Must be called whilst holding the instance lock.
+   */
+  private void onChanged(int recordType, CachedContent cachedContent) {
+    changed = true;
+    if (journaled) {
+      pendingRecords.add(new JournalRecord(recordType, cachedContent.id, cachedContent.key,
+          cachedContent.getLength(), 0, 0));
+    }
+  }
+
   private void add(CachedContent cachedContent) {
     keyToContent.put(cachedContent.key, cachedContent);
     idToKey.put(cachedContent.id, cachedContent.key);
   }
 
   /** Adds the given CachedContent to the index. */
-  /*package*/ void addNew(CachedContent cachedContent) {
+  /*package*/ synchronized void addNew(CachedContent cachedContent) {
     add(cachedContent);
-    changed = true;
+    onChanged(RECORD_TYPE_ADD, cachedContent);
   }
 
   private CachedContent addNew(String key, long length) {
@@ -347,4 +1003,47 @@ import javax.crypto.spec.SecretKeySpec;
     return id;
   }
 
+  /**
+   * A change to the index that is yet to be appended to the journal.
+   */
+  private static final class JournalRecord {
+
+    private final int type;
+    private final int id;
+    private final String key;
+    private final long length;
+    private final long position;
+    private final long value;
+
+    public JournalRecord(int type, int id, String key, long length, long position, long value) {
+      this.type = type;
+      this.id = id;
+      this.key = key;
+      this.length = length;
+      this.position = position;
+      this.value = value;
+    }
+
+    public byte[] toByteArray() throws IOException {
+      ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+      DataOutputStream output = new DataOutputStream(outputStream);
+      output.writeByte(type);
+      output.writeInt(id);
+      if (type == RECORD_TYPE_ADD) {
+        output.writeUTF(key);
+        output.writeLong(length);
+      } else if (type == RECORD_TYPE_SET_LENGTH) {
+        output.writeLong(length);
+      } else if (type == RECORD_TYPE_SET_LAST_ACCESS_TIMESTAMP
+          || type == RECORD_TYPE_SET_SPAN_NONCE) {
+        output.writeLong(position);
+        output.writeLong(value);
+      } else if (type == RECORD_TYPE_REMOVE_SPAN_NONCE) {
+        output.writeLong(position);
+      }
+      return outputStream.toByteArray();
+    }
+
+  }
+
 }
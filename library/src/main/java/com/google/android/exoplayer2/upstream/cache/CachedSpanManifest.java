@@ -0,0 +1,438 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.exoplayer2.upstream.cache;
+
+import android.util.Log;
+import com.google.android.exoplayer2.upstream.cache.Cache.CacheException;
+import com.google.android.exoplayer2.util.AtomicFile;
+import com.google.android.exoplayer2.util.ReusableBufferedOutputStream;
+import com.google.android.exoplayer2.util.Util;
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.zip.CRC32;
+
+/**
+ * A persisted table of the spans in a cache directory, which allows the spans to be loaded with a
+ * single sequential read rather than by scanning the directory.
+ * <p>
+ * The manifest file consists of a snapshot of the spans followed by a journal of records, each of
+ * which adds or removes a span. Records are queued by {@link #onSpanAdded(int, CacheSpan)} and
+ * {@link #onSpanRemoved(int, CacheSpan)} as the cache modifies its spans, and are appended to the
+ * file by {@link #appendRecords()}. Once the journal is longer than the snapshot,
+ * {@link #isRewriteRequired()} returns true, and the cache rewrites the file with a new snapshot
+ * by calling {@link #store(Collection, CachedContentIndex)}. Records are checksummed, so a torn
+ * tail left by an interrupted append causes the manifest to be discarded on load.
+ * <p>
+ * Renaming a span file can't be journaled safely, since the number of files doesn't change. The
+ * manifest is deleted by {@link #invalidate()} before a span file is renamed, and it's invalid
+ * until it's next stored.
+ * <p>
+ * When the manifest is loaded, the number of files in the cache directory is checked against the
+ * number of spans that it lists, which is much cheaper than scanning the directory. Files that were
+ * started but never committed, and added or removed spans whose records weren't appended because
+ * the process was killed, cause a mismatch, in which case the cache falls back to a directory scan.
+ */
+/*package*/ final class CachedSpanManifest {
+
+  public static final String FILE_NAME = "cached_content_spans.exi";
+
+  private static final int VERSION = 2;
+
+  private static final int FLAG_LAST_ACCESS_TIMESTAMPS_IN_INDEX = 1;
+
+  private static final int RECORD_TYPE_ADD = 0;
+  private static final int RECORD_TYPE_REMOVE = 1;
+
+  /**
+   * The length of the version, flags and count fields at the start of the file.
+   */
+  private static final int HEADER_LENGTH = 12;
+  /**
+   * The length of an entry of the snapshot.
+   */
+  private static final int ENTRY_LENGTH = 28;
+  /**
+   * The length of a journal record, excluding its checksum.
+   */
+  private static final int RECORD_PAYLOAD_LENGTH = 1 + ENTRY_LENGTH;
+  /**
+   * The minimum length of the journal, excluding the snapshot, before the file is rewritten.
+   */
+  private static final int MIN_REWRITE_JOURNAL_LENGTH = 16 * 1024;
+
+  private static final String TAG = "CachedSpanManifest";
+
+  private final File cacheDir;
+  private final File manifestFile;
+  private final AtomicFile atomicFile;
+  private final Object storeLock;
+  // Guarded by this.
+  private final ArrayList<byte[]> pendingRecords;
+  private boolean valid;
+  // Guarded by storeLock.
+  private ReusableBufferedOutputStream bufferedOutputStream;
+  private long snapshotLength;
+  private long journalLength;
+
+  /** Creates a CachedSpanManifest which works on the manifest file in the given cacheDir. */
+  public CachedSpanManifest(File cacheDir) {
+    this.cacheDir = cacheDir;
+    manifestFile = new File(cacheDir, FILE_NAME);
+    atomicFile = new AtomicFile(manifestFile);
+    storeLock = new Object();
+    pendingRecords = new ArrayList<>();
+  }
+
+  /**
+   * Loads the spans listed in the manifest file.
+   *
+   * @param index The index of cached content, which must have been loaded.
+   * @return The spans, or null if the manifest is missing, corrupt, refers to content that isn't
+   *     in the index, was written for span files in a different format or doesn't list every file
+   *     in the cache directory.
+   */
+  public ArrayList<SimpleCacheSpan> load(CachedContentIndex index) {
+    synchronized (storeLock) {
+      synchronized (this) {
+        valid = false;
+        pendingRecords.clear();
+      }
+      DataInputStream input = null;
+      try {
+        input = new DataInputStream(new BufferedInputStream(atomicFile.openRead()));
+        if (input.readInt() != VERSION || input.readInt() != getFlags(index)) {
+          return null;
+        }
+        int count = input.readInt();
+        if (count < 0) {
+          return null;
+        }
+        LinkedHashMap<String, Entry> entries = new LinkedHashMap<>();
+        int hashCode = 0;
+        for (int i = 0; i < count; i++) {
+          Entry entry = new Entry(input);
+          entries.put(entry.getName(), entry);
+          hashCode = 31 * hashCode + entry.entryHashCode();
+        }
+        if (input.readInt() != hashCode) {
+          return null;
+        }
+        long length = HEADER_LENGTH + (long) count * ENTRY_LENGTH + 4;
+        long loadedSnapshotLength = length;
+        byte[] record = new byte[RECORD_PAYLOAD_LENGTH];
+        CRC32 crc32 = new CRC32();
+        int type;
+        while ((type = input.read()) != -1) {
+          record[0] = (byte) type;
+          input.readFully(record, 1, RECORD_PAYLOAD_LENGTH - 1);
+          crc32.reset();
+          crc32.update(record, 0, RECORD_PAYLOAD_LENGTH);
+          if (input.readInt() != (int) crc32.getValue()) {
+            Log.w(TAG, "Discarding manifest with corrupt journal record at offset " + length + ".");
+            return null;
+          }
+          Entry entry = new Entry(new DataInputStream(
+              new ByteArrayInputStream(record, 1, ENTRY_LENGTH)));
+          if (type == RECORD_TYPE_ADD) {
+            entries.put(entry.getName(), entry);
+          } else if (type != RECORD_TYPE_REMOVE || entries.remove(entry.getName()) == null) {
+            return null;
+          }
+          length += RECORD_PAYLOAD_LENGTH + 4;
+        }
+        if (entries.size() != getSpanFileCount()) {
+          return null;
+        }
+        ArrayList<SimpleCacheSpan> spans = new ArrayList<>(entries.size());
+        for (Entry entry : entries.values()) {
+          String key = index.getKeyForId(entry.id);
+          if (key == null || entry.length <= 0) {
+            return null;
+          }
+          spans.add(SimpleCacheSpan.createCacheEntry(cacheDir, index, key, entry.id,
+              entry.position, entry.length, entry.lastAccessTimestamp));
+        }
+        snapshotLength = loadedSnapshotLength;
+        journalLength = length;
+        synchronized (this) {
+          valid = true;
+        }
+        return spans;
+      } catch (FileNotFoundException e) {
+        return null;
+      } catch (EOFException e) {
+        Log.w(TAG, "Discarding truncated cache span manifest file.");
+        return null;
+      } catch (IOException e) {
+        Log.e(TAG, "Error reading cache span manifest file.", e);
+        return null;
+      } finally {
+        Util.closeQuietly(input);
+      }
+    }
+  }
+
+  /**
+   * Writes the manifest file, listing the spans of the given contents. Queued records are
+   * discarded, since the spans reflect them.
+   *
+   * @param cachedContents The contents whose spans are listed. The caller must ensure that their
+   *     spans aren't modified whilst the manifest is being written.
+   * @param index The index of cached content.
+   */
+  public void store(Collection<CachedContent> cachedContents, CachedContentIndex index)
+      throws CacheException {
+    synchronized (storeLock) {
+      synchronized (this) {
+        pendingRecords.clear();
+      }
+      DataOutputStream output = null;
+      try {
+        if (bufferedOutputStream == null) {
+          bufferedOutputStream = new ReusableBufferedOutputStream(atomicFile.startWrite());
+        } else {
+          bufferedOutputStream.reset(atomicFile.startWrite());
+        }
+        output = new DataOutputStream(bufferedOutputStream);
+        output.writeInt(VERSION);
+        output.writeInt(getFlags(index));
+        int count = 0;
+        for (CachedContent cachedContent : cachedContents) {
+          count += cachedContent.getSpans().size();
+        }
+        output.writeInt(count);
+        int hashCode = 0;
+        for (CachedContent cachedContent : cachedContents) {
+          for (SimpleCacheSpan span : cachedContent.getSpans()) {
+            Entry entry = new Entry(cachedContent.id, span);
+            entry.writeTo(output);
+            hashCode = 31 * hashCode + entry.entryHashCode();
+          }
+        }
+        output.writeInt(hashCode);
+        atomicFile.endWrite(output);
+        snapshotLength = HEADER_LENGTH + (long) count * ENTRY_LENGTH + 4;
+        journalLength = snapshotLength;
+        synchronized (this) {
+          valid = true;
+        }
+      } catch (IOException e) {
+        synchronized (this) {
+          valid = false;
+        }
+        throw new CacheException(e);
+      } finally {
+        Util.closeQuietly(output);
+      }
+    }
+  }
+
+  /**
+   * Queues a record of a span having been added, if the manifest is valid. Must be called after
+   * the span's file has been created.
+   *
+   * @param id The id of the span's content.
+   * @param span The added span.
+   */
+  public synchronized void onSpanAdded(int id, CacheSpan span) {
+    if (valid) {
+      pendingRecords.add(createRecord(RECORD_TYPE_ADD, new Entry(id, span)));
+    }
+  }
+
+  /**
+   * Queues a record of a span having been removed, if the manifest is valid.
+   *
+   * @param id The id of the span's content.
+   * @param span The removed span.
+   */
+  public synchronized void onSpanRemoved(int id, CacheSpan span) {
+    if (valid) {
+      pendingRecords.add(createRecord(RECORD_TYPE_REMOVE, new Entry(id, span)));
+    }
+  }
+
+  /**
+   * Appends the queued records to the manifest file. Does nothing if the manifest is invalid.
+   */
+  public void appendRecords() throws CacheException {
+    synchronized (storeLock) {
+      ArrayList<byte[]> records;
+      synchronized (this) {
+        if (!valid || pendingRecords.isEmpty()) {
+          return;
+        }
+        records = new ArrayList<>(pendingRecords);
+        pendingRecords.clear();
+      }
+      // Records are only appended to a file whose length matches the journal's, which guards
+      // against the file having been deleted or modified from under us.
+      if (manifestFile.length() != journalLength) {
+        invalidate();
+        return;
+      }
+      FileOutputStream outputStream = null;
+      try {
+        ByteArrayOutputStream journalOutputStream = new ByteArrayOutputStream();
+        for (int i = 0; i < records.size(); i++) {
+          journalOutputStream.write(records.get(i));
+        }
+        outputStream = new FileOutputStream(manifestFile, true);
+        journalOutputStream.writeTo(outputStream);
+        outputStream.flush();
+        outputStream.getFD().sync();
+        journalLength += journalOutputStream.size();
+      } catch (IOException e) {
+        // The file may have been partially written, so it must be rewritten.
+        invalidate();
+        throw new CacheException(e);
+      } finally {
+        Util.closeQuietly(outputStream);
+      }
+    }
+  }
+
+  /**
+   * Returns whether the manifest file should be rewritten, because it's invalid or because its
+   * journal has grown longer than its snapshot.
+   */
+  public boolean isRewriteRequired() {
+    synchronized (storeLock) {
+      synchronized (this) {
+        if (!valid) {
+          return true;
+        }
+      }
+      long recordsLength = journalLength - snapshotLength;
+      return recordsLength >= MIN_REWRITE_JOURNAL_LENGTH && recordsLength >= snapshotLength;
+    }
+  }
+
+  /**
+   * Deletes the manifest file if it's valid. Must be called before a span file is renamed.
+   */
+  public void invalidate() {
+    synchronized (storeLock) {
+      synchronized (this) {
+        if (!valid) {
+          return;
+        }
+        valid = false;
+        pendingRecords.clear();
+      }
+      atomicFile.delete();
+    }
+  }
+
+  /**
+   * Returns the number of files in the cache directory, other than the files of the content index
+   * and of the manifest.
+   */
+  private int getSpanFileCount() {
+    String[] names = cacheDir.list();
+    if (names == null) {
+      return 0;
+    }
+    int count = 0;
+    for (String name : names) {
+      if (!name.startsWith(CachedContentIndex.FILE_NAME) && !name.startsWith(FILE_NAME)) {
+        count++;
+      }
+    }
+    return count;
+  }
+
+  private static byte[] createRecord(int type, Entry entry) {
+    ByteArrayOutputStream recordOutputStream =
+        new ByteArrayOutputStream(RECORD_PAYLOAD_LENGTH + 4);
+    DataOutputStream recordOutput = new DataOutputStream(recordOutputStream);
+    try {
+      recordOutput.writeByte(type);
+      entry.writeTo(recordOutput);
+      CRC32 crc32 = new CRC32();
+      crc32.update(recordOutputStream.toByteArray());
+      recordOutput.writeInt((int) crc32.getValue());
+    } catch (IOException e) {
+      throw new IllegalStateException(e); // Should never happen.
+    }
+    return recordOutputStream.toByteArray();
+  }
+
+  private static int getFlags(CachedContentIndex index) {
+    return index.storesLastAccessTimestamps() ? FLAG_LAST_ACCESS_TIMESTAMPS_IN_INDEX : 0;
+  }
+
+  /**
+   * A span listed in the manifest.
+   */
+  private static final class Entry {
+
+    public final int id;
+    public final long position;
+    public final long length;
+    public final long lastAccessTimestamp;
+
+    public Entry(int id, CacheSpan span) {
+      this.id = id;
+      position = span.position;
+      length = span.length;
+      lastAccessTimestamp = span.lastAccessTimestamp;
+    }
+
+    public Entry(DataInputStream input) throws IOException {
+      id = input.readInt();
+      position = input.readLong();
+      length = input.readLong();
+      lastAccessTimestamp = input.readLong();
+    }
+
+    /**
+     * Returns a name that identifies the span within the cache, in the same way as the name of its
+     * file.
+     */
+    public String getName() {
+      return id + "." + position;
+    }
+
+    public void writeTo(DataOutputStream output) throws IOException {
+      output.writeInt(id);
+      output.writeLong(position);
+      output.writeLong(length);
+      output.writeLong(lastAccessTimestamp);
+    }
+
+    public int entryHashCode() {
+      int result = id;
+      result = 31 * result + (int) (position ^ (position >>> 32));
+      result = 31 * result + (int) (length ^ (length >>> 32));
+      result = 31 * result + (int) (lastAccessTimestamp ^ (lastAccessTimestamp >>> 32));
+      return result;
+    }
+
+  }
+
+}
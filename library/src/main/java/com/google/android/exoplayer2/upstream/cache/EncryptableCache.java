@@ -0,0 +1,41 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.exoplayer2.upstream.cache;
+
+/**
+ * A {@link Cache} whose spans can be encrypted, which stores the nonce of the keystream with which
+ * each encrypted span is written. {@link CacheDataSink} and {@link CacheDataSource} require a cache
+ * of this type if they're given a secret key.
+ */
+public interface EncryptableCache extends Cache {
+
+  /**
+   * Returns the nonce of the keystream with which a span is encrypted, or null if the span isn't
+   * encrypted. A random nonce is generated for each file started by
+   * {@link #startFile(String, long, long)}, so content that is rewritten after its span has been
+   * removed is never encrypted with the same keystream as before.
+   * <p>
+   * The first call for a file that has been started but not yet committed marks the span as
+   * encrypted. The nonce is persisted with the span when the file is committed.
+   *
+   * @param key The cache key of the span.
+   * @param position The position of the span.
+   * @return The nonce, or null if the span isn't encrypted.
+   * @throws CacheException If an error occurs reading the nonce.
+   */
+  Long getSpanNonce(String key, long position) throws CacheException;
+
+}
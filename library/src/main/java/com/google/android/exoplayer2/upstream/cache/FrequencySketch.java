@@ -0,0 +1,131 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ * Copyright 2015 Ben Manes. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.exoplayer2.upstream.cache;
+
+/**
+ * A count-min sketch that estimates the access frequency of items, identified by their hash codes,
+ * within a recent time window.
+ * <p>
+ * Each item maps to four 4-bit counters, one in each of four rows, and its frequency is estimated
+ * as the minimum of its counters, saturating at 15. The counters of an item are held in a single
+ * {@code long}, so an update touches at most four words. Once the number of increments reaches a
+ * sample size proportional to the table size, all counters are halved, so that the estimates favor
+ * recent accesses.
+ * <p>
+ * This is a port of {@code FrequencySketch} from the Caffeine caching library
+ * (https://github.com/ben-manes/caffeine), which is licensed under the Apache License, Version 2.0.
+ */
+/*package*/ final class FrequencySketch {
+
+  private static final long[] SEEDS = {
+      0xC3A5C85C97CB3127L, 0xB492B66FBE98F273L, 0x9AE16A3B2F90404FL, 0xCBF29CE484222325L};
+  private static final long RESET_MASK = 0x7777777777777777L;
+  private static final long ONE_MASK = 0x1111111111111111L;
+  private static final int MIN_TABLE_LENGTH = 16;
+  private static final int MAX_FREQUENCY = 15;
+
+  private final long[] table;
+  private final int tableMask;
+  private final int sampleSize;
+
+  private int size;
+
+  /**
+   * @param expectedItemCount The expected number of distinct items that are frequently accessed.
+   *     Determines the size of the sketch.
+   */
+  public FrequencySketch(int expectedItemCount) {
+    int tableLength = Integer.highestOneBit(Math.max(expectedItemCount, MIN_TABLE_LENGTH) - 1) << 1;
+    table = new long[tableLength];
+    tableMask = tableLength - 1;
+    sampleSize = 10 * tableLength;
+  }
+
+  /**
+   * Returns the estimated number of times the item was accessed, up to a maximum of 15.
+   *
+   * @param itemHashCode The hash code of the item.
+   */
+  public int frequency(int itemHashCode) {
+    int hash = spread(itemHashCode);
+    int start = (hash & 3) << 2;
+    int frequency = MAX_FREQUENCY;
+    for (int i = 0; i < 4; i++) {
+      int index = indexOf(hash, i);
+      int count = (int) ((table[index] >>> ((start + i) << 2)) & 0xFL);
+      frequency = Math.min(frequency, count);
+    }
+    return frequency;
+  }
+
+  /**
+   * Records an access to the item.
+   *
+   * @param itemHashCode The hash code of the item.
+   */
+  public void increment(int itemHashCode) {
+    int hash = spread(itemHashCode);
+    int start = (hash & 3) << 2;
+    boolean added = false;
+    for (int i = 0; i < 4; i++) {
+      added |= incrementAt(indexOf(hash, i), start + i);
+    }
+    if (added && ++size == sampleSize) {
+      reset();
+    }
+  }
+
+  /**
+   * Increments the counter at the given offset of a table entry, unless it's saturated.
+   *
+   * @param index The index of the table entry.
+   * @param counterIndex The index of the 4-bit counter within the entry.
+   * @return Whether the counter was incremented.
+   */
+  private boolean incrementAt(int index, int counterIndex) {
+    int offset = counterIndex << 2;
+    long mask = 0xFL << offset;
+    if ((table[index] & mask) != mask) {
+      table[index] += 1L << offset;
+      return true;
+    }
+    return false;
+  }
+
+  /** Halves all counters, and adjusts the size for the odd counters that were truncated. */
+  private void reset() {
+    int oddCount = 0;
+    for (int i = 0; i < table.length; i++) {
+      oddCount += Long.bitCount(table[i] & ONE_MASK);
+      table[i] = (table[i] >>> 1) & RESET_MASK;
+    }
+    size = (size - (oddCount >>> 2)) >>> 1;
+  }
+
+  private int indexOf(int hash, int row) {
+    long result = (hash + SEEDS[row]) * SEEDS[row];
+    result += result >>> 32;
+    return ((int) result) & tableMask;
+  }
+
+  private static int spread(int hashCode) {
+    int hash = ((hashCode >>> 16) ^ hashCode) * 0x45D9F3B;
+    hash = ((hash >>> 16) ^ hash) * 0x45D9F3B;
+    return (hash >>> 16) ^ hash;
+  }
+
+}
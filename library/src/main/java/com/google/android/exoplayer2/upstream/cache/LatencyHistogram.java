@@ -0,0 +1,144 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.exoplayer2.upstream.cache;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A histogram of durations with exponentially sized buckets, which can be updated concurrently
+ * without locking. Bucket {@code i} counts durations in the range
+ * [{@link #getBucketLowerBoundUs(int) 2^(i - 1)}, {@link #getBucketUpperBoundUs(int) 2^i})
+ * microseconds, except that bucket 0 counts durations shorter than one microsecond and the last
+ * bucket counts all durations from its lower bound upwards.
+ */
+public final class LatencyHistogram {
+
+  /**
+   * The number of buckets. The last bucket counts durations of 2^30 microseconds (about 18
+   * minutes) and above.
+   */
+  public static final int BUCKET_COUNT = 32;
+
+  private final AtomicLongArray bucketCounts;
+  private final AtomicLong totalDurationUs;
+
+  public LatencyHistogram() {
+    bucketCounts = new AtomicLongArray(BUCKET_COUNT);
+    totalDurationUs = new AtomicLong();
+  }
+
+  /**
+   * Records a duration.
+   *
+   * @param durationUs The duration, in microseconds.
+   */
+  public void record(long durationUs) {
+    if (durationUs < 0) {
+      durationUs = 0;
+    }
+    int bucket = Math.min(BUCKET_COUNT - 1, 64 - Long.numberOfLeadingZeros(durationUs));
+    bucketCounts.incrementAndGet(bucket);
+    totalDurationUs.addAndGet(durationUs);
+  }
+
+  /**
+   * Returns the number of recorded durations.
+   */
+  public long getCount() {
+    long count = 0;
+    for (int i = 0; i < BUCKET_COUNT; i++) {
+      count += bucketCounts.get(i);
+    }
+    return count;
+  }
+
+  /**
+   * Returns the number of recorded durations in a bucket.
+   *
+   * @param bucket The index of the bucket.
+   */
+  public long getBucketCount(int bucket) {
+    return bucketCounts.get(bucket);
+  }
+
+  /**
+   * Returns the inclusive lower bound of the durations counted by a bucket, in microseconds.
+   *
+   * @param bucket The index of the bucket.
+   */
+  public static long getBucketLowerBoundUs(int bucket) {
+    return bucket == 0 ? 0 : 1L << (bucket - 1);
+  }
+
+  /**
+   * Returns the exclusive upper bound of the durations counted by a bucket, in microseconds, or
+   * {@link Long#MAX_VALUE} for the last bucket.
+   *
+   * @param bucket The index of the bucket.
+   */
+  public static long getBucketUpperBoundUs(int bucket) {
+    return bucket == BUCKET_COUNT - 1 ? Long.MAX_VALUE : 1L << bucket;
+  }
+
+  /**
+   * Returns the mean of the recorded durations in microseconds, or 0 if none have been recorded.
+   */
+  public long getMeanUs() {
+    long count = getCount();
+    return count == 0 ? 0 : totalDurationUs.get() / count;
+  }
+
+  /**
+   * Returns an upper bound for the given percentile of the recorded durations, in microseconds.
+   * The returned value is the upper bound of the bucket that contains the percentile, so it
+   * overestimates the percentile by up to a factor of two. Returns 0 if no durations have been
+   * recorded.
+   *
+   * @param percentile The percentile, between 0 and 100.
+   */
+  public long getPercentileUs(double percentile) {
+    long[] counts = new long[BUCKET_COUNT];
+    long count = 0;
+    for (int i = 0; i < BUCKET_COUNT; i++) {
+      counts[i] = bucketCounts.get(i);
+      count += counts[i];
+    }
+    if (count == 0) {
+      return 0;
+    }
+    long rank = (long) Math.ceil(percentile / 100 * count);
+    long cumulativeCount = 0;
+    for (int i = 0; i < BUCKET_COUNT; i++) {
+      cumulativeCount += counts[i];
+      if (cumulativeCount >= rank && counts[i] > 0) {
+        return getBucketUpperBoundUs(i);
+      }
+    }
+    return getBucketUpperBoundUs(BUCKET_COUNT - 1);
+  }
+
+  /**
+   * Clears the recorded durations.
+   */
+  public void reset() {
+    for (int i = 0; i < BUCKET_COUNT; i++) {
+      bucketCounts.set(i, 0);
+    }
+    totalDurationUs.set(0);
+  }
+
+}
@@ -27,8 +27,6 @@ public final class LeastRecentlyUsedCacheEvictor implements CacheEvictor, Compar
   private final long maxBytes;
   private final TreeSet<CacheSpan> leastRecentlyUsed;
 
-  private long currentSize;
-
   public LeastRecentlyUsedCacheEvictor(long maxBytes) {
     this.maxBytes = maxBytes;
     this.leastRecentlyUsed = new TreeSet<>(this);
@@ -47,14 +45,12 @@ public final class LeastRecentlyUsedCacheEvictor implements CacheEvictor, Compar
   @Override
   public void onSpanAdded(Cache cache, CacheSpan span) {
     leastRecentlyUsed.add(span);
-    currentSize += span.length;
     evictCache(cache, 0);
   }
 
   @Override
   public void onSpanRemoved(Cache cache, CacheSpan span) {
     leastRecentlyUsed.remove(span);
-    currentSize -= span.length;
   }
 
   @Override
@@ -74,7 +70,9 @@ public final class LeastRecentlyUsedCacheEvictor implements CacheEvictor, Compar
   }
 
   private void evictCache(Cache cache, long requiredSpace) {
-    while (currentSize + requiredSpace > maxBytes) {
+    // The cache space is compared rather than the total length of the spans, since spans may share
+    // storage.
+    while (cache.getCacheSpace() + requiredSpace > maxBytes && !leastRecentlyUsed.isEmpty()) {
       try {
         cache.removeSpan(leastRecentlyUsed.first());
       } catch (CacheException e) {
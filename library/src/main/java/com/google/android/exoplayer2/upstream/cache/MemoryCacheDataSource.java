@@ -0,0 +1,154 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.exoplayer2.upstream.cache;
+
+import android.net.Uri;
+import com.google.android.exoplayer2.C;
+import com.google.android.exoplayer2.upstream.DataSource;
+import com.google.android.exoplayer2.upstream.DataSpec;
+import com.google.android.exoplayer2.util.Assertions;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * A {@link DataSource} that serves content held by a {@link MemoryCacheTier}, and otherwise reads
+ * from another {@link DataSource}, typically a {@link CacheDataSource} for the tier's wrapped
+ * cache. Unbounded requests from the start of a key's content are captured into the tier once
+ * they've been read to the end, provided that the content isn't larger than
+ * {@link MemoryCacheTier#getMaxEntryLength()} and that the wrapped cache has stored all of it.
+ */
+public final class MemoryCacheDataSource implements DataSource {
+
+  private final MemoryCacheTier memoryCacheTier;
+  private final DataSource upstream;
+
+  private Uri uri;
+  private String key;
+  private byte[] memoryData;
+  private int readPosition;
+  private long bytesRemaining;
+  private boolean upstreamOpened;
+  private byte[] captureBuffer;
+  private int captureLength;
+  private long captureExpectedLength;
+  private boolean captureComplete;
+
+  /**
+   * @param memoryCacheTier The memory tier.
+   * @param upstream A {@link DataSource} for reading content that isn't held by the memory tier.
+   */
+  public MemoryCacheDataSource(MemoryCacheTier memoryCacheTier, DataSource upstream) {
+    this.memoryCacheTier = Assertions.checkNotNull(memoryCacheTier);
+    this.upstream = Assertions.checkNotNull(upstream);
+  }
+
+  @Override
+  public long open(DataSpec dataSpec) throws IOException {
+    uri = dataSpec.uri;
+    key = dataSpec.key != null ? dataSpec.key : uri.toString();
+    byte[] data = memoryCacheTier.get(key);
+    if (data != null && dataSpec.position <= data.length && (dataSpec.length == C.LENGTH_UNSET
+        || dataSpec.position + dataSpec.length <= data.length)) {
+      memoryData = data;
+      readPosition = (int) dataSpec.position;
+      bytesRemaining = dataSpec.length == C.LENGTH_UNSET ? data.length - dataSpec.position
+          : dataSpec.length;
+      return bytesRemaining;
+    }
+    long length = upstream.open(dataSpec);
+    upstreamOpened = true;
+    int maxEntryLength = memoryCacheTier.getMaxEntryLength();
+    if (dataSpec.position == 0 && dataSpec.length == C.LENGTH_UNSET
+        && (length == C.LENGTH_UNSET || length <= maxEntryLength)) {
+      captureBuffer = new byte[length == C.LENGTH_UNSET ? Math.min(4096, maxEntryLength)
+          : (int) length];
+      captureLength = 0;
+      captureExpectedLength = length;
+      captureComplete = length == 0;
+    }
+    return length;
+  }
+
+  @Override
+  public int read(byte[] buffer, int offset, int readLength) throws IOException {
+    if (memoryData != null) {
+      if (readLength == 0) {
+        return 0;
+      } else if (bytesRemaining == 0) {
+        return C.RESULT_END_OF_INPUT;
+      }
+      int bytesRead = (int) Math.min(readLength, bytesRemaining);
+      System.arraycopy(memoryData, readPosition, buffer, offset, bytesRead);
+      readPosition += bytesRead;
+      bytesRemaining -= bytesRead;
+      memoryCacheTier.onBytesRead(true, bytesRead);
+      return bytesRead;
+    }
+    int bytesRead = upstream.read(buffer, offset, readLength);
+    if (bytesRead > 0) {
+      memoryCacheTier.onBytesRead(false, bytesRead);
+      if (captureBuffer != null) {
+        capture(buffer, offset, bytesRead);
+      }
+    } else if (bytesRead == C.RESULT_END_OF_INPUT && captureBuffer != null) {
+      captureComplete = true;
+    }
+    return bytesRead;
+  }
+
+  @Override
+  public Uri getUri() {
+    return memoryData != null ? uri : upstream.getUri();
+  }
+
+  @Override
+  public void close() throws IOException {
+    uri = null;
+    memoryData = null;
+    byte[] capturedData = null;
+    if (captureBuffer != null && captureComplete && captureLength > 0) {
+      capturedData = captureLength == captureBuffer.length ? captureBuffer
+          : Arrays.copyOf(captureBuffer, captureLength);
+    }
+    captureBuffer = null;
+    captureComplete = false;
+    if (upstreamOpened) {
+      upstreamOpened = false;
+      // Closing upstream commits what it's written to the wrapped cache, which the tier checks.
+      upstream.close();
+    }
+    if (capturedData != null) {
+      memoryCacheTier.put(key, capturedData);
+    }
+  }
+
+  private void capture(byte[] buffer, int offset, int length) {
+    int requiredLength = captureLength + length;
+    if (requiredLength > memoryCacheTier.getMaxEntryLength()) {
+      // The content is too large to be held in memory.
+      captureBuffer = null;
+      return;
+    }
+    if (requiredLength > captureBuffer.length) {
+      captureBuffer = Arrays.copyOf(captureBuffer, Math.min(
+          Math.max(requiredLength, captureBuffer.length * 2), memoryCacheTier.getMaxEntryLength()));
+    }
+    System.arraycopy(buffer, offset, captureBuffer, captureLength, length);
+    captureLength = requiredLength;
+    captureComplete = captureLength == captureExpectedLength;
+  }
+
+}
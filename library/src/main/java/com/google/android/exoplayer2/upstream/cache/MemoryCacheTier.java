@@ -0,0 +1,337 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.exoplayer2.upstream.cache;
+
+import com.google.android.exoplayer2.upstream.cache.Cache.CacheException;
+import com.google.android.exoplayer2.util.Assertions;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A bounded in-memory tier in front of a {@link Cache}, which holds the whole content of small
+ * keys such as manifests, playlists, initialization segments and encryption keys. Entries are
+ * evicted in least recently used order once the total size of the held content exceeds a byte
+ * budget.
+ * <p>
+ * The tier is populated by {@link MemoryCacheDataSource} as content is read through the wrapped
+ * cache, which continues to be written as usual, so the tier is a write-through layer. Content is
+ * only held whilst the wrapped cache holds it too: it isn't held if the wrapped cache didn't store
+ * it, and an entry is invalidated when a span of its key is removed from the wrapped cache. Reads
+ * served from memory access the key's spans in the wrapped cache, so that its evictor doesn't evict
+ * the most frequently read content first.
+ */
+public final class MemoryCacheTier {
+
+  /**
+   * The default maximum total size of the held content, in bytes.
+   */
+  public static final long DEFAULT_MAX_BYTES = 2 * 1024 * 1024;
+  /**
+   * The default maximum size of the content of a single key, in bytes.
+   */
+  public static final int DEFAULT_MAX_ENTRY_LENGTH = 64 * 1024;
+
+  private final Cache cache;
+  private final long maxBytes;
+  private final int maxEntryLength;
+  // Guarded by this.
+  private final LinkedHashMap<String, Entry> entries;
+  private final ArrayList<Entry> invalidatedEntries;
+  private long totalBytes;
+
+  private final AtomicLong hitCount;
+  private final AtomicLong missCount;
+  private final AtomicLong bytesReadFromMemory;
+  private final AtomicLong bytesReadFromCache;
+  private final AtomicLong evictionCount;
+
+  /**
+   * Constructs an instance with {@link #DEFAULT_MAX_BYTES} and {@link #DEFAULT_MAX_ENTRY_LENGTH}.
+   *
+   * @param cache The wrapped cache.
+   */
+  public MemoryCacheTier(Cache cache) {
+    this(cache, DEFAULT_MAX_BYTES, DEFAULT_MAX_ENTRY_LENGTH);
+  }
+
+  /**
+   * @param cache The wrapped cache.
+   * @param maxBytes The maximum total size of the held content, in bytes.
+   * @param maxEntryLength The maximum size of the content of a single key, in bytes. Larger content
+   *     is only read through the wrapped cache.
+   */
+  public MemoryCacheTier(Cache cache, long maxBytes, int maxEntryLength) {
+    Assertions.checkArgument(maxEntryLength <= maxBytes);
+    this.cache = Assertions.checkNotNull(cache);
+    this.maxBytes = maxBytes;
+    this.maxEntryLength = maxEntryLength;
+    entries = new LinkedHashMap<>(16, 0.75f, true);
+    invalidatedEntries = new ArrayList<>();
+    hitCount = new AtomicLong();
+    missCount = new AtomicLong();
+    bytesReadFromMemory = new AtomicLong();
+    bytesReadFromCache = new AtomicLong();
+    evictionCount = new AtomicLong();
+  }
+
+  /**
+   * Returns the wrapped cache.
+   */
+  public Cache getCache() {
+    return cache;
+  }
+
+  /**
+   * Returns the maximum size of the content of a single key, in bytes.
+   */
+  public int getMaxEntryLength() {
+    return maxEntryLength;
+  }
+
+  /**
+   * Returns the content of a key, or null if it isn't held. The returned array must not be
+   * modified.
+   * <p>
+   * If the content is held then its spans are accessed in the wrapped cache, so that the cache's
+   * evictor sees the key being read as if the content were read from disk.
+   *
+   * @param key The cache key.
+   * @return The content, or null.
+   * @throws CacheException If an error occurs accessing the spans in the wrapped cache.
+   */
+  public byte[] get(String key) throws CacheException {
+    Entry entry;
+    synchronized (this) {
+      entry = entries.get(key);
+    }
+    (entry != null ? hitCount : missCount).incrementAndGet();
+    if (entry == null) {
+      return null;
+    }
+    touchSpans(key, entry.data.length);
+    return entry.data;
+  }
+
+  /**
+   * Holds the whole content of a key, evicting other entries if necessary. Has no effect if the
+   * content is larger than {@link #getMaxEntryLength()}, or if the wrapped cache doesn't hold all
+   * of it.
+   *
+   * @param key The cache key.
+   * @param data The content, which must not be modified after this call.
+   */
+  public void put(String key, byte[] data) {
+    if (data.length > maxEntryLength) {
+      return;
+    }
+    Entry entry = new Entry(key, data);
+    // The listener is registered before the entry is published, and the returned spans are those
+    // that the listener will be told about the removal of, so the entry can't miss an invalidation.
+    // Listeners are registered and unregistered outside of the lock, since the cache calls them
+    // whilst holding its own locks.
+    boolean isCached = isCached(cache.addListener(key, entry), data.length);
+    ArrayList<Entry> removedEntries;
+    synchronized (this) {
+      removedEntries = takeInvalidatedEntries();
+      if (!isCached || entry.invalidated) {
+        removedEntries.add(entry);
+      } else {
+        Entry oldEntry = entries.put(key, entry);
+        if (oldEntry != null) {
+          totalBytes -= oldEntry.data.length;
+          removedEntries.add(oldEntry);
+        }
+        totalBytes += data.length;
+        Iterator<Map.Entry<String, Entry>> iterator = entries.entrySet().iterator();
+        while (totalBytes > maxBytes) {
+          Entry eldestEntry = iterator.next().getValue();
+          iterator.remove();
+          totalBytes -= eldestEntry.data.length;
+          removedEntries.add(eldestEntry);
+          evictionCount.incrementAndGet();
+        }
+      }
+    }
+    for (int i = 0; i < removedEntries.size(); i++) {
+      Entry removedEntry = removedEntries.get(i);
+      cache.removeListener(removedEntry.key, removedEntry);
+    }
+  }
+
+  /**
+   * Removes the content of a key, if held.
+   *
+   * @param key The cache key.
+   */
+  public void remove(String key) {
+    ArrayList<Entry> removedEntries;
+    synchronized (this) {
+      removedEntries = takeInvalidatedEntries();
+      Entry entry = entries.remove(key);
+      if (entry != null) {
+        totalBytes -= entry.data.length;
+        removedEntries.add(entry);
+      }
+    }
+    for (int i = 0; i < removedEntries.size(); i++) {
+      Entry removedEntry = removedEntries.get(i);
+      cache.removeListener(removedEntry.key, removedEntry);
+    }
+  }
+
+  /**
+   * Returns the total size of the held content, in bytes.
+   */
+  public synchronized long getBytes() {
+    return totalBytes;
+  }
+
+  /**
+   * Returns the number of lookups that found the content of a key in memory.
+   */
+  public long getHitCount() {
+    return hitCount.get();
+  }
+
+  /**
+   * Returns the number of lookups that didn't find the content of a key in memory.
+   */
+  public long getMissCount() {
+    return missCount.get();
+  }
+
+  /**
+   * Returns the number of bytes that have been served from memory.
+   */
+  public long getBytesReadFromMemory() {
+    return bytesReadFromMemory.get();
+  }
+
+  /**
+   * Returns the number of bytes that have been read through to the wrapped cache, after a lookup
+   * didn't find the content in memory.
+   */
+  public long getBytesReadFromCache() {
+    return bytesReadFromCache.get();
+  }
+
+  /**
+   * Returns the number of entries that have been evicted to stay within the byte budget.
+   */
+  public long getEvictionCount() {
+    return evictionCount.get();
+  }
+
+  /*package*/ void onBytesRead(boolean fromMemory, int bytesRead) {
+    (fromMemory ? bytesReadFromMemory : bytesReadFromCache).addAndGet(bytesRead);
+  }
+
+  /**
+   * Returns the entries that have been invalidated since the last call, whose listeners are yet to
+   * be unregistered. Must be called whilst holding the lock of this instance.
+   */
+  private ArrayList<Entry> takeInvalidatedEntries() {
+    ArrayList<Entry> entries = new ArrayList<>(invalidatedEntries);
+    invalidatedEntries.clear();
+    return entries;
+  }
+
+  /**
+   * Accesses the spans that hold the content of a key in the wrapped cache, which touches them.
+   * Stops at the first position that isn't cached, since the entry is then being invalidated.
+   *
+   * @param key The cache key.
+   * @param length The length of the content.
+   */
+  private void touchSpans(String key, long length) throws CacheException {
+    long position = 0;
+    while (position < length) {
+      CacheSpan span = cache.startRead(key, position);
+      if (span == null) {
+        return;
+      }
+      cache.releaseReadSpan(span);
+      position = span.position + span.length;
+    }
+  }
+
+  /**
+   * Returns whether {@code spans} hold the content of a key from its start to {@code length}.
+   */
+  private static boolean isCached(NavigableSet<CacheSpan> spans, long length) {
+    long cachedLength = 0;
+    if (spans != null) {
+      for (CacheSpan span : spans) {
+        if (!span.isCached || span.position > cachedLength) {
+          break;
+        }
+        cachedLength = Math.max(cachedLength, span.position + span.length);
+      }
+    }
+    return cachedLength >= length;
+  }
+
+  private synchronized void invalidate(Entry entry) {
+    // The entry may be invalidated before it's published, in which case it never is.
+    entry.invalidated = true;
+    // Entry.equals isn't overridden, so this only removes the entry if it hasn't been replaced.
+    if (entries.get(entry.key) == entry) {
+      entries.remove(entry.key);
+      totalBytes -= entry.data.length;
+      invalidatedEntries.add(entry);
+    }
+  }
+
+  /**
+   * The content of a key, which listens for the removal of the key's spans from the wrapped cache.
+   */
+  private final class Entry implements Cache.Listener {
+
+    public final String key;
+    public final byte[] data;
+
+    // Guarded by the enclosing MemoryCacheTier.
+    public boolean invalidated;
+
+    public Entry(String key, byte[] data) {
+      this.key = key;
+      this.data = data;
+    }
+
+    @Override
+    public void onSpanAdded(Cache cache, CacheSpan span) {
+      // Do nothing.
+    }
+
+    @Override
+    public void onSpanRemoved(Cache cache, CacheSpan span) {
+      // The listener is unregistered by the next call to put or remove, since it can't be
+      // unregistered whilst the cache is delivering events.
+      invalidate(this);
+    }
+
+    @Override
+    public void onSpanTouched(Cache cache, CacheSpan oldSpan, CacheSpan newSpan) {
+      // Do nothing.
+    }
+
+  }
+
+}
@@ -16,29 +16,218 @@
 package com.google.android.exoplayer2.upstream.cache;
 
 import android.os.ConditionVariable;
+import android.os.SystemClock;
+import android.support.annotation.IntDef;
+import android.util.Log;
 import com.google.android.exoplayer2.C;
 import com.google.android.exoplayer2.util.Assertions;
+import com.google.android.exoplayer2.util.Util;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.security.SecureRandom;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
-import java.util.LinkedList;
 import java.util.NavigableSet;
 import java.util.Set;
 import java.util.TreeSet;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 /**
  * A {@link Cache} implementation that maintains an in-memory representation.
+ * <p>
+ * Span lookup, hole locking and commits are guarded by a lock stripe selected by the cache key, so
+ * that operations on keys in different stripes don't block each other. State shared by all keys
+ * (the total cache space, the evictor and the listeners) is guarded by a single shared lock. Span
+ * events are queued in the order in which they occur and are delivered serially whilst holding the
+ * shared lock.
+ * <p>
+ * Locks are acquired in the order shared lock, then stripe lock. The shared lock is held whilst
+ * acquiring stripe locks during initialization, and by the evictor and listeners when they call
+ * back into the cache, for example to remove spans. A stripe lock is never held whilst acquiring
+ * the shared lock, and so events are only delivered once the stripe in which they occurred has
+ * been released. Several stripe locks are only held at once whilst writing the span manifest, and
+ * are then acquired in order of stripe index.
+ * <p>
+ * Only writing into holes is exclusive. Readers of cached spans obtain shared read leases, which
+ * are counted per file in the key's stripe. The file of a leased span isn't renamed when the span
+ * is touched, and if the span is removed then deleting its file is deferred until the last lease
+ * is released.
  */
-public final class SimpleCache implements Cache {
+public final class SimpleCache implements EncryptableCache {
+
+  /**
+   * Flags controlling the cache's behavior.
+   */
+  @Retention(RetentionPolicy.SOURCE)
+  @IntDef(flag = true, value = {FLAG_JOURNALED_INDEX, FLAG_SPAN_MANIFEST,
+      FLAG_LAST_ACCESS_TIMESTAMPS_IN_INDEX, FLAG_DEDUPLICATE_SPANS})
+  public @interface Flags {}
+  /**
+   * A flag indicating that the content index should be stored in a journaled format. Changes to
+   * the index are appended to the index file rather than rewriting the whole file, and the file is
+   * compacted in the background once the journal grows past a size threshold.
+   */
+  public static final int FLAG_JOURNALED_INDEX = 1 << 0;
+  /**
+   * A flag indicating that the cached spans should be persisted in a manifest file, so that they
+   * can be loaded with a single sequential read when the cache is initialized rather than by
+   * scanning the cache directory. The manifest is written after initialization and by
+   * {@link #release()}. Spans that are committed or removed in the meantime are appended to it as
+   * journal records, and it's rewritten on commit once the journal has grown longer than the
+   * manifest. The directory is scanned if the manifest is missing or invalid, or if the number of
+   * files in the directory doesn't match the number of spans it lists, for example because a file
+   * was started but never committed.
+   * <p>
+   * Touching a span whose timestamp is encoded in its file name renames the file, which deletes the
+   * manifest until it's rewritten by the next commit. Combining this flag with
+   * {@link #FLAG_LAST_ACCESS_TIMESTAMPS_IN_INDEX} avoids this.
+   */
+  public static final int FLAG_SPAN_MANIFEST = 1 << 1;
+  /**
+   * A flag indicating that the last access timestamps of the cached spans should be stored in the
+   * content index rather than being encoded in the span file names, so that span files aren't
+   * renamed when they're read. Timestamps are updated in memory when spans are read, and are
+   * persisted the next time the index is stored. Existing span files are renamed to the new format
+   * when the cache is initialized, and are renamed back if the flag is subsequently cleared.
+   * <p>
+   * Since the index is stored whenever a span is committed, combining this flag with
+   * {@link #FLAG_JOURNALED_INDEX} avoids rewriting the timestamps of all spans on each commit.
+   */
+  public static final int FLAG_LAST_ACCESS_TIMESTAMPS_IN_INDEX = 1 << 2;
+  /**
+   * A flag indicating that committed spans whose content is identical to that of an existing span,
+   * for example the same segment reached through different URLs, should share its storage. The
+   * file of such a span is replaced by a hard link to the existing data, which is only freed once
+   * all of the spans sharing it have been removed. {@link #getCacheSpace()} counts shared data
+   * once, so evictors that compare it with their maximum size account for sharing correctly.
+   * <p>
+   * Spans are deduplicated on the cache's background thread after they've been committed, so the
+   * space they use is counted until then. Deduplicating a span reads its file to compute a digest,
+   * and the first span of a given length also causes the digests of existing spans of that length
+   * to be computed. Deduplication requires API level 21, and the flag has no effect on earlier API
+   * levels.
+   */
+  public static final int FLAG_DEDUPLICATE_SPANS = 1 << 3;
+
+  /**
+   * Receives notification of the cache having been initialized.
+   */
+  public interface InitializationListener {
+
+    /**
+     * Called on the cache's initialization thread when initialization has completed.
+     *
+     * @param initializationTimeMs The time taken to initialize the cache, in milliseconds.
+     * @param spanCount The number of cached spans that were loaded.
+     * @param loadedFromManifest Whether the spans were loaded from the span manifest, as opposed to
+     *     by scanning the cache directory.
+     */
+    void onInitialized(long initializationTimeMs, int spanCount, boolean loadedFromManifest);
+
+  }
+
+  /**
+   * Receives the result of span compaction started by
+   * {@link #startSpanCompaction(long, long, CompactionListener)}.
+   */
+  public interface CompactionListener {
+
+    /**
+     * Called on the compaction thread when compaction has completed.
+     *
+     * @param result The result of the compaction.
+     */
+    void onSpansCompacted(CompactionResult result);
+
+    /**
+     * Called on the compaction thread if compaction failed.
+     *
+     * @param e The cause of the failure.
+     */
+    void onCompactionError(CacheException e);
+
+  }
+
+  /**
+   * The result of span compaction.
+   */
+  public static final class CompactionResult {
+
+    /**
+     * The number of runs of contiguous spans that were merged into single files.
+     */
+    public final int mergedRunCount;
+    /**
+     * The number of span files that were reclaimed, which is the number of file opens saved by a
+     * read of all of the merged data.
+     */
+    public final int reclaimedFileCount;
+    /**
+     * The number of bytes that were rewritten.
+     */
+    public final long rewrittenBytes;
+
+    public CompactionResult(int mergedRunCount, int reclaimedFileCount, long rewrittenBytes) {
+      this.mergedRunCount = mergedRunCount;
+      this.reclaimedFileCount = reclaimedFileCount;
+      this.rewrittenBytes = rewrittenBytes;
+    }
+
+    /**
+     * Returns the average number of file opens saved by a read of all of the data of a merged run,
+     * or 0 if no runs were merged.
+     */
+    public double getOpensSavedPerRead() {
+      return mergedRunCount == 0 ? 0 : (double) reclaimedFileCount / mergedRunCount;
+    }
+
+  }
+
+  private static final String TAG = "SimpleCache";
+  private static final String COMPACTION_FILE_SUFFIX = ".compact.tmp";
+  private static final int COMPACTION_BUFFER_SIZE = 64 * 1024;
+  /**
+   * The time for which the idle background thread is kept alive, in milliseconds.
+   */
+  private static final long KEEP_ALIVE_MS = 10000;
+
+  /**
+   * The default number of lock stripes. Span lookups, hole locks, touches, which may rename a span
+   * file, and read leases of keys in different stripes don't contend. Persisting the index when a
+   * file is committed is serialized across all keys, but it happens after the stripe lock has been
+   * released, so it doesn't block lookups of other keys.
+   */
+  public static final int DEFAULT_LOCK_STRIPE_COUNT = 16;
 
   private final File cacheDir;
   private final CacheEvictor evictor;
-  private final HashMap<String, CacheSpan> lockedSpans;
   private final CachedContentIndex index;
+  private final CachedSpanManifest spanManifest;
+  private final InitializationListener initializationListener;
+  private final LockStripe[] lockStripes;
+  private final Object sharedLock;
+  private final ConcurrentLinkedQueue<SpanEvent> pendingEvents;
+  private final CacheStatistics statistics;
+  private final SpanDeduplicator deduplicator;
+  private final SecureRandom nonceGenerator;
+  private final ThreadPoolExecutor backgroundExecutor;
+  // Guarded by sharedLock.
   private final HashMap<String, ArrayList<Listener>> listeners;
   private long totalSpace = 0;
-  private CacheException initializationException;
+  private Thread evictingThread;
+
+  private volatile boolean initialized;
+  private volatile CacheException initializationException;
+  private volatile boolean staleSpansDetected;
 
   /**
    * Constructs the cache. The cache will delete any unrecognized files from the directory. Hence
@@ -61,170 +250,633 @@ public final class SimpleCache implements Cache {
    *     The key must be 16 bytes long.
    */
   public SimpleCache(File cacheDir, CacheEvictor evictor, byte[] secretKey) {
+    this(cacheDir, evictor, secretKey, DEFAULT_LOCK_STRIPE_COUNT);
+  }
+
+  /**
+   * Constructs the cache. The cache will delete any unrecognized files from the directory. Hence
+   * the directory cannot be used to store other files.
+   *
+   * @param cacheDir A dedicated cache directory.
+   * @param evictor The evictor to be used.
+   * @param secretKey If not null, cache keys will be stored encrypted on filesystem using AES/CBC.
+   *     The key must be 16 bytes long.
+   * @param lockStripeCount The number of lock stripes over which cache keys are distributed. The
+   *     value is rounded up to the nearest power of two. A higher value reduces contention when
+   *     many keys are read and written concurrently, for example by several players and a
+   *     downloader sharing the same cache.
+   */
+  public SimpleCache(File cacheDir, CacheEvictor evictor, byte[] secretKey, int lockStripeCount) {
+    this(cacheDir, evictor, secretKey, lockStripeCount, 0);
+  }
+
+  /**
+   * Constructs the cache. The cache will delete any unrecognized files from the directory. Hence
+   * the directory cannot be used to store other files.
+   *
+   * @param cacheDir A dedicated cache directory.
+   * @param evictor The evictor to be used.
+   * @param secretKey If not null, cache keys will be stored encrypted on filesystem using AES/CBC.
+   *     The key must be 16 bytes long.
+   * @param lockStripeCount The number of lock stripes over which cache keys are distributed. The
+   *     value is rounded up to the nearest power of two.
+   * @param flags A combination of {@link #FLAG_JOURNALED_INDEX}, {@link #FLAG_SPAN_MANIFEST},
+   *     {@link #FLAG_LAST_ACCESS_TIMESTAMPS_IN_INDEX} and {@link #FLAG_DEDUPLICATE_SPANS}, or 0.
+   */
+  public SimpleCache(File cacheDir, CacheEvictor evictor, byte[] secretKey, int lockStripeCount,
+      @Flags int flags) {
+    this(cacheDir, evictor, secretKey, lockStripeCount, flags, null);
+  }
+
+  /**
+   * Constructs the cache. The cache will delete any unrecognized files from the directory. Hence
+   * the directory cannot be used to store other files.
+   *
+   * @param cacheDir A dedicated cache directory.
+   * @param evictor The evictor to be used.
+   * @param secretKey If not null, cache keys will be stored encrypted on filesystem using AES/CBC.
+   *     The key must be 16 bytes long.
+   * @param lockStripeCount The number of lock stripes over which cache keys are distributed. The
+   *     value is rounded up to the nearest power of two.
+   * @param flags A combination of {@link #FLAG_JOURNALED_INDEX}, {@link #FLAG_SPAN_MANIFEST},
+   *     {@link #FLAG_LAST_ACCESS_TIMESTAMPS_IN_INDEX} and {@link #FLAG_DEDUPLICATE_SPANS}, or 0.
+   * @param initializationListener A listener to be notified when the cache has been initialized,
+   *     or null.
+   */
+  public SimpleCache(File cacheDir, CacheEvictor evictor, byte[] secretKey, int lockStripeCount,
+      @Flags int flags, InitializationListener initializationListener) {
+    Assertions.checkArgument(lockStripeCount > 0);
     this.cacheDir = cacheDir;
     this.evictor = evictor;
-    this.lockedSpans = new HashMap<>();
-    this.index = new CachedContentIndex(cacheDir, secretKey);
+    this.initializationListener = initializationListener;
+    this.index = new CachedContentIndex(cacheDir, secretKey,
+        (flags & FLAG_JOURNALED_INDEX) != 0, (flags & FLAG_LAST_ACCESS_TIMESTAMPS_IN_INDEX) != 0);
+    this.spanManifest = (flags & FLAG_SPAN_MANIFEST) != 0 ? new CachedSpanManifest(cacheDir)
+        : null;
+    int stripeCount = Integer.highestOneBit(lockStripeCount);
+    if (stripeCount < lockStripeCount) {
+      stripeCount <<= 1;
+    }
+    this.lockStripes = new LockStripe[stripeCount];
+    for (int i = 0; i < stripeCount; i++) {
+      lockStripes[i] = new LockStripe();
+    }
+    this.sharedLock = new Object();
+    this.pendingEvents = new ConcurrentLinkedQueue<>();
+    this.statistics = new CacheStatistics();
+    this.deduplicator = (flags & FLAG_DEDUPLICATE_SPANS) != 0 && SpanDeduplicator.isSupported()
+        ? new SpanDeduplicator() : null;
+    this.nonceGenerator = new SecureRandom();
+    this.backgroundExecutor = new ThreadPoolExecutor(1, 1, KEEP_ALIVE_MS, TimeUnit.MILLISECONDS,
+        new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+          @Override
+          public Thread newThread(Runnable r) {
+            return new Thread(r, "SimpleCache.background");
+          }
+        });
+    backgroundExecutor.allowCoreThreadTimeOut(true);
     this.listeners = new HashMap<>();
     // Start cache initialization.
     final ConditionVariable conditionVariable = new ConditionVariable();
     new Thread("SimpleCache.initialize()") {
       @Override
       public void run() {
-        synchronized (SimpleCache.this) {
+        synchronized (sharedLock) {
           conditionVariable.open();
           try {
             initialize();
           } catch (CacheException e) {
             initializationException = e;
           }
-          SimpleCache.this.evictor.onCacheInitialized();
+          Thread previousEvictingThread = startEvicting();
+          try {
+            SimpleCache.this.evictor.onCacheInitialized();
+          } finally {
+            evictingThread = previousEvictingThread;
+          }
+          initialized = true;
         }
       }
     }.start();
     conditionVariable.block();
   }
 
+  /**
+   * Releases the cache, persisting the content index and, if {@link #FLAG_SPAN_MANIFEST} is set,
+   * the span manifest. The cache should not be used after this method has been called.
+   *
+   * @throws CacheException If an error occurs persisting the cache state.
+   */
+  public void release() throws CacheException {
+    blockUntilInitialized();
+    index.store();
+    if (spanManifest != null) {
+      writeSpanManifest(0);
+    }
+  }
+
+  /**
+   * Merges runs of contiguous cached spans into single files, so that reading the data requires
+   * fewer files to be opened. Only keys that aren't locked for writing, whose spans aren't being
+   * read under a read lease, and whose spans were all last accessed at least
+   * {@code minIdleTimeMs} ago are compacted.
+   * <p>
+   * Each key is locked for writing whilst its spans are compacted. The data of a run is copied into
+   * a temporary file without holding any locks, and the merged span then replaces the spans of the
+   * run atomically with respect to the key's other span operations. A run is skipped if any of its
+   * spans was touched, removed or leased in the meantime. Listeners and the evictor are notified of
+   * the removal of the old spans and the addition of the merged span as a single event, so the
+   * cache space never reflects a partially merged run.
+   * <p>
+   * This method performs file system operations and should be called on a background thread.
+   *
+   * @param minIdleTimeMs The minimum time since any span of a key was last accessed, in
+   *     milliseconds.
+   * @param maxFileLength The maximum length of a merged span file, in bytes.
+   * @return The result of the compaction.
+   * @throws CacheException If an error occurs persisting the content index.
+   */
+  public CompactionResult compactSpans(long minIdleTimeMs, long maxFileLength)
+      throws CacheException {
+    blockUntilInitialized();
+    long maxLastAccessTimestamp = System.currentTimeMillis() - minIdleTimeMs;
+    int mergedRunCount = 0;
+    int reclaimedFileCount = 0;
+    long rewrittenBytes = 0;
+    for (CachedContent cachedContent : new ArrayList<>(index.getAll())) {
+      String key = cachedContent.key;
+      LockStripe lockStripe = getLockStripe(key);
+      ArrayList<ArrayList<SimpleCacheSpan>> runs;
+      synchronized (lockStripe) {
+        if (initializationException != null) {
+          throw initializationException;
+        }
+        if (index.get(key) != cachedContent || lockStripe.lockedSpans.containsKey(key)) {
+          continue;
+        }
+        runs = getCompactableRuns(lockStripe, cachedContent, maxLastAccessTimestamp,
+            maxFileLength);
+        if (runs.isEmpty()) {
+          continue;
+        }
+        lockStripe.lockedSpans.put(key, SimpleCacheSpan.createOpenHole(key, 0));
+      }
+      try {
+        for (int i = 0; i < runs.size(); i++) {
+          ArrayList<SimpleCacheSpan> run = runs.get(i);
+          long runLength = mergeRun(lockStripe, cachedContent, run);
+          if (runLength != C.LENGTH_UNSET) {
+            mergedRunCount++;
+            reclaimedFileCount += run.size() - 1;
+            rewrittenBytes += runLength;
+          }
+        }
+      } finally {
+        synchronized (lockStripe) {
+          lockStripe.lockedSpans.remove(key);
+          lockStripe.notifyAll();
+        }
+      }
+      index.store();
+      onOperationFinished();
+    }
+    return new CompactionResult(mergedRunCount, reclaimedFileCount, rewrittenBytes);
+  }
+
+  /**
+   * Starts compacting spans on the cache's background thread, as described in
+   * {@link #compactSpans(long, long)}. Compactions that are started whilst another is running are
+   * run after it, one at a time.
+   *
+   * @param minIdleTimeMs The minimum time since any span of a key was last accessed, in
+   *     milliseconds.
+   * @param maxFileLength The maximum length of a merged span file, in bytes.
+   * @param listener A listener to be notified when compaction has completed, or null.
+   */
+  public void startSpanCompaction(final long minIdleTimeMs, final long maxFileLength,
+      final CompactionListener listener) {
+    backgroundExecutor.execute(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          CompactionResult result = compactSpans(minIdleTimeMs, maxFileLength);
+          if (listener != null) {
+            listener.onSpansCompacted(result);
+          }
+        } catch (CacheException e) {
+          Log.e(TAG, "Error compacting cache spans.", e);
+          if (listener != null) {
+            listener.onCompactionError(e);
+          }
+        }
+      }
+    });
+  }
+
   @Override
-  public synchronized NavigableSet<CacheSpan> addListener(String key, Listener listener) {
-    ArrayList<Listener> listenersForKey = listeners.get(key);
-    if (listenersForKey == null) {
-      listenersForKey = new ArrayList<>();
-      listeners.put(key, listenersForKey);
+  public NavigableSet<CacheSpan> addListener(String key, Listener listener) {
+    blockUntilInitialized();
+    NavigableSet<CacheSpan> spans;
+    LockStripe lockStripe = getLockStripe(key);
+    synchronized (lockStripe) {
+      spans = getCachedSpansLocked(key);
+      // The listener is registered when this event is delivered, so that it receives exactly the
+      // events that occur after the returned snapshot was taken.
+      pendingEvents.add(SpanEvent.createListenerAdded(key, listener));
     }
-    listenersForKey.add(listener);
-    return getCachedSpans(key);
+    dispatchPendingEvents();
+    return spans;
   }
 
   @Override
-  public synchronized void removeListener(String key, Listener listener) {
-    ArrayList<Listener> listenersForKey = listeners.get(key);
-    if (listenersForKey != null) {
-      listenersForKey.remove(listener);
-      if (listenersForKey.isEmpty()) {
-        listeners.remove(key);
-      }
+  public void removeListener(String key, Listener listener) {
+    blockUntilInitialized();
+    synchronized (getLockStripe(key)) {
+      pendingEvents.add(SpanEvent.createListenerRemoved(key, listener));
     }
+    dispatchPendingEvents();
   }
 
   @Override
-  public synchronized NavigableSet<CacheSpan> getCachedSpans(String key) {
-    CachedContent cachedContent = index.get(key);
-    return cachedContent == null ? null : new TreeSet<CacheSpan>(cachedContent.getSpans());
+  public NavigableSet<CacheSpan> getCachedSpans(String key) {
+    blockUntilInitialized();
+    synchronized (getLockStripe(key)) {
+      return getCachedSpansLocked(key);
+    }
   }
 
   @Override
-  public synchronized Set<String> getKeys() {
+  public Set<String> getKeys() {
+    blockUntilInitialized();
     return new HashSet<>(index.getKeys());
   }
 
   @Override
-  public synchronized long getCacheSpace() {
-    return totalSpace;
+  public long getCacheSpace() {
+    synchronized (sharedLock) {
+      return totalSpace;
+    }
+  }
+
+  /**
+   * Returns the number of bytes saved by {@link #FLAG_DEDUPLICATE_SPANS}, which is the difference
+   * between the total length of the cached spans and the space that they use, or 0 if spans
+   * aren't deduplicated.
+   */
+  public long getDeduplicatedSpace() {
+    return deduplicator == null ? 0 : deduplicator.getDeduplicatedBytes();
   }
 
   @Override
-  public synchronized SimpleCacheSpan startReadWrite(String key, long position)
+  public SimpleCacheSpan startReadWrite(String key, long position)
       throws InterruptedException, CacheException {
-    while (true) {
-      SimpleCacheSpan span = startReadWriteNonBlocking(key, position);
-      if (span != null) {
-        return span;
-      } else {
-        // Write case, lock not available. We'll be woken up when a locked span is released (if the
-        // released lock is for the requested key then we'll be able to make progress) or when a
-        // span is added to the cache (if the span is for the requested key and covers the requested
-        // position, then we'll become a read and be able to make progress).
-        wait();
+    blockUntilInitialized();
+    long startTimeNs = System.nanoTime();
+    SimpleCacheSpan span;
+    LockStripe lockStripe = getLockStripe(key);
+    synchronized (lockStripe) {
+      while (true) {
+        span = startReadWriteLocked(lockStripe, key, position);
+        if (span != null) {
+          break;
+        } else {
+          // Write case, lock not available. We'll be woken up when a locked span in this stripe
+          // is released (if the released lock is for the requested key then we'll be able to make
+          // progress) or when a span is added to the cache in this stripe (if the span is for the
+          // requested key and covers the requested position, then we'll become a read and be able
+          // to make progress).
+          lockStripe.wait();
+        }
       }
     }
+    statistics.getStartReadWriteLatency().record((System.nanoTime() - startTimeNs) / 1000);
+    onOperationFinished();
+    return span;
   }
 
   @Override
-  public synchronized SimpleCacheSpan startReadWriteNonBlocking(String key, long position)
+  public SimpleCacheSpan startReadWriteNonBlocking(String key, long position)
       throws CacheException {
-    if (initializationException != null) {
-      throw initializationException;
+    blockUntilInitialized();
+    SimpleCacheSpan span;
+    LockStripe lockStripe = getLockStripe(key);
+    synchronized (lockStripe) {
+      span = startReadWriteLocked(lockStripe, key, position);
     }
+    onOperationFinished();
+    return span;
+  }
 
-    SimpleCacheSpan cacheSpan = getSpan(key, position);
-
-    // Read case.
-    if (cacheSpan.isCached) {
-      // Obtain a new span with updated last access timestamp.
-      SimpleCacheSpan newCacheSpan = index.get(key).touch(cacheSpan);
-      notifySpanTouched(cacheSpan, newCacheSpan);
-      return newCacheSpan;
+  @Override
+  public SimpleCacheSpan startRead(String key, long position) throws CacheException {
+    blockUntilInitialized();
+    long startTimeNs = System.nanoTime();
+    SimpleCacheSpan span;
+    LockStripe lockStripe = getLockStripe(key);
+    synchronized (lockStripe) {
+      if (initializationException != null) {
+        throw initializationException;
+      }
+      span = getSpan(lockStripe, key, position);
+      if (span.isCached) {
+        span = touchLocked(lockStripe, span);
+        Integer leaseCount = lockStripe.readLeaseCounts.get(span.file);
+        lockStripe.readLeaseCounts.put(span.file, leaseCount == null ? 1 : leaseCount + 1);
+      } else {
+        span = null;
+      }
     }
+    statistics.getStartReadWriteLatency().record((System.nanoTime() - startTimeNs) / 1000);
+    onOperationFinished();
+    return span;
+  }
 
-    // Write case, lock available.
-    if (!lockedSpans.containsKey(key)) {
-      lockedSpans.put(key, cacheSpan);
-      return cacheSpan;
+  @Override
+  public void releaseReadSpan(CacheSpan span) {
+    LockStripe lockStripe = getLockStripe(span.key);
+    synchronized (lockStripe) {
+      Integer leaseCount = lockStripe.readLeaseCounts.remove(span.file);
+      Assertions.checkState(leaseCount != null);
+      if (leaseCount > 1) {
+        lockStripe.readLeaseCounts.put(span.file, leaseCount - 1);
+      } else if (lockStripe.pendingDeletions.remove(span.file)) {
+        span.file.delete();
+      }
     }
-
-    // Write case, lock not available.
-    return null;
   }
 
   @Override
-  public synchronized File startFile(String key, long position, long maxLength)
-      throws CacheException {
-    Assertions.checkState(lockedSpans.containsKey(key));
+  public File startFile(String key, long position, long maxLength) throws CacheException {
+    blockUntilInitialized();
+    LockStripe lockStripe = getLockStripe(key);
+    synchronized (lockStripe) {
+      Assertions.checkState(lockStripe.lockedSpans.containsKey(key));
+    }
     if (!cacheDir.exists()) {
       // For some reason the cache directory doesn't exist. Make a best effort to create it.
       removeStaleSpansAndCachedContents();
       cacheDir.mkdirs();
     }
-    evictor.onStartFile(this, key, position, maxLength);
-    return SimpleCacheSpan.getCacheFile(cacheDir, index.assignIdForKey(key), position,
-        System.currentTimeMillis());
+    synchronized (sharedLock) {
+      Thread previousEvictingThread = startEvicting();
+      try {
+        evictor.onStartFile(this, key, position, maxLength);
+      } finally {
+        evictingThread = previousEvictingThread;
+      }
+    }
+    File file;
+    synchronized (lockStripe) {
+      int id = index.assignIdForKey(key);
+      file = SimpleCacheSpan.getCacheFile(cacheDir, index, id, position,
+          System.currentTimeMillis());
+      if (lockStripe.pendingDeletions.remove(file)) {
+        // The file of a removed span that is still being read has the same name. Delete it now, so
+        // that the new file doesn't overwrite it. Readers that have already opened it can continue.
+        file.delete();
+      }
+      lockStripe.startedFiles.put(key, new StartedFile(position, nonceGenerator.nextLong()));
+    }
+    return file;
+  }
+
+  /**
+   * {@inheritDoc}
+   * <p>
+   * The nonce of a started file is persisted by the content index store that
+   * {@link #commitFile(File)} makes anyway. If the file is never committed, for example because the
+   * app is killed, then a span loaded for it when the cache is next initialized has no nonce, and
+   * so is treated as unencrypted. Encrypted spans aren't merged by
+   * {@link #compactSpans(long, long)}.
+   */
+  @Override
+  public Long getSpanNonce(String key, long position) {
+    blockUntilInitialized();
+    LockStripe lockStripe = getLockStripe(key);
+    synchronized (lockStripe) {
+      CachedContent cachedContent = index.get(key);
+      StartedFile startedFile = lockStripe.startedFiles.get(key);
+      if (cachedContent == null) {
+        return null;
+      } else if (startedFile != null && startedFile.position == position) {
+        index.setSpanNonce(cachedContent.id, position, startedFile.nonce);
+        return startedFile.nonce;
+      } else {
+        return index.getSpanNonce(cachedContent.id, position);
+      }
+    }
   }
 
   @Override
-  public synchronized void commitFile(File file) throws CacheException {
+  public void commitFile(File file) throws CacheException {
+    blockUntilInitialized();
     SimpleCacheSpan span = SimpleCacheSpan.createCacheEntry(file, index);
     Assertions.checkState(span != null);
-    Assertions.checkState(lockedSpans.containsKey(span.key));
-    // If the file doesn't exist, don't add it to the in-memory representation.
-    if (!file.exists()) {
-      return;
+    LockStripe lockStripe = getLockStripe(span.key);
+    synchronized (lockStripe) {
+      Assertions.checkState(lockStripe.lockedSpans.containsKey(span.key));
+      lockStripe.startedFiles.remove(span.key);
+      // If the file doesn't exist, don't add it to the in-memory representation.
+      if (!file.exists()) {
+        removeUncommittedSpanNonce(span.key, span.position);
+        return;
+      }
+      // If the file has length 0, delete it and don't add it to the in-memory representation.
+      if (file.length() == 0) {
+        file.delete();
+        removeUncommittedSpanNonce(span.key, span.position);
+        return;
+      }
+      // Check if the span conflicts with the set content length
+      long length = index.getContentLength(span.key);
+      if (length != C.LENGTH_UNSET) {
+        Assertions.checkState((span.position + span.length) <= length);
+      }
+      addSpan(span);
+      if (spanManifest != null) {
+        spanManifest.onSpanAdded(index.get(span.key).id, span);
+      }
+      lockStripe.notifyAll();
     }
-    // If the file has length 0, delete it and don't add it to the in-memory representation.
-    if (file.length() == 0) {
-      file.delete();
-      return;
+    if (deduplicator != null) {
+      startDeduplication(span.key, span.position);
+    }
+    statistics.onSpanAdded(span.length);
+    index.store();
+    if (spanManifest != null) {
+      if (spanManifest.isRewriteRequired()) {
+        writeSpanManifest(0);
+      } else {
+        spanManifest.appendRecords();
+      }
+    }
+    onOperationFinished();
+  }
+
+  @Override
+  public void releaseHoleSpan(CacheSpan holeSpan) {
+    LockStripe lockStripe = getLockStripe(holeSpan.key);
+    synchronized (lockStripe) {
+      Assertions.checkState(holeSpan == lockStripe.lockedSpans.remove(holeSpan.key));
+      StartedFile startedFile = lockStripe.startedFiles.remove(holeSpan.key);
+      if (startedFile != null) {
+        // The file was abandoned without being committed.
+        removeUncommittedSpanNonce(holeSpan.key, startedFile.position);
+      }
+      lockStripe.notifyAll();
+    }
+  }
+
+  @Override
+  public void removeSpan(CacheSpan span) throws CacheException {
+    blockUntilInitialized();
+    boolean removedCachedContent;
+    // The evicting thread is only ever set to the current thread by the current thread, so reading
+    // it without holding the shared lock can't mistake another thread's eviction for this one's.
+    boolean evicted = evictingThread == Thread.currentThread();
+    LockStripe lockStripe = getLockStripe(span.key);
+    synchronized (lockStripe) {
+      removedCachedContent = removeSpan(lockStripe, span, true, evicted);
+    }
+    if (removedCachedContent) {
+      index.store();
+    }
+    appendSpanManifestRecords();
+    dispatchPendingEvents();
+  }
+
+  @Override
+  public boolean isCached(String key, long position, long length) {
+    blockUntilInitialized();
+    synchronized (getLockStripe(key)) {
+      CachedContent cachedContent = index.get(key);
+      return cachedContent != null && cachedContent.isCached(position, length);
     }
-    // Check if the span conflicts with the set content length
-    Long length = getContentLength(span.key);
-    if (length != C.LENGTH_UNSET) {
-      Assertions.checkState((span.position + span.length) <= length);
+  }
+
+  @Override
+  public void setContentLength(String key, long length) throws CacheException {
+    blockUntilInitialized();
+    synchronized (getLockStripe(key)) {
+      index.setContentLength(key, length);
     }
-    addSpan(span);
     index.store();
-    notifyAll();
   }
 
   @Override
-  public synchronized void releaseHoleSpan(CacheSpan holeSpan) {
-    Assertions.checkState(holeSpan == lockedSpans.remove(holeSpan.key));
-    notifyAll();
+  public long getContentLength(String key) {
+    blockUntilInitialized();
+    return index.getContentLength(key);
+  }
+
+  @Override
+  public CacheStatistics getStatistics() {
+    return statistics;
+  }
+
+  /**
+   * Blocks until the cache has been initialized. Cache initialization holds {@link #sharedLock}
+   * throughout, so acquiring it is sufficient to wait for initialization to complete. The evictor
+   * may call into the cache from the initialization thread, in which case this method returns
+   * immediately.
+   */
+  private void blockUntilInitialized() {
+    if (!initialized && !Thread.holdsLock(sharedLock)) {
+      synchronized (sharedLock) {
+        Assertions.checkState(initialized);
+      }
+    }
+  }
+
+  /**
+   * Returns the lock stripe that guards the span state of the given key.
+   */
+  //@VisibleForTesting
+  /* package */ LockStripe getLockStripe(String key) {
+    int hash = key.hashCode();
+    hash ^= hash >>> 16;
+    return lockStripes[hash & (lockStripes.length - 1)];
+  }
+
+  /**
+   * Implements {@link #startReadWriteNonBlocking(String, long)}. Must be called whilst holding the
+   * lock of {@code lockStripe}.
+   */
+  private SimpleCacheSpan startReadWriteLocked(LockStripe lockStripe, String key, long position)
+      throws CacheException {
+    if (initializationException != null) {
+      throw initializationException;
+    }
+
+    SimpleCacheSpan cacheSpan = getSpan(lockStripe, key, position);
+
+    // Read case.
+    if (cacheSpan.isCached) {
+      return touchLocked(lockStripe, cacheSpan);
+    }
+
+    // Write case, lock available.
+    if (!lockStripe.lockedSpans.containsKey(key)) {
+      lockStripe.lockedSpans.put(key, cacheSpan);
+      return cacheSpan;
+    }
+
+    // Write case, lock not available.
+    return null;
+  }
+
+  /**
+   * Replaces a cached span with a copy whose last access timestamp is updated. Must be called
+   * whilst holding the lock of {@code lockStripe}.
+   *
+   * @param lockStripe The stripe to which the span's key maps.
+   * @param cacheSpan The span to be touched.
+   * @return The touched span.
+   */
+  private SimpleCacheSpan touchLocked(LockStripe lockStripe, SimpleCacheSpan cacheSpan)
+      throws CacheException {
+    CachedContent cachedContent = index.get(cacheSpan.key);
+    SimpleCacheSpan newCacheSpan;
+    // Obtain a new span with updated last access timestamp.
+    if (index.storesLastAccessTimestamps()) {
+      newCacheSpan = cachedContent.touch(cacheSpan, false);
+      index.setLastAccessTimestamp(cachedContent.id, newCacheSpan.position,
+          newCacheSpan.lastAccessTimestamp);
+    } else if (lockStripe.readLeaseCounts.containsKey(cacheSpan.file)) {
+      // The file is being read, so it isn't renamed. The updated timestamp is kept in memory only.
+      newCacheSpan = cachedContent.touch(cacheSpan, false);
+    } else {
+      // Touching the span renames its file.
+      invalidateSpanManifest();
+      newCacheSpan = cachedContent.touch(cacheSpan);
+    }
+    if (deduplicator != null) {
+      deduplicator.onSpanTouched(cacheSpan, newCacheSpan);
+    }
+    pendingEvents.add(SpanEvent.createSpanTouched(cacheSpan, newCacheSpan));
+    return newCacheSpan;
+  }
+
+  private NavigableSet<CacheSpan> getCachedSpansLocked(String key) {
+    CachedContent cachedContent = index.get(key);
+    return cachedContent == null ? null : new TreeSet<CacheSpan>(cachedContent.getSpans());
   }
 
   /**
    * Returns the cache {@link SimpleCacheSpan} corresponding to the provided lookup {@link
-   * SimpleCacheSpan}.
+   * SimpleCacheSpan}. Must be called whilst holding the lock of {@code lockStripe}.
    *
    * <p>If the lookup position is contained by an existing entry in the cache, then the returned
    * {@link SimpleCacheSpan} defines the file in which the data is stored. If the lookup position is
    * not contained by an existing entry, then the returned {@link SimpleCacheSpan} defines the
    * maximum extents of the hole in the cache.
    *
+   * @param lockStripe The stripe to which the key maps.
    * @param key The key of the span being requested.
    * @param position The position of the span being requested.
    * @return The corresponding cache {@link SimpleCacheSpan}.
    */
-  private SimpleCacheSpan getSpan(String key, long position) throws CacheException {
+  private SimpleCacheSpan getSpan(LockStripe lockStripe, String key, long position) {
     CachedContent cachedContent = index.get(key);
     if (cachedContent == null) {
       return SimpleCacheSpan.createOpenHole(key, position);
@@ -232,9 +884,11 @@ public final class SimpleCache implements Cache {
     while (true) {
       SimpleCacheSpan span = cachedContent.getSpan(position);
       if (span.isCached && !span.file.exists()) {
-        // The file has been deleted from under us. It's likely that other files will have been
-        // deleted too, so scan the whole in-memory representation.
-        removeStaleSpansAndCachedContents();
+        // The file has been deleted from under us. Remove the span so that we can make progress.
+        // It's likely that other files will have been deleted too, so the whole in-memory
+        // representation is scanned once the stripe lock has been released.
+        removeSpan(lockStripe, span, false, false);
+        staleSpansDetected = true;
         continue;
       }
       return span;
@@ -242,130 +896,687 @@ public final class SimpleCache implements Cache {
   }
 
   /**
-   * Ensures that the cache's in-memory representation has been initialized.
+   * Ensures that the cache's in-memory representation has been initialized. Called whilst holding
+   * {@link #sharedLock}, and acquires stripe locks to add the spans.
    */
   private void initialize() throws CacheException {
+    long startTimeMs = SystemClock.elapsedRealtime();
+    int spanCount = 0;
+    boolean loadedFromManifest = false;
     if (!cacheDir.exists()) {
       cacheDir.mkdirs();
-      return;
+    } else {
+      index.load();
+      ArrayList<SimpleCacheSpan> spans = spanManifest != null ? spanManifest.load(index) : null;
+      if (spans != null) {
+        loadedFromManifest = true;
+        for (int i = 0; i < spans.size(); i++) {
+          SimpleCacheSpan span = spans.get(i);
+          synchronized (getLockStripe(span.key)) {
+            addSpan(span);
+          }
+          dispatchPendingEvents();
+        }
+        spanCount = spans.size();
+      } else {
+        spanCount = scanCacheDir();
+      }
+      index.removeEmpty();
+      index.store();
     }
+    if (spanManifest != null && !loadedFromManifest) {
+      writeSpanManifest(0);
+    }
+    if (initializationListener != null) {
+      initializationListener.onInitialized(SystemClock.elapsedRealtime() - startTimeMs, spanCount,
+          loadedFromManifest);
+    }
+  }
 
-    index.load();
-
+  /**
+   * Adds a span for each cache file in the cache directory, deleting any unrecognized files.
+   *
+   * @return The number of spans added.
+   */
+  private int scanCacheDir() {
     File[] files = cacheDir.listFiles();
     if (files == null) {
-      return;
+      return 0;
     }
+    int spanCount = 0;
     for (File file : files) {
-      if (file.getName().equals(CachedContentIndex.FILE_NAME)) {
+      String name = file.getName();
+      if (name.equals(CachedContentIndex.FILE_NAME)
+          || (spanManifest != null && name.equals(CachedSpanManifest.FILE_NAME))) {
         continue;
       }
       SimpleCacheSpan span = file.length() > 0
           ? SimpleCacheSpan.createCacheEntry(file, index) : null;
       if (span != null) {
-        addSpan(span);
+        synchronized (getLockStripe(span.key)) {
+          addSpan(span);
+        }
+        dispatchPendingEvents();
+        spanCount++;
       } else {
         file.delete();
       }
     }
+    return spanCount;
+  }
 
-    index.removeEmpty();
-    index.store();
+  /**
+   * Returns the runs of contiguous spans of a cached content that can be merged, each of which
+   * contains at least two spans. Must be called whilst holding the lock of {@code lockStripe}.
+   *
+   * @param lockStripe The stripe to which the content's key maps.
+   * @param cachedContent The cached content.
+   * @param maxLastAccessTimestamp The maximum last access timestamp of any span of the content. If
+   *     a span was accessed more recently then the content isn't idle, and no runs are returned.
+   * @param maxFileLength The maximum combined length of the spans of a run.
+   * @return The runs of spans to be merged.
+   */
+  private ArrayList<ArrayList<SimpleCacheSpan>> getCompactableRuns(LockStripe lockStripe,
+      CachedContent cachedContent, long maxLastAccessTimestamp, long maxFileLength) {
+    ArrayList<ArrayList<SimpleCacheSpan>> runs = new ArrayList<>();
+    for (SimpleCacheSpan span : cachedContent.getSpans()) {
+      if (span.lastAccessTimestamp > maxLastAccessTimestamp
+          || lockStripe.readLeaseCounts.containsKey(span.file)) {
+        runs.clear();
+        return runs;
+      }
+    }
+    ArrayList<SimpleCacheSpan> run = new ArrayList<>();
+    long runLength = 0;
+    for (SimpleCacheSpan span : cachedContent.getSpans()) {
+      if ((deduplicator != null && deduplicator.isShared(span))
+          || index.getSpanNonce(cachedContent.id, span.position) != null) {
+        // Merging would copy the shared data, increasing the space used by the cache, or would
+        // combine data encrypted with different keystreams.
+        if (run.size() > 1) {
+          runs.add(run);
+        }
+        run = new ArrayList<>();
+        runLength = 0;
+        continue;
+      }
+      SimpleCacheSpan lastSpan = run.isEmpty() ? null : run.get(run.size() - 1);
+      if (lastSpan == null || lastSpan.position + lastSpan.length != span.position
+          || runLength + span.length > maxFileLength) {
+        if (run.size() > 1) {
+          runs.add(run);
+        }
+        run = new ArrayList<>();
+        runLength = 0;
+      }
+      run.add(span);
+      runLength += span.length;
+    }
+    if (run.size() > 1) {
+      runs.add(run);
+    }
+    return runs;
+  }
+
+  /**
+   * Merges a run of contiguous spans into a single span. The key of the spans must be locked for
+   * writing by the caller. Must not be called whilst holding a stripe lock.
+   *
+   * @param lockStripe The stripe to which the key of the spans maps.
+   * @param cachedContent The cached content to which the spans belong.
+   * @param run The spans to be merged, in order of position.
+   * @return The length of the merged span, or {@link C#LENGTH_UNSET} if the run wasn't merged
+   *     because its spans were modified or couldn't be read.
+   */
+  private long mergeRun(LockStripe lockStripe, CachedContent cachedContent,
+      ArrayList<SimpleCacheSpan> run) {
+    SimpleCacheSpan firstSpan = run.get(0);
+    File tempFile = new File(cacheDir,
+        cachedContent.id + "." + firstSpan.position + COMPACTION_FILE_SUFFIX);
+    long length = 0;
+    boolean success = false;
+    FileOutputStream outputStream = null;
+    try {
+      outputStream = new FileOutputStream(tempFile);
+      byte[] buffer = new byte[COMPACTION_BUFFER_SIZE];
+      for (int i = 0; i < run.size(); i++) {
+        FileInputStream inputStream = new FileInputStream(run.get(i).file);
+        try {
+          int bytesRead;
+          while ((bytesRead = inputStream.read(buffer)) != -1) {
+            outputStream.write(buffer, 0, bytesRead);
+            length += bytesRead;
+          }
+        } finally {
+          Util.closeQuietly(inputStream);
+        }
+      }
+      outputStream.getFD().sync();
+      success = true;
+    } catch (IOException e) {
+      // A span file was most likely removed or renamed. The run is skipped.
+    } finally {
+      Util.closeQuietly(outputStream);
+    }
+
+    synchronized (lockStripe) {
+      ArrayList<CacheSpan> removedSpans = new ArrayList<>();
+      long expectedLength = 0;
+      long lastAccessTimestamp = 0;
+      for (int i = 0; success && i < run.size(); i++) {
+        SimpleCacheSpan span = run.get(i);
+        SimpleCacheSpan currentSpan = cachedContent.getSpan(span.position);
+        success = index.get(cachedContent.key) == cachedContent && currentSpan.isCached
+            && currentSpan.position == span.position && currentSpan.length == span.length
+            && currentSpan.file.equals(span.file)
+            && !lockStripe.readLeaseCounts.containsKey(currentSpan.file);
+        removedSpans.add(currentSpan);
+        expectedLength += span.length;
+        lastAccessTimestamp = Math.max(lastAccessTimestamp, currentSpan.lastAccessTimestamp);
+      }
+      if (!success || length != expectedLength) {
+        tempFile.delete();
+        return C.LENGTH_UNSET;
+      }
+      // Renaming the merged file into place can't be journaled.
+      invalidateSpanManifest();
+      for (int i = 0; i < removedSpans.size(); i++) {
+        CacheSpan span = removedSpans.get(i);
+        index.setLastAccessTimestamp(cachedContent.id, span.position, C.TIME_UNSET);
+      }
+      SimpleCacheSpan mergedSpan = SimpleCacheSpan.createCacheEntry(cacheDir, index,
+          cachedContent.key, cachedContent.id, firstSpan.position, length, lastAccessTimestamp);
+      long[] removedSpaces = new long[removedSpans.size()];
+      for (int i = 0; i < removedSpans.size(); i++) {
+        // The merged file may replace the file of the first span, which mustn't then be deleted.
+        CacheSpan span = removedSpans.get(i);
+        Assertions.checkState(cachedContent.removeSpan(span, false));
+        removedSpaces[i] = getRemovedSpace(span);
+        if (!span.file.equals(mergedSpan.file)) {
+          span.file.delete();
+        }
+      }
+      if (!tempFile.renameTo(mergedSpan.file)) {
+        // The spans' data is lost. Listeners and the evictor are notified of their removal.
+        tempFile.delete();
+        for (int i = 0; i < removedSpans.size(); i++) {
+          pendingEvents.add(SpanEvent.createSpanRemoved(removedSpans.get(i), removedSpaces[i]));
+        }
+        return C.LENGTH_UNSET;
+      }
+      cachedContent.addSpan(mergedSpan);
+      index.setLastAccessTimestamp(cachedContent.id, mergedSpan.position,
+          mergedSpan.lastAccessTimestamp);
+      long spaceDelta = getAddedSpace(mergedSpan);
+      for (long removedSpace : removedSpaces) {
+        spaceDelta -= removedSpace;
+      }
+      pendingEvents.add(SpanEvent.createSpansMerged(removedSpans, mergedSpan, spaceDelta));
+    }
+    return length;
+  }
+
+  /**
+   * Writes the span manifest whilst holding the locks of the stripes from {@code stripeIndex}
+   * onwards, so that the spans can't be modified whilst they're being written. The locks are
+   * acquired in order of stripe index. Must not be called whilst holding a stripe lock, but may be
+   * called whilst holding {@link #sharedLock}.
+   * <p>
+   * Files that are being written or compacted aren't listed. If the cache is initialized before
+   * they're committed, then the number of files in the directory doesn't match the manifest, and
+   * so the directory is scanned instead.
+   */
+  private void writeSpanManifest(int stripeIndex) throws CacheException {
+    if (stripeIndex < lockStripes.length) {
+      synchronized (lockStripes[stripeIndex]) {
+        writeSpanManifest(stripeIndex + 1);
+      }
+    } else {
+      spanManifest.store(index.getAll(), index);
+    }
   }
 
   /**
-   * Adds a cached span to the in-memory representation.
+   * Appends records of the spans added and removed since the span manifest was last written, if
+   * enabled. Must not be called whilst holding a stripe lock.
+   */
+  private void appendSpanManifestRecords() throws CacheException {
+    if (spanManifest != null) {
+      spanManifest.appendRecords();
+    }
+  }
+
+  /**
+   * Deletes the span manifest, if enabled. Must be called before a span file is renamed.
+   */
+  private void invalidateSpanManifest() {
+    if (spanManifest != null) {
+      spanManifest.invalidate();
+    }
+  }
+
+  /**
+   * Removes the nonce of a started file that wasn't committed, unless a span has been committed at
+   * its position. Must be called whilst holding the lock of the key's stripe.
+   */
+  private void removeUncommittedSpanNonce(String key, long position) {
+    CachedContent cachedContent = index.get(key);
+    if (cachedContent == null) {
+      return;
+    }
+    SimpleCacheSpan span = cachedContent.getSpan(position);
+    if (!span.isCached || span.position != position) {
+      index.removeSpanNonce(cachedContent.id, position);
+    }
+  }
+
+  /**
+   * Adds a cached span to the in-memory representation. Must be called whilst holding the lock of
+   * the key's stripe.
    *
    * @param span The span to be added.
    */
   private void addSpan(SimpleCacheSpan span) {
-    index.add(span.key).addSpan(span);
-    totalSpace += span.length;
-    notifySpanAdded(span);
+    CachedContent cachedContent = index.add(span.key);
+    cachedContent.addSpan(span);
+    index.setLastAccessTimestamp(cachedContent.id, span.position, span.lastAccessTimestamp);
+    pendingEvents.add(SpanEvent.createSpanAdded(span, getAddedSpace(span)));
   }
 
-  private void removeSpan(CacheSpan span, boolean removeEmptyCachedContent) throws CacheException {
-    CachedContent cachedContent = index.get(span.key);
-    Assertions.checkState(cachedContent.removeSpan(span));
-    totalSpace -= span.length;
-    if (removeEmptyCachedContent && cachedContent.isEmpty()) {
-      index.removeEmpty(cachedContent.key);
-      index.store();
+  /**
+   * Returns the number of bytes by which the space used by the cache increases when a span is
+   * added. Must be called whilst holding the lock of the key's stripe.
+   */
+  private long getAddedSpace(SimpleCacheSpan span) {
+    return deduplicator == null ? span.length : deduplicator.onSpanAdded(span);
+  }
+
+  /**
+   * Starts deduplicating a committed span on the cache's background thread, so that its content
+   * and that of existing spans of the same length are hashed off the thread that committed it.
+   */
+  private void startDeduplication(final String key, final long position) {
+    backgroundExecutor.execute(new Runnable() {
+      @Override
+      public void run() {
+        deduplicateSpan(key, position);
+      }
+    });
+  }
+
+  /**
+   * Replaces the file of a committed span with a hard link to the file of an existing span with
+   * identical content, if there is one. The span is skipped if it's been removed in the meantime.
+   */
+  private void deduplicateSpan(String key, long position) {
+    LockStripe lockStripe = getLockStripe(key);
+    SimpleCacheSpan span;
+    synchronized (lockStripe) {
+      span = getCommittedSpan(key, position);
+    }
+    File duplicateFile = span != null ? deduplicator.findDuplicate(span) : null;
+    if (duplicateFile == null) {
+      return;
+    }
+    synchronized (lockStripe) {
+      // The span's file may have been renamed by a touch in the meantime.
+      span = getCommittedSpan(key, position);
+      long reclaimedSpace = span != null ? deduplicator.linkDuplicate(span, duplicateFile) : 0;
+      if (reclaimedSpace != 0) {
+        pendingEvents.add(SpanEvent.createSpaceReclaimed(key, reclaimedSpace));
+      }
     }
-    notifySpanRemoved(span);
+    dispatchPendingEvents();
   }
 
-  @Override
-  public synchronized void removeSpan(CacheSpan span) throws CacheException {
-    removeSpan(span, true);
+  /**
+   * Returns the cached span of a key that starts at a position, or null if there isn't one. Must be
+   * called whilst holding the lock of the key's stripe.
+   */
+  private SimpleCacheSpan getCommittedSpan(String key, long position) {
+    CachedContent cachedContent = index.get(key);
+    if (cachedContent == null) {
+      return null;
+    }
+    SimpleCacheSpan span = cachedContent.getSpan(position);
+    return span.isCached && span.position == position ? span : null;
+  }
+
+  /**
+   * Returns the number of bytes by which the space used by the cache decreases when a span is
+   * removed. Must be called whilst holding the lock of the key's stripe.
+   */
+  private long getRemovedSpace(CacheSpan span) {
+    return deduplicator == null ? span.length : deduplicator.onSpanRemoved(span);
+  }
+
+  /**
+   * Removes a cached span from the in-memory representation. Must be called whilst holding the
+   * lock of {@code lockStripe}.
+   * <p>
+   * The span may have already been removed or replaced by the time this method is called, since
+   * the evictor's and the listeners' view of the cache lags behind events that are yet to be
+   * delivered. In this case the call has no effect, and the pending events bring the caller's view
+   * up to date once they have been delivered.
+   *
+   * @param lockStripe The stripe to which the span's key maps.
+   * @param span The span to be removed.
+   * @param removeEmptyCachedContent Whether to remove the {@link CachedContent} from the index if
+   *     it no longer contains any spans and its key isn't locked for writing.
+   * @param evicted Whether the span is being removed by the evictor, in which case it's counted as
+   *     evicted in the {@link CacheStatistics}.
+   * @return Whether the {@link CachedContent} was removed from the index.
+   */
+  private boolean removeSpan(LockStripe lockStripe, CacheSpan span,
+      boolean removeEmptyCachedContent, boolean evicted) {
+    CachedContent cachedContent = index.get(span.key);
+    if (cachedContent == null) {
+      return false;
+    }
+    boolean leased = lockStripe.readLeaseCounts.containsKey(span.file);
+    if (!cachedContent.removeSpan(span, !leased)) {
+      return false;
+    }
+    if (spanManifest != null) {
+      spanManifest.onSpanRemoved(cachedContent.id, span);
+    }
+    if (leased) {
+      // The file is deleted when the last lease is released.
+      lockStripe.pendingDeletions.add(span.file);
+    }
+    if (evicted) {
+      statistics.onSpanEvicted(span.length);
+    }
+    index.setLastAccessTimestamp(cachedContent.id, span.position, C.TIME_UNSET);
+    index.removeSpanNonce(cachedContent.id, span.position);
+    pendingEvents.add(SpanEvent.createSpanRemoved(span, getRemovedSpace(span)));
+    if (removeEmptyCachedContent && cachedContent.isEmpty()
+        && !lockStripe.lockedSpans.containsKey(span.key)) {
+      index.removeEmpty(cachedContent.key);
+      return true;
+    }
+    return false;
   }
 
   /**
    * Scans all of the cached spans in the in-memory representation, removing any for which files
-   * no longer exist.
+   * no longer exist. Must not be called whilst holding a stripe lock.
    */
   private void removeStaleSpansAndCachedContents() throws CacheException {
-    LinkedList<CacheSpan> spansToBeRemoved = new LinkedList<>();
-    for (CachedContent cachedContent : index.getAll()) {
-      for (CacheSpan span : cachedContent.getSpans()) {
-        if (!span.file.exists()) {
-          spansToBeRemoved.add(span);
+    staleSpansDetected = false;
+    for (CachedContent cachedContent : new ArrayList<>(index.getAll())) {
+      LockStripe lockStripe = getLockStripe(cachedContent.key);
+      synchronized (lockStripe) {
+        ArrayList<CacheSpan> spansToBeRemoved = new ArrayList<>();
+        for (CacheSpan span : cachedContent.getSpans()) {
+          if (!span.file.exists()) {
+            spansToBeRemoved.add(span);
+          }
+        }
+        for (int i = 0; i < spansToBeRemoved.size(); i++) {
+          // Remove span but not CachedContent to prevent multiple index.store() calls.
+          removeSpan(lockStripe, spansToBeRemoved.get(i), false, false);
+        }
+        if (cachedContent.isEmpty() && !lockStripe.lockedSpans.containsKey(cachedContent.key)) {
+          index.removeEmpty(cachedContent.key);
         }
       }
     }
-    for (CacheSpan span : spansToBeRemoved) {
-      // Remove span but not CachedContent to prevent multiple index.store() calls.
-      removeSpan(span, false);
-    }
-    index.removeEmpty();
     index.store();
+    appendSpanManifestRecords();
+    dispatchPendingEvents();
+  }
+
+  /**
+   * Called at the end of operations that may have queued span events or detected stale spans. Must
+   * not be called whilst holding a stripe lock.
+   */
+  private void onOperationFinished() throws CacheException {
+    if (staleSpansDetected) {
+      removeStaleSpansAndCachedContents();
+    } else {
+      dispatchPendingEvents();
+    }
+  }
+
+  /**
+   * Delivers queued span events to the listeners and the evictor. Must not be called whilst
+   * holding a stripe lock.
+   * <p>
+   * Events are queued whilst holding the lock of the stripe in which they occur, and are polled and
+   * delivered one at a time whilst holding {@link #sharedLock}, so they are delivered serially and
+   * in the order in which they occurred. The evictor and listeners may call back into the cache,
+   * acquiring stripe locks whilst {@link #sharedLock} is held, which is consistent with the lock
+   * order. If they remove spans then the resulting events are delivered by the nested call.
+   */
+  private void dispatchPendingEvents() {
+    synchronized (sharedLock) {
+      SpanEvent event;
+      while ((event = pendingEvents.poll()) != null) {
+        switch (event.type) {
+          case SpanEvent.TYPE_SPAN_ADDED:
+            totalSpace += event.spaceDelta;
+            notifySpanAdded(event.span);
+            break;
+          case SpanEvent.TYPE_SPAN_REMOVED:
+            totalSpace += event.spaceDelta;
+            notifySpanRemoved(event.span);
+            break;
+          case SpanEvent.TYPE_SPAN_TOUCHED:
+            notifySpanTouched(event.span, event.newSpan);
+            break;
+          case SpanEvent.TYPE_SPACE_RECLAIMED:
+            totalSpace += event.spaceDelta;
+            break;
+          case SpanEvent.TYPE_SPANS_MERGED:
+            totalSpace += event.spaceDelta;
+            for (int i = 0; i < event.mergedSpans.size(); i++) {
+              notifySpanRemoved(event.mergedSpans.get(i));
+            }
+            notifySpanAdded(event.newSpan);
+            break;
+          case SpanEvent.TYPE_LISTENER_ADDED:
+            ArrayList<Listener> listenersForKey = listeners.get(event.key);
+            if (listenersForKey == null) {
+              listenersForKey = new ArrayList<>();
+              listeners.put(event.key, listenersForKey);
+            }
+            listenersForKey.add(event.listener);
+            break;
+          case SpanEvent.TYPE_LISTENER_REMOVED:
+            listenersForKey = listeners.get(event.key);
+            if (listenersForKey != null) {
+              listenersForKey.remove(event.listener);
+              if (listenersForKey.isEmpty()) {
+                listeners.remove(event.key);
+              }
+            }
+            break;
+          default:
+            throw new IllegalStateException();
+        }
+      }
+    }
+  }
+
+  /**
+   * Marks the current thread as calling the evictor, so that spans it removes are counted as
+   * evicted. Must be called whilst holding {@link #sharedLock}.
+   *
+   * @return The previous evicting thread, to which {@link #evictingThread} must be restored once
+   *     the evictor returns.
+   */
+  private Thread startEvicting() {
+    Thread previousEvictingThread = evictingThread;
+    evictingThread = Thread.currentThread();
+    return previousEvictingThread;
   }
 
   private void notifySpanRemoved(CacheSpan span) {
     ArrayList<Listener> keyListeners = listeners.get(span.key);
     if (keyListeners != null) {
-      for (int i = keyListeners.size() - 1; i >= 0; i--) {
-        keyListeners.get(i).onSpanRemoved(this, span);
+      // Spans that the listeners remove aren't evicted, even if the evictor caused the event.
+      Thread previousEvictingThread = evictingThread;
+      evictingThread = null;
+      try {
+        for (int i = keyListeners.size() - 1; i >= 0; i--) {
+          keyListeners.get(i).onSpanRemoved(this, span);
+        }
+      } finally {
+        evictingThread = previousEvictingThread;
       }
     }
-    evictor.onSpanRemoved(this, span);
+    Thread previousEvictingThread = startEvicting();
+    try {
+      evictor.onSpanRemoved(this, span);
+    } finally {
+      evictingThread = previousEvictingThread;
+    }
   }
 
-  private void notifySpanAdded(SimpleCacheSpan span) {
+  private void notifySpanAdded(CacheSpan span) {
     ArrayList<Listener> keyListeners = listeners.get(span.key);
     if (keyListeners != null) {
-      for (int i = keyListeners.size() - 1; i >= 0; i--) {
-        keyListeners.get(i).onSpanAdded(this, span);
+      // Spans that the listeners remove aren't evicted, even if the evictor caused the event.
+      Thread previousEvictingThread = evictingThread;
+      evictingThread = null;
+      try {
+        for (int i = keyListeners.size() - 1; i >= 0; i--) {
+          keyListeners.get(i).onSpanAdded(this, span);
+        }
+      } finally {
+        evictingThread = previousEvictingThread;
       }
     }
-    evictor.onSpanAdded(this, span);
+    Thread previousEvictingThread = startEvicting();
+    try {
+      evictor.onSpanAdded(this, span);
+    } finally {
+      evictingThread = previousEvictingThread;
+    }
   }
 
-  private void notifySpanTouched(SimpleCacheSpan oldSpan, CacheSpan newSpan) {
+  private void notifySpanTouched(CacheSpan oldSpan, CacheSpan newSpan) {
     ArrayList<Listener> keyListeners = listeners.get(oldSpan.key);
     if (keyListeners != null) {
-      for (int i = keyListeners.size() - 1; i >= 0; i--) {
-        keyListeners.get(i).onSpanTouched(this, oldSpan, newSpan);
+      // Spans that the listeners remove aren't evicted, even if the evictor caused the event.
+      Thread previousEvictingThread = evictingThread;
+      evictingThread = null;
+      try {
+        for (int i = keyListeners.size() - 1; i >= 0; i--) {
+          keyListeners.get(i).onSpanTouched(this, oldSpan, newSpan);
+        }
+      } finally {
+        evictingThread = previousEvictingThread;
       }
     }
-    evictor.onSpanTouched(this, oldSpan, newSpan);
+    Thread previousEvictingThread = startEvicting();
+    try {
+      evictor.onSpanTouched(this, oldSpan, newSpan);
+    } finally {
+      evictingThread = previousEvictingThread;
+    }
   }
 
-  @Override
-  public synchronized boolean isCached(String key, long position, long length) {
-    CachedContent cachedContent = index.get(key);
-    return cachedContent != null && cachedContent.isCached(position, length);
+  /**
+   * Holds the hole locks and the read leases of the keys that map to a stripe. The instance itself
+   * is the monitor that guards the span state of those keys.
+   */
+  /* package */ static final class LockStripe {
+
+    public final HashMap<String, CacheSpan> lockedSpans;
+    public final HashMap<File, Integer> readLeaseCounts;
+    public final HashSet<File> pendingDeletions;
+    public final HashMap<String, StartedFile> startedFiles;
+
+    public LockStripe() {
+      lockedSpans = new HashMap<>();
+      readLeaseCounts = new HashMap<>();
+      pendingDeletions = new HashSet<>();
+      startedFiles = new HashMap<>();
+    }
+
   }
 
-  @Override
-  public synchronized void setContentLength(String key, long length) throws CacheException {
-    index.setContentLength(key, length);
-    index.store();
+  /**
+   * A file that has been started by the writer holding a key's lock, and is yet to be committed.
+   */
+  private static final class StartedFile {
+
+    public final long position;
+    public final long nonce;
+
+    public StartedFile(long position, long nonce) {
+      this.position = position;
+      this.nonce = nonce;
+    }
+
   }
 
-  @Override
-  public synchronized long getContentLength(String key) {
-    return index.getContentLength(key);
+  /**
+   * A change to the cache state that is yet to be delivered to the listeners and the evictor. The
+   * change in the space used by the cache is computed when the event is queued, since it depends on
+   * whether the span's storage is shared at that time.
+   */
+  private static final class SpanEvent {
+
+    public static final int TYPE_SPAN_ADDED = 0;
+    public static final int TYPE_SPAN_REMOVED = 1;
+    public static final int TYPE_SPAN_TOUCHED = 2;
+    public static final int TYPE_LISTENER_ADDED = 3;
+    public static final int TYPE_LISTENER_REMOVED = 4;
+    public static final int TYPE_SPANS_MERGED = 5;
+    public static final int TYPE_SPACE_RECLAIMED = 6;
+
+    public final int type;
+    public final CacheSpan span;
+    public final CacheSpan newSpan;
+    public final String key;
+    public final Listener listener;
+    public final ArrayList<CacheSpan> mergedSpans;
+    public final long spaceDelta;
+
+    public static SpanEvent createSpanAdded(CacheSpan span, long addedSpace) {
+      return new SpanEvent(TYPE_SPAN_ADDED, span, null, span.key, null, null, addedSpace);
+    }
+
+    public static SpanEvent createSpanRemoved(CacheSpan span, long removedSpace) {
+      return new SpanEvent(TYPE_SPAN_REMOVED, span, null, span.key, null, null, -removedSpace);
+    }
+
+    public static SpanEvent createSpanTouched(CacheSpan oldSpan, CacheSpan newSpan) {
+      return new SpanEvent(TYPE_SPAN_TOUCHED, oldSpan, newSpan, oldSpan.key, null, null, 0);
+    }
+
+    public static SpanEvent createListenerAdded(String key, Listener listener) {
+      return new SpanEvent(TYPE_LISTENER_ADDED, null, null, key, listener, null, 0);
+    }
+
+    public static SpanEvent createListenerRemoved(String key, Listener listener) {
+      return new SpanEvent(TYPE_LISTENER_REMOVED, null, null, key, listener, null, 0);
+    }
+
+    public static SpanEvent createSpansMerged(ArrayList<CacheSpan> mergedSpans,
+        CacheSpan newSpan, long spaceDelta) {
+      return new SpanEvent(TYPE_SPANS_MERGED, null, newSpan, newSpan.key, null, mergedSpans,
+          spaceDelta);
+    }
+
+    public static SpanEvent createSpaceReclaimed(String key, long reclaimedSpace) {
+      return new SpanEvent(TYPE_SPACE_RECLAIMED, null, null, key, null, null, -reclaimedSpace);
+    }
+
+    private SpanEvent(int type, CacheSpan span, CacheSpan newSpan, String key, Listener listener,
+        ArrayList<CacheSpan> mergedSpans, long spaceDelta) {
+      this.type = type;
+      this.span = span;
+      this.newSpan = newSpan;
+      this.key = key;
+      this.listener = listener;
+      this.mergedSpans = mergedSpans;
+      this.spaceDelta = spaceDelta;
+    }
+
   }
 
 }
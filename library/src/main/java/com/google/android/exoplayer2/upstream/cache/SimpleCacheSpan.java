@@ -23,23 +23,57 @@ import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 /**
- * This class stores span metadata in filename.
+ * This class stores span metadata in filename. If the content index stores last access timestamps
+ * (see {@link CachedContentIndex#storesLastAccessTimestamps()}), the last access timestamp is
+ * omitted from the filename and is stored in the index instead, so that touching a span doesn't
+ * rename its file.
  */
 /*package*/ final class SimpleCacheSpan extends CacheSpan {
 
   private static final String SUFFIX = ".v3.exo";
+  private static final String SUFFIX_V4 = ".v4.exo";
   private static final Pattern CACHE_FILE_PATTERN_V1 = Pattern.compile(
       "^(.+)\\.(\\d+)\\.(\\d+)\\.v1\\.exo$", Pattern.DOTALL);
   private static final Pattern CACHE_FILE_PATTERN_V2 = Pattern.compile(
       "^(.+)\\.(\\d+)\\.(\\d+)\\.v2\\.exo$", Pattern.DOTALL);
   private static final Pattern CACHE_FILE_PATTERN_V3 = Pattern.compile(
       "^(\\d+)\\.(\\d+)\\.(\\d+)\\.v3\\.exo$", Pattern.DOTALL);
+  private static final Pattern CACHE_FILE_PATTERN_V4 = Pattern.compile(
+      "^(\\d+)\\.(\\d+)\\.v4\\.exo$", Pattern.DOTALL);
 
   public static File getCacheFile(File cacheDir, int id, long position,
       long lastAccessTimestamp) {
     return new File(cacheDir, id + "." + position + "." + lastAccessTimestamp + SUFFIX);
   }
 
+  /**
+   * Returns the file for a span whose last access timestamp is stored in the content index.
+   *
+   * @param cacheDir The cache directory.
+   * @param id The cache file id.
+   * @param position The position of the span in the original stream.
+   * @return The cache file.
+   */
+  public static File getCacheFile(File cacheDir, int id, long position) {
+    return new File(cacheDir, id + "." + position + SUFFIX_V4);
+  }
+
+  /**
+   * Returns the file for a span, in the format used by the given index.
+   *
+   * @param cacheDir The cache directory.
+   * @param index Cached content index.
+   * @param id The cache file id.
+   * @param position The position of the span in the original stream.
+   * @param lastAccessTimestamp The last access timestamp of the span.
+   * @return The cache file.
+   */
+  public static File getCacheFile(File cacheDir, CachedContentIndex index, int id, long position,
+      long lastAccessTimestamp) {
+    return index.storesLastAccessTimestamps() ? getCacheFile(cacheDir, id, position)
+        : getCacheFile(cacheDir, id, position, lastAccessTimestamp);
+  }
+
   public static SimpleCacheSpan createLookup(String key, long position) {
     return new SimpleCacheSpan(key, position, C.LENGTH_UNSET, C.TIME_UNSET, null);
   }
@@ -62,7 +96,8 @@ import java.util.regex.Pattern;
    */
   public static SimpleCacheSpan createCacheEntry(File file, CachedContentIndex index) {
     String name = file.getName();
-    if (!name.endsWith(SUFFIX)) {
+    boolean storesLastAccessTimestamps = index.storesLastAccessTimestamps();
+    if (!name.endsWith(storesLastAccessTimestamps ? SUFFIX_V4 : SUFFIX)) {
       file = upgradeFile(file, index);
       if (file == null) {
         return null;
@@ -70,39 +105,112 @@ import java.util.regex.Pattern;
       name = file.getName();
     }
 
-    Matcher matcher = CACHE_FILE_PATTERN_V3.matcher(name);
+    Matcher matcher = (storesLastAccessTimestamps ? CACHE_FILE_PATTERN_V4 : CACHE_FILE_PATTERN_V3)
+        .matcher(name);
     if (!matcher.matches()) {
       return null;
     }
     long length = file.length();
     int id = Integer.parseInt(matcher.group(1));
     String key = index.getKeyForId(id);
-    return key == null ? null : new SimpleCacheSpan(key, Long.parseLong(matcher.group(2)), length,
-        Long.parseLong(matcher.group(3)), file);
+    if (key == null) {
+      return null;
+    }
+    long position = Long.parseLong(matcher.group(2));
+    long lastAccessTimestamp;
+    if (storesLastAccessTimestamps) {
+      lastAccessTimestamp = index.getLastAccessTimestamp(id, position);
+      if (lastAccessTimestamp == C.TIME_UNSET) {
+        // The timestamp wasn't persisted, or this is a newly committed file.
+        lastAccessTimestamp = file.lastModified();
+      }
+    } else {
+      lastAccessTimestamp = Long.parseLong(matcher.group(3));
+    }
+    return new SimpleCacheSpan(key, position, length, lastAccessTimestamp, file);
   }
 
+  /**
+   * Creates a cache span for a cache file whose metadata is already known, without accessing the
+   * file system.
+   *
+   * @param cacheDir The cache directory.
+   * @param index Cached content index.
+   * @param key The cache key.
+   * @param id The cache file id.
+   * @param position The position of the span in the original stream.
+   * @param length The length of the span.
+   * @param lastAccessTimestamp The last access timestamp of the span. If the index stores a more
+   *     recent timestamp for the span, then the stored timestamp is used instead.
+   * @return The span.
+   */
+  public static SimpleCacheSpan createCacheEntry(File cacheDir, CachedContentIndex index,
+      String key, int id, long position, long length, long lastAccessTimestamp) {
+    if (index.storesLastAccessTimestamps()) {
+      lastAccessTimestamp = Math.max(lastAccessTimestamp,
+          index.getLastAccessTimestamp(id, position));
+    }
+    return new SimpleCacheSpan(key, position, length, lastAccessTimestamp,
+        getCacheFile(cacheDir, index, id, position, lastAccessTimestamp));
+  }
+
+  /**
+   * Renames a cache file in an older format, or in the format that isn't used by the index, to
+   * the format used by the index. If the index stores last access timestamps, then the timestamp
+   * encoded in a renamed file's name is transferred to the index.
+   *
+   * @return The renamed file, or null if the file isn't a cache file or couldn't be renamed.
+   */
   private static File upgradeFile(File file, CachedContentIndex index) {
-    String key;
     String filename = file.getName();
-    Matcher matcher = CACHE_FILE_PATTERN_V2.matcher(filename);
+    int id;
+    long position;
+    long lastAccessTimestamp;
+    Matcher matcher = CACHE_FILE_PATTERN_V3.matcher(filename);
     if (matcher.matches()) {
-      key = Util.unescapeFileName(matcher.group(1));
-      if (key == null) {
+      // Only reached if the index stores last access timestamps.
+      id = Integer.parseInt(matcher.group(1));
+      position = Long.parseLong(matcher.group(2));
+      lastAccessTimestamp = Long.parseLong(matcher.group(3));
+      if (index.getKeyForId(id) == null) {
         return null;
       }
-    } else {
-      matcher = CACHE_FILE_PATTERN_V1.matcher(filename);
-      if (!matcher.matches()) {
+    } else if ((matcher = CACHE_FILE_PATTERN_V4.matcher(filename)).matches()) {
+      // Only reached if the index doesn't store last access timestamps.
+      id = Integer.parseInt(matcher.group(1));
+      position = Long.parseLong(matcher.group(2));
+      lastAccessTimestamp = file.lastModified();
+      if (index.getKeyForId(id) == null) {
         return null;
       }
-      key = matcher.group(1); // Keys were not escaped in version 1.
+    } else {
+      String key;
+      matcher = CACHE_FILE_PATTERN_V2.matcher(filename);
+      if (matcher.matches()) {
+        key = Util.unescapeFileName(matcher.group(1));
+        if (key == null) {
+          return null;
+        }
+      } else {
+        matcher = CACHE_FILE_PATTERN_V1.matcher(filename);
+        if (!matcher.matches()) {
+          return null;
+        }
+        key = matcher.group(1); // Keys were not escaped in version 1.
+      }
+      id = index.assignIdForKey(key);
+      position = Long.parseLong(matcher.group(2));
+      lastAccessTimestamp = Long.parseLong(matcher.group(3));
     }
 
-    File newCacheFile = getCacheFile(file.getParentFile(), index.assignIdForKey(key),
-        Long.parseLong(matcher.group(2)), Long.parseLong(matcher.group(3)));
+    File newCacheFile = getCacheFile(file.getParentFile(), index, id, position,
+        lastAccessTimestamp);
     if (!file.renameTo(newCacheFile)) {
       return null;
     }
+    if (index.storesLastAccessTimestamps()) {
+      index.setLastAccessTimestamp(id, position, lastAccessTimestamp);
+    }
     return newCacheFile;
   }
 
@@ -126,4 +234,17 @@ import java.util.regex.Pattern;
     return new SimpleCacheSpan(key, position, length, now, newCacheFile);
   }
 
+  /**
+   * Returns a copy of this CacheSpan with the given last access time stamp, which refers to the
+   * same cache file.
+   *
+   * @param lastAccessTimestamp The last access time stamp of the copy.
+   * @return A {@link SimpleCacheSpan} with the given last access time stamp.
+   * @throws IllegalStateException If called on a non-cached span (i.e. {@link #isCached} is false).
+   */
+  public SimpleCacheSpan copyWithLastAccessTime(long lastAccessTimestamp) {
+    Assertions.checkState(isCached);
+    return new SimpleCacheSpan(key, position, length, lastAccessTimestamp, file);
+  }
+
 }
@@ -0,0 +1,373 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.exoplayer2.upstream.cache;
+
+import android.annotation.TargetApi;
+import android.system.ErrnoException;
+import android.system.Os;
+import com.google.android.exoplayer2.util.Util;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * Stores the committed spans of a {@link SimpleCache} whose content is identical only once, by
+ * replacing the file of a committed span with a hard link to the file of an existing span with the
+ * same SHA-256 digest. Span files that are hard links to the same data are tracked as a single
+ * reference counted storage, identified by the inode of the files, and the storage is only
+ * accounted for in the cache space whilst at least one of its spans is cached.
+ * <p>
+ * Spans are deduplicated after they've been committed, in two steps. The digests are computed by
+ * {@link #findDuplicate(CacheSpan)} without holding any of the cache's locks, and the file is then
+ * replaced by {@link #linkDuplicate(SimpleCacheSpan, File)} whilst holding the lock of the span's
+ * key. Since the content is identical, readers of the span read the same data whether they opened
+ * the file before or after it was replaced.
+ * <p>
+ * Since hard links are created and inspected with {@link Os}, deduplication requires API level
+ * 21. Digests are only computed for the storage of existing spans when a span of the same length
+ * is deduplicated, and are retained for subsequent spans.
+ * <p>
+ * All methods are thread-safe. The lock of the instance is never held whilst performing file
+ * system operations other than {@link Os#stat(String)}, so it can be acquired whilst holding the
+ * cache's other locks.
+ */
+@TargetApi(21)
+/*package*/ final class SpanDeduplicator {
+
+  private static final String LINK_FILE_SUFFIX = ".link.tmp";
+  private static final int BUFFER_SIZE = 16 * 1024;
+
+  // Guarded by this.
+  private final HashMap<Long, Storage> storages;
+  private final HashMap<Long, ArrayList<Storage>> storagesByLength;
+  private final HashMap<SpanId, Storage> spanStorages;
+  private long nextUnknownInode;
+  private long logicalBytes;
+  private long physicalBytes;
+
+  /**
+   * Returns whether deduplication is supported on the device.
+   */
+  public static boolean isSupported() {
+    return Util.SDK_INT >= 21;
+  }
+
+  public SpanDeduplicator() {
+    storages = new HashMap<>();
+    storagesByLength = new HashMap<>();
+    spanStorages = new HashMap<>();
+    nextUnknownInode = -1;
+  }
+
+  /**
+   * Finds the file of a span whose content is identical to that of a committed span, but which
+   * doesn't share its storage. Must not be called whilst holding the lock of the span's key, since
+   * files are read.
+   *
+   * @param span The committed span.
+   * @return The file of a span with identical content, to be passed to
+   *     {@link #linkDuplicate(SimpleCacheSpan, File)}, or null if there isn't one.
+   */
+  public File findDuplicate(CacheSpan span) {
+    File file = span.file;
+    long inode = getInode(file);
+    Storage spanStorage;
+    byte[] digest;
+    synchronized (this) {
+      spanStorage = storages.get(inode);
+      if (spanStorage == null || spanStorage.length == 0) {
+        return null;
+      }
+      digest = spanStorage.digest;
+    }
+    if (digest == null) {
+      digest = computeDigest(file);
+      if (digest == null || getInode(file) != inode) {
+        // The file was removed or replaced whilst it was being read.
+        return null;
+      }
+      synchronized (this) {
+        spanStorage.digest = digest;
+      }
+    }
+    ArrayList<Storage> candidates = new ArrayList<>();
+    ArrayList<File> candidateFiles = new ArrayList<>();
+    File matchFile = null;
+    synchronized (this) {
+      ArrayList<Storage> storagesWithLength = storagesByLength.get(spanStorage.length);
+      for (int i = 0; storagesWithLength != null && i < storagesWithLength.size(); i++) {
+        Storage storage = storagesWithLength.get(i);
+        if (storage == spanStorage) {
+          continue;
+        } else if (storage.digest == null) {
+          candidates.add(storage);
+          candidateFiles.add(storage.files.get(0));
+        } else if (Arrays.equals(storage.digest, digest)) {
+          matchFile = storage.files.get(0);
+          break;
+        }
+      }
+    }
+    // Digests of existing storages are computed lazily, only once a span of the same length is
+    // deduplicated.
+    for (int i = 0; matchFile == null && i < candidates.size(); i++) {
+      Storage candidate = candidates.get(i);
+      File candidateFile = candidateFiles.get(i);
+      byte[] candidateDigest = computeDigest(candidateFile);
+      if (candidateDigest == null || getInode(candidateFile) != candidate.inode) {
+        // The file was removed or replaced whilst it was being read.
+        continue;
+      }
+      synchronized (this) {
+        candidate.digest = candidateDigest;
+      }
+      if (Arrays.equals(candidateDigest, digest)) {
+        matchFile = candidateFile;
+      }
+    }
+    return matchFile;
+  }
+
+  /**
+   * Replaces the file of a span with a hard link to a file with identical content, and moves the
+   * span to the storage of that file. Must be called whilst holding the lock of the span's key.
+   *
+   * @param span The span, which must be cached.
+   * @param duplicateFile A file returned by {@link #findDuplicate(CacheSpan)} for the span.
+   * @return The number of bytes by which the space used by the cache has decreased.
+   */
+  public long linkDuplicate(SimpleCacheSpan span, File duplicateFile) {
+    long duplicateInode = getInode(duplicateFile);
+    synchronized (this) {
+      Storage spanStorage = spanStorages.get(new SpanId(span));
+      if (duplicateInode == -1 || spanStorage == null || spanStorage.inode == duplicateInode) {
+        return 0;
+      }
+    }
+    if (!link(duplicateFile, duplicateInode, span.file)) {
+      return 0;
+    }
+    synchronized (this) {
+      // The span is moved to the storage of the file to which it's now linked.
+      return onSpanRemoved(span) - onSpanAdded(span);
+    }
+  }
+
+  /**
+   * Called when a span is added to the cache. Must be called whilst holding the lock of the span's
+   * key.
+   *
+   * @param span The added span.
+   * @return The number of bytes by which the space used by the cache has increased.
+   */
+  public synchronized long onSpanAdded(SimpleCacheSpan span) {
+    long inode = getInode(span.file);
+    if (inode == -1) {
+      // The span is accounted for as unshared storage.
+      inode = nextUnknownInode--;
+    }
+    Storage storage = storages.get(inode);
+    long addedBytes = 0;
+    if (storage == null) {
+      storage = new Storage(inode, span.length);
+      storages.put(inode, storage);
+      ArrayList<Storage> storagesWithLength = storagesByLength.get(span.length);
+      if (storagesWithLength == null) {
+        storagesWithLength = new ArrayList<>();
+        storagesByLength.put(span.length, storagesWithLength);
+      }
+      storagesWithLength.add(storage);
+      addedBytes = span.length;
+    }
+    storage.files.add(span.file);
+    spanStorages.put(new SpanId(span), storage);
+    logicalBytes += span.length;
+    physicalBytes += addedBytes;
+    return addedBytes;
+  }
+
+  /**
+   * Called when a span is removed from the cache. Must be called whilst holding the lock of the
+   * span's key.
+   *
+   * @param span The removed span.
+   * @return The number of bytes by which the space used by the cache has decreased.
+   */
+  public synchronized long onSpanRemoved(CacheSpan span) {
+    Storage storage = spanStorages.remove(new SpanId(span));
+    if (storage == null) {
+      return 0;
+    }
+    storage.files.remove(span.file);
+    logicalBytes -= span.length;
+    if (!storage.files.isEmpty()) {
+      return 0;
+    }
+    storages.remove(storage.inode);
+    ArrayList<Storage> storagesWithLength = storagesByLength.get(storage.length);
+    storagesWithLength.remove(storage);
+    if (storagesWithLength.isEmpty()) {
+      storagesByLength.remove(storage.length);
+    }
+    physicalBytes -= storage.length;
+    return storage.length;
+  }
+
+  /**
+   * Called when a span is replaced by a touched copy, whose file may have been renamed. Must be
+   * called whilst holding the lock of the span's key.
+   *
+   * @param oldSpan The span before it was touched.
+   * @param newSpan The touched span.
+   */
+  public synchronized void onSpanTouched(CacheSpan oldSpan, CacheSpan newSpan) {
+    Storage storage = spanStorages.get(new SpanId(oldSpan));
+    if (storage != null && !oldSpan.file.equals(newSpan.file)) {
+      storage.files.remove(oldSpan.file);
+      storage.files.add(newSpan.file);
+    }
+  }
+
+  /**
+   * Returns whether the storage of a span is shared with other spans.
+   */
+  public synchronized boolean isShared(CacheSpan span) {
+    Storage storage = spanStorages.get(new SpanId(span));
+    return storage != null && storage.files.size() > 1;
+  }
+
+  /**
+   * Returns the number of bytes that would be used by the cached spans if they weren't
+   * deduplicated, minus the number of bytes that they actually use.
+   */
+  public synchronized long getDeduplicatedBytes() {
+    return logicalBytes - physicalBytes;
+  }
+
+  /**
+   * Links {@code file} to the data of {@code sourceFile}, by creating a hard link next to
+   * {@code file} and renaming it over {@code file}.
+   *
+   * @return Whether {@code file} was linked.
+   */
+  private static boolean link(File sourceFile, long sourceInode, File file) {
+    File linkFile = new File(file.getPath() + LINK_FILE_SUFFIX);
+    try {
+      Os.link(sourceFile.getPath(), linkFile.getPath());
+    } catch (ErrnoException e) {
+      // The source file was removed or renamed in the meantime. The span isn't deduplicated.
+      return false;
+    }
+    if (getInode(linkFile) != sourceInode || !linkFile.renameTo(file)) {
+      linkFile.delete();
+      return false;
+    }
+    return true;
+  }
+
+  /**
+   * Returns the inode of a file, or -1 if the file doesn't exist.
+   */
+  private static long getInode(File file) {
+    try {
+      return Os.stat(file.getPath()).st_ino;
+    } catch (ErrnoException e) {
+      return -1;
+    }
+  }
+
+  /**
+   * Returns the SHA-256 digest of the content of a file, or null if it couldn't be read.
+   */
+  private static byte[] computeDigest(File file) {
+    MessageDigest messageDigest;
+    try {
+      messageDigest = MessageDigest.getInstance("SHA-256");
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException(e); // Should never happen.
+    }
+    FileInputStream inputStream = null;
+    try {
+      inputStream = new FileInputStream(file);
+      byte[] buffer = new byte[BUFFER_SIZE];
+      int bytesRead;
+      while ((bytesRead = inputStream.read(buffer)) != -1) {
+        messageDigest.update(buffer, 0, bytesRead);
+      }
+      return messageDigest.digest();
+    } catch (IOException e) {
+      return null;
+    } finally {
+      Util.closeQuietly(inputStream);
+    }
+  }
+
+  /**
+   * The data of one or more span files that are hard links to it.
+   */
+  private static final class Storage {
+
+    public final long inode;
+    public final long length;
+    public final ArrayList<File> files;
+    public byte[] digest;
+
+    public Storage(long inode, long length) {
+      this.inode = inode;
+      this.length = length;
+      files = new ArrayList<>();
+    }
+
+  }
+
+  /**
+   * Identifies a span by its key and position.
+   */
+  private static final class SpanId {
+
+    private final String key;
+    private final long position;
+
+    public SpanId(CacheSpan span) {
+      key = span.key;
+      position = span.position;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+      if (this == obj) {
+        return true;
+      }
+      if (obj == null || getClass() != obj.getClass()) {
+        return false;
+      }
+      SpanId other = (SpanId) obj;
+      return position == other.position && key.equals(other.key);
+    }
+
+    @Override
+    public int hashCode() {
+      return 31 * key.hashCode() + (int) (position ^ (position >>> 32));
+    }
+
+  }
+
+}
@@ -0,0 +1,260 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.exoplayer2.upstream.cache;
+
+import com.google.android.exoplayer2.upstream.cache.Cache.CacheException;
+import com.google.android.exoplayer2.util.Assertions;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Evicts cache files using the W-TinyLFU policy, which takes both the recency and the frequency of
+ * accesses into account.
+ * <p>
+ * Newly added spans enter a small admission window, ordered by recency. When the window is full,
+ * its least recently used span becomes a candidate for admission to the main region. If the cache
+ * needs space, the candidate is compared with the least recently used span of the main region, and
+ * whichever has been accessed less frequently is evicted. Access frequencies are estimated by a
+ * compact count-min sketch, which also records misses for spans that aren't cached. The main region
+ * is segmented into a probation segment, which holds newly admitted spans, and a protected segment,
+ * which holds spans that have been accessed again since they were admitted. A one-off sequential
+ * scan therefore passes through the window and the probation segment without displacing spans that
+ * are accessed repeatedly.
+ * <p>
+ * The policy is size-aware: a candidate must beat each of the spans that are evicted to make room
+ * for it, so a large, infrequently accessed span can't displace many small, frequently accessed
+ * spans. Since admission is decided once the length of a span is known, space isn't reserved when a
+ * writer starts writing, and the cache may temporarily exceed its maximum size by the length of the
+ * spans that are being written.
+ */
+public final class WindowTinyLfuCacheEvictor implements CacheEvictor {
+
+  /**
+   * The default percentage of the cache size that is used for the admission window.
+   */
+  public static final int DEFAULT_WINDOW_PERCENTAGE = 1;
+  /**
+   * The default percentage of the main region that is used for the protected segment.
+   */
+  public static final int DEFAULT_PROTECTED_PERCENTAGE = 80;
+  /**
+   * The default expected span length, used to size the frequency sketch.
+   */
+  public static final long DEFAULT_EXPECTED_SPAN_LENGTH = 256 * 1024;
+
+  private static final int MAX_SKETCH_SIZE = 1 << 20;
+
+  private final long maxBytes;
+  private final long maxWindowBytes;
+  private final long maxProtectedBytes;
+  private final FrequencySketch sketch;
+  private final LinkedHashMap<SpanId, CacheSpan> window;
+  private final LinkedHashMap<SpanId, CacheSpan> probation;
+  private final LinkedHashMap<SpanId, CacheSpan> protectedSegment;
+
+  private long windowSize;
+  private long protectedSize;
+
+  /**
+   * @param maxBytes The maximum size of the cache, in bytes.
+   */
+  public WindowTinyLfuCacheEvictor(long maxBytes) {
+    this(maxBytes, DEFAULT_WINDOW_PERCENTAGE, DEFAULT_PROTECTED_PERCENTAGE,
+        DEFAULT_EXPECTED_SPAN_LENGTH);
+  }
+
+  /**
+   * @param maxBytes The maximum size of the cache, in bytes.
+   * @param windowPercentage The percentage of the cache size that is used for the admission
+   *     window.
+   * @param protectedPercentage The percentage of the main region that is used for the protected
+   *     segment.
+   * @param expectedSpanLength The expected length of a span, used to size the frequency sketch.
+   */
+  public WindowTinyLfuCacheEvictor(long maxBytes, int windowPercentage, int protectedPercentage,
+      long expectedSpanLength) {
+    Assertions.checkArgument(windowPercentage >= 0 && windowPercentage <= 100);
+    Assertions.checkArgument(protectedPercentage >= 0 && protectedPercentage <= 100);
+    Assertions.checkArgument(expectedSpanLength > 0);
+    this.maxBytes = maxBytes;
+    maxWindowBytes = maxBytes * windowPercentage / 100;
+    maxProtectedBytes = (maxBytes - maxWindowBytes) * protectedPercentage / 100;
+    sketch = new FrequencySketch((int) Math.min(maxBytes / expectedSpanLength, MAX_SKETCH_SIZE));
+    window = new LinkedHashMap<>();
+    probation = new LinkedHashMap<>();
+    protectedSegment = new LinkedHashMap<>();
+  }
+
+  @Override
+  public void onCacheInitialized() {
+    // Do nothing.
+  }
+
+  @Override
+  public void onStartFile(Cache cache, String key, long position, long maxLength) {
+    // A write follows a miss, which counts as an access.
+    sketch.increment(SpanId.hashCode(key, position));
+  }
+
+  @Override
+  public void onSpanAdded(Cache cache, CacheSpan span) {
+    SpanId spanId = new SpanId(span);
+    remove(spanId);
+    window.put(spanId, span);
+    windowSize += span.length;
+    evictCache(cache);
+  }
+
+  @Override
+  public void onSpanRemoved(Cache cache, CacheSpan span) {
+    remove(new SpanId(span));
+  }
+
+  @Override
+  public void onSpanTouched(Cache cache, CacheSpan oldSpan, CacheSpan newSpan) {
+    SpanId spanId = new SpanId(newSpan);
+    sketch.increment(spanId.hashCode());
+    if (window.remove(spanId) != null) {
+      window.put(spanId, newSpan);
+    } else if (probation.remove(spanId) != null) {
+      // A span that is accessed again whilst on probation is promoted.
+      protectedSegment.put(spanId, newSpan);
+      protectedSize += newSpan.length;
+      while (protectedSize > maxProtectedBytes && protectedSegment.size() > 1) {
+        Iterator<Map.Entry<SpanId, CacheSpan>> iterator =
+            protectedSegment.entrySet().iterator();
+        Map.Entry<SpanId, CacheSpan> demoted = iterator.next();
+        iterator.remove();
+        protectedSize -= demoted.getValue().length;
+        probation.put(demoted.getKey(), demoted.getValue());
+      }
+    } else if (protectedSegment.remove(spanId) != null) {
+      protectedSegment.put(spanId, newSpan);
+    }
+  }
+
+  /**
+   * Evicts spans until the cache is within its maximum size, then admits the spans that have
+   * overflowed the window into the main region. The size of the cache is the space that it reports,
+   * which may be less than the total length of its spans if their storage is shared.
+   */
+  private void evictCache(Cache cache) {
+    while (cache.getCacheSpace() > maxBytes) {
+      CacheSpan candidate = windowSize > maxWindowBytes ? first(window) : null;
+      CacheSpan victim = first(probation);
+      if (victim == null) {
+        victim = first(protectedSegment);
+      }
+      CacheSpan spanToRemove;
+      if (candidate == null) {
+        spanToRemove = victim != null ? victim : first(window);
+      } else if (victim == null) {
+        spanToRemove = candidate;
+      } else {
+        spanToRemove = frequency(candidate) > frequency(victim) ? victim : candidate;
+      }
+      if (spanToRemove == null) {
+        // Should never happen.
+        break;
+      }
+      try {
+        cache.removeSpan(spanToRemove);
+      } catch (CacheException e) {
+        // do nothing.
+      }
+      // The removal is normally delivered re-entrantly, so this has no effect. If the cache didn't
+      // hold the span, then it's forgotten so that eviction makes progress.
+      SpanId spanId = new SpanId(spanToRemove);
+      if (get(spanId) == spanToRemove) {
+        remove(spanId);
+      }
+    }
+    while (windowSize > maxWindowBytes && !window.isEmpty()) {
+      Iterator<Map.Entry<SpanId, CacheSpan>> iterator = window.entrySet().iterator();
+      Map.Entry<SpanId, CacheSpan> admitted = iterator.next();
+      iterator.remove();
+      windowSize -= admitted.getValue().length;
+      probation.put(admitted.getKey(), admitted.getValue());
+    }
+  }
+
+  private int frequency(CacheSpan span) {
+    return sketch.frequency(SpanId.hashCode(span.key, span.position));
+  }
+
+  private CacheSpan get(SpanId spanId) {
+    CacheSpan span = window.get(spanId);
+    if (span == null) {
+      span = probation.get(spanId);
+    }
+    if (span == null) {
+      span = protectedSegment.get(spanId);
+    }
+    return span;
+  }
+
+  private void remove(SpanId spanId) {
+    CacheSpan span = window.remove(spanId);
+    if (span != null) {
+      windowSize -= span.length;
+    } else if ((span = probation.remove(spanId)) == null
+        && (span = protectedSegment.remove(spanId)) != null) {
+      protectedSize -= span.length;
+    }
+  }
+
+  private static CacheSpan first(LinkedHashMap<SpanId, CacheSpan> segment) {
+    return segment.isEmpty() ? null : segment.values().iterator().next();
+  }
+
+  /**
+   * Identifies a span by its key and position, which don't change when the span is touched.
+   */
+  private static final class SpanId {
+
+    private final String key;
+    private final long position;
+
+    public SpanId(CacheSpan span) {
+      this.key = span.key;
+      this.position = span.position;
+    }
+
+    public static int hashCode(String key, long position) {
+      return 31 * key.hashCode() + (int) (position ^ (position >>> 32));
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+      if (this == obj) {
+        return true;
+      }
+      if (obj == null || getClass() != obj.getClass()) {
+        return false;
+      }
+      SpanId other = (SpanId) obj;
+      return position == other.position && key.equals(other.key);
+    }
+
+    @Override
+    public int hashCode() {
+      return hashCode(key, position);
+    }
+
+  }
+
+}
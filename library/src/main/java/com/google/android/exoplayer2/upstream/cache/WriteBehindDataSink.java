@@ -0,0 +1,313 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.exoplayer2.upstream.cache;
+
+import android.support.annotation.IntDef;
+import com.google.android.exoplayer2.upstream.DataSink;
+import com.google.android.exoplayer2.upstream.DataSpec;
+import com.google.android.exoplayer2.util.Assertions;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.util.ArrayDeque;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A {@link DataSink} that writes to another {@link DataSink}, typically a {@link CacheDataSink},
+ * on a dedicated writer thread. Data passed to {@link #write(byte[], int, int)} is copied into a
+ * bounded queue, so that slow writes to the wrapped sink don't delay the calling thread.
+ * <p>
+ * The writer thread is reused for each time the sink is opened. It's terminated once it's been
+ * idle for {@link #KEEP_ALIVE_MS}, and created again when required.
+ * <p>
+ * {@link #close()} blocks until all queued data has been written and the wrapped sink has been
+ * closed. Errors that occur on the writer thread are thrown from the next call to
+ * {@link #write(byte[], int, int)} or {@link #close()}.
+ */
+public final class WriteBehindDataSink implements DataSink {
+
+  /**
+   * Policies for handling writes when the queue is full.
+   */
+  @Retention(RetentionPolicy.SOURCE)
+  @IntDef({BACK_PRESSURE_POLICY_BLOCK, BACK_PRESSURE_POLICY_DROP})
+  public @interface BackPressurePolicy {}
+  /**
+   * Writes block until there's enough space in the queue.
+   */
+  public static final int BACK_PRESSURE_POLICY_BLOCK = 0;
+  /**
+   * If a write doesn't fit in the queue then it's dropped, along with all subsequent writes until
+   * the sink is closed. Data queued before the first dropped write is still written, after which
+   * the wrapped sink is closed early. For a {@link CacheDataSink} this commits the data that was
+   * written and releases the span being written, leaving the remainder uncached.
+   */
+  public static final int BACK_PRESSURE_POLICY_DROP = 1;
+
+  /**
+   * The default maximum number of bytes that can be queued.
+   */
+  public static final int DEFAULT_MAX_QUEUED_BYTES = 1024 * 1024;
+
+  /**
+   * The time for which an idle writer thread is kept alive, in milliseconds.
+   */
+  public static final long KEEP_ALIVE_MS = 10000;
+
+  private static final int CHUNK_SIZE = 32 * 1024;
+
+  private final DataSink dataSink;
+  private final int maxQueuedBytes;
+  private final int backPressurePolicy;
+  private final int chunkSize;
+  private final ArrayDeque<Chunk> queue;
+  private final ArrayDeque<Chunk> recycledChunks;
+  private final ThreadPoolExecutor executor;
+
+  // Guarded by this.
+  private boolean writing;
+  private int queuedBytes;
+  private int peakQueuedBytes;
+  private long droppedBytes;
+  private boolean dropping;
+  private boolean closeRequested;
+  private IOException writerException;
+
+  private boolean opened;
+
+  /**
+   * Constructs an instance with {@link #DEFAULT_MAX_QUEUED_BYTES} that blocks when the queue is
+   * full.
+   *
+   * @param dataSink The sink to which data should be written.
+   */
+  public WriteBehindDataSink(DataSink dataSink) {
+    this(dataSink, DEFAULT_MAX_QUEUED_BYTES, BACK_PRESSURE_POLICY_BLOCK);
+  }
+
+  /**
+   * @param dataSink The sink to which data should be written.
+   * @param maxQueuedBytes The maximum number of bytes that can be queued.
+   * @param backPressurePolicy The policy for handling writes when the queue is full.
+   */
+  public WriteBehindDataSink(DataSink dataSink, int maxQueuedBytes,
+      @BackPressurePolicy int backPressurePolicy) {
+    Assertions.checkArgument(maxQueuedBytes > 0);
+    this.dataSink = Assertions.checkNotNull(dataSink);
+    this.maxQueuedBytes = maxQueuedBytes;
+    this.backPressurePolicy = backPressurePolicy;
+    chunkSize = Math.min(CHUNK_SIZE, maxQueuedBytes);
+    queue = new ArrayDeque<>();
+    recycledChunks = new ArrayDeque<>();
+    executor = new ThreadPoolExecutor(1, 1, KEEP_ALIVE_MS, TimeUnit.MILLISECONDS,
+        new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+          @Override
+          public Thread newThread(Runnable r) {
+            return new Thread(r, "WriteBehindDataSink.write()");
+          }
+        });
+    executor.allowCoreThreadTimeOut(true);
+  }
+
+  /**
+   * Returns the number of bytes currently queued for writing.
+   */
+  public synchronized int getQueuedBytes() {
+    return queuedBytes;
+  }
+
+  /**
+   * Returns the largest number of bytes that have been queued for writing at any one time.
+   */
+  public synchronized int getPeakQueuedBytes() {
+    return peakQueuedBytes;
+  }
+
+  /**
+   * Returns the total number of bytes that have been dropped due to
+   * {@link #BACK_PRESSURE_POLICY_DROP}.
+   */
+  public synchronized long getDroppedBytes() {
+    return droppedBytes;
+  }
+
+  @Override
+  public void open(final DataSpec dataSpec) throws IOException {
+    Assertions.checkState(!opened);
+    synchronized (this) {
+      dropping = false;
+      closeRequested = false;
+      writerException = null;
+      writing = true;
+    }
+    opened = true;
+    executor.execute(new Runnable() {
+      @Override
+      public void run() {
+        runWriter(dataSpec);
+      }
+    });
+  }
+
+  @Override
+  public void write(byte[] buffer, int offset, int length) throws IOException {
+    int bytesQueued = 0;
+    synchronized (this) {
+      while (bytesQueued < length) {
+        if (writerException != null) {
+          throw writerException;
+        }
+        if (dropping) {
+          droppedBytes += length - bytesQueued;
+          return;
+        }
+        int bytesToQueue = Math.min(length - bytesQueued, chunkSize);
+        if (queuedBytes + bytesToQueue > maxQueuedBytes) {
+          if (backPressurePolicy == BACK_PRESSURE_POLICY_DROP) {
+            dropping = true;
+            notifyAll();
+            continue;
+          }
+          try {
+            wait();
+          } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+          }
+          continue;
+        }
+        Chunk chunk = recycledChunks.isEmpty() ? new Chunk(chunkSize) : recycledChunks.pop();
+        System.arraycopy(buffer, offset + bytesQueued, chunk.data, 0, bytesToQueue);
+        chunk.length = bytesToQueue;
+        queue.add(chunk);
+        queuedBytes += bytesToQueue;
+        peakQueuedBytes = Math.max(peakQueuedBytes, queuedBytes);
+        bytesQueued += bytesToQueue;
+        notifyAll();
+      }
+    }
+  }
+
+  @Override
+  public void close() throws IOException {
+    if (!opened) {
+      return;
+    }
+    opened = false;
+    // The wrapped sink may be writing to a span that's locked by the caller, so wait for it to be
+    // closed even if interrupted.
+    boolean interrupted = false;
+    IOException exception;
+    synchronized (this) {
+      closeRequested = true;
+      notifyAll();
+      while (writing) {
+        try {
+          wait();
+        } catch (InterruptedException e) {
+          interrupted = true;
+        }
+      }
+      exception = writerException;
+      writerException = null;
+    }
+    if (interrupted) {
+      Thread.currentThread().interrupt();
+    }
+    if (exception != null) {
+      throw exception;
+    }
+  }
+
+  private void runWriter(DataSpec dataSpec) {
+    boolean opened = false;
+    try {
+      dataSink.open(dataSpec);
+      opened = true;
+      Chunk chunk;
+      while ((chunk = takeChunk()) != null) {
+        try {
+          dataSink.write(chunk.data, 0, chunk.length);
+        } finally {
+          recycleChunk(chunk);
+        }
+      }
+    } catch (IOException e) {
+      onWriterException(e);
+    } catch (InterruptedException e) {
+      onWriterException(new InterruptedIOException());
+    } finally {
+      if (opened) {
+        try {
+          dataSink.close();
+        } catch (IOException e) {
+          onWriterException(e);
+        }
+      }
+      synchronized (this) {
+        writing = false;
+        notifyAll();
+      }
+    }
+  }
+
+  /**
+   * Returns the next queued chunk, or null if the sink should be closed because all data has been
+   * written or because writes are being dropped.
+   */
+  private synchronized Chunk takeChunk() throws InterruptedException {
+    while (queue.isEmpty()) {
+      if (closeRequested || dropping) {
+        return null;
+      }
+      wait();
+    }
+    return queue.poll();
+  }
+
+  private synchronized void recycleChunk(Chunk chunk) {
+    queuedBytes -= chunk.length;
+    recycledChunks.push(chunk);
+    notifyAll();
+  }
+
+  private synchronized void onWriterException(IOException e) {
+    if (writerException == null) {
+      writerException = e;
+    }
+    // Discard queued data and unblock the writing thread.
+    while (!queue.isEmpty()) {
+      recycleChunk(queue.poll());
+    }
+    notifyAll();
+  }
+
+  private static final class Chunk {
+
+    public final byte[] data;
+    public int length;
+
+    public Chunk(int size) {
+      data = new byte[size];
+    }
+
+  }
+
+}
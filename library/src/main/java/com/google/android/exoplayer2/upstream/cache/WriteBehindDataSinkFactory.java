@@ -0,0 +1,53 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.exoplayer2.upstream.cache;
+
+import com.google.android.exoplayer2.upstream.DataSink;
+
+/**
+ * A {@link DataSink.Factory} that produces {@link WriteBehindDataSink}.
+ */
+public final class WriteBehindDataSinkFactory implements DataSink.Factory {
+
+  private final DataSink.Factory dataSinkFactory;
+  private final int maxQueuedBytes;
+  private final int backPressurePolicy;
+
+  /**
+   * @see WriteBehindDataSink#WriteBehindDataSink(DataSink)
+   */
+  public WriteBehindDataSinkFactory(DataSink.Factory dataSinkFactory) {
+    this(dataSinkFactory, WriteBehindDataSink.DEFAULT_MAX_QUEUED_BYTES,
+        WriteBehindDataSink.BACK_PRESSURE_POLICY_BLOCK);
+  }
+
+  /**
+   * @see WriteBehindDataSink#WriteBehindDataSink(DataSink, int, int)
+   */
+  public WriteBehindDataSinkFactory(DataSink.Factory dataSinkFactory, int maxQueuedBytes,
+      @WriteBehindDataSink.BackPressurePolicy int backPressurePolicy) {
+    this.dataSinkFactory = dataSinkFactory;
+    this.maxQueuedBytes = maxQueuedBytes;
+    this.backPressurePolicy = backPressurePolicy;
+  }
+
+  @Override
+  public DataSink createDataSink() {
+    return new WriteBehindDataSink(dataSinkFactory.createDataSink(), maxQueuedBytes,
+        backPressurePolicy);
+  }
+
+}
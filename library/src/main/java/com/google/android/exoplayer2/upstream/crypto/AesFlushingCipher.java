@@ -0,0 +1,143 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.exoplayer2.upstream.crypto;
+
+import com.google.android.exoplayer2.util.Assertions;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import javax.crypto.Cipher;
+import javax.crypto.ShortBufferException;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * An AES cipher in CTR mode whose output is flushed on each update, so that the bytes of a stream
+ * can be transformed independently of how the stream is split into updates. The keystream is
+ * determined by a nonce and a position in the stream, so encryption and decryption can start at
+ * any position without processing the preceding bytes.
+ * <p>
+ * A single {@link Cipher} is created by the constructor and reinitialized by each call to
+ * {@link #init(long, long)}, so an instance can be reused for any number of streams.
+ */
+public final class AesFlushingCipher {
+
+  private final Cipher cipher;
+  private final SecretKeySpec secretKeySpec;
+  private final int blockSize;
+  private final byte[] zerosBlock;
+  private final byte[] flushedBlock;
+
+  private int pendingXorBytes;
+
+  /**
+   * @param secretKey The secret key. Must be 16, 24 or 32 bytes long.
+   */
+  public AesFlushingCipher(byte[] secretKey) {
+    try {
+      cipher = Cipher.getInstance("AES/CTR/NoPadding");
+    } catch (GeneralSecurityException e) {
+      throw new IllegalStateException(e); // Should never happen.
+    }
+    secretKeySpec = new SecretKeySpec(secretKey, "AES");
+    blockSize = cipher.getBlockSize();
+    zerosBlock = new byte[blockSize];
+    flushedBlock = new byte[blockSize];
+  }
+
+  /**
+   * Initializes the cipher to transform a stream from a given position. Since the transformation
+   * in CTR mode is its own inverse, the same method is used for encryption and decryption.
+   *
+   * @param nonce A value identifying the stream. The same key and nonce must not be used for
+   *     streams with different content.
+   * @param position The position in the stream of the first byte to be transformed.
+   */
+  public void init(long nonce, long position) {
+    long counter = position / blockSize;
+    int startPadding = (int) (position % blockSize);
+    byte[] initializationVector = ByteBuffer.allocate(16).putLong(nonce).putLong(counter).array();
+    try {
+      cipher.init(Cipher.ENCRYPT_MODE, secretKeySpec,
+          new IvParameterSpec(initializationVector));
+    } catch (GeneralSecurityException e) {
+      throw new IllegalStateException(e);
+    }
+    pendingXorBytes = 0;
+    if (startPadding != 0) {
+      // Discard the keystream bytes that precede the position.
+      updateInPlace(new byte[startPadding], 0, startPadding);
+    }
+  }
+
+  /**
+   * Transforms data in place.
+   *
+   * @param data The buffer containing the data.
+   * @param offset The offset of the data in {@code data}.
+   * @param length The length of the data, in bytes.
+   */
+  public void updateInPlace(byte[] data, int offset, int length) {
+    update(data, offset, length, data, offset);
+  }
+
+  /**
+   * Transforms data into an output buffer. The input and output ranges may be the same, but
+   * mustn't otherwise overlap.
+   *
+   * @param in The buffer containing the input data.
+   * @param inOffset The offset of the input data in {@code in}.
+   * @param length The length of the data, in bytes.
+   * @param out The buffer into which the output is written.
+   * @param outOffset The offset in {@code out} at which the output is written.
+   */
+  public void update(byte[] in, int inOffset, int length, byte[] out, int outOffset) {
+    // If the previous update ended part way through a block, then the cipher was flushed with
+    // zeros and the keystream bytes for the rest of that block were retained.
+    while (pendingXorBytes > 0 && length > 0) {
+      out[outOffset++] = (byte) (in[inOffset++] ^ flushedBlock[blockSize - pendingXorBytes]);
+      pendingXorBytes--;
+      length--;
+    }
+    if (length == 0) {
+      return;
+    }
+    int written = nonFlushingUpdate(in, inOffset, length, out, outOffset);
+    if (written == length) {
+      return;
+    }
+    // The cipher buffered the end of the input. Completing the block with zeros outputs the
+    // keystream bytes, which transform the buffered input and any input of subsequent updates up to
+    // the end of the block.
+    int bytesToFlush = length - written;
+    Assertions.checkState(bytesToFlush < blockSize);
+    outOffset += written;
+    pendingXorBytes = blockSize - bytesToFlush;
+    written = nonFlushingUpdate(zerosBlock, 0, pendingXorBytes, flushedBlock, 0);
+    Assertions.checkState(written == blockSize);
+    System.arraycopy(flushedBlock, 0, out, outOffset, bytesToFlush);
+  }
+
+  private int nonFlushingUpdate(byte[] in, int inOffset, int length, byte[] out, int outOffset) {
+    try {
+      return cipher.update(in, inOffset, length, out, outOffset);
+    } catch (ShortBufferException e) {
+      // Should never happen, since the output is never longer than the input plus a block that was
+      // previously buffered, and the zeros flushed by update complete the buffered block.
+      throw new IllegalStateException(e);
+    }
+  }
+
+}
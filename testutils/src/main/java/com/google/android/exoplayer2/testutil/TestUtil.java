@@ -23,6 +23,8 @@ import com.google.android.exoplayer2.extractor.Extractor;
 import com.google.android.exoplayer2.extractor.PositionHolder;
 import com.google.android.exoplayer2.extractor.SeekMap;
 import com.google.android.exoplayer2.testutil.FakeExtractorInput.SimulatedIOException;
+import com.google.android.exoplayer2.upstream.Allocation;
+import com.google.android.exoplayer2.upstream.Allocator;
 import com.google.android.exoplayer2.util.Assertions;
 import com.google.android.exoplayer2.util.Util;
 import java.io.File;
@@ -309,6 +311,32 @@ public class TestUtil {
     fileOrDirectory.delete();
   }
 
+  /** Returns {@code count} allocations obtained from the given allocator. */
+  public static Allocation[] allocate(Allocator allocator, int count) {
+    Allocation[] allocations = new Allocation[count];
+    for (int i = 0; i < count; i++) {
+      allocations[i] = allocator.allocate();
+    }
+    return allocations;
+  }
+
+  /**
+   * Returns the number of allocations in {@code newAllocations} that are also in
+   * {@code oldAllocations}.
+   */
+  public static int countReused(Allocation[] oldAllocations, Allocation[] newAllocations) {
+    int count = 0;
+    for (Allocation newAllocation : newAllocations) {
+      for (Allocation oldAllocation : oldAllocations) {
+        if (newAllocation == oldAllocation) {
+          count++;
+          break;
+        }
+      }
+    }
+    return count;
+  }
+
   /** Creates an empty folder in the application specific cache directory. */
   public static File createTempFolder(Context context) throws IOException {
     File tempFolder = File.createTempFile("ExoPlayerTest", null, context.getCacheDir());